@@ -23,6 +23,7 @@ import org.apache.commons.logging.LogFactory;
 
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.clustering.ClusteringMetrics;
 import org.apache.nutch.clustering.HitsCluster;
 import org.apache.nutch.clustering.OnlineClusterer;
 import org.apache.nutch.searcher.HitDetails;
@@ -74,6 +75,9 @@ public class Clusterer implements OnlineClusterer, Configurable {
   /** Nutch configuration. */
   private Configuration conf;
 
+  /** Where the latency of the clustering stages is recorded, if not null. */
+  private ClusteringMetrics metrics;
+
   /** 
    * Default language for hits. English by default, but may be changed
    * via a property in Nutch configuration. 
@@ -105,7 +109,7 @@ public class Clusterer implements OnlineClusterer, Configurable {
     //  *   <input  component-key="input-localnutch" />
     LocalComponentFactory nutchInputFactory = new LocalComponentFactoryBase() {
       public LocalComponent getInstance() {
-        return new LocalNutchInputComponent(defaultLanguage);
+        return new LocalNutchInputComponent(defaultLanguage, metrics);
       }
     };
     controller.addLocalComponentFactory("input-localnutch", nutchInputFactory);
@@ -189,8 +193,10 @@ public class Clusterer implements OnlineClusterer, Configurable {
 
     try {
       // The input component takes Nutch's results so we don't need the query argument.
+      long start = System.currentTimeMillis();
       final ProcessingResult result = 
         controller.query(PROCESS_ID, "no-query", requestParams);
+      long clustered = System.currentTimeMillis();
 
       final ClustersConsumerOutputComponent.Result output =
         (ClustersConsumerOutputComponent.Result) result.getQueryResult();
@@ -203,6 +209,11 @@ public class Clusterer implements OnlineClusterer, Configurable {
         RawCluster rcluster = (RawCluster) i.next();
         clusters[j] = new HitsClusterAdapter(rcluster, hitDetails);
       }
+      if (metrics != null) {
+        metrics.record(ClusteringMetrics.Stage.CLUSTERING, clustered - start);
+        metrics.record(ClusteringMetrics.Stage.OUTPUT,
+                       System.currentTimeMillis() - clustered);
+      }
 
       // invoke Carrot2 process here.
       return clusters;
@@ -218,6 +229,7 @@ public class Clusterer implements OnlineClusterer, Configurable {
    */
   public void setConf(Configuration conf) {
     this.conf = conf;
+    this.metrics = ClusteringMetrics.get(conf);
     
     // Configure default language and other component settings.
     if (conf.get(CONF_PROP_DEFAULT_LANGUAGE) != null) {
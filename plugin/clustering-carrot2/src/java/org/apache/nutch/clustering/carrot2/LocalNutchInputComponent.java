@@ -28,6 +28,7 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import org.apache.nutch.clustering.ClusteringMetrics;
 import org.apache.nutch.searcher.HitDetails;
 
 import com.dawidweiss.carrot.core.local.LocalInputComponentBase;
@@ -64,11 +65,26 @@ public class LocalNutchInputComponent extends LocalInputComponentBase {
    */
   private String defaultLanguage;
 
+  /**
+   * Where the time spent producing the documents is recorded, if not null.
+   */
+  private ClusteringMetrics metrics;
+
   /**
    * Creates an input component with the given default language code.
    */
   public LocalNutchInputComponent(String defaultLanguage) {
+    this(defaultLanguage, null);
+  }
+
+  /**
+   * Creates an input component with the given default language code,
+   * recording its latency in the given metrics.
+   */
+  public LocalNutchInputComponent(String defaultLanguage,
+                                  ClusteringMetrics metrics) {
     this.defaultLanguage = defaultLanguage;
+    this.metrics = metrics;
   }
 
   /*
@@ -101,9 +117,14 @@ public class LocalNutchInputComponent extends LocalInputComponentBase {
     
     // produce 'documents' for successor components.
     final RawDocumentsConsumer consumer = (RawDocumentsConsumer) next;
+    final long start = System.currentTimeMillis();
     for (int i=0;i<summaries.length;i++) {
       consumer.addDocument(new NutchDocument(i, details[i], summaries[i], defaultLanguage));
     }
+    if (metrics != null) {
+      metrics.record(ClusteringMetrics.Stage.INPUT,
+                     System.currentTimeMillis() - start);
+    }
   }
 
   /**
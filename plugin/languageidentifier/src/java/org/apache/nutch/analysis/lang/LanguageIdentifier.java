@@ -57,6 +57,7 @@ import org.apache.nutch.util.NutchConfiguration;
 
 /**
  * Identify the language of a content, based on statistical analysis.
+ * An instance can be shared by several threads.
  *
  * @see <a href="http://www.w3.org/WAI/ER/IG/ert/iso639.htm">ISO 639
  *      Language Codes</a>
@@ -89,8 +90,8 @@ public class LanguageIdentifier {
   /** A global index of ngrams of all supported languages */
   private HashMap ngramsIdx = new HashMap();
 
-  /** The NGramProfile used for identification */
-  private NGramProfile suspect = null;
+  /** The primitive index of the ngrams used for identification */
+  private NGramScorer scorer = null;
 
   /** My singleton instance */
   private static LanguageIdentifier identifier = null;
@@ -173,8 +174,7 @@ public class LanguageIdentifier {
         }
       }
       if (LOG.isInfoEnabled()) { LOG.info(list.toString()); }
-      // Create the suspect profile
-      suspect = new NGramProfile("suspect", minLength, maxLength);
+      scorer = new NGramScorer(languages, minLength, maxLength);
     } catch (Exception e) {
       if (LOG.isFatalEnabled()) { LOG.fatal(e.toString()); }
     }
@@ -190,6 +190,7 @@ public class LanguageIdentifier {
    *                    [-identifyfileset charset files]
    *                    [-identifytext text]
    *                    [-identifyurl url]
+   *                    [-benchmark charset iterations files]
    * </pre>
    * @param args arguments.
    */
@@ -200,7 +201,8 @@ public class LanguageIdentifier {
                       "[-identifyfile charset filename] "  +
                       "[-identifyfileset charset files] "  +
                       "[-identifytext text] "              +
-                      "[-identifyurl url]";
+                      "[-identifyurl url] "                +
+                      "[-benchmark charset iterations files]";
     int command = 0;
 
     final int IDFILE = 1;
@@ -208,6 +210,7 @@ public class LanguageIdentifier {
     final int IDURL = 3;
     final int IDFILESET = 4;
     final int IDROWS = 5;
+    final int BENCHMARK = 6;
 
     Vector fileset = new Vector();
     String filename = "";
@@ -215,6 +218,7 @@ public class LanguageIdentifier {
     String url = "";
     String text = "";
     int max = 0;
+    int iterations = 0;
 
     if (args.length == 0) {
       System.err.println(usage);
@@ -245,9 +249,12 @@ public class LanguageIdentifier {
           text += args[i] + " ";
       }
 
-      if (args[i].equals("-identifyfileset")) {
-        command = IDFILESET;
+      if (args[i].equals("-identifyfileset") || args[i].equals("-benchmark")) {
+        command = args[i].equals("-benchmark") ? BENCHMARK : IDFILESET;
         charset = args[++i];
+        if (command == BENCHMARK) {
+          iterations = Integer.parseInt(args[++i]);
+        }
         for (i++; i < args.length; i++) {
           File[] files = null;
           File f = new File(args[i]);
@@ -330,6 +337,11 @@ public class LanguageIdentifier {
           } */
           System.exit(0);
           break;
+
+        case BENCHMARK:
+          benchmark(idfr, fileset, charset, iterations);
+          System.exit(0);
+          break;
       }
     } catch (Exception e) {
       System.out.println(e);
@@ -337,6 +349,64 @@ public class LanguageIdentifier {
     System.out.println("text was identified as " + lang);
   }
 
+  /**
+   * Compares the throughput and results of the primitive scoring with the
+   * scoring of the profiles, on each file and on each of its lines.
+   */
+  private static void benchmark(LanguageIdentifier idfr, List files,
+                                String charset, int iterations)
+    throws IOException {
+
+    List texts = new ArrayList();
+    for (int i=0; i<files.size(); i++) {
+      FileInputStream fis = new FileInputStream((String) files.get(i));
+      BufferedReader reader =
+        new BufferedReader(new InputStreamReader(fis, charset));
+      StringBuffer text = new StringBuffer();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().length() > 0) {
+          texts.add(line);
+        }
+        text.append(line).append('\n');
+      }
+      reader.close();
+      texts.add(text.toString());
+    }
+    long chars = 0;
+    int differences = 0;
+    for (int i=0; i<texts.size(); i++) {
+      String text = (String) texts.get(i);
+      chars += text.length();
+      String expected = idfr.identifyByProfiles(new StringBuffer(text));
+      String lang = idfr.identify(text);
+      if (!expected.equals(lang)) {
+        differences++;
+        System.out.println(expected + " != " + lang + ": " + text);
+      }
+    }
+    System.out.println(texts.size() + " texts, " + chars + " chars, "
+                       + differences + " differences");
+    for (int run=0; run<2; run++) {
+      long start = System.currentTimeMillis();
+      for (int n=0; n<iterations; n++) {
+        for (int i=0; i<texts.size(); i++) {
+          idfr.identifyByProfiles(new StringBuffer((String) texts.get(i)));
+        }
+      }
+      long profiles = System.currentTimeMillis() - start;
+      start = System.currentTimeMillis();
+      for (int n=0; n<iterations; n++) {
+        for (int i=0; i<texts.size(); i++) {
+          idfr.identify((String) texts.get(i));
+        }
+      }
+      long primitive = System.currentTimeMillis() - start;
+      System.out.println("profiles: " + profiles + "ms, primitive: "
+                         + primitive + "ms");
+    }
+  }
+
   /**
    * @param url
    * @return contents of url
@@ -372,7 +442,11 @@ public class LanguageIdentifier {
    *         matches the specified content.
    */
   public String identify(String content) {
-    return identify(new StringBuffer(content));
+    int length = content.length();
+    if ((analyzeLength > 0) && (length > analyzeLength)) {
+      length = analyzeLength;
+    }
+    return (scorer == null) ? "" : scorer.identify(content, length);
   }
 
   /**
@@ -385,6 +459,21 @@ public class LanguageIdentifier {
    *         matches the specified content.
    */
   public String identify(StringBuffer content) {
+    int length = content.length();
+    if ((analyzeLength > 0) && (length > analyzeLength)) {
+      length = analyzeLength;
+    }
+    // avoid the synchronized charAt() of StringBuffer
+    return identify(content.substring(0, length));
+  }
+
+  /**
+   * Identify language of a content by scoring the NGramProfile of the
+   * content against each language profile. This is the reference for
+   * {@link #identify(StringBuffer)}, which gives the same results faster
+   * (except for CJK texts, that have no profiles).
+   */
+  String identifyByProfiles(StringBuffer content) {
 
     StringBuffer text = content;
     if ((analyzeLength > 0) && (content.length() > analyzeLength)) {
@@ -392,6 +481,7 @@ public class LanguageIdentifier {
         text.setLength(analyzeLength);
     }
 
+    NGramProfile suspect = new NGramProfile("suspect", minLength, maxLength);
     suspect.analyze(text);
     Iterator iter = suspect.getSorted().iterator();
     float topscore = Float.MIN_VALUE;
@@ -0,0 +1,484 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.analysis.lang;
+
+// JDK imports
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+// Nutch imports
+import org.apache.nutch.analysis.lang.NGramProfile.NGramEntry;
+
+
+/**
+ * Scores a text against a set of {@link NGramProfile}s, with the same
+ * scoring as the profiles themselves but on primitive arrays.
+ *
+ * <p>A ngram of up to four chars is packed into a <code>long</code>, 16
+ * bits per char. The ngrams of all the profiles are indexed in an open
+ * addressing hash table, and their frequencies in each language are kept in
+ * a ngram &times; language table. As most ngrams only appear in one or two
+ * profiles, each row of the table only holds its non-zero cells. The ngrams
+ * of a text are counted in per-thread buffers, and scored by decreasing
+ * frequency until a language leads by more than the others could still
+ * gain.</p>
+ *
+ * <p>Texts mostly written with CJK ideographs, kana or hangul are classified
+ * from these Unicode blocks only, as there are no profiles for them.</p>
+ *
+ * @see NGramProfile
+ */
+final class NGramScorer {
+
+  /** Scores are compared every CHECK_INTERVAL ngrams */
+  private final static int CHECK_INTERVAL = 32;
+
+  private final int minLength;
+  private final int maxLength;
+
+  /** The names of the languages */
+  private final String[] languages;
+
+  /** Packed ngrams of all the profiles, 0 for empty slots */
+  private final long[] keys;
+
+  /** Index of the ngram in each slot of keys */
+  private final int[] slots;
+
+  /** The cells of ngram g are at [rows[g], rows[g + 1]) */
+  private final int[] rows;
+
+  /** The language of each cell, ascending within a row */
+  private final int[] cellLanguages;
+
+  /** The frequency of the ngram in the language of each cell */
+  private final float[] cellWeights;
+
+  /** Highest frequency of each ngram in any language */
+  private final float[] maxWeights;
+
+  /** The per-thread buffers */
+  private final ThreadLocal buffers = new ThreadLocal() {
+    protected Object initialValue() {
+      return new Buffers(languages.length);
+    }
+  };
+
+
+  /**
+   * @param profiles are the loaded language profiles, in order of
+   *        preference for equal scores.
+   */
+  NGramScorer(List profiles, int minLength, int maxLength) {
+    this.minLength = minLength;
+    this.maxLength = maxLength;
+    int numLanguages = profiles.size();
+    languages = new String[numLanguages];
+
+    int total = 0;
+    for (int l = 0; l < numLanguages; l++) {
+      total += ((NGramProfile) profiles.get(l)).getSorted().size();
+    }
+    int capacity = Integer.highestOneBit(Math.max(total, 16) * 2) * 2;
+    keys = new long[capacity];
+    slots = new int[capacity];
+
+    // First assign an index to each distinct ngram
+    int numGrams = 0;
+    for (int l = 0; l < numLanguages; l++) {
+      NGramProfile profile = (NGramProfile) profiles.get(l);
+      languages[l] = profile.getName();
+      for (Iterator i = profile.getSorted().iterator(); i.hasNext(); ) {
+        long key = pack(((NGramEntry) i.next()).getSeq());
+        int slot = slot(keys, key);
+        if (keys[slot] == 0) {
+          keys[slot] = key;
+          slots[slot] = numGrams++;
+        }
+      }
+    }
+
+    // Then size the rows and fill them, language by language
+    rows = new int[numGrams + 1];
+    for (int l = 0; l < numLanguages; l++) {
+      NGramProfile profile = (NGramProfile) profiles.get(l);
+      for (Iterator i = profile.getSorted().iterator(); i.hasNext(); ) {
+        rows[slots[slot(keys, pack(((NGramEntry) i.next()).getSeq()))] + 1]++;
+      }
+    }
+    for (int g = 0; g < numGrams; g++) {
+      rows[g + 1] += rows[g];
+    }
+    int[] next = new int[numGrams];
+    System.arraycopy(rows, 0, next, 0, numGrams);
+    cellLanguages = new int[total];
+    cellWeights = new float[total];
+    maxWeights = new float[numGrams];
+    for (int l = 0; l < numLanguages; l++) {
+      NGramProfile profile = (NGramProfile) profiles.get(l);
+      for (Iterator i = profile.getSorted().iterator(); i.hasNext(); ) {
+        NGramEntry entry = (NGramEntry) i.next();
+        int g = slots[slot(keys, pack(entry.getSeq()))];
+        cellLanguages[next[g]] = l;
+        cellWeights[next[g]++] = entry.getFrequency();
+        maxWeights[g] = Math.max(maxWeights[g], entry.getFrequency());
+      }
+    }
+  }
+
+  /** Packs a ngram of up to four chars. */
+  static long pack(CharSequence seq) {
+    long key = 0;
+    for (int i = 0; i < seq.length(); i++) {
+      key = (key << 16) | seq.charAt(i);
+    }
+    return key;
+  }
+
+  /** Returns the slot of a key in a table, or the empty slot to insert it. */
+  private static int slot(long[] table, long key) {
+    int mask = table.length - 1;
+    int slot = hash(key) & mask;
+    while (table[slot] != 0 && table[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static int hash(long key) {
+    key *= 0x9E3779B97F4A7C15L;
+    return (int) (key ^ (key >>> 32));
+  }
+
+  /**
+   * Identify language of the first chars of a text.
+   * @return the name of the best matching profile, or an empty string.
+   */
+  String identify(CharSequence text, int length) {
+    String lang = identifyCJK(text, length);
+    if (lang != null) {
+      return lang;
+    }
+    Buffers buffers = (Buffers) this.buffers.get();
+    buffers.analyze(text, length);
+    int n = buffers.select(NGramProfile.MAX_SIZE);
+    return score(buffers, n);
+  }
+
+  /**
+   * Adds the frequency of each ngram of the text and of the languages
+   * having it, by decreasing frequency of the ngrams in the text, like
+   * the profiles do.
+   */
+  private String score(Buffers buffers, int n) {
+    float[] scores = buffers.scores;
+    Arrays.fill(scores, 0f);
+
+    int[] grams = buffers.grams;
+    float[] freqs = buffers.freqs;
+    for (int i = 0; i < n; i++) {
+      int slot = slot(keys, buffers.selected[i]);
+      grams[i] = (keys[slot] == 0) ? -1 : slots[slot];
+    }
+
+    // What any language could still gain from the ngrams after each one
+    double[] remaining = buffers.remaining;
+    double bound = 0;
+    for (int i = n - 1; i >= 0; i--) {
+      remaining[i] = bound;
+      if (grams[i] >= 0) {
+        bound += maxWeights[grams[i]] + freqs[i];
+      }
+    }
+
+    float topscore = Float.MIN_VALUE;
+    int top = -1;
+    for (int i = 0; i < n; i++) {
+      int g = grams[i];
+      if (g < 0) {
+        continue;
+      }
+      float frequency = freqs[i];
+      for (int c = rows[g]; c < rows[g + 1]; c++) {
+        int l = cellLanguages[c];
+        scores[l] += cellWeights[c] + frequency;
+        if (scores[l] > topscore) {
+          topscore = scores[l];
+          top = l;
+        }
+      }
+      if ((i % CHECK_INTERVAL == CHECK_INTERVAL - 1) && (top >= 0)) {
+        float second = 0f;
+        for (int l = 0; l < scores.length; l++) {
+          if (l != top && scores[l] > second) {
+            second = scores[l];
+          }
+        }
+        if (topscore - second > remaining[i] * 1.0001 + 1e-6) {
+          break;                                  // nobody can catch up
+        }
+      }
+    }
+    return (top < 0) ? "" : languages[top];
+  }
+
+  /**
+   * Classifies a text whose letters are mostly CJK ideographs, kana or
+   * hangul, or returns null.
+   */
+  static String identifyCJK(CharSequence text, int length) {
+    int letters = 0, han = 0, kana = 0, hangul = 0;
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        if (((c | 0x20) >= 'a') && ((c | 0x20) <= 'z')) { letters++; }
+        continue;
+      }
+      if (c < 0x1100) {
+        if (Character.isLetter(c)) { letters++; }
+        continue;
+      }
+      if ((c >= 0x4E00 && c <= 0x9FFF) || (c >= 0x3400 && c <= 0x4DBF)
+          || (c >= 0xF900 && c <= 0xFAFF)) {
+        han++;
+      } else if ((c >= 0x3040 && c <= 0x30FF) || (c >= 0x31F0 && c <= 0x31FF)
+                 || (c >= 0xFF66 && c <= 0xFF9F)) {
+        kana++;
+      } else if ((c >= 0xAC00 && c <= 0xD7AF) || (c <= 0x11FF)
+                 || (c >= 0x3130 && c <= 0x318F)) {
+        hangul++;
+      } else if (Character.isLetter(c)) {
+        letters++;
+      }
+    }
+    int cjk = han + kana + hangul;
+    if (cjk == 0 || cjk < letters) {
+      return null;
+    }
+    if (hangul > han + kana) {
+      return "ko";
+    }
+    return (kana * 10 > han + kana) ? "ja" : "zh";
+  }
+
+
+  /** The buffers used to analyze a text, reused by a thread. */
+  private final class Buffers {
+    /** Open addressing table of the packed ngrams of the text */
+    long[] table = new long[4096];
+    int[] counts = new int[4096];
+    /** The slots used in table, in order of insertion */
+    int[] used = new int[1024];
+    int size = 0;
+    /** Total number of ngrams of each length */
+    int[] totals = new int[NGramProfile.ABSOLUTE_MAX_NGRAM_LENGTH + 1];
+
+    /** The ngrams of the text grouped by frequency, left-aligned */
+    long[] grouped = new long[1024];
+    /** The number of ngrams, then their offset in grouped, by length and count */
+    int[][] byCount = new int[NGramProfile.ABSOLUTE_MAX_NGRAM_LENGTH + 1][256];
+    /** Frequency bits, length and count of each distinct (length, count) */
+    long[] pairs = new long[256];
+    /** Start in grouped and frequency of the ngrams of each frequency */
+    int[] groupStart = new int[257];
+    float[] groupFreq = new float[256];
+
+    /** The selected ngrams, most frequent first, and their frequencies */
+    long[] selected = new long[NGramProfile.MAX_SIZE];
+    float[] freqs = new float[NGramProfile.MAX_SIZE];
+    int[] grams = new int[NGramProfile.MAX_SIZE];
+    double[] remaining = new double[NGramProfile.MAX_SIZE];
+    float[] scores;
+
+    Buffers(int numLanguages) {
+      scores = new float[numLanguages];
+    }
+
+    /** Counts the ngrams of a text, the same way as NGramProfile. */
+    void analyze(CharSequence text, int length) {
+      for (int i = 0; i < size; i++) {
+        table[used[i]] = 0;
+        counts[used[i]] = 0;
+      }
+      size = 0;
+      Arrays.fill(totals, 0);
+
+      long window = NGramProfile.SEPARATOR;       // last chars of the word
+      int wlen = 1;
+      for (int i = 0; i < length; i++) {
+        char c = text.charAt(i);
+        boolean letter;
+        if (c < 0x80) {                           // ASCII shortcut
+          if (c >= 'A' && c <= 'Z') { c += 'a' - 'A'; }
+          letter = (c >= 'a' && c <= 'z');
+        } else {
+          c = Character.toLowerCase(c);
+          letter = Character.isLetter(c);
+        }
+        if (letter) {
+          window = (window << 16) | c;
+          add(window, ++wlen);
+        } else if (wlen > 1) {
+          // found word boundary
+          window = (window << 16) | NGramProfile.SEPARATOR;
+          add(window, ++wlen);
+          window = NGramProfile.SEPARATOR;
+          wlen = 1;
+        }
+      }
+      if (wlen > 1) {
+        window = (window << 16) | NGramProfile.SEPARATOR;
+        add(window, ++wlen);
+      }
+    }
+
+    /** Adds the ngrams ending with the last char of the word. */
+    private void add(long window, int wlen) {
+      if (wlen < minLength) {
+        return;
+      }
+      int max = Math.min(maxLength, wlen);
+      for (int n = minLength; n <= max; n++) {
+        long key = (n == 4) ? window : window & ((1L << (16 * n)) - 1);
+        if (key == NGramProfile.SEPARATOR) {
+          continue;                               // a lone separator
+        }
+        int slot = slot(table, key);
+        if (table[slot] == 0) {
+          table[slot] = key;
+          if (size == used.length) {
+            used = grow(used);
+          }
+          used[size++] = slot;
+          if (size * 2 > table.length) {
+            rehash();
+            slot = slot(table, key);
+          }
+        }
+        counts[slot]++;
+        totals[n]++;
+      }
+    }
+
+    private void rehash() {
+      long[] oldTable = table;
+      int[] oldCounts = counts;
+      table = new long[oldTable.length * 2];
+      counts = new int[table.length];
+      for (int i = 0; i < size; i++) {
+        int slot = slot(table, oldTable[used[i]]);
+        table[slot] = oldTable[used[i]];
+        counts[slot] = oldCounts[used[i]];
+        used[i] = slot;
+      }
+    }
+
+    /**
+     * Keeps the max most frequent ngrams, ordered as by
+     * NGramProfile.getSorted(): by decreasing frequency, then by sequence.
+     * The ngrams are bucketed by frequency, and only the buckets that are
+     * kept get sorted by sequence. Fills selected and freqs and returns the
+     * number of ngrams kept.
+     */
+    int select(int max) {
+      if (grouped.length < size) {
+        grouped = new long[Math.max(size, grouped.length * 2)];
+      }
+
+      // Count the ngrams of each length and count
+      int numPairs = 0;
+      for (int i = 0; i < size; i++) {
+        int slot = used[i];
+        int len = length(table[slot]);
+        int count = counts[slot];
+        if (byCount[len].length <= count) {
+          int[] grown = new int[Math.max(count + 1, byCount[len].length * 2)];
+          System.arraycopy(byCount[len], 0, grown, 0, byCount[len].length);
+          byCount[len] = grown;
+        }
+        if (byCount[len][count]++ == 0) {
+          if (numPairs == pairs.length) {
+            long[] grown = new long[pairs.length * 2];
+            System.arraycopy(pairs, 0, grown, 0, numPairs);
+            pairs = grown;
+          }
+          float frequency = (float) count / (float) totals[len];
+          pairs[numPairs++] = ((long) Float.floatToIntBits(frequency) << 32)
+                            | ((long) len << 29) | count;
+        }
+      }
+
+      // Group the equal frequencies, highest first
+      Arrays.sort(pairs, 0, numPairs);
+      if (groupStart.length <= numPairs) {
+        groupStart = new int[pairs.length + 1];
+        groupFreq = new float[pairs.length];
+      }
+      int numGroups = 0;
+      int offset = 0;
+      for (int p = numPairs - 1; p >= 0; p--) {
+        float frequency = Float.intBitsToFloat((int) (pairs[p] >>> 32));
+        if (numGroups == 0 || frequency != groupFreq[numGroups - 1]) {
+          groupStart[numGroups] = offset;
+          groupFreq[numGroups++] = frequency;
+        }
+        int[] offsets = byCount[(int) (pairs[p] >>> 29) & 7];
+        int count = (int) pairs[p] & 0x1FFFFFFF;
+        int n = offsets[count];
+        offsets[count] = offset;
+        offset += n;
+      }
+      groupStart[numGroups] = offset;
+
+      // Left-aligned keys compare like the ngram strings
+      for (int i = 0; i < size; i++) {
+        int slot = used[i];
+        long key = table[slot];
+        int len = length(key);
+        grouped[byCount[len][counts[slot]]++] =
+          (key << (16 * (4 - len))) ^ Long.MIN_VALUE;
+      }
+      for (int p = 0; p < numPairs; p++) {
+        byCount[(int) (pairs[p] >>> 29) & 7][(int) pairs[p] & 0x1FFFFFFF] = 0;
+      }
+
+      int n = 0;
+      for (int g = 0; g < numGroups && n < max; g++) {
+        Arrays.sort(grouped, groupStart[g], groupStart[g + 1]);
+        for (int i = groupStart[g]; i < groupStart[g + 1] && n < max; i++) {
+          long aligned = grouped[i] ^ Long.MIN_VALUE;
+          selected[n] = aligned >>> (Long.numberOfTrailingZeros(aligned) & ~15);
+          freqs[n++] = groupFreq[g];
+        }
+      }
+      return n;
+    }
+
+    private int[] grow(int[] array) {
+      int[] grown = new int[array.length * 2];
+      System.arraycopy(array, 0, grown, 0, array.length);
+      return grown;
+    }
+  }
+
+  /** Returns the number of chars of a packed ngram. */
+  private static int length(long key) {
+    return (79 - Long.numberOfLeadingZeros(key)) >> 4;
+  }
+
+}
@@ -241,4 +241,45 @@ public class TestLanguageIdentifier extends TestCase {
         }
     }
 
+    public void testIdentifyAsProfiles() {
+        try {
+            LanguageIdentifier idfr = new LanguageIdentifier(NutchConfiguration.create());
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                        this.getClass().getResourceAsStream("test-referencial.txt")));
+            String line = null;
+            while((line = in.readLine()) != null) {
+                String[] tokens = line.split(";");
+                if (!tokens[0].equals("")) {
+                    BufferedReader testFile = new BufferedReader(
+                            new InputStreamReader(
+                                this.getClass().getResourceAsStream(tokens[0]), "UTF-8"));
+                    String testLine = null;
+                    while((testLine = testFile.readLine()) != null) {
+                        // every prefix of the line, word by word
+                        int end = 0;
+                        while ((end = testLine.indexOf(' ', end + 1)) > 0) {
+                            String text = testLine.substring(0, end);
+                            assertEquals(text,
+                                         idfr.identifyByProfiles(new StringBuffer(text)),
+                                         idfr.identify(text));
+                        }
+                    }
+                    testFile.close();
+                }
+            }
+            in.close();
+        } catch(Exception e) {
+            e.printStackTrace();
+            fail(e.toString());
+        }
+    }
+
+    public void testIdentifyCJK() {
+        LanguageIdentifier idfr = new LanguageIdentifier(NutchConfiguration.create());
+        assertEquals("zh", idfr.identify("\u8fd9\u662f\u4e00\u4e2a\u4e2d\u6587\u7684\u6d4b\u8bd5\u3002"));
+        assertEquals("ja", idfr.identify("\u3053\u308c\u306f\u65e5\u672c\u8a9e\u306e\u30c6\u30b9\u30c8\u3067\u3059\u3002"));
+        assertEquals("ko", idfr.identify("\uc774\uac83\uc740 \ud55c\uad6d\uc5b4 \ud14d\uc2a4\ud2b8\uc785\ub2c8\ub2e4"));
+        assertEquals("en", idfr.identify("This is an english text, quoting \u4e2d\u6587 once."));
+    }
+
 }
@@ -22,6 +22,7 @@ import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import org.apache.nutch.html.TextNormalizer;
 import org.apache.nutch.parse.Outlink;
 import org.apache.hadoop.conf.Configuration;
 
@@ -54,6 +55,13 @@ public class DOMContentUtils {
   
   private HashMap linkParams = new HashMap();
   private Configuration conf;
+  private TextNormalizer normalizer;
+
+  /** The work area of the normalizer, per thread. */
+  private static final ThreadLocal WORK = new ThreadLocal();
+
+  /** The largest work area kept between text nodes, in chars. */
+  private static final int MAX_WORK = 16 * 1024;
   
   
   public DOMContentUtils(Configuration conf) {
@@ -62,6 +70,7 @@ public class DOMContentUtils {
   
   public void setConf(Configuration conf) {
     this.conf = conf;
+    this.normalizer = new TextNormalizer(conf, false);  // decoded by the DOM
     linkParams.clear();
     linkParams.put("a", new LinkParams("a", "href", 1));
     linkParams.put("area", new LinkParams("area", "href", 0));
@@ -129,12 +138,10 @@ public class DOMContentUtils {
     }
     if (node.getNodeType() == Node.TEXT_NODE) {
       // cleanup and trim the value
-      String text = node.getNodeValue();
-      text = text.replaceAll("\\s+", " ");
-      text = text.trim();
-      if (text.length() > 0) {
-        if (sb.length() > 0) sb.append(' ');
-      	sb.append(text);
+      char[] work = normalizer.append(node.getNodeValue(), sb,
+                                      (char[]) WORK.get());
+      if (work.length <= MAX_WORK) {
+        WORK.set(work);                           // not a huge one
       }
     }
     boolean abort = false;
@@ -343,6 +343,18 @@ public class TestDOMContentUtils extends TestCase {
     }
   }
 
+  public void testNormalizedText() throws Exception {
+    if (testDOMs[0] == null) 
+      setup();
+    DocumentFragment node = new HTMLDocumentImpl().createDocumentFragment();
+    new DOMFragmentParser().parse(new InputSource(new ByteArrayInputStream(
+      ("<html><body><p> a&nbsp;&nbsp;b &#12288; c\n\t</p>"
+       + "<p>\r\n&lt;d&gt;&amp;e </p></body></html>").getBytes())), node);
+    StringBuffer sb = new StringBuffer();
+    utils.getText(sb, node);
+    assertEquals("a b c <d>&e", sb.toString());
+  }
+
   public void testGetOutlinks() {
     if (testDOMs[0] == null) 
       setup();
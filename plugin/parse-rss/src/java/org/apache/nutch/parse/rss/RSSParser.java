@@ -33,6 +33,7 @@ import org.apache.hadoop.conf.Configuration;
 
 // Nutch imports
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.html.TextNormalizer;
 import org.apache.nutch.parse.Parser;
 import org.apache.nutch.parse.Parse;
 import org.apache.nutch.parse.ParseStatus;
@@ -65,6 +66,7 @@ import org.apache.commons.feedparser.FeedParserFactory;
 public class RSSParser implements Parser {
     public static final Log LOG = LogFactory.getLog("org.apache.nutch.parse.rss");
     private Configuration conf;
+    private TextNormalizer normalizer;
 
     /**
      * <p>
@@ -105,6 +107,7 @@ public class RSSParser implements Parser {
         }
 
         StringBuffer contentTitle = new StringBuffer(), indexText = new StringBuffer();
+        char[] work = null;                       // of the normalizer
         List theOutlinks = new Vector();
 
         // for us, the contentTitle will be a concatenation of the titles of the
@@ -117,12 +120,10 @@ public class RSSParser implements Parser {
         if (theRSSChannels != null) {
             for (int i = 0; i < theRSSChannels.size(); i++) {
                 RSSChannel r = (RSSChannel) theRSSChannels.get(i);
-                contentTitle.append(r.getTitle());
-                contentTitle.append(" ");
+                work = append(r.getTitle(), contentTitle, work);
 
                 // concat the description to the index text
-                indexText.append(r.getDescription());
-                indexText.append(" ");
+                work = append(r.getDescription(), indexText, work);
 
                 if (r.getLink() != null) {
                     try {
@@ -146,8 +147,7 @@ public class RSSParser implements Parser {
                 // then index them too
                 for (int j = 0; j < r.getItems().size(); j++) {
                     RSSItem theRSSItem = (RSSItem) r.getItems().get(j);
-                    indexText.append(theRSSItem.getDescription());
-                    indexText.append(" ");
+                    work = append(theRSSItem.getDescription(), indexText, work);
 
                     String whichLink = null;
 
@@ -202,8 +202,14 @@ public class RSSParser implements Parser {
         return new ParseImpl(indexText.toString(), parseData);
     }
 
+  /** Appends normalized text, often holding escaped HTML entities. */
+  private char[] append(String text, StringBuffer sb, char[] work) {
+    return text == null ? work : normalizer.append(text, sb, work);
+  }
+
   public void setConf(Configuration conf) {
     this.conf = conf;
+    this.normalizer = new TextNormalizer(conf, true);
   }
 
   public Configuration getConf() {
@@ -17,6 +17,7 @@
 
 package org.apache.nutch.parse.text;
 
+import org.apache.nutch.html.TextNormalizer;
 import org.apache.nutch.protocol.Content;
 import org.apache.nutch.parse.*;
 import org.apache.nutch.util.*;
@@ -25,6 +26,7 @@ import org.apache.hadoop.conf.Configuration;
 
 public class TextParser implements Parser {
   private Configuration conf;
+  private TextNormalizer normalizer;
 
   public Parse getParse(Content content) {
 
@@ -45,6 +47,7 @@ public class TextParser implements Parser {
       // character set isn't specified in HTTP header.
       text = new String(content.getContent()); // use default encoding
     }
+    text = normalizer.normalize(text);
     ParseData parseData = new ParseData(ParseStatus.STATUS_SUCCESS, "",
         OutlinkExtractor.getOutlinks(text, getConf()), content.getMetadata());
     parseData.setConf(this.conf);
@@ -54,6 +57,8 @@ public class TextParser implements Parser {
 
   public void setConf(Configuration conf) {
     this.conf = conf;
+    this.normalizer = new TextNormalizer(conf, false,
+        conf.getBoolean("parser.text.plain.linebreaks", true));
   }
 
   public Configuration getConf() {
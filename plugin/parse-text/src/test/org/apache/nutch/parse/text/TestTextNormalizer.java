@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutch.parse.text;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.html.TextNormalizer;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+/** Unit tests for TextNormalizer, and its use by TextParser. */
+public class TestTextNormalizer extends TestCase {
+
+  public TestTextNormalizer(String name) {
+    super(name);
+  }
+
+  public void testWhitespace() {
+    TextNormalizer normalizer = new TextNormalizer(false, false);
+    assertEquals("a b", normalizer.normalize(" a \t\r\n b "));
+    assertEquals("a b", normalizer.normalize("a \u3000b\u3000"));
+    assertEquals("a b", normalizer.normalize("a\u00A0\u00A0b"));
+    assertEquals("", normalizer.normalize(" \n "));
+  }
+
+  public void testEntities() {
+    TextNormalizer normalizer = new TextNormalizer(true, false);
+    assertEquals("a b", normalizer.normalize("a&nbsp;&nbsp;b"));
+    assertEquals("<a> & \"b\"",
+                 normalizer.normalize("&lt;a&gt; &amp; &quot;b&quot;"));
+    assertEquals("\u00A9 2007", normalizer.normalize("&copy 2007"));
+    assertEquals("\u4E2D\u6587", normalizer.normalize("&#20013;&#x6587;"));
+    assertEquals("\u2329", normalizer.normalize("&lang;"));
+    assertEquals("\uD840\uDC00", normalizer.normalize("&#x20000;"));
+
+    // no ';': only legacy entities, and not as url parameters
+    assertEquals("&lang", normalizer.normalize("&lang"));
+    assertEquals("?a=1&lang=zh", normalizer.normalize("?a=1&lang=zh"));
+    assertEquals("x&not=1&times=2", normalizer.normalize("x&not=1&times=2"));
+    assertEquals("&unknown;", normalizer.normalize("&unknown;"));
+
+    // not decoded unless asked to
+    assertEquals("&amp;", new TextNormalizer(false, false).normalize("&amp;"));
+  }
+
+  public void testFoldFullWidth() {
+    assertEquals("ABC &amp;", new TextNormalizer(false, true)
+                 .normalize("\uFF21\uFF22\uFF23 &amp;"));
+    assertEquals("\uFF21", new TextNormalizer(false, false)
+                 .normalize("\uFF21"));
+  }
+
+  public void testLineBreaks() {
+    TextNormalizer normalizer = new TextNormalizer(true, false, true);
+    assertEquals("a b\nc", normalizer.normalize("  a  b \r\n\r\n  c \n"));
+    assertEquals("a\nb", normalizer.normalize("a \t\n\t b"));
+    assertEquals("a\nb", normalizer.normalize("a&#10;&nbsp;b"));
+    assertEquals("a b", normalizer.normalize("a\u3000b"));
+  }
+
+  public void testTextParserLineBreaks() throws Exception {
+    String text = "first  line\r\n\r\nsecond\tline\n";
+    Configuration conf = NutchConfiguration.create();
+    assertEquals("first line\nsecond line", parse(text, conf));
+    conf.setBoolean("parser.text.plain.linebreaks", false);
+    assertEquals("first line second line", parse(text, conf));
+  }
+
+  private static String parse(String text, Configuration conf)
+    throws Exception {
+    TextParser parser = new TextParser();
+    parser.setConf(conf);
+    Content content = new Content("http://foo.bar/", "http://foo.bar/",
+                                  text.getBytes("UTF-8"),
+                                  "text/plain; charset=UTF-8",
+                                  new Metadata(), conf);
+    return parser.getParse(content).getText();
+  }
+}
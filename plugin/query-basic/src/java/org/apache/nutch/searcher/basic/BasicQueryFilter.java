@@ -69,6 +69,9 @@ public class BasicQueryFilter implements QueryFilter {
 
   private Configuration conf;
 
+  /** The common grams of the configuration, used to optimize phrases. */
+  private CommonGrams commonGrams;
+
   public BooleanQuery filter(Query input, BooleanQuery output) {
     addTerms(input, output);
     addSloppyPhrases(input, output);
@@ -88,7 +91,7 @@ public class BasicQueryFilter implements QueryFilter {
 
         Clause o = c;
         if (c.isPhrase()) {                         // optimize phrase clauses
-          String[] opt = new CommonGrams(getConf()).optimizePhrase(c.getPhrase(), FIELDS[f]);
+          String[] opt = commonGrams.optimizePhrase(c.getPhrase(), FIELDS[f]);
           if (opt.length==1) {
             o = new Clause(new Term(opt[0]), c.isRequired(), c.isProhibited(), getConf());
           } else {
@@ -171,6 +174,7 @@ public class BasicQueryFilter implements QueryFilter {
 
   public void setConf(Configuration conf) {
     this.conf = conf;
+    this.commonGrams = new CommonGrams(conf);
     this.FIELD_BOOSTS[URL_BOOST] = conf.getFloat("query.url.boost", 4.0f);
     this.FIELD_BOOSTS[ANCHOR_BOOST] = conf.getFloat("query.anchor.boost", 2.0f);
     this.FIELD_BOOSTS[CONTENT_BOOST] = conf.getFloat("query.content.boost", 1.0f);
@@ -23,14 +23,11 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Enumeration;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.Vector;
+import java.util.Map;
 
 // Hadoop imports
 import org.apache.hadoop.conf.Configuration;
@@ -42,182 +39,160 @@ import org.apache.lucene.analysis.TokenStream;
 
 // Nutch imports
 import org.apache.nutch.analysis.NutchDocumentAnalyzer;
+import org.apache.nutch.parse.TermOffsets;
 import org.apache.nutch.searcher.Query;
+import org.apache.nutch.searcher.Query.Clause;
 import org.apache.nutch.searcher.Summarizer;
 import org.apache.nutch.searcher.Summary;
 import org.apache.nutch.searcher.Summary.Ellipsis;
 import org.apache.nutch.searcher.Summary.Fragment;
 import org.apache.nutch.searcher.Summary.Highlight;
+import org.apache.nutch.searcher.TermOffsetsSummarizer;
 import org.apache.nutch.util.NutchConfiguration;
 
 
-/** Implements hit summarization. */
-public class BasicSummarizer implements Summarizer {
-  
+/**
+ * Implements hit summarization.
+ *
+ * <p>Only the first <code>searcher.summary.window</code> tokens of a text are
+ * searched for query terms. The tokens are kept as offsets in per-thread
+ * buffers, and only the best excerpts are kept while scanning, in a heap
+ * bounded by the summary length. The fragments are only built for the
+ * excerpts that make it into the summary.</p>
+ *
+ * <p>The terms of a query phrase are only highlighted where the whole phrase
+ * is found.</p>
+ *
+ * <p>If the segment stores the {@link TermOffsets} of the text, the query
+ * terms are looked up there and the text isn't analyzed at all.</p>
+ */
+public class BasicSummarizer implements TermOffsetsSummarizer {
+
   private int sumContext = 5;
   private int sumLength = 20;
+  private int window = 2000;
   private Analyzer analyzer = null;
   private Configuration conf = null;
-  
-  private final static Comparator ORDER_COMPARATOR = new Comparator() {
-    public int compare(Object o1, Object o2) {
-      return ((Excerpt) o1).getOrder() - ((Excerpt) o2).getOrder();
-    }
-  };
-  
-  private final static Comparator SCORE_COMPARATOR = new Comparator() {
-    public int compare(Object o1, Object o2) {
-      Excerpt excerpt1 = (Excerpt) o1;
-      Excerpt excerpt2 = (Excerpt) o2;
-
-      if (excerpt1 == null && excerpt2 != null) {
-        return -1;
-      } else if (excerpt1 != null && excerpt2 == null) {
-        return 1;
-      } else if (excerpt1 == null && excerpt2 == null) {
-        return 0;
-      }
 
-      int numToks1 = excerpt1.numUniqueTokens();
-      int numToks2 = excerpt2.numUniqueTokens();
-
-      if (numToks1 < numToks2) {
-        return -1;
-      } else if (numToks1 == numToks2) {
-        return excerpt1.numFragments() - excerpt2.numFragments();
-      } else {
-        return 1;
-      }
+  /** The token buffers of the current thread */
+  private final ThreadLocal buffers = new ThreadLocal() {
+    protected Object initialValue() {
+      return new Tokens();
     }
   };
 
-  
+
   public BasicSummarizer() { }
-  
+
   private BasicSummarizer(Configuration conf) {
     setConf(conf);
   }
-  
-  
+
+
   /* ----------------------------- *
    * <implementation:Configurable> *
    * ----------------------------- */
-  
+
   public Configuration getConf() {
     return conf;
   }
-  
+
   public void setConf(Configuration conf) {
     this.conf = conf;
     this.analyzer = new NutchDocumentAnalyzer(conf);
     this.sumContext = conf.getInt("searcher.summary.context", 5);
     this.sumLength = conf.getInt("searcher.summary.length", 20);
+    this.window = conf.getInt("searcher.summary.window", 2000);
   }
-  
+
   /* ------------------------------ *
    * </implementation:Configurable> *
    * ------------------------------ */
-  
-  
+
+
   /* --------------------------- *
    * <implementation:Summarizer> *
    * --------------------------- */
-  
+
   public Summary getSummary(String text, Query query) {
-    
-    // Simplistic implementation.  Finds the first fragments in the document
-    // containing any query terms.
-    //
-    // TODO: check that phrases in the query are matched in the fragment
-    
-    Token[] tokens = getTokens(text);             // parse text to token array
-    
-    if (tokens.length == 0)
+    Tokens tokens = getTokens(text);              // parse text to offsets
+    tokens.mark(new QueryTerms(query));
+    return getSummary(text, tokens);
+  }
+
+  public Summary getSummary(String text, TermOffsets offsets, Query query) {
+    Tokens tokens = (Tokens) buffers.get();
+    tokens.set(offsets, window);
+    tokens.mark(new QueryTerms(query), offsets);
+    return getSummary(text, tokens);
+  }
+
+  /* ---------------------------- *
+   * </implementation:Summarizer> *
+   * ---------------------------- */
+
+  private Summary getSummary(String text, Tokens tokens) {
+
+    // Finds the fragments in the document containing the most distinct
+    // query terms, or the first ones if there are several.
+
+    int n = tokens.size;
+
+    if (n == 0)
       return new Summary();
-    
-    String[] terms = query.getTerms();
-    HashSet highlight = new HashSet();            // put query terms in table
-    for (int i = 0; i < terms.length; i++)
-      highlight.add(terms[i]);
-    
-    // A list to store document's excerpts.
-    // (An excerpt is a Vector full of Fragments and Highlights)
-    List excerpts = new ArrayList();
-    
+
+    // The best excerpts found so far
+    Excerpts excerpts = new Excerpts(Math.max(sumLength, 0) + 1);
+
     //
     // Iterate through all terms in the document
     //
     int lastExcerptPos = 0;
-    for (int i = 0; i < tokens.length; i++) {
+    for (int i = 0; i < n; i++) {
       //
       // If we find a term that's in the query...
       //
-      if (highlight.contains(tokens[i].termText())) {
+      if (tokens.hits[i]) {
         //
         // Start searching at a point SUM_CONTEXT terms back,
         // and move SUM_CONTEXT terms into the future.
         //
         int startToken = (i > sumContext) ? i - sumContext : 0;
-        int endToken = Math.min(i + sumContext, tokens.length);
-        int offset = tokens[startToken].startOffset();
+        int endToken = Math.min(i + sumContext, n);
         int j = startToken;
-        
-        //
-        // Iterate from the start point to the finish, adding
-        // terms all the way.  The end of the passage is always
-        // SUM_CONTEXT beyond the last query-term.
-        //
-        Excerpt excerpt = new Excerpt(i);
-        if (i != 0) {
-          excerpt.add(new Summary.Ellipsis());
-        }
-        
+        int highlights = 0;
+        int unique = 0;
+        tokens.stamp++;
+
         //
         // Iterate through as long as we're before the end of
         // the document and we haven't hit the max-number-of-items
-        // -in-a-summary.
+        // -in-a-summary.  The end of the passage is always
+        // SUM_CONTEXT beyond the last query-term.
         //
         while ((j < endToken) && (j - startToken < sumLength)) {
-          //
-          // Now grab the hit-element, if present
-          //
-          Token t = tokens[j];
-          if (highlight.contains(t.termText())) {
-            excerpt.addToken(t.termText());
-            excerpt.add(new Fragment(text.substring(offset, t.startOffset())));
-            excerpt.add(new Highlight(text.substring(t.startOffset(),t.endOffset())));
-            offset = t.endOffset();
-            endToken = Math.min(j + sumContext, tokens.length);
+          if (tokens.hits[j]) {
+            int id = tokens.ids[j];
+            if (tokens.seen[id] != tokens.stamp) {
+              tokens.seen[id] = tokens.stamp;
+              unique++;
+            }
+            highlights++;
+            endToken = Math.min(j + sumContext, n);
           }
-          
           j++;
         }
-        
+
         lastExcerptPos = endToken;
-        
-        //
-        // We found the series of search-term hits and added
-        // them (with intervening text) to the excerpt.  Now
-        // we need to add the trailing edge of text.
-        //
-        // So if (j < tokens.length) then there is still trailing
-        // text to add.  (We haven't hit the end of the source doc.)
-        // Add the words since the last hit-term insert.
-        //
-        if (j < tokens.length) {
-          excerpt.add(new Fragment(text.substring(offset,tokens[j].endOffset())));
-        }
-        
-        //
-        // Remember how many terms are in this excerpt
-        //
-        excerpt.setNumTerms(j - startToken);
-        
+
         //
-        // Store the excerpt for later sorting
+        // The leading ellipsis, a fragment and a highlight for each
+        // query term, and the trailing text if we haven't hit the end
+        // of the source doc.
         //
-        excerpts.add(excerpt);
-        
+        int fragments = ((i != 0) ? 1 : 0) + 2 * highlights + ((j < n) ? 1 : 0);
+        excerpts.offer(i, startToken, j, unique, fragments);
+
         //
         // Start SUM_CONTEXT places away.  The next
         // search for relevant excerpts begins at i-SUM_CONTEXT
@@ -225,179 +200,432 @@ public class BasicSummarizer implements Summarizer {
         i = j + sumContext;
       }
     }
-    
-    // Sort the excerpts based on their score
-    Collections.sort(excerpts, SCORE_COMPARATOR);
-    
+
     //
     // If the target text doesn't appear, then we just
     // excerpt the first SUM_LENGTH words from the document.
     //
-    if (excerpts.size() == 0) {
-      Excerpt excerpt = new Excerpt(0);
-      int excerptLen = Math.min(sumLength, tokens.length);
-      lastExcerptPos = excerptLen;
-      
-      excerpt.add(new Fragment(text.substring(tokens[0].startOffset(), tokens[excerptLen-1].startOffset())));
-      excerpt.setNumTerms(excerptLen);
-      excerpts.add(excerpt);
-    }
-    
+    if (excerpts.size == 0) {
+      int excerptLen = Math.min(sumLength, n);
+      Summary s = new Summary();
+      if (excerptLen > 0) {
+        s.add(new Fragment(text.substring(tokens.starts[0],
+                                          tokens.starts[excerptLen-1])));
+        if (excerptLen < n)
+          s.add(new Ellipsis());
+      }
+      return s;
+    }
+
     //
     // Now choose the best items from the excerpt set.
     // Stop when we have enought excerpts to build our Summary.
     //
+    int[] best = excerpts.sorted();
+    int count = 0;
     double tokenCount = 0;
-    int numExcerpt = excerpts.size()-1;
-    List bestExcerpts = new ArrayList();
-    while (tokenCount <= sumLength && numExcerpt >= 0) {
-      Excerpt excerpt = (Excerpt) excerpts.get(numExcerpt--);
-      bestExcerpts.add(excerpt);
-      tokenCount += excerpt.getNumTerms();
-    }    
+    while (tokenCount <= sumLength && count < best.length) {
+      tokenCount += excerpts.numTerms(best[count++]);
+    }
     // Sort the best excerpts based on their natural order
-    Collections.sort(bestExcerpts, ORDER_COMPARATOR);
-    
+    excerpts.sortByOrder(best, count);
+
     //
     // Now build our Summary from the best the excerpts.
     //
     tokenCount = 0;
-    numExcerpt = 0;
     Summary s = new Summary();
-    while (tokenCount <= sumLength && numExcerpt < bestExcerpts.size()) {
-      Excerpt excerpt = (Excerpt) bestExcerpts.get(numExcerpt++);
-      double tokenFraction = (1.0 * excerpt.getNumTerms()) / excerpt.numFragments();
-      for (Enumeration e = excerpt.elements(); e.hasMoreElements(); ) {
-        Fragment f = (Fragment) e.nextElement();
-        // Don't add fragments if it takes us over the max-limit
+    for (int e = 0; tokenCount <= sumLength && e < count; e++) {
+      tokenCount = addExcerpt(s, text, tokens, excerpts, best[e], tokenCount);
+    }
+
+    if (tokenCount > 0 && lastExcerptPos < n)
+      s.add(new Ellipsis());
+    return s;
+  }
+
+  /**
+   * Adds the fragments of an excerpt to a summary, as long as they don't
+   * take it over the max-limit. Returns the new token count.
+   */
+  private double addExcerpt(Summary s, String text, Tokens tokens,
+                            Excerpts excerpts, int e, double tokenCount) {
+    int order = excerpts.orders[e];
+    int start = excerpts.starts[e];
+    int end = excerpts.ends[e];
+    double tokenFraction = (1.0 * excerpts.numTerms(e)) / excerpts.fragments[e];
+
+    if (order != 0) {
+      if (tokenCount + tokenFraction <= sumLength) {
+        s.add(new Ellipsis());
+      }
+      tokenCount += tokenFraction;
+    }
+    int offset = tokens.starts[start];
+    for (int j = start; j < end; j++) {
+      if (tokens.hits[j]) {
         if (tokenCount + tokenFraction <= sumLength) {
-          s.add(f);
+          s.add(new Fragment(text.substring(offset, tokens.starts[j])));
         }
         tokenCount += tokenFraction;
+        if (tokenCount + tokenFraction <= sumLength) {
+          s.add(new Highlight(text.substring(tokens.starts[j], tokens.ends[j])));
+        }
+        tokenCount += tokenFraction;
+        offset = tokens.ends[j];
       }
     }
-    
-    if (tokenCount > 0 && lastExcerptPos < tokens.length)
-      s.add(new Ellipsis());
-    return s;
+    if (end < tokens.size) {
+      if (tokenCount + tokenFraction <= sumLength) {
+        s.add(new Fragment(text.substring(offset, tokens.ends[end])));
+      }
+      tokenCount += tokenFraction;
+    }
+    return tokenCount;
   }
-  
-  /* ---------------------------- *
-   * </implementation:Summarizer> *
-   * ---------------------------- */
-  
-  /** Maximun number of tokens inspect in a summary . */
-  private static final int token_deep = 2000;
 
   /**
-   * Class Excerpt represents a single passage found in the document, with some
-   * appropriate regions highlit.
+   * The terms of a query. Each distinct term has an id, the terms that
+   * are part of a phrase only match as a whole.
    */
-  class Excerpt {
-    Vector passages = new Vector();
-    SortedSet tokenSet = new TreeSet();
-    int numTerms = 0;
-    int order = 0;
-    
-    /**
-     */
-    public Excerpt(int order) {
-      this.order = order;
-    }
-    
-    /**
-     */
-    public void addToken(String token) {
-      tokenSet.add(token);
-    }
-    
-    /**
-     * Return how many unique toks we have
-     */
-    public int numUniqueTokens() {
-      return tokenSet.size();
-    }
-    
-    /**
-     * How many fragments we have.
-     */
-    public int numFragments() {
-      return passages.size();
-    }
-    
-    public void setNumTerms(int numTerms) {
-      this.numTerms = numTerms;
-    }
-    
-    public int getOrder() {
-      return order;
-    }
-    
-    public int getNumTerms() {
-      return numTerms;
-    }
-    
-    /**
-     * Add a frag to the list.
-     */
-    public void add(Fragment fragment) {
-      passages.add(fragment);
-    }
-    
-    /**
-     * Return an Enum for all the fragments
-     */
-    public Enumeration elements() {
-      return passages.elements();
+  private static class QueryTerms {
+    /** Term text to Integer id */
+    HashMap ids = new HashMap();
+    /** Whether a term matches on its own, by id */
+    boolean[] single;
+    /** The ids of the terms of each phrase */
+    int[][] phrases;
+
+    QueryTerms(Query query) {
+      List singles = new ArrayList();
+      List phraseList = new ArrayList();
+      Clause[] clauses = query.getClauses();
+      for (int i = 0; i < clauses.length; i++) {
+        if (clauses[i].isProhibited()) {
+          continue;
+        }
+        if (clauses[i].isPhrase()) {
+          Query.Term[] terms = clauses[i].getPhrase().getTerms();
+          if (terms.length == 1) {
+            singles.add(id(terms[0].toString()));
+          } else {
+            int[] phrase = new int[terms.length];
+            for (int j = 0; j < terms.length; j++) {
+              phrase[j] = id(terms[j].toString()).intValue();
+            }
+            phraseList.add(phrase);
+          }
+        } else {
+          singles.add(id(clauses[i].getTerm().toString()));
+        }
+      }
+      single = new boolean[ids.size()];
+      for (int i = 0; i < singles.size(); i++) {
+        single[((Integer) singles.get(i)).intValue()] = true;
+      }
+      phrases = (int[][]) phraseList.toArray(new int[phraseList.size()][]);
+    }
+
+    private Integer id(String term) {
+      Integer id = (Integer) ids.get(term);
+      if (id == null) {
+        id = new Integer(ids.size());
+        ids.put(term, id);
+      }
+      return id;
+    }
+  }
+
+  /**
+   * The tokens of a text, as parallel arrays reused from one text to the
+   * next by the same thread.
+   */
+  private static class Tokens {
+    int size = 0;
+    String[] terms = new String[256];
+    int[] starts = new int[256];
+    int[] ends = new int[256];
+    /** The query term id of each token, or -1 */
+    int[] ids = new int[256];
+    /** Whether each token is highlighted */
+    boolean[] hits = new boolean[256];
+    /** To count the distinct query terms of an excerpt */
+    int[] seen = new int[0];
+    int stamp = 0;
+
+    void clear() {
+      for (int i = 0; i < size; i++) {
+        terms[i] = null;                          // don't retain the text
+      }
+      size = 0;
+    }
+
+    void add(Token token) {
+      if (size == terms.length) {
+        ensureCapacity(size * 2);
+      }
+      terms[size] = token.termText();
+      starts[size] = token.startOffset();
+      ends[size] = token.endOffset();
+      size++;
+    }
+
+    /** Copies the offsets of the first window tokens, without their terms. */
+    void set(TermOffsets offsets, int window) {
+      clear();
+      int n = Math.min(offsets.size(), window);
+      ensureCapacity(n);
+      for (int i = 0; i < n; i++) {
+        starts[i] = offsets.getStart(i);
+        ends[i] = offsets.getEnd(i);
+      }
+      size = n;
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity <= terms.length) {
+        return;
+      }
+      String[] newTerms = new String[capacity];
+      System.arraycopy(terms, 0, newTerms, 0, size);
+      terms = newTerms;
+      starts = grow(starts, capacity);
+      ends = grow(ends, capacity);
+      ids = new int[capacity];
+      hits = new boolean[capacity];
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+      int[] grown = new int[capacity];
+      System.arraycopy(array, 0, grown, 0, array.length);
+      return grown;
+    }
+
+    /** Finds the tokens to highlight. */
+    void mark(QueryTerms query) {
+      for (int i = 0; i < size; i++) {
+        Integer id = (Integer) query.ids.get(terms[i]);
+        ids[i] = (id == null) ? -1 : id.intValue();
+      }
+      markHits(query);
+    }
+
+    /** Finds the tokens to highlight, looking up the query terms. */
+    void mark(QueryTerms query, TermOffsets offsets) {
+      Arrays.fill(ids, 0, size, -1);
+      for (Iterator i = query.ids.entrySet().iterator(); i.hasNext(); ) {
+        Map.Entry entry = (Map.Entry) i.next();
+        int id = ((Integer) entry.getValue()).intValue();
+        int[] positions = offsets.getPositions((String) entry.getKey());
+        for (int j = 0; j < positions.length && positions[j] < size; j++) {
+          ids[positions[j]] = id;
+        }
+      }
+      markHits(query);
+    }
+
+    private void markHits(QueryTerms query) {
+      for (int i = 0; i < size; i++) {
+        hits[i] = (ids[i] >= 0) && query.single[ids[i]];
+      }
+      for (int p = 0; p < query.phrases.length; p++) {
+        int[] phrase = query.phrases[p];
+        for (int i = 0; i + phrase.length <= size; i++) {
+          int k = 0;
+          while (k < phrase.length && ids[i + k] == phrase[k]) {
+            k++;
+          }
+          if (k == phrase.length) {
+            for (k = 0; k < phrase.length; k++) {
+              hits[i + k] = true;
+            }
+          }
+        }
+      }
+      if (seen.length < query.single.length) {
+        seen = new int[query.single.length];
+        stamp = 0;
+      }
+    }
+  }
+
+  /**
+   * A bounded heap of the best excerpts of a text. An excerpt is better
+   * if it has more distinct query terms, then more fragments, then if it
+   * comes later in the text.
+   */
+  private static class Excerpts {
+    int size = 0;
+    /** Position of the first query term of each excerpt */
+    int[] orders;
+    /** First token of each excerpt */
+    int[] starts;
+    /** Token following each excerpt */
+    int[] ends;
+    int[] unique;
+    int[] fragments;
+    /** The heap of excerpts, worst first */
+    int[] heap;
+
+    Excerpts(int capacity) {
+      orders = new int[capacity];
+      starts = new int[capacity];
+      ends = new int[capacity];
+      unique = new int[capacity];
+      fragments = new int[capacity];
+      heap = new int[capacity];
+    }
+
+    int numTerms(int e) {
+      return ends[e] - starts[e];
+    }
+
+    void offer(int order, int start, int end, int unique, int fragments) {
+      boolean full = (size == heap.length);
+      int e = full ? heap[0] : size;
+      if (full && compare(unique, fragments, order, e) <= 0) {
+        return;                                   // not better than the worst
+      }
+      this.orders[e] = order;
+      this.starts[e] = start;
+      this.ends[e] = end;
+      this.unique[e] = unique;
+      this.fragments[e] = fragments;
+      if (full) {
+        siftDown(0, size);
+      } else {
+        heap[size++] = e;
+        siftUp(size - 1);
+      }
+    }
+
+    private int compare(int unique, int fragments, int order, int e) {
+      if (unique != this.unique[e]) {
+        return (unique < this.unique[e]) ? -1 : 1;
+      }
+      if (fragments != this.fragments[e]) {
+        return (fragments < this.fragments[e]) ? -1 : 1;
+      }
+      return (order < this.orders[e]) ? -1 : ((order == this.orders[e]) ? 0 : 1);
+    }
+
+    private int compare(int e1, int e2) {
+      return compare(unique[e1], fragments[e1], orders[e1], e2);
+    }
+
+    private void siftUp(int i) {
+      int e = heap[i];
+      while (i > 0) {
+        int parent = (i - 1) >> 1;
+        if (compare(e, heap[parent]) >= 0) {
+          break;
+        }
+        heap[i] = heap[parent];
+        i = parent;
+      }
+      heap[i] = e;
+    }
+
+    private void siftDown(int i, int length) {
+      int e = heap[i];
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= length) {
+          break;
+        }
+        if (child + 1 < length && compare(heap[child + 1], heap[child]) < 0) {
+          child++;
+        }
+        if (compare(e, heap[child]) <= 0) {
+          break;
+        }
+        heap[i] = heap[child];
+        i = child;
+      }
+      heap[i] = e;
+    }
+
+    /** Returns the excerpts, best first. Empties the heap. */
+    int[] sorted() {
+      int[] sorted = new int[size];
+      for (int length = size; length > 0; length--) {
+        sorted[length - 1] = heap[0];
+        heap[0] = heap[length - 1];
+        siftDown(0, length - 1);
+      }
+      size = 0;
+      return sorted;
+    }
+
+    /** Sorts the first count excerpts by their position in the text. */
+    void sortByOrder(int[] excerpts, int count) {
+      for (int i = 1; i < count; i++) {
+        int e = excerpts[i];
+        int j = i;
+        while (j > 0 && orders[excerpts[j - 1]] > orders[e]) {
+          excerpts[j] = excerpts[j - 1];
+          j--;
+        }
+        excerpts[j] = e;
+      }
     }
   }
-  
-  
-  private Token[] getTokens(String text) {
-    ArrayList result = new ArrayList();
+
+
+  /** Tokenizes the first window tokens of a text. */
+  private Tokens getTokens(String text) {
+    Tokens tokens = (Tokens) buffers.get();
+    tokens.clear();
     TokenStream ts = analyzer.tokenStream("content", new StringReader(text));
     Token token = null;
-    while (result.size()<token_deep) {
+    while (tokens.size < window) {
       try {
         token = ts.next();
       } catch (IOException e) {
         token = null;
       }
       if (token == null) { break; }
-      result.add(token);
+      tokens.add(token);
     }
     try {
       ts.close();
     } catch (IOException e) {
       // ignore
     }
-    return (Token[]) result.toArray(new Token[result.size()]);
+    return tokens;
   }
-  
+
   /**
    * Tests Summary-generation.  User inputs the name of a
-   * text file and a query string
+   * text file, a query string and optionally a number of
+   * iterations to measure the summarization time.
    */
   public static void main(String argv[]) throws IOException {
     // Test arglist
     if (argv.length < 2) {
-      System.out.println("Usage: java org.apache.nutch.searcher.Summarizer <textfile> <queryStr>");
+      System.out.println("Usage: java org.apache.nutch.searcher.Summarizer [-n iterations] <textfile> <queryStr>");
       return;
     }
-    
+
     Configuration conf = NutchConfiguration.create();
     Summarizer s = new BasicSummarizer(conf);
-    
+
     //
     // Parse the args
     //
-    File textFile = new File(argv[0]);
+    int iterations = 1;
+    int arg = 0;
+    if (argv[arg].equals("-n")) {
+      iterations = Integer.parseInt(argv[arg + 1]);
+      arg += 2;
+    }
+    File textFile = new File(argv[arg++]);
     StringBuffer queryBuf = new StringBuffer();
-    for (int i = 1; i < argv.length; i++) {
+    for (int i = arg; i < argv.length; i++) {
       queryBuf.append(argv[i]);
       queryBuf.append(" ");
     }
-    
+
     //
     // Load the text file into a single string.
     //
@@ -413,9 +641,17 @@ public class BasicSummarizer implements Summarizer {
     } finally {
       in.close();
     }
-    
+
     // Convert the query string into a proper Query
     Query query = Query.parse(queryBuf.toString(), conf);
-    System.out.println("Summary: '" + s.getSummary(body.toString(), query) + "'");
+    String text = body.toString();
+    Summary summary = null;
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < iterations; i++) {
+      summary = s.getSummary(text, query);
+    }
+    long time = System.currentTimeMillis() - start;
+    System.out.println("Summary: '" + summary + "'");
+    System.out.println("Time: " + ((double) time / iterations) + " ms/summary");
   }
 }
@@ -24,6 +24,7 @@ import org.apache.hadoop.conf.Configuration;
 
 // Lucene imports
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Token;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.search.highlight.Formatter;
 import org.apache.lucene.search.highlight.Highlighter;
@@ -33,16 +34,21 @@ import org.apache.lucene.search.highlight.WeightedTerm;
 
 // Nutch imports
 import org.apache.nutch.analysis.NutchDocumentAnalyzer;
+import org.apache.nutch.parse.TermOffsets;
 import org.apache.nutch.searcher.Query;
 import org.apache.nutch.searcher.Summarizer;
 import org.apache.nutch.searcher.Summary;
 import org.apache.nutch.searcher.Summary.Ellipsis;
 import org.apache.nutch.searcher.Summary.Fragment;
 import org.apache.nutch.searcher.Summary.Highlight;
+import org.apache.nutch.searcher.TermOffsetsSummarizer;
 
 
-/** Implements hit summarization. */
-public class LuceneSummarizer implements Summarizer {
+/**
+ * Implements hit summarization. Replays the stored {@link TermOffsets} of
+ * the text to the highlighter if there are some, instead of analyzing it.
+ */
+public class LuceneSummarizer implements TermOffsetsSummarizer {
   
   private final static String SEPARATOR = "###";
   private final static Formatter FORMATTER =
@@ -82,6 +88,33 @@ public class LuceneSummarizer implements Summarizer {
    * --------------------------- */
   
   public Summary getSummary(String text, Query query) {
+    return getSummary(text,
+                      analyzer.tokenStream("content", new StringReader(text)),
+                      query);
+  }
+
+  public Summary getSummary(String text, final TermOffsets offsets,
+                            Query query) {
+    TokenStream tokens = new TokenStream() {
+      private int next = 0;
+      public Token next() {
+        if (next == offsets.size()) {
+          return null;
+        }
+        Token token = new Token(offsets.getTerm(next), offsets.getStart(next),
+                                offsets.getEnd(next));
+        next++;
+        return token;
+      }
+    };
+    return getSummary(text, tokens, query);
+  }
+
+  /* ---------------------------- *
+   * </implementation:Summarizer> *
+   * ---------------------------- */
+
+  private Summary getSummary(String text, TokenStream tokens, Query query) {
 
     String[] terms = query.getTerms();
     WeightedTerm[] weighted = new WeightedTerm[terms.length];
@@ -89,7 +122,6 @@ public class LuceneSummarizer implements Summarizer {
       weighted[i] = new WeightedTerm(1.0f, terms[i]);
     }
     Highlighter highlighter = new Highlighter(FORMATTER, new QueryScorer(weighted));
-    TokenStream tokens = analyzer.tokenStream("content", new StringReader(text));
     Summary summary = new Summary();
     try {
       // TODO : The max number of fragments (3) should be configurable
@@ -112,9 +144,5 @@ public class LuceneSummarizer implements Summarizer {
     }
     return summary;
   }
-
-  /* ---------------------------- *
-   * </implementation:Summarizer> *
-   * ---------------------------- */
   
 }
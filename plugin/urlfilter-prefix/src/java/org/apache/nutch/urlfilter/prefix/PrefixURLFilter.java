@@ -31,6 +31,7 @@ import org.apache.nutch.util.TrieStringMatcher;
 import org.apache.nutch.plugin.Extension;
 import org.apache.nutch.plugin.PluginRepository;
 
+import java.io.File;
 import java.io.Reader;
 import java.io.FileReader;
 import java.io.BufferedReader;
@@ -47,6 +48,10 @@ import java.util.ArrayList;
  * Attribute "file" has higher precedence if defined.
  *
  * <p>The format of this file is one URL prefix per line.</p>
+ *
+ * <p>Long lists may be compiled once, with <code>-compile &lt;file&gt;
+ * &lt;trie file&gt;</code>, and the trie file named by property
+ * "urlfilter.prefix.trie" is then mapped in place of the list.</p>
  */
 public class PrefixURLFilter implements URLFilter {
 
@@ -68,13 +73,13 @@ public class PrefixURLFilter implements URLFilter {
   }
 
   public String filter(String url) {
-    if (trie.shortestMatch(url) == null)
+    if (!trie.matches(url))
       return null;
     else
       return url;
   }
 
-  private TrieStringMatcher readConfigurationFile(Reader reader)
+  private PrefixStringMatcher readConfigurationFile(Reader reader)
     throws IOException {
     
     BufferedReader in=new BufferedReader(reader);
@@ -100,6 +105,14 @@ public class PrefixURLFilter implements URLFilter {
   public static void main(String args[])
     throws IOException {
     
+    if (args.length == 3 && args[0].equals("-compile")) {
+      PrefixStringMatcher matcher =
+        new PrefixURLFilter().readConfigurationFile(new FileReader(args[1]));
+      matcher.write(new File(args[2]));
+      System.out.println(matcher.size() + " nodes written to " + args[2]);
+      return;
+    }
+
     PrefixURLFilter filter;
     if (args.length >= 1)
       filter = new PrefixURLFilter(args[0]);
@@ -143,6 +156,21 @@ public class PrefixURLFilter implements URLFilter {
       // }
     }
 
+    String compiled = conf.get("urlfilter.prefix.trie", "");
+    if (compiled.length() > 0) {
+      try {
+        trie = new PrefixStringMatcher(new File(compiled));
+        if (LOG.isInfoEnabled()) {
+          LOG.info("Mapped " + trie.size() + " trie nodes from " + compiled);
+        }
+        return;
+      } catch (IOException e) {
+        if (LOG.isWarnEnabled()) {
+          LOG.warn("Cannot map " + compiled + ", reading url prefixes: " + e);
+        }
+      }
+    }
+
     String file = conf.get("urlfilter.prefix.file");
     // attribute "file" takes precedence if defined
     if (attributeFile != null)
@@ -146,8 +146,7 @@ public class SuffixURLFilter implements URLFilter {
     if (ignoreCase)
       _url = url.toLowerCase();
     else _url = url;
-    String a = suffixes.shortestMatch(_url);
-    if (a == null) {
+    if (!suffixes.matches(_url)) {
       if (modeAccept) return url;
       else return null;
     } else {
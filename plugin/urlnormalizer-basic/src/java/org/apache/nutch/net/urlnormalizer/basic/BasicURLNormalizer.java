@@ -20,54 +20,37 @@ package org.apache.nutch.net.urlnormalizer.basic;
 import java.net.URL;
 import java.net.MalformedURLException;
 
-// Commons Logging imports
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-
 // Nutch imports
 import org.apache.nutch.net.URLNormalizer;
-import org.apache.nutch.util.LogUtil;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.oro.text.regex.*;
 
-/** Converts URLs to a normal form . */
+/**
+ * Converts URLs to a normal form.
+ *
+ * <p>Plain <code>http</code> and <code>ftp</code> URLs are canonicalized in
+ * a single pass over their characters: the scheme and host are lowercased,
+ * the default port and the reference are removed, an empty path becomes
+ * <code>"/"</code> and unnecessary <code>"/xx/../"</code> and leading
+ * <code>"/../"</code> segments are resolved, as the former regular
+ * expressions did. Per-thread scratch buffers are
+ * reused, so only the result string is allocated, and the input string itself
+ * is returned when it is already in normal form. URLs with user info, IPv6 literals or other schemes take the
+ * slower path through {@link java.net.URL}. Instances hold no mutable state
+ * and may be shared between threads.</p>
+ */
 public class BasicURLNormalizer implements URLNormalizer {
-    public static final Log LOG = LogFactory.getLog(BasicURLNormalizer.class);
 
-    private Perl5Compiler compiler = new Perl5Compiler();
-    private ThreadLocal matchers = new ThreadLocal() {
-        protected synchronized Object initialValue() {
-          return new Perl5Matcher();
+    /* scratch space for path normalization, grown as needed */
+    private static final ThreadLocal BUFFERS = new ThreadLocal() {
+        protected Object initialValue() {
+          return new Buffers();
         }
       };
-    private Rule relativePathRule = null;
-    private Rule leadingRelativePathRule = null;
 
     private Configuration conf;
 
     public BasicURLNormalizer() {
-      try {
-        // this pattern tries to find spots like "/xx/../" in the url, which
-        // could be replaced by "/" xx consists of chars, different then "/"
-        // (slash) and needs to have at least one char different from "."
-        relativePathRule = new Rule();
-        relativePathRule.pattern = (Perl5Pattern)
-          compiler.compile("(/[^/]*[^/.]{1}[^/]*/\\.\\./)",
-                           Perl5Compiler.READ_ONLY_MASK);
-        relativePathRule.substitution = new Perl5Substitution("/");
-
-        // this pattern tries to find spots like leading "/../" in the url,
-        // which could be replaced by "/"
-        leadingRelativePathRule = new Rule();
-        leadingRelativePathRule.pattern = (Perl5Pattern)
-          compiler.compile("^(/\\.\\./)+", Perl5Compiler.READ_ONLY_MASK);
-        leadingRelativePathRule.substitution = new Perl5Substitution("/");
-
-      } catch (MalformedPatternException e) {
-        e.printStackTrace(LogUtil.getWarnStream(LOG));
-        throw new RuntimeException(e);
-      }
     }
 
     public String normalize(String urlString, String scope)
@@ -77,6 +60,10 @@ public class BasicURLNormalizer implements URLNormalizer {
 
         urlString = urlString.trim();                 // remove extra spaces
 
+        String result = fastNormalize(urlString);
+        if (result != null)
+            return result;
+
         URL url = new URL(urlString);
 
         String protocol = url.getProtocol();
@@ -129,54 +116,221 @@ public class BasicURLNormalizer implements URLNormalizer {
         return urlString;
     }
 
-    private String substituteUnnecessaryRelativePaths(String file) {
-        String fileWorkCopy = file;
-        int oldLen = file.length();
-        int newLen = oldLen - 1;
-
-        // All substitutions will be done step by step, to ensure that certain
-        // constellations will be normalized, too
-        //
-        // For example: "/aa/bb/../../cc/../foo.html will be normalized in the
-        // following manner:
-        //   "/aa/bb/../../cc/../foo.html"
-        //   "/aa/../cc/../foo.html"
-        //   "/cc/../foo.html"
-        //   "/foo.html"
-        //
-        // The normalization also takes care of leading "/../", which will be
-        // replaced by "/", because this is a rather a sign of bad webserver
-        // configuration than of a wanted link.  For example, urls like
-        // "http://www.foo.com/../" should return a http 404 error instead of
-        // redirecting to "http://www.foo.com".
-        //
-        Perl5Matcher matcher = (Perl5Matcher)matchers.get();
-
-        while (oldLen != newLen) {
-            // substitue first occurence of "/xx/../" by "/"
-            oldLen = fileWorkCopy.length();
-            fileWorkCopy = Util.substitute
-              (matcher, relativePathRule.pattern,
-               relativePathRule.substitution, fileWorkCopy, 1);
-
-            // remove leading "/../"
-            fileWorkCopy = Util.substitute
-              (matcher, leadingRelativePathRule.pattern,
-               leadingRelativePathRule.substitution, fileWorkCopy, 1);
-            newLen = fileWorkCopy.length();
+    /**
+     * Normalizes simple <code>http</code> and <code>ftp</code> URLs without
+     * going through {@link java.net.URL}. The result is the same as that of
+     * the general path in {@link #normalize(String, String)}.
+     *
+     * @return the normalized url, or <code>null</code> if this url needs the
+     * general path.
+     */
+    static String fastNormalize(String url) {
+        int len = url.length();
+
+        // scheme
+        int colon = 0;
+        while (colon < len && isAsciiLetter(url.charAt(colon))) colon++;
+        if (colon == len || url.charAt(colon) != ':') return null;
+        int defaultPort;
+        if (colon == 4 && url.regionMatches(true, 0, "http", 0, 4)) {
+            defaultPort = 80;
+        } else if (colon == 3 && url.regionMatches(true, 0, "ftp", 0, 3)) {
+            defaultPort = 21;
+        } else {
+            return null;
+        }
+        boolean changed = !url.startsWith(colon == 4 ? "http" : "ftp");
+        if (colon + 2 >= len || url.charAt(colon + 1) != '/'
+            || url.charAt(colon + 2) != '/') {
+            return null;
         }
 
-        return fileWorkCopy;
+        // authority: ends with the path, the query or the reference
+        int hostStart = colon + 3;
+        int ref = url.indexOf('#', hostStart);
+        int limit = ref < 0 ? len : ref;
+        int hostEnd = hostStart;
+        boolean upperCase = false;
+        char c = 0;
+        while (hostEnd < limit) {
+            c = url.charAt(hostEnd);
+            if (c == '/' || c == '?' || c == ':') break;
+            if (c >= 'A' && c <= 'Z') {
+                upperCase = true;
+            } else if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                         || c == '.' || c == '-' || c == '_')) {
+                return null;                          // user info, IPv6, ...
+            }
+            hostEnd++;
+        }
+        if (hostEnd == hostStart) return null;      // no host
+        int pathStart = hostEnd;
+        int port = -1;
+        if (hostEnd < limit && c == ':') {
+            int i = hostEnd + 1;
+            port = 0;
+            while (i < limit && (c = url.charAt(i)) >= '0' && c <= '9') {
+                if (i - hostEnd > 9) return null;       // let URL complain
+                port = port * 10 + (c - '0');
+                i++;
+            }
+            if (i == hostEnd + 1) return null;          // empty port
+            if (i < limit && c != '/' && c != '?') return null;
+            pathStart = i;
+            if (port == defaultPort) {
+                port = -1;
+                changed = true;
+            }
+        }
+        if (upperCase) changed = true;
+        if (ref >= 0) changed = true;                 // remove the ref
+        if (pathStart == limit) changed = true;       // add a slash
+
+        // resolve relative path segments in path and query
+        Buffers buffers = (Buffers)BUFFERS.get();
+        int fileLen = resolveRelativePaths(url, pathStart, limit, buffers);
+        if (fileLen != limit - pathStart) changed = true;
+
+        if (!changed) return url;
+
+        char[] out = buffers.out;
+        int outLen = colon + 3 + (hostEnd - hostStart)
+            + (port == -1 ? 0 : 11) + Math.max(fileLen, 1);
+        char[] result = buffers.ensureResult(outLen);
+        int pos = 0;
+        for (int i = 0; i < colon; i++) {
+            result[pos++] = Character.toLowerCase(url.charAt(i));
+        }
+        result[pos++] = ':';
+        result[pos++] = '/';
+        result[pos++] = '/';
+        for (int i = hostStart; i < hostEnd; i++) {
+            c = url.charAt(i);
+            result[pos++] = (c >= 'A' && c <= 'Z') ? (char)(c + ('a' - 'A')) : c;
+        }
+        if (port != -1) {
+            result[pos++] = ':';
+            pos += digits(port);
+            for (int i = pos - 1, n = port; ; n /= 10) {
+                result[i--] = (char)('0' + n % 10);
+                if (n < 10) break;
+            }
+        }
+        if (fileLen == 0) {
+            result[pos++] = '/';
+        } else {
+            System.arraycopy(out, 0, result, pos, fileLen);
+            pos += fileLen;
+        }
+        return new String(result, 0, pos);
     }
 
-
     /**
-     * Class which holds a compiled pattern and its corresponding substition
-     * string.
+     * Copies <code>url[start, end)</code> into <code>buffers.out</code>,
+     * replacing spots like <code>"/xx/../"</code> by <code>"/"</code>, where
+     * xx consists of chars different from "/" and has at least one char
+     * different from ".", and leading <code>"/../"</code> by
+     * <code>"/"</code>.
+     *
+     * <p>Both substitutions are applied step by step, the first occurrence
+     * at a time, until nothing changes, so that e.g.
+     * <code>"/aa/bb/../../cc/../foo.html"</code> becomes
+     * <code>"/foo.html"</code>, and <code>"/..//a/../../b"</code> becomes
+     * <code>"/b"</code>.  Urls without <code>"/../"</code>, nearly all of
+     * them, are only copied.  Leading <code>"/../"</code> are removed
+     * because they are rather a sign of bad webserver configuration than of
+     * a wanted link; urls like "http://www.foo.com/../" should return a http
+     * 404 error instead of redirecting to "http://www.foo.com".</p>
+     *
+     * @return the number of chars written to <code>buffers.out</code>.
      */
-    private static class Rule {
-        public Perl5Pattern pattern;
-        public Perl5Substitution substitution;
+    static int resolveRelativePaths(String url, int start, int end,
+                                    Buffers buffers) {
+        char[] out = buffers.ensureOut(end - start);
+        url.getChars(start, end, out, 0);
+        int len = end - start;
+        int parent = url.indexOf("/../", start);
+        if (parent < 0 || parent + 4 > end) {
+            return len;                               // nothing to resolve
+        }
+        int oldLen;
+        do {
+            oldLen = len;
+            len = removeFirstParent(out, len);
+            len = removeLeadingParents(out, len);
+        } while (len != oldLen);
+        return len;
+    }
+
+    /** Replaces the first <code>"/xx/../"</code> by <code>"/"</code>. */
+    private static int removeFirstParent(char[] out, int len) {
+        for (int p = 0; p < len; p++) {
+            if (out[p] != '/') continue;
+            int q = p + 1;
+            boolean allDots = true;
+            while (q < len && out[q] != '/') {
+                if (out[q] != '.') allDots = false;
+                q++;
+            }
+            if (q > p + 1 && !allDots && isParent(out, q, len)) {
+                System.arraycopy(out, q + 3, out, p, len - q - 3);
+                return len - (q + 3 - p);
+            }
+            p = q - 1;                                // next slash
+        }
+        return len;
+    }
+
+    /** Replaces the leading <code>"/../"</code>, repeated, by
+     * <code>"/"</code>. */
+    private static int removeLeadingParents(char[] out, int len) {
+        int n = 0;
+        while (isParent(out, n, len)) n += 4;
+        if (n == 0) return len;
+        System.arraycopy(out, n - 1, out, 0, len - n + 1);
+        return len - n + 1;
+    }
+
+    /** True if <code>"/../"</code> is at <code>out[i]</code>. */
+    private static boolean isParent(char[] out, int i, int len) {
+        return i + 4 <= len && out[i] == '/' && out[i + 1] == '.'
+            && out[i + 2] == '.' && out[i + 3] == '/';
+    }
+
+    private String substituteUnnecessaryRelativePaths(String file) {
+        Buffers buffers = (Buffers)BUFFERS.get();
+        int len = resolveRelativePaths(file, 0, file.length(), buffers);
+        if (len == file.length()) return file;
+        return new String(buffers.out, 0, len);
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static int digits(int n) {
+        int d = 1;
+        while (n >= 10) {
+            n /= 10;
+            d++;
+        }
+        return d;
+    }
+
+    /** Per-thread scratch space. */
+    static class Buffers {
+        char[] out = new char[256];
+        char[] result = new char[256];
+
+        char[] ensureOut(int len) {
+            if (out.length < len) out = new char[Math.max(len, 2 * out.length)];
+            return out;
+        }
+
+        char[] ensureResult(int len) {
+            if (result.length < len) result = new char[Math.max(len, 2 * result.length)];
+            return result;
+        }
     }
 
 
@@ -189,4 +343,3 @@ public class BasicURLNormalizer implements URLNormalizer {
   }
 
 }
-
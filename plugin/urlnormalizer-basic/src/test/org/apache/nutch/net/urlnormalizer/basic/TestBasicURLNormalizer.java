@@ -90,14 +90,66 @@ public class TestBasicURLNormalizer extends TestCase {
                   "http://foo.com/foo.html" );
     normalizeTest("http://foo.com/foo.foo/../foo.html",
                   "http://foo.com/foo.html" );
+    normalizeTest("http://foo.com/..//../foo.html",
+                  "http://foo.com/foo.html" );
+    normalizeTest("http://foo.com/aa/./../foo.html",
+                  "http://foo.com/aa/./../foo.html" );
+    normalizeTest("http://foo.com/aa/../bb?x=/cc/../dd",
+                  "http://foo.com/bb?x=/dd" );
+    normalizeTest("http://foo.com/..//a/../../b",
+                  "http://foo.com/b" );
+    normalizeTest("http://foo.com/a//../b",
+                  "http://foo.com/a//../b" );
+    normalizeTest("http://foo.com/.../../b",
+                  "http://foo.com/.../../b" );
+  }
+
+  public void testPortsAndQueries() throws Exception {
+    normalizeTest("ftp://Foo.Com:21/", "ftp://foo.com/");
+    normalizeTest("ftp://foo.com:2121/", "ftp://foo.com:2121/");
+    normalizeTest("http://foo.com:080/", "http://foo.com/");
+    normalizeTest("http://foo.com:0081/a#b", "http://foo.com:81/a");
+    normalizeTest("http://Foo.Com?x=1", "http://foo.com?x=1");
+    normalizeTest("http://foo.com/a?x=1#ref", "http://foo.com/a?x=1");
+    normalizeTest("HTTPS://foo.com/a", "https://foo.com/a");
+    normalizeTest("http://User@Foo.Com/a/../b", "http://foo.com/b");
+    normalizeTest("ftp://Foo.COM:00080/..//x?y=/../../a",
+                  "ftp://foo.com:80/a");
+  }
+
+  public void testUnchanged() throws Exception {
+    // urls already in normal form are returned as they are
+    String url = "http://foo.com/aa/bb.html?x=1&y=2";
+    assertSame(url, normalizer.normalize(url, URLNormalizers.SCOPE_DEFAULT));
   }
 
   private void normalizeTest(String weird, String normal) throws Exception {
     assertEquals(normal, normalizer.normalize(weird, URLNormalizers.SCOPE_DEFAULT));
   }
 	
+  private void bench(int loops) throws Exception {
+    String[] urls = new String[1000];
+    for (int i = 0; i < urls.length; i++) {
+      urls[i] = "http://Foo.Com:80/aa/bb/../cc/" + i + "/index.html?x=" + i + "#ref";
+    }
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < loops; i++) {
+      for (int j = 0; j < urls.length; j++) {
+        normalizer.normalize(urls[j], URLNormalizers.SCOPE_DEFAULT);
+      }
+    }
+    System.out.println("bench time (" + loops + " x " + urls.length + ") " +
+                       (System.currentTimeMillis() - start) + "ms");
+  }
+
   public static void main(String[] args) throws Exception {
-    new TestBasicURLNormalizer("test").testNormalizer();
+    TestBasicURLNormalizer test = new TestBasicURLNormalizer("test");
+    if (args.length > 1 && args[0].equals("-bench")) {
+      test.bench(Integer.parseInt(args[1]));
+    } else {
+      test.testNormalizer();
+      test.testPortsAndQueries();
+    }
   }
 
 
@@ -24,10 +24,13 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,7 +43,6 @@ import org.apache.nutch.util.NutchConfiguration;
 
 import javax.xml.parsers.*;
 import org.w3c.dom.*;
-import org.apache.oro.text.regex.*;
 
 /**
  * Allows users to do regex substitutions on all/any URLs that are encountered,
@@ -52,6 +54,10 @@ import org.apache.oro.text.regex.*;
  * </p>
  * <p>This class also supports different rules depending on the scope. Please see
  * the javadoc in {@link org.apache.nutch.net.URLNormalizers} for more details.</p>
+ * <p>Patterns are compiled once with <code>java.util.regex</code> and are
+ * shared by all threads; only the rules of a scope seen for the first time
+ * are loaded under a lock. Substitutions refer to groups as <code>$n</code>,
+ * as described in {@link java.util.regex.Matcher#replaceAll(String)}.</p>
  * 
  * @author Luke Baker
  * @author Andrzej Bialecki
@@ -65,17 +71,15 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
    * string.
    */
   private static class Rule {
-    public Perl5Pattern pattern;
+    public Pattern pattern;
 
     public String substitution;
   }
 
-  private HashMap scopedRules;
+  private Map scopedRules;
   
   private static final List EMPTY_RULES = Collections.EMPTY_LIST;
 
-  private PatternMatcher matcher = new Perl5Matcher();
-
   /**
    * The default constructor which is called from UrlNormalizerFactory
    * (normalizerClass.newInstance()) in method: getNormalizer()*
@@ -93,7 +97,7 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
    * configuration files for it.
    */
   public RegexURLNormalizer(Configuration conf, String filename)
-          throws IOException, MalformedPatternException {
+          throws IOException, PatternSyntaxException {
     super(conf);
     List rules = readConfigurationFile(filename);
     if (rules != null)
@@ -106,7 +110,7 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
     // the default constructor was called
     if (this.scopedRules == null) {
       String filename = getConf().get("urlnormalizer.regex.file");
-      scopedRules = new HashMap();
+      scopedRules = new ConcurrentHashMap();
       URL url = getConf().getResource(filename);
       List rules = null;
       if (url == null) {
@@ -126,6 +130,7 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
 
   // used in JUnit test.
   void setConfiguration(InputStream is, String scope) {
+    if (scope == null) scope = URLNormalizers.SCOPE_DEFAULT;
     List rules = readConfiguration(is);
     scopedRules.put(scope, rules);
     LOG.debug("Set config for scope '" + scope + "': " + rules.size() + " rules.");
@@ -135,7 +140,27 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
    * This function does the replacements by iterating through all the regex
    * patterns. It accepts a string url as input and returns the altered string.
    */
-  public synchronized String regexNormalize(String urlString, String scope) {
+  public String regexNormalize(String urlString, String scope) {
+    if (scope == null) scope = URLNormalizers.SCOPE_DEFAULT;  // not a map key
+    List curRules = (List)scopedRules.get(scope);
+    if (curRules == null) {
+      curRules = loadRules(scope);
+    }
+    if (curRules == EMPTY_RULES || curRules == null) {
+      // use global rules
+      curRules = (List)scopedRules.get(URLNormalizers.SCOPE_DEFAULT);
+    }
+    Iterator i = curRules.iterator();
+    while (i.hasNext()) {
+      Rule r = (Rule) i.next();
+      urlString = r.pattern.matcher(urlString).replaceAll(r.substitution); // actual
+                                                                          // substitution
+    }
+    return urlString;
+  }
+
+  /** Loads the rules of a scope seen for the first time. */
+  private synchronized List loadRules(String scope) {
     List curRules = (List)scopedRules.get(scope);
     if (curRules == null) {
       // try to populate
@@ -160,21 +185,10 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
         scopedRules.put(scope, EMPTY_RULES);
       }
     }
-    if (curRules == EMPTY_RULES || curRules == null) {
-      // use global rules
-      curRules = (List)scopedRules.get(URLNormalizers.SCOPE_DEFAULT);
-    }
-    Iterator i = curRules.iterator();
-    while (i.hasNext()) {
-      Rule r = (Rule) i.next();
-      urlString = Util.substitute(matcher, r.pattern, new Perl5Substitution(
-              r.substitution), urlString, Util.SUBSTITUTE_ALL); // actual
-                                                                // substitution
-    }
-    return urlString;
+    return curRules;
   }
 
-  public synchronized String normalize(String urlString, String scope)
+  public String normalize(String urlString, String scope)
           throws MalformedURLException {
     return regexNormalize(urlString, scope);
   }
@@ -194,7 +208,6 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
   }
   
   private List readConfiguration(InputStream is) {
-    Perl5Compiler compiler = new Perl5Compiler();
     List rules = new ArrayList();
     try {
 
@@ -233,7 +246,7 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
         }
         if (patternValue != null && subValue != null) {
           Rule rule = new Rule();
-          rule.pattern = (Perl5Pattern) compiler.compile(patternValue);
+          rule.pattern = Pattern.compile(patternValue);
           rule.substitution = subValue;
           rules.add(rule);
         }
@@ -249,7 +262,7 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
   }
 
   /** Spits out patterns and substitutions that are in the configuration file. */
-  public static void main(String args[]) throws MalformedPatternException,
+  public static void main(String args[]) throws PatternSyntaxException,
           IOException {
     RegexURLNormalizer normalizer = new RegexURLNormalizer();
     normalizer.setConf(NutchConfiguration.create());
@@ -257,7 +270,7 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
     System.out.println("* Rules for 'DEFAULT' scope:");
     while (i.hasNext()) {
       Rule r = (Rule) i.next();
-      System.out.print("  " + r.pattern.getPattern() + " -> ");
+      System.out.print("  " + r.pattern.pattern() + " -> ");
       System.out.println(r.substitution);
     }
     // load the scope
@@ -273,7 +286,7 @@ public class RegexURLNormalizer extends Configured implements URLNormalizer {
         i = ((List)normalizer.scopedRules.get(scope)).iterator();
         while (i.hasNext()) {
           Rule r = (Rule) i.next();
-          System.out.print("  " + r.pattern.getPattern() + " -> ");
+          System.out.print("  " + r.pattern.pattern() + " -> ");
           System.out.println(r.substitution);
         }
       }
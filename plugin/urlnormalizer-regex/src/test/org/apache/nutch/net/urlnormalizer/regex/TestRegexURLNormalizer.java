@@ -81,6 +81,11 @@ public class TestRegexURLNormalizer extends TestCase {
             URLNormalizers.SCOPE_DEFAULT);
   }
 
+  public void testNormalizerNullScope() throws Exception {
+    normalizeTest((NormalizedURL[])testData.get(URLNormalizers.SCOPE_DEFAULT),
+            null);
+  }
+
   public void testNormalizerScope() throws Exception {
     Iterator it = testData.keySet().iterator();
     while (it.hasNext()) {
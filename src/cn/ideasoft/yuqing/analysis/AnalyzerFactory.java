@@ -78,7 +78,7 @@ public class AnalyzerFactory {
     Extension extension = getExtension(lang);
     if (extension != null) {
         try {
-            analyzer = (YuQingAnalyzer) extension.getExtensionInstance();
+            analyzer = (YuQingAnalyzer) extension.getExtensionInstance(conf);
         } catch (PluginRuntimeException pre) {
             analyzer = DEFAULT_ANALYZER;
         }
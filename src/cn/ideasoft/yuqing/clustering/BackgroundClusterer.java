@@ -0,0 +1,302 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ideasoft.yuqing.clustering;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import cn.ideasoft.yuqing.clustering.ClusteringMetrics.Event;
+import cn.ideasoft.yuqing.clustering.ClusteringMetrics.Stage;
+import cn.ideasoft.yuqing.plugin.Extension;
+import cn.ideasoft.yuqing.plugin.PluginRuntimeException;
+import cn.ideasoft.yuqing.searcher.Deadline;
+import cn.ideasoft.yuqing.searcher.HitDetails;
+
+/**
+ * Runs an {@link OnlineClusterer} on a bounded pool of threads, under a time
+ * budget, and caches its clusters.
+ *
+ * <p>Clusters are cached by result set: the urls of the hits and their
+ * summaries. A request for a result set that is not cached waits at most
+ * <tt>extension.clustering.timeout</tt> milliseconds for its clusters.
+ * Past that delay, or if the pool is saturated, no clusters are returned;
+ * the clustering goes on in the background and its result is cached for
+ * the next request. Concurrent requests for the same result set share one
+ * clustering.</p>
+ *
+ * <p>The latency of each stage and the outcome of the requests are recorded
+ * in the {@link ClusteringMetrics} of the configuration, and logged every
+ * <tt>extension.clustering.metrics.interval</tt> requests.</p>
+ */
+public class BackgroundClusterer implements OnlineClusterer {
+
+  public static final Log LOG = LogFactory.getLog(BackgroundClusterer.class);
+
+  /** Number of clustering threads; zero clusters in the caller thread. */
+  public static final String THREADS = "extension.clustering.threads";
+
+  /** Number of clusterings that may wait for a thread. */
+  public static final String QUEUE_SIZE = "extension.clustering.queue.size";
+
+  /** Time budget of a request, in milliseconds. */
+  public static final String TIMEOUT = "extension.clustering.timeout";
+
+  /** Number of cached result sets; zero disables caching. */
+  public static final String CACHE_SIZE = "extension.clustering.cache.size";
+
+  /** Number of requests between two logs of the metrics. */
+  public static final String METRICS_INTERVAL =
+    "extension.clustering.metrics.interval";
+
+  private static final HitsCluster[] NO_CLUSTERS = new HitsCluster[0];
+
+  private final OnlineClusterer clusterer;
+  private final ClusteringMetrics metrics;
+  private final ThreadPoolExecutor executor;
+  private final long timeout;
+  private final int metricsInterval;
+
+  /** Result set -> clusters */
+  private final Map cache;
+
+  /** Result set -> Future of the clusters being computed */
+  private final ConcurrentHashMap running = new ConcurrentHashMap();
+
+  /**
+   * Returns the clusterer shared by all users of this configuration for
+   * an extension, creating it and the extension instance on first use.
+   */
+  public static BackgroundClusterer get(Configuration conf,
+                                        Extension extension)
+    throws PluginRuntimeException {
+    String key = BackgroundClusterer.class.getName() + ":" + extension.getId();
+    synchronized (conf) {
+      BackgroundClusterer background = (BackgroundClusterer) conf.getObject(key);
+      if (background == null) {
+        background = new BackgroundClusterer(
+            (OnlineClusterer) extension.getExtensionInstance(conf), conf);
+        conf.setObject(key, background);
+      }
+      return background;
+    }
+  }
+
+  public BackgroundClusterer(OnlineClusterer clusterer, Configuration conf) {
+    this.clusterer = clusterer;
+    this.metrics = ClusteringMetrics.get(conf);
+    this.timeout = conf.getLong(TIMEOUT, 1000);
+    this.metricsInterval = conf.getInt(METRICS_INTERVAL, 1000);
+
+    int threads = conf.getInt(THREADS, 2);
+    if (threads > 0) {
+      executor = new ThreadPoolExecutor(threads, threads,
+          60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue(Math.max(conf.getInt(QUEUE_SIZE, 16), 1)),
+          new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "clustering-" + (count++));
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    } else {
+      executor = null;
+    }
+
+    final int cacheSize = conf.getInt(CACHE_SIZE, 256);
+    cache = new LinkedHashMap(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        return size() > cacheSize;
+      }
+    };
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Clustering with " + threads + " threads, " + timeout
+               + "ms budget, " + cacheSize + " cached result sets");
+    }
+  }
+
+  /** Returns the metrics of the clustering requests. */
+  public ClusteringMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Clusters the hits within the time budget.
+   * @return the clusters of the hits, or an empty array.
+   */
+  public HitsCluster[] clusterHits(HitDetails[] hitDetails,
+                                   String[] descriptions) {
+    return clusterHits(hitDetails, descriptions, null);
+  }
+
+  /**
+   * Clusters the hits within the time budget and the time left by the
+   * deadline of the request, whichever is shorter.
+   * @param deadline the deadline of the request, or <code>null</code>.
+   * @return the clusters of the hits, or an empty array.
+   */
+  public HitsCluster[] clusterHits(final HitDetails[] hitDetails,
+                                   final String[] descriptions,
+                                   Deadline deadline) {
+    long start = System.currentTimeMillis();
+    long stageStart = deadline == null ? 0
+      : deadline.begin(Deadline.Stage.CLUSTERING);
+    metrics.increment(Event.REQUESTS);
+    try {
+      final ResultSet key = new ResultSet(hitDetails, descriptions);
+      HitsCluster[] clusters;
+      synchronized (cache) {
+        clusters = (HitsCluster[]) cache.get(key);
+      }
+      if (clusters != null) {
+        metrics.increment(Event.CACHE_HITS);
+        return clusters;
+      }
+      if (executor == null) {
+        return cluster(key, hitDetails, descriptions);
+      }
+
+      Future future = (Future) running.get(key);
+      if (future == null) {
+        final long queued = System.currentTimeMillis();
+        FutureTask task = new FutureTask(new Callable() {
+          public Object call() {
+            metrics.record(Stage.QUEUE, System.currentTimeMillis() - queued);
+            try {
+              return cluster(key, hitDetails, descriptions);
+            } finally {
+              running.remove(key);
+            }
+          }
+        });
+        future = (Future) running.putIfAbsent(key, task);
+        if (future == null) {
+          future = task;
+          try {
+            executor.execute(task);
+          } catch (RejectedExecutionException e) {
+            running.remove(key);
+            metrics.increment(Event.REJECTED);
+            return empty();
+          }
+        }
+      }
+
+      long budget = timeout - (System.currentTimeMillis() - start);
+      if (deadline != null && deadline.remaining() < budget) {
+        budget = deadline.remaining();
+      }
+      try {
+        return (HitsCluster[]) future.get(Math.max(budget, 0),
+                                          TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        metrics.increment(Event.TIMEOUTS);
+        if (deadline != null) {
+          deadline.exhaust(Deadline.Stage.CLUSTERING);
+        }
+      } catch (ExecutionException e) {
+        metrics.increment(Event.FAILURES);
+        if (LOG.isWarnEnabled()) {
+          LOG.warn("Clustering failed: " + e.getCause());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return empty();
+    } finally {
+      if (deadline != null) {
+        deadline.end(Deadline.Stage.CLUSTERING, stageStart);
+      }
+      metrics.record(Stage.TOTAL, System.currentTimeMillis() - start);
+      if (metricsInterval > 0 && LOG.isInfoEnabled()
+          && metrics.getCount(Event.REQUESTS) % metricsInterval == 0) {
+        LOG.info(metrics.toString());
+      }
+    }
+  }
+
+  /** Clusters the hits and caches the clusters. */
+  private HitsCluster[] cluster(ResultSet key, HitDetails[] hitDetails,
+                                String[] descriptions) {
+    HitsCluster[] clusters = clusterer.clusterHits(hitDetails, descriptions);
+    synchronized (cache) {
+      cache.put(key, clusters);
+    }
+    return clusters;
+  }
+
+  /** Returns no clusters, in place of late or rejected ones. */
+  private HitsCluster[] empty() {
+    metrics.increment(Event.EMPTY);
+    return NO_CLUSTERS;
+  }
+
+  /** Stops the clustering threads. */
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /** The cache key of a result set: urls and summaries. */
+  private static class ResultSet {
+    private final String[] urls;
+    private final String[] descriptions;
+    private final int hashCode;
+
+    ResultSet(HitDetails[] hitDetails, String[] descriptions) {
+      this.urls = new String[hitDetails.length];
+      for (int i = 0; i < hitDetails.length; i++) {
+        urls[i] = hitDetails[i].getValue("url");
+      }
+      this.descriptions = descriptions;
+      this.hashCode = Arrays.hashCode(urls) * 31
+        ^ Arrays.hashCode(descriptions);
+    }
+
+    public int hashCode() {
+      return hashCode;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof ResultSet)) {
+        return false;
+      }
+      ResultSet other = (ResultSet) o;
+      return hashCode == other.hashCode
+        && Arrays.equals(urls, other.urls)
+        && Arrays.equals(descriptions, other.descriptions);
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ideasoft.yuqing.clustering;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Latency of each stage of the online clustering, and counts of the
+ * requests served from the cache, timed out or rejected.
+ *
+ * <p>One instance is shared by all users of a {@link Configuration}, see
+ * {@link #get(Configuration)}: the {@link BackgroundClusterer} records the
+ * queueing and total times, and clustering extensions may record their own
+ * stages. All methods may be called concurrently.</p>
+ */
+public class ClusteringMetrics {
+
+  /** The timed stages of a clustering request. */
+  public static enum Stage {
+    /** Waiting for a clustering thread */
+    QUEUE,
+    /** Converting the hits to the clustering input */
+    INPUT,
+    /** Running the clustering algorithm, including its INPUT */
+    CLUSTERING,
+    /** Converting the clusters to {@link HitsCluster}s */
+    OUTPUT,
+    /** From the request to the clusters, as seen by the caller */
+    TOTAL
+  }
+
+  /** The counted outcomes of a clustering request. */
+  public static enum Event {
+    REQUESTS, CACHE_HITS, EMPTY, TIMEOUTS, REJECTED, FAILURES
+  }
+
+  private final AtomicLong[] counts = newCounters(Stage.values().length);
+  private final AtomicLong[] millis = newCounters(Stage.values().length);
+  private final AtomicLong[] maxMillis = newCounters(Stage.values().length);
+  private final AtomicLong[] events = newCounters(Event.values().length);
+
+  /**
+   * Returns the metrics shared by all users of this configuration,
+   * creating them on first use.
+   */
+  public static ClusteringMetrics get(Configuration conf) {
+    String key = ClusteringMetrics.class.getName();
+    synchronized (conf) {
+      ClusteringMetrics metrics = (ClusteringMetrics) conf.getObject(key);
+      if (metrics == null) {
+        metrics = new ClusteringMetrics();
+        conf.setObject(key, metrics);
+      }
+      return metrics;
+    }
+  }
+
+  private static AtomicLong[] newCounters(int n) {
+    AtomicLong[] counters = new AtomicLong[n];
+    for (int i = 0; i < n; i++) {
+      counters[i] = new AtomicLong();
+    }
+    return counters;
+  }
+
+  /** Records the duration of a stage. */
+  public void record(Stage stage, long elapsed) {
+    int i = stage.ordinal();
+    counts[i].incrementAndGet();
+    millis[i].addAndGet(elapsed);
+    long max;
+    while (elapsed > (max = maxMillis[i].get())
+           && !maxMillis[i].compareAndSet(max, elapsed)) {}
+  }
+
+  /** Counts an event. */
+  public void increment(Event event) {
+    events[event.ordinal()].incrementAndGet();
+  }
+
+  /** Returns the number of times a stage was recorded. */
+  public long getCount(Stage stage) {
+    return counts[stage.ordinal()].get();
+  }
+
+  /** Returns the total duration of a stage, in milliseconds. */
+  public long getMillis(Stage stage) {
+    return millis[stage.ordinal()].get();
+  }
+
+  /** Returns the longest duration of a stage, in milliseconds. */
+  public long getMaxMillis(Stage stage) {
+    return maxMillis[stage.ordinal()].get();
+  }
+
+  /** Returns the number of times an event occurred. */
+  public long getCount(Event event) {
+    return events[event.ordinal()].get();
+  }
+
+  public String toString() {
+    StringBuffer buffer = new StringBuffer("clustering");
+    Event[] eventValues = Event.values();
+    for (int i = 0; i < eventValues.length; i++) {
+      buffer.append(' ').append(eventValues[i].name().toLowerCase())
+        .append('=').append(events[i].get());
+    }
+    Stage[] stageValues = Stage.values();
+    for (int i = 0; i < stageValues.length; i++) {
+      long count = counts[i].get();
+      buffer.append(' ').append(stageValues[i].name().toLowerCase())
+        .append("=").append(count == 0 ? 0 : millis[i].get() / count)
+        .append("ms/").append(maxMillis[i].get()).append("ms");
+    }
+    return buffer.toString();
+  }
+}
@@ -51,6 +51,9 @@ public class OnlineClustererFactory {
    */
   private String extensionName;
 
+  /** The configuration of the clusterers. */
+  private Configuration conf;
+
   /**
    * Create an instance of the clustering factory bound to
    * a given configuration.
@@ -58,13 +61,15 @@ public class OnlineClustererFactory {
   public OnlineClustererFactory(Configuration conf) {
       this.extensionPoint = PluginRepository.get(conf).getExtensionPoint(OnlineClusterer.X_POINT_ID);
       this.extensionName = conf.get(CONFIG_FIELD_NAME);
+      this.conf = conf;
   }
 
   /**
   * @return Returns the online clustering extension specified
   * in nutch configuration (key name is <code>extension.clustering.extension-name</code>). 
   * If the name is empty (no preference), the first available clustering extension is
-  * returned.
+  * returned. The extension is wrapped in the {@link BackgroundClusterer} shared by
+  * all users of the configuration.
   */
   public OnlineClusterer getOnlineClusterer()
     throws PluginRuntimeException {
@@ -80,7 +85,7 @@ public class OnlineClustererFactory {
         if (LOG.isInfoEnabled()) {
           LOG.info("Using clustering extension: " + extensionName);
         }
-        return (OnlineClusterer) extension.getExtensionInstance();
+        return wrap(extension);
       }
       if (LOG.isWarnEnabled()) {
         LOG.warn("Clustering extension not found: '" + extensionName +
@@ -95,12 +100,17 @@ public class OnlineClustererFactory {
         LOG.info("Using the first clustering extension found: " +
                  extensions[0].getId());
       }
-      return (OnlineClusterer) extensions[0].getExtensionInstance();
+      return wrap(extensions[0]);
     } else {
       return null;
     }
   }
 
+  private OnlineClusterer wrap(Extension extension)
+    throws PluginRuntimeException {
+    return BackgroundClusterer.get(conf, extension);
+  }
+
   private Extension findExtension(String name)
     throws PluginRuntimeException {
 
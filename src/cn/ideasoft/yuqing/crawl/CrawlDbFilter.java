@@ -28,6 +28,7 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
+import cn.ideasoft.yuqing.net.NormalizedURLCache;
 import cn.ideasoft.yuqing.net.URLFilters;
 import cn.ideasoft.yuqing.net.URLNormalizers;
 
@@ -52,6 +53,10 @@ public class CrawlDbFilter implements Mapper {
 
   private URLNormalizers normalizers;
 
+  private NormalizedURLCache urlCache;
+  /* the last reporter, to flush the url cache counters on close */
+  private Reporter reporter;
+
   private JobConf jobConf;
   
   private String scope;
@@ -69,30 +74,28 @@ public class CrawlDbFilter implements Mapper {
       scope = job.get(URL_NORMALIZING_SCOPE, URLNormalizers.SCOPE_CRAWLDB);
       normalizers = new URLNormalizers(job, scope);
     }
+    urlCache = NormalizedURLCache.get(job);
   }
 
-  public void close() {}
+  public void close() {
+    urlCache.flushCounters(reporter);
+  }
   
   private Text newKey = new Text();
 
   public void map(WritableComparable key, Writable value, OutputCollector output, Reporter reporter) throws IOException {
 
+    this.reporter = reporter;
     String url = key.toString();
-    if (urlNormalizers) {
-      try {
-        url = normalizers.normalize(url, scope); // normalize the url
-      } catch (Exception e) {
-        LOG.warn("Skipping " + url + ":" + e);
-        url = null;
-      }
-    }
-    if (url != null && urlFiltering) {
+    if (urlNormalizers || urlFiltering) {
       try {
-        url = filters.filter(url); // filter the url
+        // normalize and filter the url
+        url = urlCache.normalizeAndFilter(url, scope, normalizers, filters);
       } catch (Exception e) {
         LOG.warn("Skipping " + url + ":" + e);
         url = null;
       }
+      urlCache.reportCounters(reporter);
     }
     if (url != null) { // if it passes
       newKey.set(url); // collect it
@@ -35,6 +35,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 import cn.ideasoft.yuqing.metadata.YuQing;
+import cn.ideasoft.yuqing.net.NormalizedURLCache;
 import cn.ideasoft.yuqing.net.URLFilterException;
 import cn.ideasoft.yuqing.net.URLFilters;
 import cn.ideasoft.yuqing.net.URLNormalizers;
@@ -91,6 +92,9 @@ public class Generator extends ToolBase {
     private Partitioner hostPartitioner = new PartitionUrlByHost();
     private URLFilters filters;
     private URLNormalizers normalizers;
+    private NormalizedURLCache urlCache;
+    /* the last reporter, to flush the url cache counters on close */
+    private Reporter reporter;
     private ScoringFilters scfilters;
     private SelectorEntry entry = new SelectorEntry();
     private FloatWritable sortValue = new FloatWritable();
@@ -108,6 +112,7 @@ public class Generator extends ToolBase {
       filters = new URLFilters(job);
       normalizers = new URLNormalizers(job, URLNormalizers.SCOPE_GENERATE_HOST_COUNT);
       scfilters = new ScoringFilters(job);
+      urlCache = NormalizedURLCache.get(job);
       hostPartitioner.configure(job);
       filter = job.getBoolean(CRAWL_GENERATE_FILTER, true);
       genDelay = job.getLong(CRAWL_GEN_DELAY, 7L) * 3600L * 24L * 1000L;
@@ -116,17 +121,22 @@ public class Generator extends ToolBase {
       runUpdatedb = job.getBoolean(GENERATE_UPDATE_CRAWLDB, false);
     }
 
-    public void close() {}
+    public void close() {
+      urlCache.flushCounters(reporter);
+    }
 
     /** Select & invert subset due for fetch. */
     public void map(WritableComparable key, Writable value,
                     OutputCollector output, Reporter reporter)
       throws IOException {
+      this.reporter = reporter;
       Text url = (Text)key;
       if (filter) {
         // If filtering is on don't generate URLs that don't pass URLFilters
         try {
-          if (filters.filter(url.toString()) == null)
+          String filtered = urlCache.filter(url.toString(), filters);
+          urlCache.reportCounters(reporter);
+          if (filtered == null)
             return;
         } catch (URLFilterException e) {
           if (LOG.isWarnEnabled()) {
@@ -177,6 +187,7 @@ public class Generator extends ToolBase {
     public void reduce(WritableComparable key, Iterator values,
                        OutputCollector output, Reporter reporter)
       throws IOException {
+      this.reporter = reporter;
 
       while (values.hasNext() && count < limit) {
 
@@ -209,7 +220,8 @@ public class Generator extends ToolBase {
           u = new URL(u.getProtocol(), host, u.getPort(), u.getFile());
           String urlString = u.toString();
           try {
-            urlString = normalizers.normalize(urlString, URLNormalizers.SCOPE_GENERATE_HOST_COUNT);
+            urlString = urlCache.normalize(urlString,
+                URLNormalizers.SCOPE_GENERATE_HOST_COUNT, normalizers);
             host = new URL(urlString).getHost();
           } catch (Exception e) {
             LOG.warn("Malformed URL: '" + urlString + "', skipping (" +
@@ -243,7 +255,7 @@ public class Generator extends ToolBase {
         // maxPerHost may cause us to skip it.
         count++;
       }
-
+      urlCache.reportCounters(reporter);
     }
 
   }
@@ -33,6 +33,7 @@ import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.ToolBase;
 
+import cn.ideasoft.yuqing.net.NormalizedURLCache;
 import cn.ideasoft.yuqing.net.URLFilters;
 import cn.ideasoft.yuqing.net.URLNormalizers;
 import cn.ideasoft.yuqing.parse.*;
@@ -53,6 +54,9 @@ public class LinkDb extends ToolBase implements Mapper, Reducer {
   private boolean ignoreInternalLinks;
   private URLFilters urlFilters;
   private URLNormalizers urlNormalizers;
+  private NormalizedURLCache urlCache;
+  /* the last reporter, to flush the url cache counters on close */
+  private Reporter reporter;
   
   public static class Merger extends MapReduceBase implements Reducer {
     private int _maxInlinks;
@@ -102,31 +106,20 @@ public class LinkDb extends ToolBase implements Mapper, Reducer {
     if (job.getBoolean(LinkDbFilter.URL_NORMALIZING, false)) {
       urlNormalizers = new URLNormalizers(job, URLNormalizers.SCOPE_LINKDB);
     }
+    urlCache = NormalizedURLCache.get(job);
   }
 
-  public void close() {}
+  public void close() {
+    urlCache.flushCounters(reporter);
+  }
 
   public void map(WritableComparable key, Writable value,
                   OutputCollector output, Reporter reporter)
     throws IOException {
+    this.reporter = reporter;
     String fromUrl = key.toString();
     String fromHost = getHost(fromUrl);
-    if (urlNormalizers != null) {
-      try {
-        fromUrl = urlNormalizers.normalize(fromUrl, URLNormalizers.SCOPE_LINKDB); // normalize the url
-      } catch (Exception e) {
-        LOG.warn("Skipping " + fromUrl + ":" + e);
-        fromUrl = null;
-      }
-    }
-    if (fromUrl != null && urlFilters != null) {
-      try {
-        fromUrl = urlFilters.filter(fromUrl); // filter the url
-      } catch (Exception e) {
-        LOG.warn("Skipping " + fromUrl + ":" + e);
-        fromUrl = null;
-      }
-    }
+    fromUrl = normalizeAndFilter(fromUrl);
     if (fromUrl == null) return; // discard all outlinks
     ParseData parseData = (ParseData)value;
     Outlink[] outlinks = parseData.getOutlinks();
@@ -141,22 +134,7 @@ public class LinkDb extends ToolBase implements Mapper, Reducer {
           continue;                               // skip it
         }
       }
-      if (urlNormalizers != null) {
-        try {
-          toUrl = urlNormalizers.normalize(toUrl, URLNormalizers.SCOPE_LINKDB); // normalize the url
-        } catch (Exception e) {
-          LOG.warn("Skipping " + toUrl + ":" + e);
-          toUrl = null;
-        }
-      }
-      if (toUrl != null && urlFilters != null) {
-        try {
-          toUrl = urlFilters.filter(toUrl); // filter the url
-        } catch (Exception e) {
-          LOG.warn("Skipping " + toUrl + ":" + e);
-          toUrl = null;
-        }
-      }
+      toUrl = normalizeAndFilter(toUrl);
       if (toUrl == null) continue;
       inlinks.clear();
       String anchor = outlink.getAnchor();        // truncate long anchors
@@ -166,6 +144,19 @@ public class LinkDb extends ToolBase implements Mapper, Reducer {
       inlinks.add(new Inlink(fromUrl, anchor));   // collect inverted link
       output.collect(new Text(toUrl), inlinks);
     }
+    urlCache.reportCounters(reporter);
+  }
+
+  /** Normalizes and filters the url, as configured for this job. */
+  private String normalizeAndFilter(String url) {
+    if (urlNormalizers == null && urlFilters == null) return url;
+    try {
+      return urlCache.normalizeAndFilter(url, URLNormalizers.SCOPE_LINKDB,
+                                         urlNormalizers, urlFilters);
+    } catch (Exception e) {
+      LOG.warn("Skipping " + url + ":" + e);
+      return null;
+    }
   }
 
   private String getHost(String url) {
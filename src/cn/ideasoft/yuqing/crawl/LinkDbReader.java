@@ -31,20 +31,62 @@ import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.ToolBase;
 import org.apache.hadoop.conf.Configuration;
 
+import cn.ideasoft.yuqing.util.SegmentedLRUCache;
 import cn.ideasoft.yuqing.util.YuQingConfiguration;
 import cn.ideasoft.yuqing.util.YuQingJob;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-/** . */
+/**
+ * Reads the inlinks of urls from a LinkDb.
+ *
+ * <p>Lookups may be concurrent: each one borrows a set of readers of the
+ * LinkDb parts from a pool of at most <tt>linkdb.reader.pool.size</tt>
+ * sets, opened on demand.  The inlinks of at most
+ * <tt>linkdb.cache.size</tt> recently looked up urls are cached in
+ * independently locked segments; cached inlinks are shared and must not be
+ * modified.  {@link #getInlinks(Text[])} looks up a
+ * batch of urls in the order of their parts and keys, so that each part is
+ * read forward.</p>
+ */
 public class LinkDbReader extends ToolBase implements Closeable {
   public static final Log LOG = LogFactory.getLog(LinkDbReader.class);
 
+  /** Maximum number of reader sets open at once. */
+  public static final String POOL_SIZE = "linkdb.reader.pool.size";
+
+  /** Number of urls whose inlinks are cached; zero disables caching. */
+  public static final String CACHE_SIZE = "linkdb.cache.size";
+
+  /** Number of independently locked segments of the cache. */
+  private static final int CACHE_SEGMENTS = 16;
+
   private static final Partitioner PARTITIONER = new HashPartitioner();
 
+  /* Marks a cached url without inlinks. */
+  private static final Inlinks NO_INLINKS = new Inlinks();
+
   private FileSystem fs;
   private Path directory;
-  private MapFile.Reader[] readers;
+
+  /** Idle reader sets */
+  private BlockingQueue idle;
+  /** All reader sets, to close them */
+  private MapFile.Reader[][] pool;
+  private final AtomicInteger opened = new AtomicInteger();
+  private volatile boolean closed;
+
+  /** url -> Inlinks, bounded by the number of urls */
+  private SegmentedLRUCache<String, Inlinks> cache;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
 
   public LinkDbReader() {
     
@@ -58,6 +100,16 @@ public class LinkDbReader extends ToolBase implements Closeable {
   public void init(Path directory) throws Exception {
     this.fs = FileSystem.get(getConf());
     this.directory = directory;
+    int poolSize = Math.max(getConf().getInt(POOL_SIZE, 4), 1);
+    this.idle = new ArrayBlockingQueue(poolSize);
+    this.pool = new MapFile.Reader[poolSize][];
+    int cacheSize = getConf().getInt(CACHE_SIZE, 1000);
+    int segments = Math.max(Math.min(CACHE_SEGMENTS, cacheSize), 1);
+    this.cache = new SegmentedLRUCache<String, Inlinks>(cacheSize, segments) {
+      protected long sizeOf(String url, Inlinks inlinks) {
+        return 1;                                 // counts urls
+      }
+    };
   }
 
   public String[] getAnchors(Text url) throws IOException {
@@ -67,23 +119,151 @@ public class LinkDbReader extends ToolBase implements Closeable {
     return inlinks.getAnchors();
   }
 
+  /** Returns the anchors of a batch of urls, null for urls without any. */
+  public String[][] getAnchors(Text[] urls) throws IOException {
+    Inlinks[] inlinks = getInlinks(urls);
+    String[][] anchors = new String[urls.length][];
+    for (int i = 0; i < urls.length; i++) {
+      if (inlinks[i] != null)
+        anchors[i] = inlinks[i].getAnchors();
+    }
+    return anchors;
+  }
+
   public Inlinks getInlinks(Text url) throws IOException {
+    return getInlinks(new Text[] { url })[0];
+  }
 
-    if (readers == null) {
-      synchronized(this) {
-        readers = MapFileOutputFormat.getReaders
-          (fs, new Path(directory, LinkDb.CURRENT_NAME), getConf());
+  /** Returns the inlinks of a batch of urls, null for urls without any. */
+  public Inlinks[] getInlinks(Text[] urls) throws IOException {
+    Inlinks[] results = new Inlinks[urls.length];
+    int missing = 0;
+    Integer[] order = new Integer[urls.length];
+    for (int i = 0; i < urls.length; i++) {
+      Inlinks inlinks = getCached(urls[i]);
+      if (inlinks != null) {
+        results[i] = (inlinks == NO_INLINKS) ? null : inlinks;
+      } else {
+        order[missing++] = new Integer(i);
       }
     }
-    
-    return (Inlinks)MapFileOutputFormat.getEntry
-      (readers, PARTITIONER, url, new Inlinks());
+    if (missing == 0)
+      return results;
+
+    MapFile.Reader[] readers = borrow();
+    try {
+      // read each part forward: sort by part, then by key
+      final int[] parts = new int[urls.length];
+      final Text[] keys = urls;
+      for (int i = 0; i < missing; i++) {
+        int u = order[i].intValue();
+        parts[u] = PARTITIONER.getPartition(urls[u], null, readers.length);
+      }
+      Arrays.sort(order, 0, missing, new Comparator() {
+          public int compare(Object o1, Object o2) {
+            int u1 = ((Integer)o1).intValue(), u2 = ((Integer)o2).intValue();
+            if (parts[u1] != parts[u2])
+              return parts[u1] < parts[u2] ? -1 : 1;
+            return keys[u1].compareTo(keys[u2]);
+          }
+        });
+      for (int i = 0; i < missing; i++) {
+        int u = order[i].intValue();
+        Inlinks inlinks =
+          (Inlinks)readers[parts[u]].get(urls[u], new Inlinks());
+        results[u] = inlinks;
+        putCached(urls[u], inlinks == null ? NO_INLINKS : inlinks);
+      }
+    } finally {
+      idle.offer(readers);
+    }
+    return results;
   }
+
+  private Inlinks getCached(Text url) {
+    Inlinks inlinks = cache.get(url.toString());
+    if (inlinks != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+    return inlinks;
+  }
+
+  private void putCached(Text url, Inlinks inlinks) {
+    cache.put(url.toString(), inlinks);
+  }
+
+  /** Takes an idle reader set, opens one, or waits for one. */
+  private MapFile.Reader[] borrow() throws IOException {
+    while (true) {
+      if (closed)
+        throw new IOException("LinkDbReader closed");
+      MapFile.Reader[] readers = (MapFile.Reader[])idle.poll();
+      if (readers != null)
+        return readers;
+      int n = opened.get();
+      if (n < pool.length) {
+        if (opened.compareAndSet(n, n + 1))
+          return open();
+        continue;
+      }
+      // all sets are in use: wait for one, or for a slot freed by a
+      // failed open
+      try {
+        readers = (MapFile.Reader[])idle.poll(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while waiting for a LinkDb reader");
+      }
+      if (readers != null)
+        return readers;
+    }
+  }
+
+  /** Opens a reader set in a slot taken by the caller, or gives it back. */
+  private MapFile.Reader[] open() throws IOException {
+    MapFile.Reader[] readers = null;
+    try {
+      readers = MapFileOutputFormat.getReaders
+        (fs, new Path(directory, LinkDb.CURRENT_NAME), getConf());
+    } finally {
+      if (readers == null)
+        opened.decrementAndGet();
+    }
+    synchronized (pool) {
+      if (closed) {                               // closed while opening
+        for (int j = 0; j < readers.length; j++) {
+          readers[j].close();
+        }
+        throw new IOException("LinkDbReader closed");
+      }
+      for (int i = 0; i < pool.length; i++) {
+        if (pool[i] == null) {
+          pool[i] = readers;
+          break;
+        }
+      }
+    }
+    return readers;
+  }
+
+  public long getCacheHits() { return hits.get(); }
+
+  public long getCacheMisses() { return misses.get(); }
   
   public void close() throws IOException {
-    if (readers != null) {
-      for (int i = 0; i < readers.length; i++) {
-        readers[i].close();
+    if (pool == null)
+      return;
+    synchronized (pool) {
+      closed = true;
+      idle.clear();
+      for (int i = 0; i < pool.length; i++) {
+        if (pool[i] == null)
+          continue;
+        for (int j = 0; j < pool[i].length; j++) {
+          pool[i][j].close();
+        }
+        pool[i] = null;
       }
     }
   }
@@ -36,6 +36,7 @@ import org.apache.hadoop.util.Progressable;
 
 import cn.ideasoft.yuqing.parse.ParseOutputFormat;
 import cn.ideasoft.yuqing.protocol.Content;
+import cn.ideasoft.yuqing.segment.SegmentCompression;
 
 /** Splits FetcherOutput entries into multiple map files. */
 public class FetcherOutputFormat implements OutputFormat {
@@ -64,8 +65,8 @@ public class FetcherOutputFormat implements OutputFormat {
 
         {
           if (Fetcher.isStoringContent(job)) {
-            contentOut = new MapFile.Writer(job, fs, content.toString(),
-                                            Text.class, Content.class);
+            contentOut = SegmentCompression.createWriter(job, fs, content,
+                                                         Content.class, progress);
           }
 
           if (Fetcher.isParsing(job)) {
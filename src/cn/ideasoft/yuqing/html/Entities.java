@@ -19,10 +19,15 @@ package cn.ideasoft.yuqing.html;
 
 import java.util.*;
 
+/** The HTML 4 character entities. */
 public class Entities {
-  static final Hashtable decoder = new Hashtable(300);
+  static final HashMap decoder = new HashMap(300);
   static final String[]  encoder = new String[0x100];
 
+  /** The entity names, without '&', in an open addressing hash table. */
+  private static char[][] names;
+  private static char[]   values;
+
   static final String decode(String entity) {
     if (entity.charAt(entity.length()-1) == ';')  // remove trailing semicolon
       entity = entity.substring(0, entity.length()-1);
@@ -37,13 +42,62 @@ public class Entities {
 	new Character((char)Integer.parseInt(entity.substring(start), radix));
       return c.toString();
     } else {
-      String s = (String)decoder.get(entity);
-      if (s != null)
-	return s;
+      char[] name = entity.toCharArray();
+      int c = lookup(name, 1, name.length - 1);
+      if (c >= 0)
+	return String.valueOf((char)c);
       else return "";
     }
   }
 
+  /**
+   * Returns the character of a named entity, or -1 if it is unknown.
+   *
+   * @param name holds the name, without the leading '&' and the trailing
+   * ';'.
+   */
+  public static final int lookup(char[] name, int off, int len) {
+    int mask = names.length - 1;
+    for (int i = hash(name, off, len) & mask; names[i] != null;
+	 i = (i + 1) & mask) {
+      char[] candidate = names[i];
+      if (candidate.length != len)
+	continue;
+      int j = 0;
+      while (j < len && candidate[j] == name[off + j])
+	j++;
+      if (j == len)
+	return values[i];
+    }
+    return -1;
+  }
+
+  private static int hash(char[] name, int off, int len) {
+    int h = 0;
+    for (int i = off; i < off + len; i++)
+      h = 31 * h + name[i];
+    return h ^ (h >>> 16);
+  }
+
+  /** Builds the lookup table of the entities added. */
+  private static void index() {
+    int size = 1;
+    while (size < decoder.size() * 4)		  // mostly one probe
+      size <<= 1;
+    names = new char[size][];
+    values = new char[size];
+    Iterator i = decoder.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry entry = (Map.Entry)i.next();
+      char[] name = ((String)entry.getKey()).substring(1).toCharArray();
+      int slot = hash(name, 0, name.length) & (size - 1);
+      while (names[slot] != null)
+	slot = (slot + 1) & (size - 1);
+      names[slot] = name;
+      values[slot] = ((String)entry.getValue()).charAt(0);
+    }
+  }
+
   static final public String encode(String s) {
     int length = s.length();
     StringBuffer buffer = new StringBuffer(length * 2);
@@ -324,5 +378,6 @@ public class Entities {
     add("&rsaquo", 8250);
     add("&euro",   8364);
 
+    index();
   }
 }
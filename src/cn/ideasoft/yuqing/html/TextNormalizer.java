@@ -0,0 +1,317 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.html;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Normalizes the text extracted by parsers, in a single pass over a char
+ * array: decodes the character entities, if asked to, collapses runs of
+ * white space, including the no-break and ideographic spaces, into a single
+ * space, or into a single line break if asked to keep line breaks and the
+ * run holds one, and trims them at both ends, and, if
+ * <code>parser.text.fold.fullwidth</code> is true, folds the full-width
+ * forms of ASCII characters, common in Chinese text, to ASCII.
+ *
+ * <p>The output is never longer than the input, so that the text can be
+ * normalized in place.  A normalizer holds no state, and may be shared by
+ * threads.
+ */
+public class TextNormalizer {
+
+  /** The longest entity name, "&thetasym". */
+  private static final int MAX_NAME = 8;
+
+  private final boolean decodeEntities;
+  private final boolean foldFullWidth;
+  private final boolean keepLineBreaks;
+
+  /**
+   * @param decodeEntities whether to decode the character entities, for
+   * text not decoded by an HTML or XML parser.
+   */
+  public TextNormalizer(Configuration conf, boolean decodeEntities) {
+    this(conf, decodeEntities, false);
+  }
+
+  /**
+   * @param decodeEntities whether to decode the character entities, for
+   * text not decoded by an HTML or XML parser.
+   * @param keepLineBreaks whether a run of white space holding a line break
+   * becomes a line break rather than a space, for text whose lines matter.
+   */
+  public TextNormalizer(Configuration conf, boolean decodeEntities,
+                        boolean keepLineBreaks) {
+    this(decodeEntities,
+         conf.getBoolean("parser.text.fold.fullwidth", false),
+         keepLineBreaks);
+  }
+
+  public TextNormalizer(boolean decodeEntities, boolean foldFullWidth) {
+    this(decodeEntities, foldFullWidth, false);
+  }
+
+  public TextNormalizer(boolean decodeEntities, boolean foldFullWidth,
+                        boolean keepLineBreaks) {
+    this.decodeEntities = decodeEntities;
+    this.foldFullWidth = foldFullWidth;
+    this.keepLineBreaks = keepLineBreaks;
+  }
+
+  /**
+   * Normalizes text.
+   *
+   * @param dst receives the text, and may be <code>src</code>, with
+   * <code>dstOff</code> not after <code>off</code>.  It must hold
+   * <code>len</code> chars.
+   * @return the number of chars written to <code>dst</code>.
+   */
+  public int normalize(char[] src, int off, int len, char[] dst, int dstOff) {
+    int end = off + len;
+    int op = dstOff;
+    char space = 0;                               // pending white space
+    int i = off;
+    while (i < end) {
+      char c = src[i];
+      if (isWhitespace(c)) {
+        if (op > dstOff) {                        // none at the start
+          space = space(space, c);
+        }
+        i++;
+        continue;
+      }
+      int next = i + 1;
+      if (c == '&' && decodeEntities) {
+        long entity = decode(src, i, end);
+        if (entity >= 0) {
+          int decoded = (int)entity;
+          next = (int)(entity >>> 32);
+          if (decoded >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            if (space != 0) {
+              dst[op++] = space;
+              space = 0;
+            }
+            op += Character.toChars(decoded, dst, op);
+            i = next;
+            continue;
+          }
+          c = (char)decoded;
+          if (isWhitespace(c)) {                  // &nbsp; and alike
+            if (op > dstOff) {
+              space = space(space, c);
+            }
+            i = next;
+            continue;
+          }
+        }
+      }
+      if (foldFullWidth && c >= '\uFF01' && c <= '\uFF5E') {
+        c = (char)(c - 0xFEE0);                   // full-width ASCII
+      }
+      if (space != 0) {
+        dst[op++] = space;
+        space = 0;
+      }
+      dst[op++] = c;
+      i = next;
+    }
+    return op - dstOff;
+  }
+
+  /** Returns the white space pending after <code>c</code>: a line break
+   * once the run holds one and line breaks are kept, else a space. */
+  private char space(char pending, char c) {
+    if (keepLineBreaks && (pending == '\n' || c == '\n' || c == '\r'))
+      return '\n';
+    return ' ';
+  }
+
+  /** Normalizes a string. */
+  public String normalize(String text) {
+    char[] chars = text.toCharArray();
+    return new String(chars, 0, normalize(chars, 0, chars.length, chars, 0));
+  }
+
+  /**
+   * Appends normalized text to a buffer, separated by a space from the
+   * text it holds, if any.
+   *
+   * @param work a work area, returned grown if it could not hold the text.
+   */
+  public char[] append(String text, StringBuffer sb, char[] work) {
+    int len = text.length();
+    if (work == null || work.length < len) {
+      work = new char[Math.max(len, 256)];
+    }
+    text.getChars(0, len, work, 0);
+    int n = normalize(work, 0, len, work, 0);
+    if (n > 0) {
+      if (sb.length() > 0) sb.append(' ');
+      sb.append(work, 0, n);
+    }
+    return work;
+  }
+
+  /** True for the white space of <code>\s</code>, the no-break space
+   * and the other Unicode spaces, such as the ideographic space. */
+  private static boolean isWhitespace(char c) {
+    if (c <= ' ')
+      return c == ' ' || (c >= '\t' && c <= '\r');
+    return c == '\u00A0' || (c > '\u007F' && Character.isWhitespace(c));
+  }
+
+  /**
+   * Decodes the entity at <code>src[start]</code>, an '&'.  As browsers
+   * do, a named entity needs its ';', except the legacy ones of HTML 3.2,
+   * from "&amp;amp" to "&amp;yuml", unless followed by '=', as the
+   * parameters of urls are.
+   *
+   * @return the end of the entity in the high int and its code point in the
+   * low int, or -1 if it is none.
+   */
+  private static long decode(char[] src, int start, int end) {
+    int i = start + 1;
+    if (i < end && src[i] == '#') {               // numeric
+      i++;
+      int radix = 10;
+      if (i < end && (src[i] == 'x' || src[i] == 'X')) {
+        radix = 16;
+        i++;
+      }
+      int digits = i;
+      int value = 0;
+      while (i < end && value <= Character.MAX_CODE_POINT) {
+        int digit = Character.digit(src[i], radix);
+        if (digit < 0)
+          break;
+        value = value * radix + digit;
+        i++;
+      }
+      if (i == digits || value == 0 || value > Character.MAX_CODE_POINT
+          || (value >= Character.MIN_SURROGATE
+              && value <= Character.MAX_SURROGATE))
+        return -1;
+      if (i < end && src[i] == ';')
+        i++;
+      return ((long)i << 32) | value;
+    }
+    int name = i;
+    while (i < end && i - name < MAX_NAME && isNameChar(src[i]))
+      i++;
+    if (i == name || (i < end && isNameChar(src[i])))
+      return -1;                                  // none, or too long
+    int value = Entities.lookup(src, name, i - name);
+    if (value < 0)
+      return -1;
+    if (i < end && src[i] == ';') {
+      i++;
+    } else if (value > 0xFF || (i < end && src[i] == '=')) {
+      return -1;                                  // "&lang=zh" in a url
+    }
+    return ((long)i << 32) | value;
+  }
+
+  private static boolean isNameChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+      || (c >= '0' && c <= '9');
+  }
+
+  /**
+   * Compares the throughput of normalization with the regular expression
+   * and trimming it replaces, on a file or on generated text.
+   */
+  public static void main(String[] args) throws IOException {
+    String usage = "TextNormalizer [-file <file> [-encoding <enc>]] [-entities] [-fold] [-rounds <n>]";
+    String text = null;
+    String encoding = "UTF-8";
+    boolean entities = false;
+    boolean fold = false;
+    int rounds = 20;
+    File file = null;
+    for (int i = 0; i < args.length; i++) {
+      if ("-file".equals(args[i])) {
+        file = new File(args[++i]);
+      } else if ("-encoding".equals(args[i])) {
+        encoding = args[++i];
+      } else if ("-entities".equals(args[i])) {
+        entities = true;
+      } else if ("-fold".equals(args[i])) {
+        fold = true;
+      } else if ("-rounds".equals(args[i])) {
+        rounds = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println("Usage: " + usage);
+        return;
+      }
+    }
+    if (file != null) {
+      Reader reader = new InputStreamReader(new FileInputStream(file), encoding);
+      try {
+        StringBuffer sb = new StringBuffer();
+        char[] buffer = new char[8192];
+        int n;
+        while ((n = reader.read(buffer)) > 0) {
+          sb.append(buffer, 0, n);
+        }
+        text = sb.toString();
+      } finally {
+        reader.close();
+      }
+    } else {
+      StringBuffer sb = new StringBuffer();
+      String[] words = { "\u641C\u7D22", "\u5F15\u64CE", "\uFF21\uFF22\uFF23",
+                         "news", "&amp;", "&nbsp;", "2007", "\u3000",
+                         "\u8206\u60C5", "&#20013;" };
+      java.util.Random random = new java.util.Random(0);
+      while (sb.length() < 4 * 1024 * 1024) {
+        sb.append(words[random.nextInt(words.length)]);
+        sb.append(random.nextInt(4) == 0 ? "\n\t  " : " ");
+      }
+      text = sb.toString();
+    }
+
+    TextNormalizer normalizer = new TextNormalizer(entities, fold);
+    char[] src = text.toCharArray();
+    char[] dst = new char[src.length];
+    long chars = (long)src.length * rounds;
+    int length = 0;
+    long start = System.currentTimeMillis();
+    for (int r = 0; r < rounds; r++) {
+      length = normalizer.normalize(src, 0, src.length, dst, 0);
+    }
+    long normalized = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    for (int r = 0; r < rounds; r++) {
+      text.replaceAll("\\s+", " ").trim();
+    }
+    long replaced = System.currentTimeMillis() - start;
+
+    System.out.println(src.length + " chars normalized to " + length);
+    System.out.println("TextNormalizer: "
+                       + chars / 1000 / Math.max(normalized, 1) + "M chars/s");
+    System.out.println("replaceAll and trim: "
+                       + chars / 1000 / Math.max(replaced, 1) + "M chars/s");
+  }
+}
@@ -0,0 +1,521 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.indexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A block cache of the index files read from DFS by {@link FsDirectory},
+ * kept on local disk and in memory, shared by all the directories of a
+ * {@link Configuration}.
+ *
+ * <p>Files are read by blocks of <tt>fs.directory.cache.block.size</tt>
+ * bytes.  A block is looked up in memory, then in the local copy of its
+ * file, and is otherwise read from DFS with a positional read, so that
+ * concurrent readers of a file do not wait for each other.  Both tiers are
+ * LRU: the memory tier by block, up to <tt>fs.directory.cache.memory.size</tt>
+ * bytes, the disk tier by file, up to <tt>fs.directory.cache.disk.size</tt>
+ * bytes.  The term dictionaries and norms, which every search reads, are
+ * copied to disk in the background when a directory is opened.</p>
+ *
+ * <p>Index files are never modified once written, so blocks are keyed by
+ * the path and length of their file.  The files that Lucene rewrites in
+ * place (segments, deletable and deletions) are not cached.  The local
+ * copies are private to the process and deleted on exit.</p>
+ */
+public class BlockCache {
+
+  public static final Log LOG = LogFactory.getLog(BlockCache.class);
+
+  private static final String PREFETCH = "fs.directory.cache.prefetch";
+
+  private final int blockSize;
+  private final long maxMemoryBytes;
+  private final long maxDiskBytes;
+  private final String[] prefetch;
+  private File dir;
+
+  /** Cached files, in LRU order.  Guarded by this. */
+  private final LinkedHashMap files = new LinkedHashMap(16, 0.75f, true);
+  private long diskBytes;
+
+  /** Blocks in memory, in LRU order.  Guarded by itself. */
+  private final LinkedHashMap blocks = new LinkedHashMap(16, 0.75f, true);
+  private long memoryBytes;
+
+  private final AtomicInteger nextId = new AtomicInteger();
+  private final AtomicLong memoryHits = new AtomicLong();
+  private final AtomicLong diskHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong remoteBytes = new AtomicLong();
+
+  private final ExecutorService prefetcher =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "BlockCache prefetcher");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /** A file whose blocks are cached. */
+  static class CachedFile {
+    private final int id;
+    private final String key;
+    private final Path path;
+    private final long length;
+    private File local;
+    private FileChannel channel;
+    private final BitSet present = new BitSet();  // blocks copied to disk
+    private long bytes;                           // guarded by the cache
+    private int generation;                       // incremented on eviction
+    private boolean prefetched;
+
+    private CachedFile(int id, String key, Path path, long length) {
+      this.id = id;
+      this.key = key;
+      this.path = path;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Returns the cache shared by all users of this configuration, creating it
+   * on first use, or null if both tiers have a size of zero.
+   */
+  public static BlockCache get(Configuration conf) throws IOException {
+    String key = BlockCache.class.getName();
+    synchronized (conf) {
+      BlockCache cache = (BlockCache)conf.getObject(key);
+      if (cache == null) {
+        long memory = conf.getLong("fs.directory.cache.memory.size",
+                                   16 * 1024 * 1024);
+        long disk = conf.getLong("fs.directory.cache.disk.size",
+                                 1024 * 1024 * 1024);
+        if (memory <= 0 && disk <= 0) {
+          return null;
+        }
+        String dir = conf.get("fs.directory.cache.dir");
+        if (dir == null || dir.length() == 0) {
+          dir = new File(conf.get("hadoop.tmp.dir", "/tmp"),
+                         "fsdirectory-cache").getPath();
+        }
+        cache = new BlockCache(new File(dir),
+                               conf.getInt("fs.directory.cache.block.size",
+                                           64 * 1024),
+                               memory, disk,
+                               conf.getStrings(PREFETCH));
+        conf.setObject(key, cache);
+        if (LOG.isInfoEnabled()) {
+          LOG.info("Caching DFS index blocks in " + cache.dir + ": "
+                   + memory + " bytes in memory, " + disk + " on disk");
+        }
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * @param parent the directory where the local copies are kept, in a
+   * subdirectory of this process.
+   * @param prefetch the extensions of the files copied when a directory is
+   * opened; <tt>f*</tt> matches <tt>f</tt> followed by digits.
+   */
+  public BlockCache(File parent, int blockSize, long maxMemoryBytes,
+                    long maxDiskBytes, String[] prefetch) throws IOException {
+    this.blockSize = blockSize;
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.maxDiskBytes = maxDiskBytes;
+    this.prefetch = prefetch == null ? new String[0] : prefetch;
+    if (maxDiskBytes > 0) {
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("Cannot create " + parent);
+      }
+      dir = File.createTempFile("cache-", "", parent);
+      if (!dir.delete() || !dir.mkdir()) {
+        throw new IOException("Cannot create " + dir);
+      }
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+          public void run() {
+            clear();
+            dir.delete();
+          }
+        });
+    }
+  }
+
+  /**
+   * Returns the cache entry of a file, or null if the file is not cached.
+   * @param length the length of the file.
+   */
+  CachedFile getFile(Path path, long length) {
+    String name = path.getName();
+    if (name.startsWith("segments") || name.equals("deletable")
+        || name.endsWith(".del")) {
+      return null;
+    }
+    String key = path.toString() + "@" + length;
+    synchronized (this) {
+      CachedFile file = (CachedFile)files.get(key);
+      if (file == null) {
+        file = new CachedFile(nextId.incrementAndGet(), key, path, length);
+        files.put(key, file);
+      }
+      return file;
+    }
+  }
+
+  /**
+   * Reads bytes of a cached file.
+   * @param in the file in DFS, to read missing blocks from.
+   * @throws IOException if reading past the end of the file, or if DFS
+   * fails.
+   */
+  void read(CachedFile file, FSDataInputStream in, long position,
+            byte[] b, int offset, int len) throws IOException {
+    while (len > 0) {
+      int blockNo = (int)(position / blockSize);
+      byte[] block = getBlock(file, in, blockNo, true);
+      int blockOffset = (int)(position - (long)blockNo * blockSize);
+      int n = Math.min(len, block.length - blockOffset);
+      if (n <= 0) {
+        throw new IOException("read past EOF");
+      }
+      System.arraycopy(block, blockOffset, b, offset, n);
+      position += n;
+      offset += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Copies a file to local disk in the background, if it is read by every
+   * search.
+   */
+  void prefetch(final FileSystem fs, final CachedFile file) {
+    if (file == null || maxDiskBytes <= 0 || file.length > maxDiskBytes / 4
+        || !isPrefetched(file.path.getName())) {
+      return;
+    }
+    synchronized (file) {
+      if (file.prefetched) {
+        return;
+      }
+      file.prefetched = true;
+    }
+    prefetcher.execute(new Runnable() {
+        public void run() {
+          try {
+            FSDataInputStream in = fs.open(file.path);
+            try {
+              int numBlocks = (int)((file.length + blockSize - 1) / blockSize);
+              for (int i = 0; i < numBlocks; i++) {
+                getBlock(file, in, i, false);
+              }
+            } finally {
+              in.close();
+            }
+          } catch (IOException e) {
+            if (LOG.isWarnEnabled()) {
+              LOG.warn("Cannot prefetch " + file.path + ": " + e);
+            }
+          }
+        }
+      });
+  }
+
+  private boolean isPrefetched(String name) {
+    String extension = name.substring(name.lastIndexOf('.') + 1);
+    for (int i = 0; i < prefetch.length; i++) {
+      String pattern = prefetch[i].trim();
+      if (pattern.endsWith("*")) {
+        String prefix = pattern.substring(0, pattern.length() - 1);
+        if (extension.startsWith(prefix)
+            && extension.length() > prefix.length()
+            && isDigits(extension.substring(prefix.length()))) {
+          return true;
+        }
+      } else if (extension.equals(pattern)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isDigits(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (!Character.isDigit(s.charAt(i)))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns a block from memory, from disk or from DFS.
+   * @param keep true to keep the block in memory.
+   */
+  private byte[] getBlock(CachedFile file, FSDataInputStream in, int blockNo,
+                          boolean keep) throws IOException {
+    Long key = new Long(((long)file.id << 32) | blockNo);
+    byte[] block;
+    synchronized (blocks) {
+      block = (byte[])blocks.get(key);
+    }
+    if (block != null) {
+      memoryHits.incrementAndGet();
+      return block;
+    }
+
+    long start = (long)blockNo * blockSize;
+    int size = (int)Math.min(blockSize, file.length - start);
+    if (size <= 0) {
+      throw new IOException("read past EOF");
+    }
+    block = readLocal(file, blockNo, start, size);
+    if (block != null) {
+      diskHits.incrementAndGet();
+    } else {
+      block = new byte[size];
+      in.readFully(start, block, 0, size);        // positional, no seek
+      misses.incrementAndGet();
+      remoteBytes.addAndGet(size);
+      writeLocal(file, blockNo, start, block);
+    }
+    if (keep && maxMemoryBytes > 0) {
+      synchronized (blocks) {
+        if (blocks.put(key, block) == null) {
+          memoryBytes += block.length;
+        }
+        Iterator i = blocks.values().iterator();
+        while (memoryBytes > maxMemoryBytes && i.hasNext()) {
+          memoryBytes -= ((byte[])i.next()).length;
+          i.remove();
+        }
+      }
+    }
+    return block;
+  }
+
+  /** Reads a block from the local copy of a file, or returns null. */
+  private byte[] readLocal(CachedFile file, int blockNo, long start,
+                           int size) {
+    FileChannel channel;
+    synchronized (file) {
+      if (!file.present.get(blockNo)) {
+        return null;
+      }
+      channel = file.channel;
+    }
+    byte[] block = new byte[size];
+    ByteBuffer buffer = ByteBuffer.wrap(block);
+    try {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, start + buffer.position()) < 0) {
+          return null;                            // evicted meanwhile
+        }
+      }
+    } catch (IOException e) {                     // closed by eviction
+      return null;
+    }
+    synchronized (this) {
+      files.get(file.key);                        // most recently used
+    }
+    return block;
+  }
+
+  /** Copies a block to the local copy of a file. */
+  private void writeLocal(CachedFile file, int blockNo, long start,
+                          byte[] block) {
+    if (maxDiskBytes <= 0) {
+      return;
+    }
+    FileChannel channel;
+    int generation;
+    try {
+      synchronized (file) {
+        if (file.present.get(blockNo)) {
+          return;
+        }
+        if (file.channel == null) {
+          file.local = new File(dir, file.id + "-" + file.path.getName());
+          file.channel = new RandomAccessFile(file.local, "rw").getChannel();
+        }
+        channel = file.channel;
+        generation = file.generation;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(block);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, start + buffer.position());
+      }
+    } catch (IOException e) {                     // disk full, or evicted
+      if (LOG.isWarnEnabled()) {
+        LOG.warn("Cannot cache " + file.path + " locally: " + e);
+      }
+      return;
+    }
+
+    synchronized (this) {
+      CachedFile current = (CachedFile)files.get(file.key); // most recently used
+      if (current == null) {
+        files.put(file.key, file);                // evicted, cached again
+      } else if (current != file) {               // replaced after eviction
+        evict(file);
+        return;
+      }
+      synchronized (file) {
+        // the copy was deleted while writing, or the block written twice
+        if (file.generation != generation || file.present.get(blockNo)) {
+          return;
+        }
+        file.present.set(blockNo);
+      }
+      file.bytes += block.length;
+      diskBytes += block.length;
+      Iterator i = files.values().iterator();
+      while (diskBytes > maxDiskBytes && i.hasNext()) {
+        CachedFile eldest = (CachedFile)i.next();
+        if (eldest == file) {
+          break;
+        }
+        evict(eldest);
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Deletes the local copy of a file.  Its readers go back to DFS, and may
+   * copy it again.  The caller removes the file from {@link #files}.  Must
+   * be called with the lock of the cache.
+   */
+  private void evict(CachedFile file) {
+    diskBytes -= file.bytes;
+    file.bytes = 0;
+    synchronized (file) {
+      file.generation++;
+      file.present.clear();
+      if (file.channel != null) {
+        try {
+          file.channel.close();
+        } catch (IOException e) {
+          // ignore
+        }
+        file.channel = null;
+        file.local.delete();
+      }
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Evicted " + file.path + " from " + dir);
+    }
+  }
+
+  /**
+   * Drops the files of a directory that were deleted or rewritten, e.g. by
+   * a merge, when the directory is closed.
+   */
+  void purge(FileSystem fs, Path directory) {
+    List candidates = new ArrayList();
+    synchronized (this) {
+      for (Iterator i = files.values().iterator(); i.hasNext(); ) {
+        CachedFile file = (CachedFile)i.next();
+        if (directory.equals(file.path.getParent())) {
+          candidates.add(file);
+        }
+      }
+    }
+    for (int i = 0; i < candidates.size(); i++) {
+      CachedFile file = (CachedFile)candidates.get(i);
+      boolean gone;
+      try {
+        gone = !fs.exists(file.path) || fs.getLength(file.path) != file.length;
+      } catch (IOException e) {
+        gone = false;                             // keep it, to be safe
+      }
+      if (gone) {
+        synchronized (this) {
+          if (files.get(file.key) == file) {
+            files.remove(file.key);
+            evict(file);
+          }
+        }
+      }
+    }
+  }
+
+  /** Empties both tiers, e.g. to measure searches with a cold cache. */
+  public void clear() {
+    synchronized (this) {
+      for (Iterator i = files.values().iterator(); i.hasNext(); ) {
+        evict((CachedFile)i.next());
+        i.remove();
+      }
+    }
+    synchronized (blocks) {
+      blocks.clear();
+      memoryBytes = 0;
+    }
+  }
+
+  /** Returns the number of blocks read from memory. */
+  public long getMemoryHits() { return memoryHits.get(); }
+
+  /** Returns the number of blocks read from local disk. */
+  public long getDiskHits() { return diskHits.get(); }
+
+  /** Returns the number of blocks read from DFS. */
+  public long getMisses() { return misses.get(); }
+
+  /** Returns the number of bytes read from DFS. */
+  public long getRemoteBytes() { return remoteBytes.get(); }
+
+  public String toString() {
+    long disk;
+    synchronized (this) {
+      disk = diskBytes;
+    }
+    long memory;
+    synchronized (blocks) {
+      memory = memoryBytes;
+    }
+    return "BlockCache[memory hits=" + memoryHits + ", disk hits=" + diskHits
+      + ", misses=" + misses + ", remote bytes=" + remoteBytes
+      + ", memory=" + memory + "/" + maxMemoryBytes
+      + ", disk=" + disk + "/" + maxDiskBytes + "]";
+  }
+}
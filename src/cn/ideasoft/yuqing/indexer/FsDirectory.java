@@ -22,19 +22,32 @@ import org.apache.lucene.store.*;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.conf.Configuration;
 
-/** Reads a Lucene index stored in DFS. */
+/** Reads a Lucene index stored in DFS, optionally through a local
+ * {@link BlockCache}. */
 public class FsDirectory extends Directory {
 
   private FileSystem fs;
   private Path directory;
   private int ioFileBufferSize;
+  private BlockCache cache;
 
   public FsDirectory(FileSystem fs, Path directory, boolean create, Configuration conf)
     throws IOException {
+    this(fs, directory, create, conf, null);
+  }
+
+  /**
+   * @param cache caches the files read, or null.  The files read by every
+   * search are prefetched when the directory is opened.
+   */
+  public FsDirectory(FileSystem fs, Path directory, boolean create,
+                     Configuration conf, BlockCache cache)
+    throws IOException {
 
     this.fs = fs;
     this.directory = directory;
     this.ioFileBufferSize = conf.getInt("io.file.buffer.size", 4096);
+    this.cache = cache;
     
     if (create) {
       create();
@@ -42,6 +55,13 @@ public class FsDirectory extends Directory {
 
     if (!fs.isDirectory(directory))
       throw new IOException(directory + " not a directory");
+
+    if (cache != null && !create) {
+      Path[] files = fs.listPaths(directory);
+      for (int i = 0; files != null && i < files.length; i++) {
+        cache.prefetch(fs, cache.getFile(files[i], fs.getLength(files[i])));
+      }
+    }
   }
 
   private void create() throws IOException {
@@ -142,6 +162,9 @@ public class FsDirectory extends Directory {
   }
 
   public synchronized void close() throws IOException {
+    if (cache != null) {
+      cache.purge(fs, directory);
+    }
     fs.close();
   }
 
@@ -152,7 +175,8 @@ public class FsDirectory extends Directory {
 
   private class DfsIndexInput extends BufferedIndexInput {
 
-    /** Shared by clones. */
+    /** Shared by clones.  Positioned reads through the cache do not lock
+     * it. */
     private class Descriptor {
       public FSDataInputStream in;
       public long position;                       // cache of in.getPos()
@@ -163,15 +187,21 @@ public class FsDirectory extends Directory {
 
     private final Descriptor descriptor;
     private final long length;
+    private final BlockCache.CachedFile cached;
     private boolean isClone;
 
     public DfsIndexInput(Path path, int ioFileBufferSize) throws IOException {
       descriptor = new Descriptor(path,ioFileBufferSize);
       length = fs.getLength(path);
+      cached = cache == null ? null : cache.getFile(path, length);
     }
 
     protected void readInternal(byte[] b, int offset, int len)
       throws IOException {
+      if (cached != null) {
+        cache.read(cached, descriptor.in, getFilePointer(), b, offset, len);
+        return;
+      }
       synchronized (descriptor) {
         long position = getFilePointer();
         if (position != descriptor.position) {
@@ -18,7 +18,14 @@
 package cn.ideasoft.yuqing.indexer;
 
 import java.io.*;
+import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,11 +39,18 @@ import cn.ideasoft.yuqing.util.LogUtil;
 import cn.ideasoft.yuqing.util.YuQingConfiguration;
 
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.FieldCache;
 
 /*************************************************************************
  * IndexMerger creates an index for the output corresponding to a 
  * single fetcher run.
+ *
+ * <p>With <code>-shards</code>, it instead creates a number of balanced
+ * indexes, one per search server, named like the indexes of the
+ * {@link Indexer}.  Documents are assigned to shards by the hash of their
+ * url or of their site, and the shards are merged concurrently.</p>
  * 
  * @author Doug Cutting
  * @author Mike Cafarella
@@ -46,6 +60,13 @@ public class IndexMerger extends ToolBase {
 
   public static final String DONE_NAME = "merge.done";
 
+  private static final NumberFormat PART_FORMAT =
+    NumberFormat.getInstance();
+  static {
+    PART_FORMAT.setMinimumIntegerDigits(5);
+    PART_FORMAT.setGroupingUsed(false);
+  }
+
   public IndexMerger() {
     
   }
@@ -87,14 +108,7 @@ public class IndexMerger extends ToolBase {
     //
     // Merge indices
     //
-    IndexWriter writer = new IndexWriter(localOutput.toString(), null, true);
-    writer.setMergeFactor(conf.getInt("indexer.mergeFactor", IndexWriter.DEFAULT_MERGE_FACTOR));
-    writer.setMaxBufferedDocs(conf.getInt("indexer.minMergeDocs", IndexWriter.DEFAULT_MAX_BUFFERED_DOCS));
-    writer.setMaxMergeDocs(conf.getInt("indexer.maxMergeDocs", IndexWriter.DEFAULT_MAX_MERGE_DOCS));
-    writer.setTermIndexInterval(conf.getInt("indexer.termIndexInterval", IndexWriter.DEFAULT_TERM_INDEX_INTERVAL));
-    writer.setInfoStream(LogUtil.getDebugStream(LOG));
-    writer.setUseCompoundFile(false);
-    writer.setSimilarity(new YuQingSimilarity());
+    IndexWriter writer = createWriter(localOutput);
     writer.addIndexes(dirs);
     writer.close();
 
@@ -106,6 +120,175 @@ public class IndexMerger extends ToolBase {
     if (LOG.isInfoEnabled()) { LOG.info("done merging"); }
   }
 
+  private IndexWriter createWriter(Path localOutput) throws IOException {
+    IndexWriter writer = new IndexWriter(localOutput.toString(), null, true);
+    writer.setMergeFactor(conf.getInt("indexer.mergeFactor", IndexWriter.DEFAULT_MERGE_FACTOR));
+    writer.setMaxBufferedDocs(conf.getInt("indexer.minMergeDocs", IndexWriter.DEFAULT_MAX_BUFFERED_DOCS));
+    writer.setMaxMergeDocs(conf.getInt("indexer.maxMergeDocs", IndexWriter.DEFAULT_MAX_MERGE_DOCS));
+    writer.setTermIndexInterval(conf.getInt("indexer.termIndexInterval", IndexWriter.DEFAULT_TERM_INDEX_INTERVAL));
+    writer.setInfoStream(LogUtil.getDebugStream(LOG));
+    writer.setUseCompoundFile(false);
+    writer.setSimilarity(new YuQingSimilarity());
+    return writer;
+  }
+
+  /**
+   * Merge all input indexes to a number of output indexes, named
+   * <code>part-00000</code>, <code>part-00001</code>... in
+   * <code>outputDir</code>.  Each output index is merged separately, from
+   * all the input indexes, by a pool of <code>numThreads</code> threads,
+   * and marked done like the indexes of the {@link Indexer}, so that they
+   * are searched.
+   *
+   * @param bySite true to assign documents to shards by site, false by url.
+   */
+  public void merge(final Path[] indexes, Path outputDir,
+                    Path localWorkingDir, final int numShards,
+                    boolean bySite, int numThreads) throws IOException {
+    if (LOG.isInfoEnabled()) {
+      LOG.info("merging indexes to " + numShards + " shards by "
+               + (bySite ? "site" : "url") + " in: " + outputDir);
+    }
+    long start = System.currentTimeMillis();
+    final FileSystem localFs = FileSystem.getLocal(getConf());
+    if (localWorkingDir == null) {
+      localWorkingDir = new Path("indexmerger-" + System.currentTimeMillis());
+    }
+    if (localFs.exists(localWorkingDir)) {
+      localFs.delete(localWorkingDir);
+    }
+    localFs.mkdirs(localWorkingDir);
+    final FileSystem fs = FileSystem.get(getConf());
+
+    // assign the documents of each input index to shards
+    final int[][] shards = new int[indexes.length][];
+    long numDocs = 0;
+    for (int i = 0; i < indexes.length; i++) {
+      shards[i] = partition(fs, indexes[i], numShards, bySite);
+      numDocs += shards[i].length;
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("partitioned " + numDocs + " documents in "
+               + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // merge the shards concurrently
+    ExecutorService pool =
+      Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, numShards)));
+    CompletionService merges = new ExecutorCompletionService(pool);
+    final Path workingDir = localWorkingDir;
+    for (int s = 0; s < numShards; s++) {
+      final int shard = s;
+      final Path output =
+        new Path(outputDir, "part-" + PART_FORMAT.format(shard));
+      merges.submit(new Callable() {
+          public Object call() throws IOException {
+            return new long[] {
+              shard, mergeShard(fs, indexes, shards, shard, output,
+                                new Path(workingDir, output.getName())) };
+          }
+        });
+    }
+
+    long merged = 0;
+    int minDocs = Integer.MAX_VALUE;
+    int maxDocs = 0;
+    try {
+      for (int done = 1; done <= numShards; done++) {
+        long[] result = (long[])merges.take().get();
+        int docs = (int)result[1];
+        merged += docs;
+        minDocs = Math.min(minDocs, docs);
+        maxDocs = Math.max(maxDocs, docs);
+        if (LOG.isInfoEnabled()) {
+          long elapsed = Math.max(1, System.currentTimeMillis() - start);
+          LOG.info("merged shard " + result[0] + ": " + docs + " docs; "
+                   + done + "/" + numShards + " shards, "
+                   + merged + " docs, " + (merged * 1000 / elapsed)
+                   + " docs/s");
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted");
+    } catch (ExecutionException e) {
+      throw new IOException
+        ("Shard merge failed: " + StringUtils.stringifyException(e.getCause()));
+    } finally {
+      pool.shutdownNow();
+      localFs.delete(localWorkingDir);
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("done merging " + merged + " docs in "
+               + (System.currentTimeMillis() - start) + " ms, "
+               + minDocs + " to " + maxDocs + " docs per shard");
+    }
+  }
+
+  /**
+   * Returns the shard of each document of an index, by the hash of its site
+   * or url, or -1 for deleted documents.
+   */
+  private int[] partition(FileSystem fs, Path index, int numShards,
+                          boolean bySite) throws IOException {
+    IndexReader reader =
+      IndexReader.open(new FsDirectory(fs, index, false, this.conf));
+    try {
+      String[] sites =
+        bySite ? FieldCache.DEFAULT.getStrings(reader, "site") : null;
+      int[] shards = new int[reader.maxDoc()];
+      for (int doc = 0; doc < shards.length; doc++) {
+        if (reader.isDeleted(doc)) {
+          shards[doc] = -1;
+          continue;
+        }
+        String key = sites == null ? null : sites[doc];
+        if (key == null) {                        // by url
+          key = reader.document(doc).get("url");
+        }
+        if (key == null) {
+          key = "";
+        }
+        shards[doc] = (key.hashCode() & Integer.MAX_VALUE) % numShards;
+      }
+      return shards;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** Merges the documents of a shard, returning their number. */
+  private int mergeShard(FileSystem fs, Path[] indexes, int[][] shards,
+                         int shard, Path output, Path tmpLocalOutput)
+    throws IOException {
+    Path localOutput = fs.startLocalOutput(output, tmpLocalOutput);
+    IndexReader[] readers = new IndexReader[indexes.length];
+    try {
+      for (int i = 0; i < indexes.length; i++) {
+        BitSet docs = new BitSet(shards[i].length);
+        for (int doc = 0; doc < shards[i].length; doc++) {
+          if (shards[i][doc] == shard)
+            docs.set(doc);
+        }
+        readers[i] = new SubsetReader
+          (IndexReader.open(new FsDirectory(fs, indexes[i], false, this.conf)),
+           docs);
+      }
+      IndexWriter writer = createWriter(localOutput);
+      writer.addIndexes(readers);
+      int docs = writer.docCount();
+      writer.close();
+      fs.completeLocalOutput(output, tmpLocalOutput);
+      fs.createNewFile(new Path(output, Indexer.DONE_NAME)); // searchable
+      return docs;
+    } finally {
+      for (int i = 0; i < readers.length; i++) {
+        if (readers[i] != null) {
+          readers[i].close();
+        }
+      }
+    }
+  }
+
   /** 
    * Create an index for the input files in the named directory. 
    */
@@ -115,7 +298,10 @@ public class IndexMerger extends ToolBase {
   }
   
   public int run(String[] args) throws Exception {
-    String usage = "IndexMerger [-workingdir <workingdir>] outputIndex indexesDir...";
+    String usage = "IndexMerger [-workingdir <workingdir>] "
+      + "[-shards <n> [-partition url|site] [-threads <n>]] "
+      + "outputIndex indexesDir...\n"
+      + "\twith -shards, outputIndex is the directory of the output indexes";
     if (args.length < 2) {
       System.err.println("Usage: " + usage);
       return -1;
@@ -128,10 +314,22 @@ public class IndexMerger extends ToolBase {
     List indexDirs = new ArrayList();
 
     Path workDir = null;
+    int numShards = 0;
+    boolean bySite = false;
+    int numThreads = conf.getInt("indexer.merge.threads", 4);
     int i = 0;
-    if ("-workingdir".equals(args[i])) {
-      i++;
-      workDir = new Path(args[i++], "indexmerger-" + System.currentTimeMillis());
+    for (; i < args.length - 2; i++) {
+      if ("-workingdir".equals(args[i])) {
+        workDir = new Path(args[++i], "indexmerger-" + System.currentTimeMillis());
+      } else if ("-shards".equals(args[i])) {
+        numShards = Integer.parseInt(args[++i]);
+      } else if ("-partition".equals(args[i])) {
+        bySite = "site".equals(args[++i]);
+      } else if ("-threads".equals(args[i])) {
+        numThreads = Integer.parseInt(args[++i]);
+      } else {
+        break;
+      }
     }
 
     Path outputIndex = new Path(args[i++]);
@@ -147,7 +345,11 @@ public class IndexMerger extends ToolBase {
     Path[] indexFiles = (Path[])indexDirs.toArray(new Path[indexDirs.size()]);
 
     try {
-      merge(indexFiles, outputIndex, workDir);
+      if (numShards > 0) {
+        merge(indexFiles, outputIndex, workDir, numShards, bySite, numThreads);
+      } else {
+        merge(indexFiles, outputIndex, workDir);
+      }
       return 0;
     } catch (Exception e) {
       LOG.fatal("IndexMerger: " + StringUtils.stringifyException(e));
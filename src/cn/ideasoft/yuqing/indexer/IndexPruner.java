@@ -0,0 +1,372 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.indexer;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.ToolBase;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.Similarity;
+
+import cn.ideasoft.yuqing.util.LogUtil;
+import cn.ideasoft.yuqing.util.YuQingConfiguration;
+
+/**
+ * Builds the tier-1 index of an index: a small index of the documents that
+ * rank first for some term, searched before the full index.
+ *
+ * <p>For each term of the searched fields, the documents are ranked by
+ * their boost and the frequency of the term, as in the scores of
+ * {@link YuQingSimilarity}.  Terms found in few documents keep them all;
+ * the high frequency terms keep only their <code>docsPerTerm</code> best
+ * documents.  The tier-1 index holds every document kept by some term, in
+ * the order of the full index, so that it stays sorted if the full index
+ * was sorted by {@link IndexSorter}.
+ *
+ * <p>The tier-1 index is written to the {@link #TIER_NAME} subdirectory of
+ * the index, with a {@link #DOCS_NAME} file mapping its documents to those
+ * of the full index, and holding the version of the full index and the
+ * highest boost of the documents left out.  It must be rebuilt whenever the
+ * full index changes.
+ */
+public class IndexPruner extends ToolBase {
+  public static final Log LOG = LogFactory.getLog(IndexPruner.class);
+
+  /** The subdirectory of an index holding its tier-1 index. */
+  public static final String TIER_NAME = "tier1";
+
+  /** The file of the tier-1 index mapping its documents to the full
+   * index. */
+  public static final String DOCS_NAME = "tier.docs";
+
+  /* Starts the {@link #DOCS_NAME} file; older files start with maxDoc. */
+  private static final int DOCS_VERSION = -2;
+
+  /** The documents of a tier-1 index, as read by {@link #readDocs}. */
+  public static class TierDocs {
+    /** The number in the full index of each document of the tier. */
+    public final int[] docs;
+    /** The highest boost of the documents of the full index left out of
+     * the tier, or zero if none was. */
+    public final float prunedBoost;
+
+    TierDocs(int[] docs, float prunedBoost) {
+      this.docs = docs;
+      this.prunedBoost = prunedBoost;
+    }
+  }
+
+  public IndexPruner() {
+
+  }
+
+  public IndexPruner(Configuration conf) {
+    setConf(conf);
+  }
+
+  /** Keeps the best documents of a term, by increasing score. */
+  private static class DocQueue {
+    private final float[] scores;
+    private final int[] docs;
+    private int size;
+
+    public DocQueue(int maxSize) {
+      scores = new float[maxSize + 1];            // heap, from 1
+      docs = new int[maxSize + 1];
+    }
+
+    public void clear() { size = 0; }
+
+    public void insert(int doc, float score) {
+      if (size < scores.length - 1) {
+        size++;
+        scores[size] = score;
+        docs[size] = doc;
+        up(size);
+      } else if (score > scores[1]) {
+        scores[1] = score;
+        docs[1] = doc;
+        down(1);
+      }
+    }
+
+    public void addTo(BitSet set) {
+      for (int i = 1; i <= size; i++) {
+        set.set(docs[i]);
+      }
+    }
+
+    private void up(int i) {
+      float score = scores[i];
+      int doc = docs[i];
+      int j = i >>> 1;
+      while (j > 0 && score < scores[j]) {
+        scores[i] = scores[j];
+        docs[i] = docs[j];
+        i = j;
+        j = i >>> 1;
+      }
+      scores[i] = score;
+      docs[i] = doc;
+    }
+
+    private void down(int i) {
+      float score = scores[i];
+      int doc = docs[i];
+      int j = i << 1;
+      while (j <= size) {
+        if (j < size && scores[j + 1] < scores[j])
+          j++;
+        if (scores[j] >= score)
+          break;
+        scores[i] = scores[j];
+        docs[i] = docs[j];
+        i = j;
+        j = i << 1;
+      }
+      scores[i] = score;
+      docs[i] = doc;
+    }
+  }
+
+  /**
+   * Builds the tier-1 index of an index.
+   *
+   * @param index the full index.
+   * @param fields the fields whose terms select documents.
+   * @param docsPerTerm the number of documents kept for each term.
+   * @param localWorkingDir where the tier-1 index is written before it is
+   * copied to the index.
+   */
+  public void prune(Path index, String[] fields, int docsPerTerm,
+                    Path localWorkingDir) throws IOException {
+    if (LOG.isInfoEnabled()) {
+      LOG.info("IndexPruner: pruning " + index + " to " + docsPerTerm
+               + " documents per term");
+    }
+    long start = System.currentTimeMillis();
+    Configuration conf = getConf();
+    FileSystem fs = FileSystem.get(conf);
+    Path tier = new Path(index, TIER_NAME);
+    if (fs.exists(tier)) {
+      fs.delete(tier);
+    }
+
+    IndexReader reader =
+      IndexReader.open(new FsDirectory(fs, index, false, conf));
+    try {
+      BitSet docs = select(reader, fields, docsPerTerm);
+
+      Path tmpLocalOutput = new Path(localWorkingDir, "tier-" + index.getName());
+      Path localOutput = fs.startLocalOutput(tier, tmpLocalOutput);
+      IndexWriter writer = new IndexWriter(localOutput.toString(), null, true);
+      writer.setMergeFactor(conf.getInt("indexer.mergeFactor", IndexWriter.DEFAULT_MERGE_FACTOR));
+      writer.setTermIndexInterval(conf.getInt("indexer.termIndexInterval", IndexWriter.DEFAULT_TERM_INDEX_INTERVAL));
+      writer.setInfoStream(LogUtil.getDebugStream(LOG));
+      writer.setUseCompoundFile(false);
+      writer.setSimilarity(new YuQingSimilarity());
+      writer.addIndexes(new IndexReader[] { new SubsetReader(reader, docs) });
+      writer.close();
+      fs.completeLocalOutput(tier, tmpLocalOutput);
+
+      // documents keep their order, so the n-th of the tier is the n-th set
+      FSDataOutputStream out = fs.create(new Path(tier, DOCS_NAME));
+      try {
+        out.writeInt(DOCS_VERSION);
+        out.writeLong(reader.getVersion());
+        out.writeInt(reader.maxDoc());
+        out.writeFloat(prunedBoost(reader, docs));
+        out.writeInt(docs.cardinality());
+        for (int doc = docs.nextSetBit(0); doc >= 0;
+             doc = docs.nextSetBit(doc + 1)) {
+          out.writeInt(doc);
+        }
+      } finally {
+        out.close();
+      }
+      if (fs.exists(new Path(index, IndexSorter.SORTED_NAME))) {
+        fs.create(new Path(tier, IndexSorter.SORTED_NAME)).close();
+      }
+
+      if (LOG.isInfoEnabled()) {
+        LOG.info("IndexPruner: kept " + docs.cardinality() + " of "
+                 + reader.numDocs() + " documents in "
+                 + (System.currentTimeMillis() - start) + " ms");
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** Selects the best <code>docsPerTerm</code> documents of each term. */
+  private static BitSet select(IndexReader reader, String[] fields,
+                               int docsPerTerm) throws IOException {
+    BitSet selected = new BitSet(reader.maxDoc());
+    DocQueue queue = new DocQueue(docsPerTerm);
+    TermDocs termDocs = reader.termDocs();
+    int numTerms = 0;
+    int highFreqTerms = 0;
+    try {
+      for (int f = 0; f < fields.length; f++) {
+        String field = fields[f].intern();
+        byte[] norms = reader.norms(field);        // boost and length norm
+        TermEnum terms = reader.terms(new Term(field, ""));
+        try {
+          do {
+            Term term = terms.term();
+            if (term == null || term.field() != field)
+              break;
+            numTerms++;
+            termDocs.seek(terms);
+            if (terms.docFreq() <= docsPerTerm) {  // keep all
+              while (termDocs.next()) {
+                selected.set(termDocs.doc());
+              }
+              continue;
+            }
+            highFreqTerms++;
+            queue.clear();
+            while (termDocs.next()) {
+              int doc = termDocs.doc();
+              float norm = norms == null ? 1.0f
+                : Similarity.decodeNorm(norms[doc]);
+              queue.insert(doc, norm * (float)Math.sqrt(termDocs.freq()));
+            }
+            queue.addTo(selected);
+          } while (terms.next());
+        } finally {
+          terms.close();
+        }
+      }
+    } finally {
+      termDocs.close();
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("IndexPruner: " + numTerms + " terms, " + highFreqTerms
+               + " found in more than " + docsPerTerm + " documents");
+    }
+    return selected;
+  }
+
+  /**
+   * Returns the highest boost of the documents not selected, the static
+   * rank that a hit found only in the full index may have.
+   */
+  private static float prunedBoost(IndexReader reader, BitSet selected)
+    throws IOException {
+    byte[] boosts = reader.norms("site");
+    float max = 0.0f;
+    for (int doc = selected.nextClearBit(0); doc < reader.maxDoc();
+         doc = selected.nextClearBit(doc + 1)) {
+      if (reader.isDeleted(doc))
+        continue;
+      float boost = boosts == null ? 1.0f : Similarity.decodeNorm(boosts[doc]);
+      max = Math.max(max, boost);
+    }
+    return max;
+  }
+
+  /**
+   * Reads the documents of the full index held by a tier-1 index.
+   *
+   * @param version the version of the full index.
+   * @param maxDoc the number of documents of the full index.
+   * @return the documents of the tier, or null if the tier was built from
+   * another version of the index.
+   */
+  public static TierDocs readDocs(FileSystem fs, Path tier, long version,
+                                  int maxDoc) throws IOException {
+    FSDataInputStream in = fs.open(new Path(tier, DOCS_NAME));
+    try {
+      if (in.readInt() != DOCS_VERSION || in.readLong() != version
+          || in.readInt() != maxDoc)
+        return null;
+      float prunedBoost = in.readFloat();
+      int[] docs = new int[in.readInt()];
+      for (int i = 0; i < docs.length; i++) {
+        docs[i] = in.readInt();
+      }
+      return new TierDocs(docs, prunedBoost);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** */
+  public static void main(String[] args) throws Exception {
+    int res = new IndexPruner().doMain(YuQingConfiguration.create(), args);
+    System.exit(res);
+  }
+
+  public int run(String[] args) throws Exception {
+    String usage = "IndexPruner [-workingdir <workingdir>] [-docsPerTerm <n>] [-fields <f1,f2...>] (-indexes <indexesDir> | index ...)";
+    if (args.length < 1) {
+      System.err.println("Usage: " + usage);
+      return -1;
+    }
+
+    Configuration conf = getConf();
+    FileSystem fs = FileSystem.get(conf);
+    Path workDir = new Path("indexpruner-" + System.currentTimeMillis());
+    int docsPerTerm = conf.getInt("indexer.tier.docs.per.term", 1000);
+    String[] fields =
+      conf.get("indexer.tier.fields", "url,anchor,content,title,host").split(",");
+    List indexes = new ArrayList();
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-workingdir".equals(args[i])) {
+        workDir = new Path(args[++i], "indexpruner-" + System.currentTimeMillis());
+      } else if ("-docsPerTerm".equals(args[i])) {
+        docsPerTerm = Integer.parseInt(args[++i]);
+      } else if ("-fields".equals(args[i])) {
+        fields = args[++i].split(",");
+      } else if ("-indexes".equals(args[i])) {
+        indexes.addAll(Arrays.asList(fs.listPaths(new Path(args[++i]))));
+      } else {
+        indexes.add(new Path(args[i]));
+      }
+    }
+
+    try {
+      for (int i = 0; i < indexes.size(); i++) {
+        prune((Path)indexes.get(i), fields, docsPerTerm, workDir);
+      }
+      return 0;
+    } catch (Exception e) {
+      LOG.fatal("IndexPruner: " + StringUtils.stringifyException(e));
+      return -1;
+    } finally {
+      FileSystem.getLocal(conf).delete(workDir);
+    }
+  }
+}
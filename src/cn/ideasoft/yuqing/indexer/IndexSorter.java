@@ -36,26 +36,27 @@ import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.ToolBase;
 
 /** Sort a Nutch index by page score.  Higher scoring documents are assigned
- * smaller document numbers. */
+ * smaller document numbers.  Documents with a score of zero are dropped.
+ *
+ * <p>The sorted index is marked with a {@link #SORTED_NAME} file, so that
+ * searchers may stop collecting hits once they have found enough of the
+ * highest scoring documents.</p> */
 public class IndexSorter extends ToolBase {
   private static final Log LOG = LogFactory.getLog(IndexSorter.class);
-  
-  private static class PostingMap implements Comparable {
-    private int newDoc;
-    private long offset;
-
-    public int compareTo(Object o) {              // order by newDoc id
-      return this.newDoc - ((PostingMap)o).newDoc;
-    }
-  }
 
+  /** The name of the file that marks an index as sorted. */
+  public static final String SORTED_NAME = "index.sorted";
+  
   private static class SortedTermPositions implements TermPositions {
     private TermPositions original;
     private int[] oldToNew;
 
     private int docFreq;
 
-    private PostingMap[] postingMaps = new PostingMap[0];
+    // the postings of the current term, as newDoc << 32 | i, where i indexes
+    // the offset of the posting's positions in the buffer
+    private long[] postings = new long[0];
+    private long[] offsets = new long[0];
     private int pointer;
 
     private int freq;
@@ -82,22 +83,23 @@ public class IndexSorter extends ToolBase {
       docFreq = terms.docFreq();
       pointer = -1;
 
-      if (docFreq > postingMaps.length) {         // grow postingsMap
-        PostingMap[] newMap = new PostingMap[docFreq];
-        System.arraycopy(postingMaps, 0, newMap, 0, postingMaps.length);
-        for (int i = postingMaps.length; i < docFreq; i++) {
-          newMap[i] = new PostingMap();
-        }
-        postingMaps = newMap;
+      if (docFreq > postings.length) {            // grow postings
+        int size = Math.max(docFreq, postings.length * 2);
+        postings = new long[size];
+        offsets = new long[size];
       }
 
       out.reset();
 
       int i = 0;
       while (original.next()) {
-        PostingMap map = postingMaps[i++];
-        map.newDoc = oldToNew[original.doc()];    // remap the newDoc id
-        map.offset = out.getFilePointer();        // save pointer to buffer
+        int newDoc = oldToNew[original.doc()];    // remap the newDoc id
+        if (newDoc == -1) {                       // dropped
+          continue;
+        }
+        postings[i] = ((long)newDoc << 32) | i;
+        offsets[i] = out.getFilePointer();        // save pointer to buffer
+        i++;
 
         final int tf = original.freq();           // buffer tf & positions
         out.writeVInt(tf);
@@ -111,7 +113,7 @@ public class IndexSorter extends ToolBase {
       out.flush();
       docFreq = i;                                // allow for deletions
       
-      Arrays.sort(postingMaps, 0, docFreq);       // resort by mapped doc ids
+      Arrays.sort(postings, 0, docFreq);          // resort by mapped doc ids
 
       // NOTE: this might be substantially faster if RAMInputStream were public
       // and supported a reset() operation.
@@ -121,7 +123,7 @@ public class IndexSorter extends ToolBase {
     public boolean next() throws IOException {
       pointer++;
       if (pointer < docFreq) {
-        in.seek(postingMaps[pointer].offset);
+        in.seek(offsets[(int)postings[pointer]]);
         freq = in.readVInt();
         position = 0;
         return true;
@@ -129,7 +131,7 @@ public class IndexSorter extends ToolBase {
       return false;
     }
       
-    public int doc() { return postingMaps[pointer].newDoc; }
+    public int doc() { return (int)(postings[pointer] >>> 32); }
     public int freq() { return freq; }
 
     public int nextPosition() throws IOException {
@@ -155,6 +157,7 @@ public class IndexSorter extends ToolBase {
     
     private int[] oldToNew;
     private int[] newToOld;
+    private int numDocs;                          // documents kept
 
     public SortingReader(IndexReader oldReader, int[] oldToNew) {
       super(oldReader);
@@ -166,6 +169,7 @@ public class IndexSorter extends ToolBase {
         int newDoc = oldToNew[oldDoc];
         if (newDoc != -1) {
           newToOld[newDoc] = oldDoc;
+          numDocs++;
         }
         oldDoc++;
       }
@@ -175,8 +179,17 @@ public class IndexSorter extends ToolBase {
       return super.document(newToOld[n]);
     }
 
+    // the dropped documents are numbered last
     public boolean isDeleted(int n) {
-      return false;
+      return n >= numDocs;
+    }
+
+    public boolean hasDeletions() {
+      return numDocs < maxDoc();
+    }
+
+    public int numDocs() {
+      return numDocs;
     }
 
     public byte[] norms(String f) throws IOException {
@@ -213,20 +226,6 @@ public class IndexSorter extends ToolBase {
 
   }
 
-  private static class DocScore implements Comparable {
-    private int oldDoc;
-    private float score;
-
-    public int compareTo(Object o) {              // order by score, oldDoc
-      DocScore that = (DocScore)o;
-      if (this.score == that.score) {
-        return this.oldDoc - that.oldDoc;
-      } else {
-        return this.score < that.score ? 1 : -1 ;
-      }
-    }
-  }
-
   public IndexSorter() {
     
   }
@@ -249,6 +248,7 @@ public class IndexSorter extends ToolBase {
     writer.setUseCompoundFile(false);
     writer.addIndexes(new IndexReader[] { sorter });
     writer.close();
+    new File(directory, "index-sorted/" + SORTED_NAME).createNewFile();
     Date end = new Date();
     LOG.info("IndexSorter: done, " + (end.getTime() - start.getTime())
         + " total milliseconds");
@@ -256,7 +256,10 @@ public class IndexSorter extends ToolBase {
 
   private static int[] oldToNew(IndexReader reader) throws IOException {
     int readerMax = reader.maxDoc();
-    DocScore[] newToOld = new DocScore[readerMax];
+
+    // order by decreasing score, then oldDoc: scores are positive, so the
+    // order of their bits is the order of their values
+    long[] newToOld = new long[readerMax];
 
     // use site, an indexed, un-tokenized field to get boost
     byte[] boosts = reader.norms("site");          
@@ -268,17 +271,16 @@ public class IndexSorter extends ToolBase {
       } else {
         score = Similarity.decodeNorm(boosts[oldDoc]);
       }
-      DocScore docScore = new DocScore();
-      docScore.oldDoc = oldDoc;
-      docScore.score = score;
-      newToOld[oldDoc] = docScore;
+      int bits = Float.floatToIntBits(score);
+      newToOld[oldDoc] = ((long)(Integer.MAX_VALUE - bits) << 32) | oldDoc;
     }
     Arrays.sort(newToOld);
 
     int[] oldToNew = new int[readerMax];
     for (int newDoc = 0; newDoc < readerMax; newDoc++) {
-      DocScore docScore = newToOld[newDoc];
-      oldToNew[docScore.oldDoc] = docScore.score > 0.0f ? newDoc : -1;
+      int oldDoc = (int)newToOld[newDoc];
+      boolean positive = (newToOld[newDoc] >>> 32) != Integer.MAX_VALUE;
+      oldToNew[oldDoc] = positive ? newDoc : -1;
     }    
     return oldToNew;
   }
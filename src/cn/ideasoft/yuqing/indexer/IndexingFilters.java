@@ -66,7 +66,7 @@ public class IndexingFilters {
         for (int i = 0; i < extensions.length; i++) {
           Extension extension = extensions[i];
           IndexingFilter filter = (IndexingFilter) extension
-              .getExtensionInstance();
+              .getExtensionInstance(conf);
           if (LOG.isInfoEnabled()) {
             LOG.info("Adding " + filter.getClass().getName());
           }
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.indexer;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+import org.apache.lucene.index.FilterIndexReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermPositions;
+
+/** Shows a subset of the documents of an index, as if the others were
+ * deleted, so that {@link org.apache.lucene.index.IndexWriter#addIndexes(
+ * IndexReader[])} copies only the subset, in the same order. */
+class SubsetReader extends FilterIndexReader {
+  private final BitSet docs;
+  private final int numDocs;
+
+  /**
+   * @param docs the documents kept, none of them deleted.
+   */
+  public SubsetReader(IndexReader in, BitSet docs) {
+    super(in);
+    this.docs = docs;
+    this.numDocs = docs.cardinality();
+  }
+
+  public int numDocs() { return numDocs; }
+
+  public boolean hasDeletions() { return true; }
+
+  public boolean isDeleted(int n) { return !docs.get(n); }
+
+  public TermDocs termDocs() throws IOException {
+    return new SubsetTermDocs(in.termDocs());
+  }
+
+  public TermPositions termPositions() throws IOException {
+    return new SubsetTermPositions(in.termPositions());
+  }
+
+  private class SubsetTermDocs extends FilterTermDocs {
+    public SubsetTermDocs(TermDocs in) { super(in); }
+
+    public boolean next() throws IOException {
+      while (in.next()) {
+        if (docs.get(in.doc()))
+          return true;
+      }
+      return false;
+    }
+
+    public int read(int[] docs, int[] freqs) throws IOException {
+      int i = 0;
+      while (i < docs.length && next()) {
+        docs[i] = in.doc();
+        freqs[i] = in.freq();
+        i++;
+      }
+      return i;
+    }
+
+    public boolean skipTo(int target) throws IOException {
+      if (!in.skipTo(target))
+        return false;
+      return docs.get(in.doc()) || next();
+    }
+  }
+
+  private class SubsetTermPositions extends SubsetTermDocs
+    implements TermPositions {
+    public SubsetTermPositions(TermPositions in) { super(in); }
+
+    public int nextPosition() throws IOException {
+      return ((TermPositions)in).nextPosition();
+    }
+  }
+}
@@ -0,0 +1,270 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.net;
+
+import java.net.MalformedURLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.Reporter;
+
+import cn.ideasoft.yuqing.util.SegmentedLRUCache;
+
+/**
+ * A bounded memo cache of URL normalization and filtering results.
+ *
+ * <p>The same navigation, footer and advertisement URLs appear as outlinks on
+ * thousands of pages of a site, and each occurrence would otherwise run the
+ * whole {@link URLNormalizers} and {@link URLFilters} chains again. This cache
+ * remembers the outcome of {@link #normalizeAndFilter(String, String,
+ * URLNormalizers, URLFilters)} keyed by scope, by the steps that were applied
+ * and by the original URL. Rejected URLs (<code>null</code> results) are
+ * remembered too, exceptions are not.</p>
+ *
+ * <p>One instance is shared by all scopes of a {@link Configuration}, see
+ * {@link #get(Configuration)}. Its total size is bounded by
+ * <tt>urlnormalizer.cache.size</tt> bytes (an estimate of the memory used by
+ * keys and values); a size of zero disables caching. Entries are kept in a
+ * number of independently locked LRU segments, so the cache may be used
+ * concurrently, e.g. by fetcher threads.</p>
+ */
+public class NormalizedURLCache {
+
+  public static final Log LOG = LogFactory.getLog(NormalizedURLCache.class);
+
+  /** Maximum estimated size of the cache, in bytes. */
+  public static final String CACHE_SIZE = "urlnormalizer.cache.size";
+
+  /** Number of independently locked segments. */
+  public static final String CACHE_SEGMENTS = "urlnormalizer.cache.segments";
+
+  /** Hadoop counters reported by {@link #reportCounters(Reporter)} and
+   * {@link #flushCounters(Reporter)}. */
+  public static enum Counter { HITS, MISSES, EVICTIONS }
+
+  /* Approximate overhead of a cache entry: the key and map entry objects,
+   * the string headers and the LRU links. */
+  private static final int ENTRY_OVERHEAD = 128;
+
+  /* Number of lookups between two reports of the counters. */
+  private static final int REPORT_INTERVAL = 1000;
+
+  /* Marks a cached rejection, i.e. a URL normalized or filtered to null. */
+  private static final String REJECTED = new String("");
+
+  private static final int NORMALIZE = 1;
+  private static final int FILTER = 2;
+
+  private final Cache cache;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /* values already sent to the Hadoop counters */
+  private long reportedHits, reportedMisses, reportedEvictions;
+  /* lookups after which the counters are reported again */
+  private volatile long nextReport = REPORT_INTERVAL;
+
+  /**
+   * Returns the cache shared by all users of this configuration, creating it
+   * on first use.
+   */
+  public static NormalizedURLCache get(Configuration conf) {
+    String key = NormalizedURLCache.class.getName();
+    synchronized (conf) {
+      NormalizedURLCache cache = (NormalizedURLCache) conf.getObject(key);
+      if (cache == null) {
+        cache = new NormalizedURLCache(conf.getLong(CACHE_SIZE, 8 * 1024 * 1024),
+                                       conf.getInt(CACHE_SEGMENTS, 16));
+        conf.setObject(key, cache);
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * @param maxBytes estimated upper bound of the memory used by the entries;
+   * zero or less disables caching.
+   * @param numSegments number of independently locked segments.
+   */
+  public NormalizedURLCache(long maxBytes, int numSegments) {
+    cache = new Cache(maxBytes, numSegments);
+    if (LOG.isInfoEnabled()) {
+      LOG.info("URL cache: " + maxBytes + " bytes in " + numSegments
+               + " segments");
+    }
+  }
+
+  /** Returns true if this cache actually stores anything. */
+  public boolean isEnabled() {
+    return cache.isEnabled();
+  }
+
+  /**
+   * Normalizes the url in the given scope and then filters it, consulting the
+   * cache first. Either step is skipped if its argument is <code>null</code>.
+   *
+   * @return the normalized and filtered url, or <code>null</code> if it was
+   * rejected.
+   */
+  public String normalizeAndFilter(String url, String scope,
+                                   URLNormalizers normalizers,
+                                   URLFilters filters)
+    throws MalformedURLException, URLFilterException {
+    if (url == null) return null;
+    int steps = (normalizers != null ? NORMALIZE : 0)
+              | (filters != null ? FILTER : 0);
+    if (steps == 0) return url;
+
+    if (!cache.isEnabled()) {
+      return compute(url, scope, normalizers, filters);
+    }
+
+    Key key = new Key(scope, steps, url);
+    String result = cache.get(key);
+    if (result != null) {
+      hits.incrementAndGet();
+      return result == REJECTED ? null : result;
+    }
+    misses.incrementAndGet();
+    result = compute(url, scope, normalizers, filters);
+    cache.put(key, result == null ? REJECTED : result);
+    return result;
+  }
+
+  /** Normalizes only, see {@link #normalizeAndFilter(String, String, URLNormalizers, URLFilters)}. */
+  public String normalize(String url, String scope, URLNormalizers normalizers)
+    throws MalformedURLException {
+    try {
+      return normalizeAndFilter(url, scope, normalizers, null);
+    } catch (URLFilterException e) {
+      throw new RuntimeException(e);              // can't happen
+    }
+  }
+
+  /** Filters only, see {@link #normalizeAndFilter(String, String, URLNormalizers, URLFilters)}. */
+  public String filter(String url, URLFilters filters)
+    throws URLFilterException {
+    try {
+      return normalizeAndFilter(url, URLNormalizers.SCOPE_DEFAULT, null, filters);
+    } catch (MalformedURLException e) {
+      throw new RuntimeException(e);              // can't happen
+    }
+  }
+
+  private static String compute(String url, String scope,
+                                URLNormalizers normalizers, URLFilters filters)
+    throws MalformedURLException, URLFilterException {
+    if (normalizers != null) {
+      url = normalizers.normalize(url, scope);
+    }
+    if (url != null && filters != null) {
+      url = filters.filter(url);
+    }
+    return url;
+  }
+
+  /**
+   * Adds the hits, misses and evictions since the previous report to the
+   * Hadoop counters of the current task, once every thousand lookups.
+   * Cheap enough to call for every record; call {@link
+   * #flushCounters(Reporter)} when the task is done.
+   */
+  public void reportCounters(Reporter reporter) {
+    if (reporter == null || hits.get() + misses.get() < nextReport) return;
+    flushCounters(reporter);
+  }
+
+  /**
+   * Adds the hits, misses and evictions since the previous report to the
+   * Hadoop counters of the current task.
+   */
+  public synchronized void flushCounters(Reporter reporter) {
+    if (reporter == null) return;
+    long h = hits.get(), m = misses.get(), e = cache.getEvictions();
+    nextReport = h + m + REPORT_INTERVAL;
+    if (h != reportedHits) reporter.incrCounter(Counter.HITS, h - reportedHits);
+    if (m != reportedMisses) reporter.incrCounter(Counter.MISSES, m - reportedMisses);
+    if (e != reportedEvictions) reporter.incrCounter(Counter.EVICTIONS, e - reportedEvictions);
+    reportedHits = h;
+    reportedMisses = m;
+    reportedEvictions = e;
+  }
+
+  public long getHits() { return hits.get(); }
+
+  public long getMisses() { return misses.get(); }
+
+  public long getEvictions() { return cache.getEvictions(); }
+
+  /** Returns the estimated size of all entries, in bytes. */
+  public long getBytes() {
+    return cache.getBytes();
+  }
+
+  public String toString() {
+    long h = hits.get(), m = misses.get();
+    return "hits=" + h + ", misses=" + m + ", evictions=" + getEvictions()
+      + ", hitRate=" + (h + m == 0 ? 0f : (float)h / (h + m))
+      + ", bytes=" + getBytes();
+  }
+
+  private static final class Key {
+    final String scope;
+    final int steps;
+    final String url;
+    final int hash;
+
+    Key(String scope, int steps, String url) {
+      this.scope = scope == null ? URLNormalizers.SCOPE_DEFAULT : scope;
+      this.steps = steps;
+      this.url = url;
+      this.hash = (url.hashCode() * 31 + this.scope.hashCode()) * 31 + steps;
+    }
+
+    int bytes() {
+      return 2 * url.length();       // the scope strings are shared constants
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return hash == other.hash && steps == other.steps
+        && url.equals(other.url) && scope.equals(other.scope);
+    }
+  }
+
+  /** The cached results, sized by the estimated memory they use. */
+  private static final class Cache extends SegmentedLRUCache<Key, String> {
+    Cache(long maxBytes, int numSegments) {
+      super(maxBytes, numSegments);
+    }
+
+    protected long sizeOf(Key key, String value) {
+      // the result is often the very same string as the key
+      int valueBytes = value == key.url ? 0 : 2 * value.length();
+      return ENTRY_OVERHEAD + key.bytes() + valueBytes;
+    }
+  }
+}
@@ -54,7 +54,7 @@ public class URLFilterChecker {
 
     for (int i = 0; i < extensions.length; i++) {
       Extension extension = extensions[i];
-      filter = (URLFilter)extension.getExtensionInstance();
+      filter = (URLFilter)extension.getExtensionInstance(conf);
       if (filter.getClass().getName().equals(filterName)) {
         break;
       } else {
@@ -51,7 +51,7 @@ public class URLFilters {
         HashMap filterMap = new HashMap();
         for (int i = 0; i < extensions.length; i++) {
           Extension extension = extensions[i];
-          URLFilter filter = (URLFilter) extension.getExtensionInstance();
+          URLFilter filter = (URLFilter) extension.getExtensionInstance(conf);
           if (!filterMap.containsKey(filter.getClass().getName())) {
             filterMap.put(filter.getClass().getName(), filter);
           }
@@ -164,7 +164,7 @@ public final class URLNormalizers {
         normalizer = (URLNormalizer) this.conf.getObject(ext.getId());
         if (normalizer == null) {
           // go ahead and instantiate it and then cache it
-          normalizer = (URLNormalizer) ext.getExtensionInstance();
+          normalizer = (URLNormalizer) ext.getExtensionInstance(conf);
           this.conf.setObject(ext.getId(), normalizer);
         }
         normalizers.add(normalizer);
@@ -62,7 +62,7 @@ public class OntologyFactory {
         if (LOG.isInfoEnabled()) {
           LOG.info("Using ontology extension: " + extensionName);
         }
-        return (Ontology) extension.getExtensionInstance();
+        return (Ontology) extension.getExtensionInstance(conf);
       }
       if (LOG.isWarnEnabled()) {
         LOG.warn("Ontology extension not found: '" + extensionName +
@@ -77,7 +77,7 @@ public class OntologyFactory {
         LOG.info("Using the first ontology extension found: " +
                  extensions[0].getId());
       }
-      return (Ontology) extensions[0].getExtensionInstance();
+      return (Ontology) extensions[0].getExtensionInstance(conf);
     } else {
       return null;
     }
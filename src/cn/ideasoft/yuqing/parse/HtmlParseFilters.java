@@ -41,7 +41,7 @@ public class HtmlParseFilters {
                 Extension[] extensions = point.getExtensions();
                 for (int i = 0; i < extensions.length; i++) {
                     Extension extension = extensions[i];
-                    HtmlParseFilter parseFilter = (HtmlParseFilter) extension.getExtensionInstance();
+                    HtmlParseFilter parseFilter = (HtmlParseFilter) extension.getExtensionInstance(conf);
                     if (!filters.containsKey(parseFilter.getClass().getName())) {
                         filters.put(parseFilter.getClass().getName(), parseFilter);
                     }
@@ -25,17 +25,16 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.oro.text.regex.MatchResult;
-import org.apache.oro.text.regex.Pattern;
-import org.apache.oro.text.regex.PatternCompiler;
-import org.apache.oro.text.regex.PatternMatcher;
-import org.apache.oro.text.regex.PatternMatcherInput;
-import org.apache.oro.text.regex.Perl5Compiler;
-import org.apache.oro.text.regex.Perl5Matcher;
 
 /**
  * Extractor to extract {@link cn.ideasoft.yuqing.parse.Outlink}s 
- * / URLs from plain text using Regular Expressions.
+ * / URLs from plain text.
+ * 
+ * <p>URLs are recognized by a hand-written scanner that accepts exactly what
+ * the regular expression {@link #URL_PATTERN} matches (case insensitive),
+ * but runs in a single pass over the text without backtracking and without
+ * allocating anything but the extracted URL strings. The scanner keeps no
+ * state between calls and may be used by many threads at once.</p>
  * 
  * @see <a
  *      href="http://wiki.java.net/bin/view/Javapedia/RegularExpressions">Comparison
@@ -51,19 +50,50 @@ public class OutlinkExtractor {
   private static final Log LOG = LogFactory.getLog(OutlinkExtractor.class);
 
   /**
-   * Regex pattern to get URLs within a plain text.
+   * Regex pattern to get URLs within a plain text, as implemented by
+   * {@link #findURL(char[], int, int, int[])}.
    * 
    * @see <a
    *      href="http://www.truerwords.net/articles/ut/urlactivation.html">http://www.truerwords.net/articles/ut/urlactivation.html
    *      </a>
    */
-  private static final String URL_PATTERN = 
+  static final String URL_PATTERN = 
     "([A-Za-z][A-Za-z0-9+.-]{1,120}:[A-Za-z0-9/](([A-Za-z0-9$_.+!*,;/?:@&~=-])|%[A-Fa-f0-9]{2}){1,333}(#([a-zA-Z0-9][a-zA-Z0-9$_.+!*,;/?:@&~=%-]{0,1000}))?)";
 
+  /* Character classes of URL_PATTERN, indexed by ASCII code. */
+  private static final byte SCHEME = 1;     // [A-Za-z0-9+.-]
+  private static final byte FIRST = 2;      // [A-Za-z0-9/]
+  private static final byte PATH = 4;       // [A-Za-z0-9$_.+!*,;/?:@&~=-]
+  private static final byte FRAGMENT = 8;   // [a-zA-Z0-9$_.+!*,;/?:@&~=%-]
+  private static final byte HEX = 16;       // [A-Fa-f0-9]
+  private static final byte[] CLASSES = new byte[128];
+
+  static {
+    for (char c = 0; c < 128; c++) {
+      boolean alnum = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9');
+      byte b = 0;
+      if (alnum || "+.-".indexOf(c) >= 0) b |= SCHEME;
+      if (alnum || c == '/') b |= FIRST;
+      if (alnum || "$_.+!*,;/?:@&~=-".indexOf(c) >= 0) b |= PATH | FRAGMENT;
+      if (c == '%') b |= FRAGMENT;
+      if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')) b |= HEX;
+      CLASSES[c] = b;
+    }
+  }
+
+  /* The largest copy of a text kept between calls, in chars. */
+  private static final int MAX_BUFFER = 64 * 1024;
+
+  /* Per-thread copy of the text being scanned. */
+  private static final ThreadLocal BUFFER = new ThreadLocal() {
+    protected Object initialValue() {
+      return new char[4096];
+    }
+  };
+
   /**
    * Extracts <code>Outlink</code> from given plain text.
-   * Applying this method to non-plain-text can result in extremely lengthy
-   * runtimes for parasitic cases (postscript is a known example).
    * @param plainText  the plain text from wich URLs should be extracted.
    * 
    * @return Array of <code>Outlink</code>s within found in plainText
@@ -82,56 +112,107 @@ public class OutlinkExtractor {
    * @return Array of <code>Outlink</code>s within found in plainText
    */
   public static Outlink[] getOutlinks(final String plainText, String anchor, Configuration conf) {
-    long start = System.currentTimeMillis();
     final List outlinks = new ArrayList();
 
-    try {
-      final PatternCompiler cp = new Perl5Compiler();
-      final Pattern pattern = cp.compile(URL_PATTERN,
-          Perl5Compiler.CASE_INSENSITIVE_MASK | Perl5Compiler.READ_ONLY_MASK
-              | Perl5Compiler.MULTILINE_MASK);
-      final PatternMatcher matcher = new Perl5Matcher();
-
-      final PatternMatcherInput input = new PatternMatcherInput(plainText);
-
-      MatchResult result;
-      String url;
-
-      //loop the matches
-      while (matcher.contains(input, pattern)) {
-        // if this is taking too long, stop matching
-        //   (SHOULD really check cpu time used so that heavily loaded systems
-        //   do not unnecessarily hit this limit.)
-        if (System.currentTimeMillis() - start >= 60000L) {
-          if (LOG.isWarnEnabled()) {
-            LOG.warn("Time limit exceeded for getOutLinks");
-          }
+    int length = plainText.length();
+    char[] text = (char[]) BUFFER.get();
+    if (text.length < length) {
+      text = new char[length];
+      if (length <= MAX_BUFFER) {
+        BUFFER.set(text);                         // not a huge one
+      }
+    }
+    plainText.getChars(0, length, text, 0);
+
+    int[] match = new int[2];
+    int pos = 0;
+    //loop the matches
+    while (findURL(text, pos, length, match)) {
+      String url = new String(text, match[0], match[1] - match[0]);
+      pos = match[1];
+      try {
+        outlinks.add(new Outlink(url, anchor, conf));
+      } catch (MalformedURLException mue) {
+        LOG.warn("Invalid url: '" + url + "', skipping.");
+      }
+    }
+
+    return (Outlink[]) outlinks.toArray(new Outlink[outlinks.size()]);
+  }
+
+  /**
+   * Finds the first URL in <code>text[start, end)</code>, i.e. the leftmost,
+   * longest match of {@link #URL_PATTERN}.
+   * 
+   * @param match receives the start and the end offset of the URL.
+   * @return true if an URL was found.
+   */
+  public static boolean findURL(char[] text, int start, int end, int[] match) {
+    int i = start;
+    while (i < end) {
+      // find the next run of scheme chars followed by a colon
+      int runStart = i;
+      while (i < end && is(text[i], SCHEME)) i++;
+      if (i == end) return false;
+      int colon = i;
+      i++;
+      if (text[colon] != ':' || colon - runStart < 2) continue;
+
+      // the scheme starts with the leftmost letter that leaves it at most
+      // 121 chars long
+      int schemeStart = -1;
+      for (int j = Math.max(runStart, colon - 121); j < colon - 1; j++) {
+        char c = text[j];
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+          schemeStart = j;
           break;
         }
-        result = matcher.getMatch();
-        url = result.group(0);
-        try {
-          Outlink outlink = new Outlink(url, anchor, conf);
-          outlinks.add(new Outlink(url, anchor, conf));
-        } catch (MalformedURLException mue) {
-          LOG.warn("Invalid url: '" + url + "', skipping.");
-        }
       }
-    } catch (Exception ex) {
-      // if the matcher fails (perhaps a malformed URL) we just log it and move on
-      if (LOG.isErrorEnabled()) { LOG.error("getOutlinks", ex); }
-    }
+      if (schemeStart < 0) continue;
 
-    final Outlink[] retval;
+      int urlEnd = matchRest(text, colon + 1, end);
+      if (urlEnd < 0) continue;
+      match[0] = schemeStart;
+      match[1] = urlEnd;
+      return true;
+    }
+    return false;
+  }
 
-    //create array of the Outlinks
-    if (outlinks != null && outlinks.size() > 0) {
-      retval = (Outlink[]) outlinks.toArray(new Outlink[0]);
-    } else {
-      retval = new Outlink[0];
+  /**
+   * Matches the part of {@link #URL_PATTERN} following the scheme.
+   * 
+   * @return the end of the match, or -1 if there is none.
+   */
+  private static int matchRest(char[] text, int i, int end) {
+    if (i >= end || !is(text[i], FIRST)) return -1;
+    i++;
+    int units = 0;
+    while (units < 333 && i < end) {
+      char c = text[i];
+      if (is(c, PATH)) {
+        i++;
+      } else if (c == '%' && i + 2 < end
+                 && is(text[i + 1], HEX) && is(text[i + 2], HEX)) {
+        i += 3;
+      } else {
+        break;
+      }
+      units++;
+    }
+    if (units == 0) return -1;
+    // optional fragment
+    if (i + 1 < end && text[i] == '#' && is(text[i + 1], FIRST)
+        && text[i + 1] != '/') {
+      i += 2;
+      int limit = Math.min(end, i + 1000);
+      while (i < limit && is(text[i], FRAGMENT)) i++;
     }
+    return i;
+  }
 
-    return retval;
+  private static boolean is(char c, byte charClass) {
+    return c < 128 && (CLASSES[c] & charClass) != 0;
   }
   
 
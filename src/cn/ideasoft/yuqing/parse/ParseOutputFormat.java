@@ -23,18 +23,20 @@ import org.apache.commons.logging.LogFactory;
 
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
+import cn.ideasoft.yuqing.analysis.YuQingDocumentAnalyzer;
 import cn.ideasoft.yuqing.crawl.CrawlDatum;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.mapred.*;
 import cn.ideasoft.yuqing.scoring.ScoringFilterException;
 import cn.ideasoft.yuqing.scoring.ScoringFilters;
+import cn.ideasoft.yuqing.segment.SegmentCompression;
 import cn.ideasoft.yuqing.util.StringUtil;
 import cn.ideasoft.yuqing.metadata.YuQing;
 import cn.ideasoft.yuqing.net.*;
 
 import java.io.*;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
 
 import org.apache.hadoop.util.Progressable;
 
@@ -42,9 +44,20 @@ import org.apache.hadoop.util.Progressable;
 public class ParseOutputFormat implements OutputFormat {
   private static final Log LOG = LogFactory.getLog(ParseOutputFormat.class);
 
+  /**
+   * Hadoop counters of outlinks written to or dropped from crawl_parse, and
+   * of the cost of the term offsets compared to the text.
+   */
+  public static enum Counter {
+    OUTLINKS_WRITTEN, OUTLINKS_FILTERED, OUTLINKS_DUPLICATE,
+    OUTLINKS_EXTERNAL, OUTLINKS_PAGE_LIMIT, OUTLINKS_HOST_LIMIT,
+    TEXT_CHARS, TERM_OFFSETS_BYTES, TERM_OFFSETS_MILLIS
+  }
+
   private URLNormalizers urlNormalizers;
   private URLFilters filters;
   private ScoringFilters scfilters;
+  private NormalizedURLCache urlCache;
 
   public void checkOutputSpecs(FileSystem fs, JobConf job) throws IOException {
     if (fs.exists(new Path(job.getOutputPath(), CrawlDatum.PARSE_DIR_NAME)))
@@ -57,8 +70,13 @@ public class ParseOutputFormat implements OutputFormat {
     this.urlNormalizers = new URLNormalizers(job, URLNormalizers.SCOPE_OUTLINK);
     this.filters = new URLFilters(job);
     this.scfilters = new ScoringFilters(job);
+    this.urlCache = NormalizedURLCache.get(job);
     final float interval = job.getFloat("db.default.fetch.interval", 30f);
     final boolean ignoreExternalLinks = job.getBoolean("db.ignore.external.links", false);
+    final int maxOutlinksPerPage = job.getInt("db.max.outlinks.per.page", 100);
+    final int maxOutlinksPerHost = job.getInt("db.max.outlinks.per.host", -1);
+    final boolean termOffsets = job.getBoolean("parse.term.offsets", false);
+    final int maxOffsetTokens = job.getInt("parse.term.offsets.max.tokens", 2000);
     
     Path text =
       new Path(new Path(job.getOutputPath(), ParseText.DIR_NAME), name);
@@ -68,25 +86,155 @@ public class ParseOutputFormat implements OutputFormat {
       new Path(new Path(job.getOutputPath(), CrawlDatum.PARSE_DIR_NAME), name);
     
     final MapFile.Writer textOut =
-      new MapFile.Writer(job, fs, text.toString(), Text.class, ParseText.class, CompressionType.RECORD);
+      SegmentCompression.createWriter(job, fs, text, ParseText.class, progress);
     
     final MapFile.Writer dataOut =
-      new MapFile.Writer(job, fs, data.toString(), Text.class,ParseData.class);
+      SegmentCompression.createWriter(job, fs, data, ParseData.class, progress);
     
     final SequenceFile.Writer crawlOut =
       SequenceFile.createWriter(fs, job, crawl, Text.class, CrawlDatum.class);
     
+    final MapFile.Writer offsetsOut = termOffsets
+      ? new MapFile.Writer(job, fs,
+          new Path(new Path(job.getOutputPath(), TermOffsets.DIR_NAME), name).toString(),
+          Text.class, TermOffsets.class, CompressionType.RECORD)
+      : null;
+    final YuQingDocumentAnalyzer analyzer =
+      termOffsets ? new YuQingDocumentAnalyzer(job) : null;
+    
     return new RecordWriter() {
 
+        // state of the outlink stage, reused between pages
+        private final HashSet seen = new HashSet();
+        private final HashMap hosts = new HashMap();
+        private final HashMap hostCounts = new HashMap();
+        private String[] selectedUrls = new String[64];
+        private int selected;
+        private int validCount;
+
+        private long written, filtered, duplicate, external, pageLimit, hostLimit;
+        private long textChars, offsetsBytes, offsetsMillis;
+        private final DataOutputBuffer offsetsBuffer = new DataOutputBuffer();
+
+        /**
+         * Normalizes, filters and deduplicates the outlinks of a page, and
+         * applies the per-page and per-host limits. Sets
+         * <code>selected</code> to the number of urls returned, and
+         * <code>validCount</code> to the number of urls, duplicates included,
+         * that passed the normalizers and filters, which the scoring filters
+         * divide the score of the page by.
+         */
+        private String[] selectOutlinks(String fromUrl, Outlink[] links) {
+          seen.clear();
+          hostCounts.clear();
+          if (hosts.size() > 10000) hosts.clear();
+          selected = 0;
+          validCount = 0;
+          if (selectedUrls.length < links.length) {
+            selectedUrls = new String[links.length];
+          }
+          String fromHost = ignoreExternalLinks ? hostOf(fromUrl) : null;
+
+          for (int i = 0; i < links.length; i++) {
+            String toUrl = links[i].getToUrl();
+            try {
+              // normalize and filter the url
+              toUrl = urlCache.normalizeAndFilter(toUrl, URLNormalizers.SCOPE_OUTLINK,
+                                                  urlNormalizers, filters);
+            } catch (Exception e) {
+              toUrl = null;
+            }
+            // ignore links to self (or anchors within the page)
+            if (toUrl == null || fromUrl.equals(toUrl)) {
+              filtered++;
+              continue;
+            }
+            validCount++;                             // as before deduplication
+            if (!seen.add(toUrl)) {                   // already linked
+              duplicate++;
+              continue;
+            }
+
+            String toHost = null;
+            if (ignoreExternalLinks || maxOutlinksPerHost >= 0) {
+              toHost = hostOf(toUrl);
+            }
+            if (ignoreExternalLinks) {
+              if (toHost == null || !toHost.equals(fromHost)) { // external links
+                external++;
+                continue;                             // skip it
+              }
+            }
+            if (maxOutlinksPerPage >= 0 && selected >= maxOutlinksPerPage) {
+              pageLimit++;
+              continue;
+            }
+            if (maxOutlinksPerHost >= 0) {
+              Object hostKey = toHost == null ? "" : toHost;
+              int[] count = (int[])hostCounts.get(hostKey);
+              if (count == null) {
+                count = new int[1];
+                hostCounts.put(hostKey, count);
+              }
+              if (count[0] >= maxOutlinksPerHost) {
+                hostLimit++;
+                continue;
+              }
+              count[0]++;
+            }
+            selectedUrls[selected++] = toUrl;
+          }
+          return selectedUrls;
+        }
+
+        /**
+         * Returns the lowercased host name of an url, or <code>null</code>
+         * if it has none. The authority part is looked up in a table shared
+         * by the pages of this task, so each distinct host is parsed once.
+         */
+        private String hostOf(String url) {
+          int start = url.indexOf("://");
+          if (start < 0) return null;
+          start += 3;
+          int end = start;
+          int len = url.length();
+          while (end < len) {
+            char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == '#') break;
+            end++;
+          }
+          String authority = url.substring(start, end);
+          String host = (String)hosts.get(authority);
+          if (host == null) {
+            host = authority.substring(authority.lastIndexOf('@') + 1);
+            int colon = host.lastIndexOf(':');
+            if (colon >= 0 && host.indexOf(']', colon) < 0) {  // not IPv6
+              host = host.substring(0, colon);
+            }
+            host = host.toLowerCase();
+            hosts.put(authority, host);
+          }
+          return host.length() == 0 ? null : host;
+        }
+
 
         public void write(WritableComparable key, Writable value)
           throws IOException {
           
           Parse parse = (Parse)value;
           String fromUrl = key.toString();
-          String fromHost = null; 
-          String toHost = null;          
           textOut.append(key, new ParseText(parse.getText()));
+          textChars += parse.getText().length();
+          if (offsetsOut != null) {
+            long start = System.currentTimeMillis();
+            TermOffsets offsets =
+              TermOffsets.analyze(analyzer, parse.getText(), maxOffsetTokens);
+            offsetsMillis += System.currentTimeMillis() - start;
+            offsetsBuffer.reset();
+            offsets.write(offsetsBuffer);
+            offsetsBytes += offsetsBuffer.getLength();
+            offsetsOut.append(key, offsets);
+          }
           
           ParseData parseData = parse.getData();
           // recover the signature prepared by Fetcher or ParseSegment
@@ -103,45 +251,10 @@ public class ParseOutputFormat implements OutputFormat {
 
           // collect outlinks for subsequent db update
           Outlink[] links = parseData.getOutlinks();
-          if (ignoreExternalLinks) {
-            try {
-              fromHost = new URL(fromUrl).getHost().toLowerCase();
-            } catch (MalformedURLException e) {
-              fromHost = null;
-            }
-          } else {
-            fromHost = null;
-          }
-
-          String[] toUrls = new String[links.length];
-          int validCount = 0;
-          for (int i = 0; i < links.length; i++) {
-            String toUrl = links[i].getToUrl();
-            try {
-              toUrl = urlNormalizers.normalize(toUrl, URLNormalizers.SCOPE_OUTLINK); // normalize the url
-              toUrl = filters.filter(toUrl);   // filter the url
-            } catch (Exception e) {
-              toUrl = null;
-            }
-            // ignore links to self (or anchors within the page)
-            if (fromUrl.equals(toUrl)) toUrl = null;
-            if (toUrl != null) validCount++;
-            toUrls[i] = toUrl;
-          }
+          String[] toUrls = selectOutlinks(fromUrl, links);
           CrawlDatum adjust = null;
           // compute score contributions and adjustment to the original score
-          for (int i = 0; i < toUrls.length; i++) {
-            if (toUrls[i] == null) continue;
-            if (ignoreExternalLinks) {
-              try {
-                toHost = new URL(toUrls[i]).getHost().toLowerCase();
-              } catch (MalformedURLException e) {
-                toHost = null;
-              }
-              if (toHost == null || !toHost.equals(fromHost)) { // external links
-                continue; // skip it
-              }
-            }
+          for (int i = 0; i < selected; i++) {
             CrawlDatum target = new CrawlDatum(CrawlDatum.STATUS_LINKED, interval);
             Text targetUrl = new Text(toUrls[i]);
             adjust = null;
@@ -157,6 +270,7 @@ public class ParseOutputFormat implements OutputFormat {
             }
             crawlOut.append(targetUrl, target);
             if (adjust != null) crawlOut.append(key, adjust);
+            written++;
           }
           dataOut.append(key, parseData);
         }
@@ -165,6 +279,27 @@ public class ParseOutputFormat implements OutputFormat {
           textOut.close();
           dataOut.close();
           crawlOut.close();
+          if (offsetsOut != null) {
+            offsetsOut.close();
+            if (LOG.isInfoEnabled()) {
+              LOG.info("Term offsets: " + offsetsBytes + " bytes for " + textChars
+                       + " chars of text, analyzed in " + offsetsMillis + " ms");
+            }
+          }
+          urlCache.flushCounters(reporter);
+          if (reporter != null) {
+            reporter.incrCounter(Counter.OUTLINKS_WRITTEN, written);
+            reporter.incrCounter(Counter.OUTLINKS_FILTERED, filtered);
+            reporter.incrCounter(Counter.OUTLINKS_DUPLICATE, duplicate);
+            reporter.incrCounter(Counter.OUTLINKS_EXTERNAL, external);
+            reporter.incrCounter(Counter.OUTLINKS_PAGE_LIMIT, pageLimit);
+            reporter.incrCounter(Counter.OUTLINKS_HOST_LIMIT, hostLimit);
+            reporter.incrCounter(Counter.TEXT_CHARS, textChars);
+            if (offsetsOut != null) {
+              reporter.incrCounter(Counter.TERM_OFFSETS_BYTES, offsetsBytes);
+              reporter.incrCounter(Counter.TERM_OFFSETS_MILLIS, offsetsMillis);
+            }
+          }
         }
         
       };
@@ -23,13 +23,14 @@ import org.apache.hadoop.fs.*;
 import org.apache.hadoop.conf.*;
 import cn.ideasoft.yuqing.util.YuQingConfiguration;
 
-/* The text conversion of page's content, stored using gzip compression.
+/* The text conversion of page's content.  Up to version 1, each text was
+ * gzipped on its own; the segment files now compress texts by blocks.
  * @see Parse#getText()
  */
 public final class ParseText extends VersionedWritable {
   public static final String DIR_NAME = "parse_text";
 
-  private final static byte VERSION = 1;
+  private final static byte VERSION = 2;
 
   public ParseText() {}
   private String text;
@@ -41,15 +42,22 @@ public final class ParseText extends VersionedWritable {
   public byte getVersion() { return VERSION; }
 
   public void readFields(DataInput in) throws IOException {
-    super.readFields(in);                         // check version
-    text = WritableUtils.readCompressedString(in);
-    return;
+    byte version = in.readByte();
+    switch (version) {
+    case 1:
+      text = WritableUtils.readCompressedString(in);
+      break;
+    case VERSION:
+      text = Text.readString(in);
+      break;
+    default:
+      throw new VersionMismatchException(VERSION, version);
+    }
   }
 
   public final void write(DataOutput out) throws IOException {
     super.write(out);                             // write version
-    WritableUtils.writeCompressedString(out, text);
-    return;
+    Text.writeString(out, text);
   }
 
   public final static ParseText read(DataInput in) throws IOException {
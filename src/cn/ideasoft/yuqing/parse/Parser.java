@@ -27,6 +27,10 @@ import cn.ideasoft.yuqing.protocol.Content;
 /** A parser for content generated by a {@link cn.ideasoft.yuqing.protocol.Protocol}
  * implementation.  This interface is implemented by extensions.  Nutch's core
  * contains no page parsing code.
+ *
+ * <p>Implementations are used by a single thread at a time, unless their
+ * extension declares the <code>threadSafe</code> parameter, see
+ * {@link ParserFactory}.</p>
  */
 public interface Parser extends Pluggable, Configurable {
   /** The name of the extension point. */
@@ -21,7 +21,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Vector;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 // Commons Logging imports
 import org.apache.commons.logging.Log;
@@ -40,7 +41,19 @@ import cn.ideasoft.yuqing.util.mime.MimeType;
 import cn.ideasoft.yuqing.util.mime.MimeTypeException;
 
 
-/** Creates and caches {@link Parser} plugins.*/
+/**
+ * Creates and caches {@link Parser} plugins.
+ *
+ * <p>A parser extension may declare in its <code>plugin.xml</code> that a
+ * single instance can be used concurrently by several threads:</p>
+ * <pre>
+ *   &lt;parameter name="threadSafe" value="true"/&gt;
+ * </pre>
+ * <p>Such parsers are instantiated once per configuration. All the others
+ * (the default) get one instance per thread, so that parsers holding some
+ * per-instance state can safely be used by all the fetcher threads. The
+ * content-type to parsers lookups don't lock once they are cached.</p>
+ */
 public final class ParserFactory {
   
   public static final Log LOG = LogFactory.getLog(ParserFactory.class);
@@ -48,17 +61,31 @@ public final class ParserFactory {
   /** Wildcard for default plugins. */
   public static final String DEFAULT_PLUGIN = "*";
   
+  /** Name of the extension parameter declaring a thread-safe parser. */
+  public static final String THREAD_SAFE = "threadSafe";
+  
   /** Empty extension list for caching purposes. */
   private final List EMPTY_EXTENSION_LIST = Collections.EMPTY_LIST;
   
+  /** Empty parser instances for caching purposes. */
+  private final static ParserInstances[] NO_INSTANCES = new ParserInstances[0];
+  
   private Configuration conf;
   private ExtensionPoint extensionPoint;
   private ParsePluginList parsePluginList;
+  private Cache cache;
 
   public ParserFactory(Configuration conf) {
     this.conf = conf;
     this.extensionPoint = PluginRepository.get(conf).getExtensionPoint(
         Parser.X_POINT_ID);
+    synchronized (conf) {
+      this.cache = (Cache) conf.getObject(Cache.class.getName());
+      if (this.cache == null) {
+        this.cache = new Cache();
+        conf.setObject(Cache.class.getName(), this.cache);
+      }
+    }
     this.parsePluginList = (ParsePluginList)conf.getObject(ParsePluginList.class.getName());
     if (this.parsePluginList == null) {
       this.parsePluginList = new ParsePluginsReader().parse(conf);
@@ -102,47 +129,81 @@ public final class ParserFactory {
   public Parser[] getParsers(String contentType, String url)
   throws ParserNotFound {
     
-    List parsers = null;
-    List parserExts = null;
-    
-    // TODO once the MimeTypes is available
-    // parsers = getExtensions(MimeUtils.map(contentType));
-    // if (parsers != null) {
-    //   return parsers;
-    // }
-    // Last Chance: Guess content-type from file url...
-    // parsers = getExtensions(MimeUtils.getMimeType(url));
-
-    parserExts = getExtensions(contentType);
-    if (parserExts == null) {
+    ParserInstances[] instances = getInstances(contentType);
+    if (instances == null) {
       throw new ParserNotFound(url, contentType);
     }
 
-    parsers = new Vector(parserExts.size());
-    for (Iterator i=parserExts.iterator(); i.hasNext(); ){
-      Extension ext = (Extension) i.next();
-      Parser p = null;
+    List parsers = new ArrayList(instances.length);
+    for (int i=0; i<instances.length; i++) {
       try {
-        //check to see if we've cached this parser instance yet
-        p = (Parser) this.conf.getObject(ext.getId());
-        if (p == null) {
-          // go ahead and instantiate it and then cache it
-          p = (Parser) ext.getExtensionInstance();
-          this.conf.setObject(ext.getId(),p);
-        }
-        parsers.add(p);
+        parsers.add(instances[i].get());
       } catch (PluginRuntimeException e) {
         if (LOG.isWarnEnabled()) {
           e.printStackTrace(LogUtil.getWarnStream(LOG));
           LOG.warn("ParserFactory:PluginRuntimeException when "
                  + "initializing parser plugin "
-                 + ext.getDescriptor().getPluginId()
+                 + instances[i].extension.getDescriptor().getPluginId()
                  + " instance in getParsers "
                  + "function: attempting to continue instantiating parsers");
         }
       }
     }
-    return (Parser[]) parsers.toArray(new Parser[]{});
+    return (Parser[]) parsers.toArray(new Parser[parsers.size()]);
+  }
+  
+  /**
+   * Returns the parser instances to use for a content type, in order of
+   * preference, or <code>null</code> if there are none.
+   */
+  private ParserInstances[] getInstances(String contentType) {
+    String type = null;
+    try {
+      type = MimeType.clean(contentType);
+    } catch (MimeTypeException mte) {
+      // not cached: the raw content-type may be anything a server sent
+    }
+    if (type == null) {
+      return toInstances(getExtensions(contentType));
+    }
+    ParserInstances[] instances =
+      (ParserInstances[]) cache.instancesByType.get(type);
+    if (instances == null) {
+      instances = toInstances(getExtensions(type));
+      cache.instancesByType.put(type,
+                                (instances == null) ? NO_INSTANCES : instances);
+    }
+    return (instances == NO_INSTANCES) ? null : instances;
+  }
+  
+  private ParserInstances[] toInstances(List extensions) {
+    if (extensions == null) {
+      return null;
+    }
+    ParserInstances[] instances = new ParserInstances[extensions.size()];
+    for (int i=0; i<instances.length; i++) {
+      instances[i] = getInstances((Extension) extensions.get(i));
+    }
+    return instances;
+  }
+  
+  /** Returns the parser instances of an extension, shared by all factories. */
+  private ParserInstances getInstances(Extension extension) {
+    ParserInstances instances =
+      (ParserInstances) cache.instancesById.get(extension.getId());
+    if (instances == null) {
+      ParserInstances created = new ParserInstances(extension, conf);
+      instances = (ParserInstances)
+        cache.instancesById.putIfAbsent(extension.getId(), created);
+      if (instances == null) {
+        instances = created;
+        if (LOG.isInfoEnabled()) {
+          LOG.info("Using " + (instances.threadSafe ? "a shared" : "per-thread")
+                   + " instance of parser " + extension.getId());
+        }
+      }
+    }
+    return instances;
   }
     
   /**
@@ -181,24 +242,15 @@ public final class ParserFactory {
       throw new ParserNotFound("No Parser Found for id [" + id + "]");
     }
     
-    // first check the cache	    	   
-    if (this.conf.getObject(parserExt.getId()) != null) {
-      return (Parser) this.conf.getObject(parserExt.getId());
-
-    // if not found in cache, instantiate the Parser    
-    } else {
-      try {
-        Parser p = (Parser) parserExt.getExtensionInstance();
-        this.conf.setObject(parserExt.getId(), p);
-        return p;
-      } catch (PluginRuntimeException e) {
-        if (LOG.isWarnEnabled()) {
-          LOG.warn("Canno initialize parser " +
-                   parserExt.getDescriptor().getPluginId() +
-                   " (cause: " + e.toString());
-        }
-        throw new ParserNotFound("Cannot init parser for id [" + id + "]");
+    try {
+      return getInstances(parserExt).get();
+    } catch (PluginRuntimeException e) {
+      if (LOG.isWarnEnabled()) {
+        LOG.warn("Canno initialize parser " +
+                 parserExt.getDescriptor().getPluginId() +
+                 " (cause: " + e.toString());
       }
+      throw new ParserNotFound("Cannot init parser for id [" + id + "]");
     }
   }
   
@@ -223,7 +275,10 @@ public final class ParserFactory {
       type = contentType;
     }
 
-    List extensions = (List) this.conf.getObject(type);
+    if (type == null) {
+      return null;
+    }
+    List extensions = (List) cache.extensionsByType.get(type);
 
     // Just compare the reference:
     // if this is the empty list, we know we will find no extension.
@@ -234,11 +289,11 @@ public final class ParserFactory {
     if (extensions == null) {
       extensions = findExtensions(type);
       if (extensions != null) {
-        this.conf.setObject(type, extensions);
+        cache.extensionsByType.put(type, extensions);
       } else {
       	// Put the empty extension list into cache
       	// to remember we don't know any related extension.
-      	this.conf.setObject(type, EMPTY_EXTENSION_LIST);
+      	cache.extensionsByType.put(type, EMPTY_EXTENSION_LIST);
       }
     }
     return extensions;
@@ -346,7 +401,7 @@ public final class ParserFactory {
         if (extensions[i].getAttribute("contentType") != null
             && extensions[i].getAttribute("contentType").equals(
                 contentType)) {
-          extList.add(extensions[i].getId());
+          extList.add(extensions[i]);
         }
       }
       
@@ -396,4 +451,53 @@ public final class ParserFactory {
     return getExtension(list, (String) parsePluginList.getAliases().get(id));
   }
 
+  /** The lookups cached for a configuration. */
+  private final static class Cache {
+    /** Cleaned content-type to List of Extensions */
+    final Map extensionsByType = new ConcurrentHashMap();
+    /** Cleaned content-type to ParserInstances[] */
+    final Map instancesByType = new ConcurrentHashMap();
+    /** Extension id to ParserInstances */
+    final ConcurrentHashMap instancesById = new ConcurrentHashMap();
+  }
+
+  /**
+   * The instances of a parser extension: a single one if the extension is
+   * declared thread-safe, one per thread otherwise.
+   */
+  private final static class ParserInstances {
+    final Extension extension;
+    final Configuration conf;
+    final boolean threadSafe;
+    private volatile Parser shared = null;
+    private final ThreadLocal local = new ThreadLocal();
+
+    ParserInstances(Extension extension, Configuration conf) {
+      this.extension = extension;
+      this.conf = conf;
+      this.threadSafe = "true".equalsIgnoreCase(extension.getAttribute(THREAD_SAFE));
+    }
+
+    Parser get() throws PluginRuntimeException {
+      if (threadSafe) {
+        Parser parser = shared;
+        if (parser == null) {
+          synchronized (this) {
+            if (shared == null) {
+              shared = (Parser) extension.getExtensionInstance(conf);
+            }
+            parser = shared;
+          }
+        }
+        return parser;
+      }
+      Parser parser = (Parser) local.get();
+      if (parser == null) {
+        parser = (Parser) extension.getExtensionInstance(conf);
+        local.set(parser);
+      }
+      return parser;
+    }
+  }
+
 }
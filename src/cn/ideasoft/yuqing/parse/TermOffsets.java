@@ -0,0 +1,252 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.parse;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.io.*;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Token;
+import org.apache.lucene.analysis.TokenStream;
+
+/**
+ * The offsets of the first tokens of a page's text, and the tokens of each
+ * distinct term, so that a summarizer can locate the query terms in the
+ * {@link ParseText} without analyzing it again.
+ *
+ * <p>Stored in {@link #DIR_NAME} beside <code>parse_text</code> when
+ * <tt>parse.term.offsets</tt> is true. Offsets and token numbers are
+ * delta-encoded as variable-length integers, and the sorted terms share
+ * their common prefixes.</p>
+ */
+public final class TermOffsets extends VersionedWritable {
+  public static final String DIR_NAME = "parse_offsets";
+
+  private final static byte VERSION = 1;
+
+  private final static int[] NO_POSITIONS = new int[0];
+
+  private int size;
+  private int[] starts;
+  private int[] ends;
+
+  /** Sorted distinct terms */
+  private String[] terms;
+
+  /** The ascending token numbers of each term */
+  private int[][] positions;
+
+  /** The term of each token, built on demand */
+  private String[] tokenTerms;
+
+  public TermOffsets() {}
+
+  /**
+   * Analyzes the first tokens of a text.
+   * @param analyzer the analyzer used on the <code>content</code> field.
+   * @param maxTokens the maximum number of tokens kept.
+   */
+  public static TermOffsets analyze(Analyzer analyzer, String text,
+                                    int maxTokens) throws IOException {
+    TermOffsets offsets = new TermOffsets();
+    int[] starts = new int[Math.min(Math.max(maxTokens, 0), 256)];
+    int[] ends = new int[starts.length];
+    Map termTokens = new TreeMap();               // term -> List of Integer
+    int size = 0;
+    TokenStream ts = analyzer.tokenStream("content", new StringReader(text));
+    try {
+      Token token;
+      while (size < maxTokens && (token = ts.next()) != null) {
+        if (size == starts.length) {
+          starts = grow(starts, Math.min(size * 2, maxTokens));
+          ends = grow(ends, starts.length);
+        }
+        starts[size] = token.startOffset();
+        ends[size] = token.endOffset();
+        List tokens = (List) termTokens.get(token.termText());
+        if (tokens == null) {
+          tokens = new ArrayList(2);
+          termTokens.put(token.termText(), tokens);
+        }
+        tokens.add(new Integer(size));
+        size++;
+      }
+    } finally {
+      ts.close();
+    }
+    offsets.size = size;
+    offsets.starts = starts;
+    offsets.ends = ends;
+    offsets.terms = new String[termTokens.size()];
+    offsets.positions = new int[termTokens.size()][];
+    int t = 0;
+    for (java.util.Iterator i = termTokens.entrySet().iterator(); i.hasNext(); t++) {
+      Map.Entry entry = (Map.Entry) i.next();
+      List tokens = (List) entry.getValue();
+      offsets.terms[t] = (String) entry.getKey();
+      offsets.positions[t] = new int[tokens.size()];
+      for (int j = 0; j < tokens.size(); j++) {
+        offsets.positions[t][j] = ((Integer) tokens.get(j)).intValue();
+      }
+    }
+    return offsets;
+  }
+
+  private static int[] grow(int[] array, int capacity) {
+    int[] grown = new int[capacity];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  public byte getVersion() { return VERSION; }
+
+  public void readFields(DataInput in) throws IOException {
+    super.readFields(in);                         // check version
+    size = WritableUtils.readVInt(in);
+    starts = new int[size];
+    ends = new int[size];
+    int start = 0;
+    for (int i = 0; i < size; i++) {
+      start += WritableUtils.readVInt(in);
+      starts[i] = start;
+      ends[i] = start + WritableUtils.readVInt(in);
+    }
+    int numTerms = WritableUtils.readVInt(in);
+    terms = new String[numTerms];
+    positions = new int[numTerms][];
+    String previous = "";
+    for (int t = 0; t < numTerms; t++) {
+      int shared = WritableUtils.readVInt(in);
+      terms[t] = previous.substring(0, shared) + Text.readString(in);
+      previous = terms[t];
+      int[] tokens = new int[WritableUtils.readVInt(in)];
+      int token = 0;
+      for (int j = 0; j < tokens.length; j++) {
+        token += WritableUtils.readVInt(in);
+        tokens[j] = token;
+      }
+      positions[t] = tokens;
+    }
+    tokenTerms = null;
+  }
+
+  public final void write(DataOutput out) throws IOException {
+    super.write(out);                             // write version
+    WritableUtils.writeVInt(out, size);
+    int start = 0;
+    for (int i = 0; i < size; i++) {
+      WritableUtils.writeVInt(out, starts[i] - start);
+      WritableUtils.writeVInt(out, ends[i] - starts[i]);
+      start = starts[i];
+    }
+    WritableUtils.writeVInt(out, terms.length);
+    String previous = "";
+    for (int t = 0; t < terms.length; t++) {
+      String term = terms[t];
+      int shared = 0;
+      int max = Math.min(previous.length(), term.length());
+      while (shared < max && previous.charAt(shared) == term.charAt(shared)) {
+        shared++;
+      }
+      // keep surrogate pairs whole: a lone surrogate does not survive UTF-8
+      if (shared > 0 && Character.isHighSurrogate(term.charAt(shared - 1))) {
+        shared--;
+      }
+      WritableUtils.writeVInt(out, shared);
+      Text.writeString(out, term.substring(shared));
+      previous = term;
+      int[] tokens = positions[t];
+      WritableUtils.writeVInt(out, tokens.length);
+      int token = 0;
+      for (int j = 0; j < tokens.length; j++) {
+        WritableUtils.writeVInt(out, tokens[j] - token);
+        token = tokens[j];
+      }
+    }
+  }
+
+  public final static TermOffsets read(DataInput in) throws IOException {
+    TermOffsets offsets = new TermOffsets();
+    offsets.readFields(in);
+    return offsets;
+  }
+
+  //
+  // Accessor methods
+  //
+
+  /** Returns the number of tokens. */
+  public int size() { return size; }
+
+  /** Returns the start offset of a token in the text. */
+  public int getStart(int token) { return starts[token]; }
+
+  /** Returns the end offset of a token in the text. */
+  public int getEnd(int token) { return ends[token]; }
+
+  /** Returns the ascending numbers of the tokens of a term, maybe empty. */
+  public int[] getPositions(String term) {
+    int t = Arrays.binarySearch(terms, term);
+    return (t < 0) ? NO_POSITIONS : positions[t];
+  }
+
+  /** Returns the term of a token. */
+  public synchronized String getTerm(int token) {
+    if (tokenTerms == null) {
+      tokenTerms = new String[size];
+      for (int t = 0; t < terms.length; t++) {
+        for (int j = 0; j < positions[t].length; j++) {
+          tokenTerms[positions[t][j]] = terms[t];
+        }
+      }
+    }
+    return tokenTerms[token];
+  }
+
+  public boolean equals(Object o) {
+    if (!(o instanceof TermOffsets))
+      return false;
+    TermOffsets other = (TermOffsets)o;
+    if (size != other.size || !Arrays.equals(terms, other.terms))
+      return false;
+    for (int i = 0; i < size; i++) {
+      if (starts[i] != other.starts[i] || ends[i] != other.ends[i])
+        return false;
+    }
+    for (int t = 0; t < terms.length; t++) {
+      if (!Arrays.equals(positions[t], other.positions[t]))
+        return false;
+    }
+    return true;
+  }
+
+  public String toString() {
+    StringBuffer buffer = new StringBuffer();
+    for (int i = 0; i < size; i++) {
+      if (i > 0) buffer.append(' ');
+      buffer.append(getTerm(i)).append('@').append(starts[i])
+        .append('-').append(ends[i]);
+    }
+    return buffer.toString();
+  }
+}
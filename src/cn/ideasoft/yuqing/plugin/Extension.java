@@ -17,6 +17,7 @@
 package cn.ideasoft.yuqing.plugin;
 
 import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configurable;
@@ -36,6 +37,7 @@ public class Extension {
   private HashMap<String, String> fAttributes;
   private Configuration conf;
   private PluginRepository pluginRepository;
+  private volatile Class fExtensionClass;       // loaded, plugin started
 
   /**
    * @param pDescriptor
@@ -133,6 +135,23 @@ public class Extension {
     return fTargetPoint;
   }
 
+  /**
+   * Returns the attributes of the extension, for the manifest index.
+   */
+  Map<String, String> getAttributes() {
+    return fAttributes;
+  }
+
+  /**
+   * Return an instance of the extension implementatio, configured by the
+   * configuration the plugin repository was built from.
+   *
+   * @see #getExtensionInstance(Configuration)
+   */
+  public Object getExtensionInstance() throws PluginRuntimeException {
+    return getExtensionInstance(this.conf);
+  }
+
   /**
    * Return an instance of the extension implementatio. Before we create a
    * extension instance we startup the plugin if it is not already done. The
@@ -141,34 +160,46 @@ public class Extension {
    * PluginClassLoader knows only own <i>Plugin runtime libraries </i> setuped
    * in the plugin manifest file and exported libraries of the depenedend
    * plugins.
+   *
+   * <p>The plugin repository is shared by all the configurations with the
+   * same plugin properties, so the instance is configured by
+   * <code>conf</code>, the configuration of the caller.
    * 
    * @return Object An instance of the extension implementation
    */
-  public Object getExtensionInstance() throws PluginRuntimeException {
-    // Must synchronize here to make sure creation and initialization
-    // of a plugin instance and it extension instance are done by
-    // one and only one thread.
-    // The same is in PluginRepository.getPluginInstance().
-    // Suggested by Stefan Groschupf <sg@media-style.com>
-    synchronized (getId()) {
-      try {
-        PluginClassLoader loader = fDescriptor.getClassLoader();
-        Class extensionClazz = loader.loadClass(getClazz());
-        // lazy loading of Plugin in case there is no instance of the plugin
-        // already.
-        this.pluginRepository.getPluginInstance(getDescriptor());
-        Object object = extensionClazz.newInstance();
-        if (object instanceof Configurable) {
-          ((Configurable) object).setConf(this.conf);
+  public Object getExtensionInstance(Configuration conf)
+    throws PluginRuntimeException {
+    try {
+      Class extensionClazz = fExtensionClass;
+      if (extensionClazz == null) {
+        // Must synchronize here to make sure creation and initialization
+        // of a plugin instance and it extension instance are done by
+        // one and only one thread.
+        // The same is in PluginRepository.getPluginInstance().
+        // Suggested by Stefan Groschupf <sg@media-style.com>
+        synchronized (this) {
+          if (fExtensionClass == null) {
+            PluginClassLoader loader = fDescriptor.getClassLoader();
+            Class loaded = loader.loadClass(getClazz());
+            // lazy loading of Plugin in case there is no instance of the
+            // plugin already.
+            this.pluginRepository.getPluginInstance(getDescriptor());
+            fExtensionClass = loaded;
+          }
+          extensionClazz = fExtensionClass;
         }
-        return object;
-      } catch (ClassNotFoundException e) {
-        throw new PluginRuntimeException(e);
-      } catch (InstantiationException e) {
-        throw new PluginRuntimeException(e);
-      } catch (IllegalAccessException e) {
-        throw new PluginRuntimeException(e);
       }
+      Object object = extensionClazz.newInstance();
+      if (object instanceof Configurable) {
+        ((Configurable) object).setConf(conf);
+      }
+      return object;
+    } catch (ClassNotFoundException e) {
+      throw new PluginRuntimeException(e);
+    } catch (InstantiationException e) {
+      throw new PluginRuntimeException(e);
+    } catch (IllegalAccessException e) {
+      throw new PluginRuntimeException(e);
     }
   }
 
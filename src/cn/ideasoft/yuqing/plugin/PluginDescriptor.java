@@ -223,6 +223,13 @@ public class PluginDescriptor {
     fExportedLibs.add(url);
   }
 
+  /**
+   * Adds a exported library, read from the manifest index.
+   */
+  void addExportedLibUrl(URL url) {
+    fExportedLibs.add(url);
+  }
+
   /**
    * Returns the directory path of the plugin.
    * 
@@ -252,6 +259,13 @@ public class PluginDescriptor {
     fNotExportedLibs.add(url);
   }
 
+  /**
+   * Adds a not exported library, read from the manifest index.
+   */
+  void addNotExportedLibUrl(URL url) {
+    fNotExportedLibs.add(url);
+  }
+
   /**
    * Returns a array of libraries as URLs that are not exported by the plugin.
    * 
@@ -268,7 +282,7 @@ public class PluginDescriptor {
    * 
    * @return PluginClassLoader the classloader for the plugin
    */
-  public PluginClassLoader getClassLoader() {
+  public synchronized PluginClassLoader getClassLoader() {
     if (fClassLoader != null)
       return fClassLoader;
     ArrayList<URL> arrayList = new ArrayList<URL>();
@@ -16,8 +16,15 @@
  */
 package cn.ideasoft.yuqing.plugin;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -49,6 +56,9 @@ public class PluginManifestParser {
   private static final String ATTR_CLASS = "class";
   private static final String ATTR_ID = "id";
 
+  /** The version of the format of the manifest index. */
+  private static final int INDEX_VERSION = 2;
+
   public static final Log LOG = PluginRepository.LOG;
 
   private static final boolean WINDOWS = System.getProperty("os.name")
@@ -58,6 +68,8 @@ public class PluginManifestParser {
 
   private PluginRepository pluginRepository;
 
+  private DocumentBuilder builder;
+
   public PluginManifestParser(Configuration conf,
       PluginRepository pluginRepository) {
     this.conf = conf;
@@ -78,6 +90,10 @@ public class PluginManifestParser {
       throw new IllegalArgumentException("plugin.folders is not defined");
     }
 
+    long start = System.currentTimeMillis();
+    File indexFile = getIndexFile();
+    Map<String, PluginDescriptor> index = readIndex(indexFile);
+    int parsed = 0;
     for (String name : pluginFolders) {
       File directory = getPluginFolder(name);
       if (directory == null) {
@@ -88,10 +104,17 @@ public class PluginManifestParser {
         if (oneSubFolder.isDirectory()) {
           String manifestPath = oneSubFolder.getAbsolutePath() + File.separator
               + "plugin.xml";
+          PluginDescriptor p = index.get(manifestPath);
+          if (p != null) {
+            map.put(p.getPluginId(), p);
+            continue;
+          }
           try {
             LOG.debug("parsing: " + manifestPath);
-            PluginDescriptor p = parseManifestFile(manifestPath);
+            p = parseManifestFile(manifestPath);
             map.put(p.getPluginId(), p);
+            index.put(manifestPath, p);
+            parsed++;
           } catch (MalformedURLException e) {
             LOG.warn(e.toString());
           } catch (SAXException e) {
@@ -104,9 +127,211 @@ public class PluginManifestParser {
         }
       }
     }
+    if (parsed > 0) {
+      writeIndex(indexFile, index);
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Plugins: read " + map.size() + " manifests (" + parsed
+          + " parsed, " + (map.size() - parsed) + " from the index) in "
+          + (System.currentTimeMillis() - start) + " ms");
+    }
     return map;
   }
 
+  /**
+   * Returns the file of the manifest index, or null if it is disabled.
+   */
+  private File getIndexFile() {
+    if (!conf.getBoolean("plugin.index", true)) {
+      return null;
+    }
+    String file = conf.get("plugin.index.file", "");
+    if (file.length() == 0) {
+      return new File(conf.get("hadoop.tmp.dir", "/tmp"), "plugin.index");
+    }
+    return new File(file);
+  }
+
+  /**
+   * Reads the plugins of the manifest index whose manifest did not change
+   * since it was indexed.
+   * 
+   * @return the plugins, by manifest path
+   */
+  private Map<String, PluginDescriptor> readIndex(File indexFile) {
+    Map<String, PluginDescriptor> index = new HashMap<String, PluginDescriptor>();
+    if (indexFile == null || !indexFile.exists()) {
+      return index;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(indexFile)));
+      try {
+        if (in.readInt() != INDEX_VERSION) {
+          return index;
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          String manifestPath = in.readUTF();
+          long modified = in.readLong();
+          long length = in.readLong();
+          PluginDescriptor descriptor = readPlugin(in);
+          File manifest = new File(manifestPath);
+          if (manifest.lastModified() == modified
+              && manifest.length() == length) {
+            index.put(manifestPath, descriptor);
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Plugins: cannot read the manifest index " + indexFile + ": "
+          + e.toString());
+      index.clear();
+    } catch (RuntimeException e) {                // a corrupt index
+      LOG.warn("Plugins: cannot read the manifest index " + indexFile + ": "
+          + e.toString());
+      index.clear();
+    }
+    return index;
+  }
+
+  private PluginDescriptor readPlugin(DataInputStream in) throws IOException {
+    PluginDescriptor descriptor = new PluginDescriptor(readString(in),
+        readString(in), readString(in), readString(in), readString(in),
+        readString(in), this.conf);
+    for (int i = in.readInt(); i > 0; i--) {
+      descriptor.addDependency(readString(in));
+    }
+    for (int i = in.readInt(); i > 0; i--) {
+      descriptor.addExportedLibUrl(new URL(in.readUTF()));
+    }
+    for (int i = in.readInt(); i > 0; i--) {
+      descriptor.addNotExportedLibUrl(new URL(in.readUTF()));
+    }
+    for (int i = in.readInt(); i > 0; i--) {
+      descriptor.addExtensionPoint(new ExtensionPoint(readString(in),
+          readString(in), readString(in)));
+    }
+    for (int i = in.readInt(); i > 0; i--) {
+      Extension extension = new Extension(descriptor, readString(in),
+          readString(in), readString(in), this.conf, this.pluginRepository);
+      for (int j = in.readInt(); j > 0; j--) {
+        extension.addAttribute(readString(in), readString(in));
+      }
+      descriptor.addExtension(extension);
+    }
+    return descriptor;
+  }
+
+  /** Reads a string written by {@link #writeString}, possibly null. */
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  /**
+   * Writes the manifest index, so that other processes do not parse the
+   * manifests again. The index is replaced atomically, and failures are
+   * only logged.
+   */
+  private void writeIndex(File indexFile, Map<String, PluginDescriptor> index) {
+    if (indexFile == null) {
+      return;
+    }
+    File tmp = new File(indexFile.getPath() + "." + System.currentTimeMillis()
+        + "-" + Thread.currentThread().getId());
+    try {
+      File parent = indexFile.getAbsoluteFile().getParentFile();
+      if (parent != null) {
+        parent.mkdirs();
+      }
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmp)));
+      try {
+        out.writeInt(INDEX_VERSION);
+        out.writeInt(index.size());
+        for (Map.Entry<String, PluginDescriptor> entry : index.entrySet()) {
+          File manifest = new File(entry.getKey());
+          out.writeUTF(entry.getKey());
+          out.writeLong(manifest.lastModified());
+          out.writeLong(manifest.length());
+          writePlugin(out, entry.getValue());
+        }
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(indexFile)) {
+        indexFile.delete();                       // needed on windows
+        if (!tmp.renameTo(indexFile)) {
+          throw new IOException("cannot rename " + tmp);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Plugins: cannot write the manifest index " + indexFile + ": "
+          + e.toString());
+      tmp.delete();
+    } catch (RuntimeException e) {                // never fail plugin loading
+      LOG.warn("Plugins: cannot write the manifest index " + indexFile + ": "
+          + e.toString());
+      tmp.delete();
+    }
+  }
+
+  private void writePlugin(DataOutputStream out, PluginDescriptor descriptor)
+      throws IOException {
+    writeString(out, descriptor.getPluginId());
+    writeString(out, descriptor.getVersion());
+    writeString(out, descriptor.getName());
+    writeString(out, descriptor.getProviderName());
+    writeString(out, descriptor.getPluginClass());
+    writeString(out, descriptor.getPluginPath());
+    String[] dependencies = descriptor.getDependencies();
+    out.writeInt(dependencies.length);
+    for (String dependency : dependencies) {
+      writeString(out, dependency);
+    }
+    writeUrls(out, descriptor.getExportedLibUrls());
+    writeUrls(out, descriptor.getNotExportedLibUrls());
+    ExtensionPoint[] points = descriptor.getExtenstionPoints();
+    out.writeInt(points.length);
+    for (ExtensionPoint point : points) {
+      writeString(out, point.getId());
+      writeString(out, point.getName());
+      writeString(out, point.getSchema());
+    }
+    Extension[] extensions = descriptor.getExtensions();
+    out.writeInt(extensions.length);
+    for (Extension extension : extensions) {
+      writeString(out, extension.getTargetPoint());
+      writeString(out, extension.getId());
+      writeString(out, extension.getClazz());
+      Map<String, String> attributes = extension.getAttributes();
+      out.writeInt(attributes.size());
+      for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+        writeString(out, attribute.getKey());
+        writeString(out, attribute.getValue());
+      }
+    }
+  }
+
+  /** Writes a string that may be null, as manifests leave many out. */
+  private static void writeString(DataOutputStream out, String s)
+      throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static void writeUrls(DataOutputStream out, URL[] urls)
+      throws IOException {
+    out.writeInt(urls.length);
+    for (URL url : urls) {
+      out.writeUTF(url.toString());
+    }
+  }
+
   /**
    * Return the named plugin folder. If the name is absolute then it is
    * returned. Otherwise, for relative names, the classpath is scanned.
@@ -162,9 +387,15 @@ public class PluginManifestParser {
    */
   private Document parseXML(URL url) throws SAXException, IOException,
       ParserConfigurationException {
-    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-    DocumentBuilder builder = factory.newDocumentBuilder();
-    return builder.parse(url.openStream());
+    if (builder == null) {                        // reused for all manifests
+      builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    }
+    InputStream in = url.openStream();
+    try {
+      return builder.parse(in);
+    } finally {
+      in.close();
+    }
   }
 
   /**
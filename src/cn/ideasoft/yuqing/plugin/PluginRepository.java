@@ -16,14 +16,18 @@
  */
 package cn.ideasoft.yuqing.plugin;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.WeakHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,30 +44,73 @@ import cn.ideasoft.yuqing.util.YuQingConfiguration;
  * instance will be created later when it is required, this allow lazy plugin
  * loading.
  * 
+ * A repository is built once per JVM for each set of plugin properties, and
+ * is not modified afterwards, so that it is looked up without locking. The
+ * parsed manifests are also saved to an index file, read instead of the
+ * manifests that did not change.
+ * 
  * @author joa23
  */
 public class PluginRepository {
-  private static final WeakHashMap<Configuration, PluginRepository> CACHE = new WeakHashMap<Configuration, PluginRepository>();
+  /** The repositories, by plugin properties, built once per JVM. */
+  private static final ConcurrentHashMap<String, PluginRepository> REPOSITORIES = new ConcurrentHashMap<String, PluginRepository>();
+
+  /** The repository of each configuration, looked up without locking. */
+  private static final ConcurrentHashMap<ConfKey, PluginRepository> CACHE = new ConcurrentHashMap<ConfKey, PluginRepository>();
+
+  private static final ReferenceQueue<Configuration> COLLECTED = new ReferenceQueue<Configuration>();
+
+  private final boolean auto;
 
-  private boolean auto;
+  private final List<PluginDescriptor> fRegisteredPlugins;
 
-  private List<PluginDescriptor> fRegisteredPlugins;
+  private final HashMap<String, PluginDescriptor> fPluginsById;
 
-  private HashMap<String, ExtensionPoint> fExtensionPoints;
+  private final HashMap<String, ExtensionPoint> fExtensionPoints;
 
-  private HashMap<String, Plugin> fActivatedPlugins;
+  private final ConcurrentHashMap<String, Plugin> fActivatedPlugins;
 
-  private Configuration conf;
+  private final Configuration conf;
 
   public static final Log LOG = LogFactory.getLog(PluginRepository.class);
 
+  /**
+   * A weak reference to a configuration, compared by identity as in a
+   * <code>WeakHashMap</code>.
+   */
+  private static class ConfKey extends WeakReference<Configuration> {
+    private final int hash;
+
+    ConfKey(Configuration conf, ReferenceQueue<Configuration> queue) {
+      super(conf, queue);
+      this.hash = System.identityHashCode(conf);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (!(o instanceof ConfKey)) {
+        return false;
+      }
+      Configuration conf = get();
+      return conf != null && conf == ((ConfKey) o).get();
+    }
+  }
+
   /**
    * @throws PluginRuntimeException
    * @see java.lang.Object#Object()
    */
   public PluginRepository(Configuration conf) throws RuntimeException {
-    fActivatedPlugins = new HashMap<String, Plugin>();
+    long start = System.currentTimeMillis();
+    fActivatedPlugins = new ConcurrentHashMap<String, Plugin>();
     fExtensionPoints = new HashMap<String, ExtensionPoint>();
+    fPluginsById = new HashMap<String, PluginDescriptor>();
     this.conf = conf;
     this.auto = conf.getBoolean("plugin.auto-activation", true);
     String[] pluginFolders = conf.getStrings("plugin.folders");
@@ -74,8 +121,12 @@ public class PluginRepository {
     Pattern includes = Pattern.compile(conf.get("plugin.includes", ""));
     Map<String, PluginDescriptor> filteredPlugins = filter(excludes, includes,
         allPlugins);
-    fRegisteredPlugins = getDependencyCheckedPlugins(filteredPlugins,
-        this.auto ? allPlugins : filteredPlugins);
+    fRegisteredPlugins = Collections.unmodifiableList(
+        getDependencyCheckedPlugins(filteredPlugins,
+            this.auto ? allPlugins : filteredPlugins));
+    for (PluginDescriptor plugin : fRegisteredPlugins) {
+      fPluginsById.put(plugin.getPluginId(), plugin);
+    }
     installExtensionPoints(fRegisteredPlugins);
     try {
       installExtensions(fRegisteredPlugins);
@@ -84,17 +135,44 @@ public class PluginRepository {
       throw new RuntimeException(e.getMessage());
     }
     displayStatus();
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Plugin repository built in "
+          + (System.currentTimeMillis() - start) + " ms");
+    }
   }
 
   /**
+   * Returns the plugin repository of a configuration. Repositories are
+   * immutable once built, and shared by all the configurations with the
+   * same <code>plugin.*</code> properties, so that plugins are discovered
+   * and their classes loaded once per JVM. Extensions are instantiated for
+   * each configuration by {@link Extension#getExtensionInstance(Configuration)}.
+   * 
    * @return a cached instance of the plugin repository
    */
-  public static synchronized PluginRepository get(Configuration conf) {
-    PluginRepository result = CACHE.get(conf);
+  public static PluginRepository get(Configuration conf) {
+    PluginRepository result = CACHE.get(new ConfKey(conf, null));
+    if (result != null) {
+      return result;
+    }
+    String key = conf.get("plugin.folders") + '\n'
+        + conf.get("plugin.includes") + '\n' + conf.get("plugin.excludes")
+        + '\n' + conf.get("plugin.auto-activation");
+    result = REPOSITORIES.get(key);
     if (result == null) {
-      result = new PluginRepository(conf);
-      CACHE.put(conf, result);
+      synchronized (REPOSITORIES) {
+        result = REPOSITORIES.get(key);
+        if (result == null) {
+          result = new PluginRepository(conf);
+          REPOSITORIES.put(key, result);
+        }
+      }
     }
+    Reference<? extends Configuration> collected;
+    while ((collected = COLLECTED.poll()) != null) {
+      CACHE.remove(collected);
+    }
+    CACHE.put(new ConfKey(conf, COLLECTED), result);
     return result;
   }
 
@@ -220,12 +298,7 @@ public class PluginRepository {
    * @return PluginDescriptor
    */
   public PluginDescriptor getPluginDescriptor(String pPluginId) {
-
-    for (PluginDescriptor descriptor : fRegisteredPlugins) {
-      if (descriptor.getPluginId().equals(pPluginId))
-        return descriptor;
-    }
-    return null;
+    return fPluginsById.get(pPluginId);
   }
 
   /**
@@ -254,14 +327,18 @@ public class PluginRepository {
    */
   public Plugin getPluginInstance(PluginDescriptor pDescriptor)
       throws PluginRuntimeException {
-    if (fActivatedPlugins.containsKey(pDescriptor.getPluginId()))
-      return fActivatedPlugins.get(pDescriptor.getPluginId());
+    Plugin activated = fActivatedPlugins.get(pDescriptor.getPluginId());
+    if (activated != null)
+      return activated;
     try {
       // Must synchronize here to make sure creation and initialization
       // of a plugin instance are done by one and only one thread.
       // The same is in Extension.getExtensionInstance().
       // Suggested by Stefan Groschupf <sg@media-style.com>
       synchronized (pDescriptor) {
+        activated = fActivatedPlugins.get(pDescriptor.getPluginId());
+        if (activated != null)
+          return activated;
         PluginClassLoader loader = pDescriptor.getClassLoader();
         Class pluginClass = loader.loadClass(pDescriptor.getPluginClass());
         Constructor constructor = pluginClass.getConstructor(new Class[] {
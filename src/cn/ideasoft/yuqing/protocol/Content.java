@@ -21,26 +21,60 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.ArrayFile;
-import org.apache.hadoop.io.CompressedWritable;
+import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.UTF8;
 import org.apache.hadoop.io.VersionMismatchException;
+import org.apache.hadoop.io.Writable;
 import cn.ideasoft.yuqing.metadata.Metadata;
 import cn.ideasoft.yuqing.util.YuQingConfiguration;
 import cn.ideasoft.yuqing.util.mime.MimeType;
 import cn.ideasoft.yuqing.util.mime.MimeTypeException;
 import cn.ideasoft.yuqing.util.mime.MimeTypes;
 
-public final class Content extends CompressedWritable {
+/**
+ * The content fetched for a url.
+ *
+ * <p>Up to version 2, each record was deflated on its own, and is inflated
+ * on first access, into a per-thread buffer; an instance reused to read
+ * records keeps its buffer of deflated bytes.  Buffers grown past 1MB by a
+ * large record are not kept.  Since version 3, records are written as is, marked by a
+ * negative length, and the segment files compress them by blocks, see
+ * {@link cn.ideasoft.yuqing.segment.SegmentCompression}.
+ */
+public final class Content implements Writable {
 
   public static final String DIR_NAME = "content";
 
-  private final static byte VERSION = 2;
+  private final static byte VERSION = 3;
+
+  /** Marks records not compressed on their own, since version 3. */
+  private final static int UNCOMPRESSED = -1;
+
+  /** Size of the reusable buffers; larger ones are not kept after use. */
+  private final static int BUFFER_SIZE = 64 * 1024;
+  private final static int MAX_BUFFER_SIZE = 1024 * 1024;
+
+  /** Reusable inflater and buffer, to read records of version 2 or less. */
+  private static class InflateBuffer {
+    final Inflater inflater = new Inflater();
+    final DataInputBuffer input = new DataInputBuffer();
+    byte[] buffer = new byte[BUFFER_SIZE];
+  }
+
+  private static final ThreadLocal<InflateBuffer> INFLATE_BUFFERS =
+    new ThreadLocal<InflateBuffer>() {
+      protected InflateBuffer initialValue() {
+        return new InflateBuffer();
+      }
+    };
 
   private byte version;
 
@@ -58,10 +92,11 @@ public final class Content extends CompressedWritable {
 
   private MimeTypes mimeTypes;
 
-  private boolean inflated;
+  private boolean deflated;                       // old record, not inflated
+  private byte[] compressed;                      // reused between records
+  private int compressedLength;
 
   public Content() {
-    inflated = false;
   }
 
   public Content(String url, String base, byte[] content, String contentType,
@@ -83,18 +118,76 @@ public final class Content extends CompressedWritable {
     this.mimeTypeMagic = conf.getBoolean("mime.type.magic", true);
     this.mimeTypes = MimeTypes.get(conf.get("mime.types.file"));
     this.contentType = getContentType(contentType, url, content);
-    inflated = true;
   }
 
+  /** Inflates a record of version 2 or less, if not done yet. */
   public void ensureInflated() {
-    if (inflated) {
+    if (!deflated) {
+      return;
+    }
+    InflateBuffer buffer = INFLATE_BUFFERS.get();
+    Inflater inflater = buffer.inflater;
+    inflater.reset();
+    inflater.setInput(compressed, 0, compressedLength);
+    try {
+      int length = 0;
+      while (!inflater.finished()) {
+        if (length == buffer.buffer.length) {
+          byte[] grown = new byte[length * 2];
+          System.arraycopy(buffer.buffer, 0, grown, 0, length);
+          buffer.buffer = grown;
+        }
+        int n = inflater.inflate(buffer.buffer, length,
+                                 buffer.buffer.length - length);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Truncated content record");
+        }
+        length += n;
+      }
+      buffer.input.reset(buffer.buffer, length);
+      readFieldsInflated(buffer.input);
+    } catch (DataFormatException e) {
+      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      if (buffer.buffer.length > MAX_BUFFER_SIZE) {  // one huge record
+        buffer.buffer = new byte[BUFFER_SIZE];
+        buffer.input.reset(buffer.buffer, 0);
+      }
+    }
+    deflated = false;
+    if (compressed.length > MAX_BUFFER_SIZE) {
+      compressed = null;
+    }
+  }
+
+  public final void readFields(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length == UNCOMPRESSED) {
+      deflated = false;
+      readFieldsInflated(in);
+    } else {                                      // version 2 or less
+      if (compressed == null || compressed.length < length) {
+        compressed = new byte[length];
+      }
+      in.readFully(compressed, 0, length);
+      compressedLength = length;
+      deflated = true;
+    }
+  }
+
+  public final void write(DataOutput out) throws IOException {
+    if (deflated) {                               // copy old records as is
+      out.writeInt(compressedLength);
+      out.write(compressed, 0, compressedLength);
       return;
     }
-    super.ensureInflated();
-    inflated = true;
+    out.writeInt(UNCOMPRESSED);
+    writeInflated(out);
   }
 
-  protected final void readFieldsCompressed(DataInput in) throws IOException {
+  private void readFieldsInflated(DataInput in) throws IOException {
     version = in.readByte();
     metadata = new Metadata();
     switch (version) {
@@ -118,6 +211,7 @@ public final class Content extends CompressedWritable {
         }
       }
       break;
+    case 2:
     case VERSION:
       url = Text.readString(in); // read url
       base = Text.readString(in); // read base
@@ -134,7 +228,7 @@ public final class Content extends CompressedWritable {
 
   }
 
-  protected final void writeCompressed(DataOutput out) throws IOException {
+  private void writeInflated(DataOutput out) throws IOException {
     out.writeByte(VERSION);
 
     Text.writeString(out, url); // write url
@@ -298,11 +392,10 @@ public final class Content extends CompressedWritable {
   }
 
   /**
-   * By calling this method caller forces the next access to any property (via
-   * getters and setters) to check if decompressing of data is really required.
+   * Does nothing: a record read compressed is inflated on its next access,
+   * even into a reused instance.  Kept for existing callers.
    */
   public void forceInflate() {
-    inflated = false;
   }
 
 }
@@ -78,7 +78,7 @@ public class ProtocolFactory {
           throw new ProtocolNotFound(protocolName);
         }
 
-        Protocol protocol = (Protocol) extension.getExtensionInstance();
+        Protocol protocol = (Protocol) extension.getExtensionInstance(conf);
 
         conf.setObject(cacheId, protocol);
 
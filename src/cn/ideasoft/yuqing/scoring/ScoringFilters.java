@@ -62,7 +62,7 @@ public class ScoringFilters extends Configured implements ScoringFilter {
         HashMap filterMap = new HashMap();
         for (int i = 0; i < extensions.length; i++) {
           Extension extension = extensions[i];
-          ScoringFilter filter = (ScoringFilter) extension.getExtensionInstance();
+          ScoringFilter filter = (ScoringFilter) extension.getExtensionInstance(conf);
           if (!filterMap.containsKey(filter.getClass().getName())) {
             filterMap.put(filter.getClass().getName(), filter);
           }
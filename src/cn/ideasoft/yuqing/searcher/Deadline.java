@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.searcher;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * The time budget of a search request, shared by all its stages: search,
+ * details, summaries, anchors and clustering.
+ *
+ * <p>Each stage asks for the {@link #remaining()} time, records its duration
+ * with {@link #begin(Stage)} and {@link #end(Stage, long)}, and returns
+ * partial results when the budget is exhausted, noting so with {@link
+ * #exhaust(Stage)}. A deadline is sent to the search servers as the time
+ * remaining, so that clocks need not be synchronized; the durations and the
+ * exhausted stage are only known to the side that records them.</p>
+ *
+ * <p>Not thread-safe, except {@link #remaining()} and {@link #isExpired()}.</p>
+ */
+public class Deadline implements Writable {
+
+  /** The end-to-end time budget of a request, in milliseconds. */
+  public static final String MAX_TIME = "searcher.max.time.total";
+
+  /** The stages of a search request. */
+  public static enum Stage { SEARCH, DETAILS, SUMMARY, ANCHORS, CLUSTERING }
+
+  private static final long NONE = Long.MAX_VALUE;
+
+  private long expires;
+  private long[] millis = new long[Stage.values().length];
+  private Stage exhausted;
+
+  /** Constructor for {@link Writable}. */
+  public Deadline() {
+    this.expires = NONE;
+  }
+
+  /**
+   * Starts a deadline now.
+   * @param budget the time budget in milliseconds; zero or less for none.
+   */
+  public Deadline(long budget) {
+    this.expires = budget > 0 ? System.currentTimeMillis() + budget : NONE;
+  }
+
+  /** Starts a deadline with the budget configured for whole requests. */
+  public static Deadline get(Configuration conf) {
+    return new Deadline(conf.getLong(MAX_TIME, -1));
+  }
+
+  /** Returns true if this deadline limits anything. */
+  public boolean isLimited() {
+    return expires != NONE;
+  }
+
+  /**
+   * Returns the time left in milliseconds, zero if expired, or
+   * <code>Long.MAX_VALUE</code> if unlimited.
+   */
+  public long remaining() {
+    if (expires == NONE) return NONE;
+    return Math.max(expires - System.currentTimeMillis(), 0);
+  }
+
+  /** Returns the time at which this deadline expires. */
+  public long getExpires() {
+    return expires;
+  }
+
+  public boolean isExpired() {
+    return expires != NONE && System.currentTimeMillis() >= expires;
+  }
+
+  /** Returns the start time of a stage, to pass to {@link #end(Stage, long)}. */
+  public long begin(Stage stage) {
+    return System.currentTimeMillis();
+  }
+
+  /** Records the duration of a stage. */
+  public void end(Stage stage, long start) {
+    millis[stage.ordinal()] += System.currentTimeMillis() - start;
+  }
+
+  /** Notes that a stage returned partial results for lack of time. */
+  public void exhaust(Stage stage) {
+    if (exhausted == null) {
+      exhausted = stage;
+    }
+  }
+
+  /** Returns the first stage cut short by this deadline, or null. */
+  public Stage getExhausted() {
+    return exhausted;
+  }
+
+  /** Returns the time spent in a stage, in milliseconds. */
+  public long getMillis(Stage stage) {
+    return millis[stage.ordinal()];
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeLong(expires == NONE ? -1 : remaining());
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    long remaining = in.readLong();
+    expires = remaining < 0 ? NONE : System.currentTimeMillis() + remaining;
+    millis = new long[Stage.values().length];
+    exhausted = null;
+  }
+
+  public String toString() {
+    StringBuffer buffer = new StringBuffer("deadline");
+    Stage[] stages = Stage.values();
+    for (int i = 0; i < stages.length; i++) {
+      buffer.append(' ').append(stages[i].name().toLowerCase())
+        .append('=').append(millis[i]).append("ms");
+    }
+    if (expires != NONE) {
+      buffer.append(" remaining=").append(remaining()).append("ms");
+    }
+    if (exhausted != null) {
+      buffer.append(" exhausted=").append(exhausted.name().toLowerCase());
+    }
+    return buffer.toString();
+  }
+}
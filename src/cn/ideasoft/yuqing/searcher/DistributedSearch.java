@@ -20,7 +20,16 @@ package cn.ideasoft.yuqing.searcher;
 import java.net.InetSocketAddress;
 import java.io.*;
 import java.util.*;
+import java.lang.reflect.Array;
 import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -70,8 +79,13 @@ public class DistributedSearch {
 
       Configuration conf = YuQingConfiguration.create();
 
+      long start = System.currentTimeMillis();
       org.apache.hadoop.ipc.Server server = getServer(conf, directory, port);
       server.start();
+      if (LOG.isInfoEnabled()) {
+        LOG.info("serving searches on port " + port + " after "
+                 + (System.currentTimeMillis() - start) + " ms");
+      }
       server.join();
     }
     
@@ -94,6 +108,16 @@ public class DistributedSearch {
     private boolean running = true;
     private Configuration conf;
 
+    /** Runs the calls of requests with a deadline, one per server. */
+    private ExecutorService callers =
+      Executors.newCachedThreadPool(new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "DistributedSearch caller");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+
     /** Construct a client talking to servers listed in the named file.
      * Each line in the file lists a server hostname and port, separated by
      * whitespace. 
@@ -144,6 +168,12 @@ public class DistributedSearch {
     private static final Method SEARCH;
     private static final Method DETAILS;
     private static final Method SUMMARY;
+    private static final Method SEARCH_DEADLINE;
+    private static final Method DETAILS_DEADLINE;
+    private static final Method SUMMARY_DEADLINE;
+    private static final Method ANCHORS;
+    private static final Method ANCHORS_DEADLINE;
+    private static final Method SEARCH_FACETS;
     static {
       try {
         GET_SEGMENTS = Protocol.class.getMethod
@@ -155,6 +185,23 @@ public class DistributedSearch {
           ("getDetails", new Class[] { Hit.class});
         SUMMARY = Protocol.class.getMethod
           ("getSummary", new Class[] { HitDetails.class, Query.class});
+        SEARCH_DEADLINE = Protocol.class.getMethod
+          ("search", new Class[] { Query.class, Integer.TYPE, String.class,
+                                   String.class, Boolean.TYPE,
+                                   Deadline.class});
+        DETAILS_DEADLINE = Protocol.class.getMethod
+          ("getDetails", new Class[] { Hit[].class, Deadline.class});
+        SUMMARY_DEADLINE = Protocol.class.getMethod
+          ("getSummary", new Class[] { HitDetails[].class, Query.class,
+                                       Deadline.class});
+        ANCHORS = Protocol.class.getMethod
+          ("getAnchors", new Class[] { HitDetails[].class});
+        ANCHORS_DEADLINE = Protocol.class.getMethod
+          ("getAnchors", new Class[] { HitDetails[].class, Deadline.class});
+        SEARCH_FACETS = Protocol.class.getMethod
+          ("search", new Class[] { Query.class, Integer.TYPE, String.class,
+                                   String.class, Boolean.TYPE,
+                                   Deadline.class, String[].class});
       } catch (NoSuchMethodException e) {
         throw new RuntimeException(e);
       }
@@ -216,6 +263,22 @@ public class DistributedSearch {
     public Hits search(final Query query, final int numHits,
                        final String dedupField, final String sortField,
                        final boolean reverse) throws IOException {
+      return search(query, numHits, dedupField, sortField, reverse, null);
+    }
+
+    public Hits search(final Query query, final int numHits,
+                       final String dedupField, final String sortField,
+                       final boolean reverse, Deadline deadline)
+      throws IOException {
+      return search(query, numHits, dedupField, sortField, reverse, deadline,
+                    null);
+    }
+
+    public Hits search(final Query query, final int numHits,
+                       final String dedupField, final String sortField,
+                       final boolean reverse, Deadline deadline,
+                       String[] facetFields)
+      throws IOException {
       // Get the list of live servers.  It would be nice to build this
       // list in updateSegments(), but that would create concurrency issues.
       // We grab a local reference to the live server flags in case it
@@ -237,15 +300,26 @@ public class DistributedSearch {
         }
       }
 
-      Object[][] params = new Object[liveAddresses.length][5];
+      Object[][] params = new Object[liveAddresses.length][];
       for (int i = 0; i < params.length; i++) {
-        params[i][0] = query;
-        params[i][1] = new Integer(numHits);
-        params[i][2] = dedupField;
-        params[i][3] = sortField;
-        params[i][4] = Boolean.valueOf(reverse);
+        if (facetFields == null) {
+          params[i] = new Object[] { query, new Integer(numHits), dedupField,
+                                     sortField, Boolean.valueOf(reverse),
+                                     deadline };
+        } else {
+          params[i] = new Object[] { query, new Integer(numHits), dedupField,
+                                     sortField, Boolean.valueOf(reverse),
+                                     deadline, facetFields };
+        }
+      }
+      Hits[] results;
+      if (facetFields == null) {
+        results = (Hits[])call(SEARCH, SEARCH_DEADLINE, params,
+                               liveAddresses, deadline, Deadline.Stage.SEARCH);
+      } else {
+        results = (Hits[])call(null, SEARCH_FACETS, params,
+                               liveAddresses, deadline, Deadline.Stage.SEARCH);
       }
-      Hits[] results = (Hits[])RPC.call(SEARCH, params, liveAddresses, this.conf);
 
       TreeSet queue;                              // cull top hits from results
 
@@ -260,11 +334,15 @@ public class DistributedSearch {
       }
       
       long totalHits = 0;
+      boolean totalIsExact = true;
+      float rankBound = 0;
       Comparable maxValue = null;
       for (int i = 0; i < results.length; i++) {
         Hits hits = results[i];
         if (hits == null) continue;
         totalHits += hits.getTotal();
+        totalIsExact &= hits.totalIsExact();
+        rankBound = Math.max(rankBound, hits.getRankBound());
         for (int j = 0; j < hits.getLength(); j++) {
           Hit h = hits.getHit(j);
           if (maxValue == null ||
@@ -280,11 +358,27 @@ public class DistributedSearch {
           }
         }
       }
-      return new Hits(totalHits, (Hit[])queue.toArray(new Hit[queue.size()]));
+      Hits merged =
+        new Hits(totalHits, (Hit[])queue.toArray(new Hit[queue.size()]));
+      merged.setRankBound(rankBound);
+      merged.setTotalIsExact(totalIsExact);
+      if (facetFields != null) {                  // add facets of all servers
+        Facets[] facets = new Facets[results.length];
+        for (int i = 0; i < results.length; i++) {
+          if (results[i] != null) {
+            facets[i] = results[i].getFacets();
+          }
+        }
+        merged.setFacets
+          (Facets.merge(facets, conf.getInt("searcher.facet.limit", 100)));
+      }
+      return merged;
     }
     
-    // version for hadoop-0.5.0.jar
-    public static final long versionID = 1L;
+    // version 2 adds the methods with a deadline, 3 batched anchors, 4 facets,
+    // 5 the rank bound of hits, 6 the exactness of their total, 7 anchors
+    // with a deadline
+    public static final long versionID = 7L;
     
     private Protocol getRemote(Hit hit) throws IOException {
       return (Protocol)
@@ -315,6 +409,50 @@ public class DistributedSearch {
       return (HitDetails[])RPC.call(DETAILS, params, addrs, conf);
     }
 
+    public HitDetails[] getDetails(Hit[] hits, Deadline deadline)
+      throws IOException {
+      if (deadline == null || !deadline.isLimited()) {
+        return getDetails(hits);
+      }
+      // one call per server, with the hits of this server
+      Map serverHits = new LinkedHashMap();       // index no -> List of Hit
+      for (int i = 0; i < hits.length; i++) {
+        Integer indexNo = new Integer(hits[i].getIndexNo());
+        List list = (List)serverHits.get(indexNo);
+        if (list == null) {
+          list = new ArrayList();
+          serverHits.put(indexNo, list);
+        }
+        list.add(hits[i]);
+      }
+      InetSocketAddress[] addrs = new InetSocketAddress[serverHits.size()];
+      Object[][] params = new Object[serverHits.size()][];
+      int k = 0;
+      for (Iterator it = serverHits.entrySet().iterator(); it.hasNext(); k++) {
+        Map.Entry entry = (Map.Entry)it.next();
+        List list = (List)entry.getValue();
+        addrs[k] = defaultAddresses[((Integer)entry.getKey()).intValue()];
+        params[k] = new Object[] {
+          (Hit[])list.toArray(new Hit[list.size()]), deadline };
+      }
+      HitDetails[][] results = (HitDetails[][])
+        call(null, DETAILS_DEADLINE, params, addrs, deadline,
+             Deadline.Stage.DETAILS);
+
+      Map details = new HashMap();                // Hit -> HitDetails
+      for (int i = 0; i < results.length; i++) {
+        Hit[] sent = (Hit[])params[i][0];
+        for (int j = 0; results[i] != null && j < sent.length; j++) {
+          details.put(sent[j], results[i][j]);
+        }
+      }
+      HitDetails[] ordered = new HitDetails[hits.length];
+      for (int i = 0; i < hits.length; i++) {
+        ordered[i] = (HitDetails)details.get(hits[i]);
+      }
+      return ordered;
+    }
+
 
     public Summary getSummary(HitDetails hit, Query query) throws IOException {
       return getRemote(hit).getSummary(hit, query);
@@ -333,6 +471,144 @@ public class DistributedSearch {
       }
       return (Summary[])RPC.call(SUMMARY, params, addrs, conf);
     }
+
+    public Summary[] getSummary(HitDetails[] hits, Query query,
+                                Deadline deadline) throws IOException {
+      if (deadline == null || !deadline.isLimited()) {
+        return getSummary(hits, query);
+      }
+      // one call per server, with the details of its segments
+      ArrayList addrList = new ArrayList();
+      int[][] positions = groupBySegment(hits, addrList);
+      InetSocketAddress[] addrs = (InetSocketAddress[])
+        addrList.toArray(new InetSocketAddress[addrList.size()]);
+      Object[][] params = new Object[addrs.length][];
+      for (int k = 0; k < addrs.length; k++) {
+        params[k] =
+          new Object[] { select(hits, positions[k]), query, deadline };
+      }
+      Summary[][] results = (Summary[][])
+        call(null, SUMMARY_DEADLINE, params, addrs, deadline,
+             Deadline.Stage.SUMMARY);
+
+      Summary[] summaries = new Summary[hits.length];
+      for (int i = 0; i < results.length; i++) {
+        for (int j = 0; results[i] != null && j < positions[i].length; j++) {
+          summaries[positions[i][j]] = results[i][j];
+        }
+      }
+      for (int i = 0; i < summaries.length; i++) {
+        if (summaries[i] == null) {
+          summaries[i] = new Summary();
+        }
+      }
+      return summaries;
+    }
+
+    /**
+     * Groups hits by the server of their segment, skipping null hits.
+     * @param addrs receives the address of each group.
+     * @return the positions of the hits of each group.
+     */
+    private int[][] groupBySegment(HitDetails[] hits, List addrs) {
+      Map serverHits = new LinkedHashMap();       // address -> List of Integer
+      for (int i = 0; i < hits.length; i++) {
+        if (hits[i] == null) continue;
+        Object addr = segmentToAddress.get(hits[i].getValue("segment"));
+        List list = (List)serverHits.get(addr);
+        if (list == null) {
+          list = new ArrayList();
+          serverHits.put(addr, list);
+        }
+        list.add(new Integer(i));
+      }
+      int[][] positions = new int[serverHits.size()][];
+      int k = 0;
+      for (Iterator it = serverHits.entrySet().iterator(); it.hasNext(); k++) {
+        Map.Entry entry = (Map.Entry)it.next();
+        List list = (List)entry.getValue();
+        positions[k] = new int[list.size()];
+        for (int j = 0; j < positions[k].length; j++) {
+          positions[k][j] = ((Integer)list.get(j)).intValue();
+        }
+        addrs.add(entry.getKey());
+      }
+      return positions;
+    }
+
+    private static HitDetails[] select(HitDetails[] hits, int[] positions) {
+      HitDetails[] selected = new HitDetails[positions.length];
+      for (int j = 0; j < positions.length; j++) {
+        selected[j] = hits[positions[j]];
+      }
+      return selected;
+    }
+
+    /**
+     * Calls a method on a number of servers.  Without a limited deadline,
+     * this is a plain parallel {@link RPC#call(Method, Object[][],
+     * InetSocketAddress[], Configuration)} of <code>method</code>, without
+     * the deadline parameter.  Otherwise <code>deadlineMethod</code> is
+     * called on each server in a separate thread, and the results of the
+     * servers that do not answer before the deadline are null.
+     * The duration of the stage is recorded by the caller, not here.
+     * @param method the method without the last, deadline, parameter, or
+     * null to always call <code>deadlineMethod</code>.
+     * @param stage the stage noted as exhausted when a server is too late.
+     */
+    private Object[] call(Method method, Method deadlineMethod,
+                          Object[][] params, InetSocketAddress[] addrs,
+                          Deadline deadline, Deadline.Stage stage)
+      throws IOException {
+      if (deadline == null || !deadline.isLimited()) {
+        if (method == null) {
+          return RPC.call(deadlineMethod, params, addrs, conf);
+        }
+        Object[][] shortParams = new Object[params.length][];
+        for (int i = 0; i < params.length; i++) {
+          shortParams[i] = new Object[params[i].length - 1];
+          System.arraycopy(params[i], 0, shortParams[i], 0,
+                           shortParams[i].length);
+        }
+        return RPC.call(method, shortParams, addrs, conf);
+      }
+
+      Future[] futures = new Future[params.length];
+      for (int i = 0; i < params.length; i++) {
+        final Method m = deadlineMethod;
+        final Object[][] p = new Object[][] { params[i] };
+        final InetSocketAddress[] a = new InetSocketAddress[] { addrs[i] };
+        futures[i] = callers.submit(new Callable() {
+            public Object call() throws IOException {
+              return RPC.call(m, p, a, conf)[0];
+            }
+          });
+      }
+      Object[] results = (Object[])
+        Array.newInstance(deadlineMethod.getReturnType(), params.length);
+      for (int i = 0; i < futures.length; i++) {
+        try {
+          results[i] = futures[i].get(deadline.remaining(),
+                                      TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          futures[i].cancel(true);
+          deadline.exhaust(stage);
+          if (LOG.isWarnEnabled()) {
+            LOG.warn("Client: " + addrs[i] + " out of time for "
+                     + deadlineMethod.getName());
+          }
+        } catch (ExecutionException e) {
+          if (LOG.isWarnEnabled()) {
+            LOG.warn("Client: " + deadlineMethod.getName() + " failed on "
+                     + addrs[i] + ": " + e.getCause());
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted");
+        }
+      }
+      return results;
+    }
     
     public byte[] getContent(HitDetails hit) throws IOException {
       return getRemote(hit).getContent(hit);
@@ -350,6 +626,34 @@ public class DistributedSearch {
       return getRemote(hit).getAnchors(hit);
     }
 
+    public String[][] getAnchors(HitDetails[] hits) throws IOException {
+      return getAnchors(hits, null);
+    }
+
+    public String[][] getAnchors(HitDetails[] hits, Deadline deadline)
+      throws IOException {
+      // one call per server, with the hits of its segments
+      ArrayList addrList = new ArrayList();
+      int[][] positions = groupBySegment(hits, addrList);
+      InetSocketAddress[] addrs = (InetSocketAddress[])
+        addrList.toArray(new InetSocketAddress[addrList.size()]);
+      Object[][] params = new Object[addrs.length][];
+      for (int k = 0; k < addrs.length; k++) {
+        params[k] = new Object[] { select(hits, positions[k]), deadline };
+      }
+      String[][][] results = (String[][][])
+        call(ANCHORS, ANCHORS_DEADLINE, params, addrs, deadline,
+             Deadline.Stage.ANCHORS);
+
+      String[][] anchors = new String[hits.length][];
+      for (int i = 0; i < results.length; i++) {
+        for (int j = 0; results[i] != null && j < positions[i].length; j++) {
+          anchors[positions[i][j]] = results[i][j];
+        }
+      }
+      return anchors;
+    }
+
     public Inlinks getInlinks(HitDetails hit) throws IOException {
       return getRemote(hit).getInlinks(hit);
     }
@@ -411,6 +715,7 @@ public class DistributedSearch {
      */
     public void close() {
       running = false;
+      callers.shutdownNow();
       interrupt();
     }
   }
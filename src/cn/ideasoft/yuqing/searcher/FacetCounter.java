@@ -0,0 +1,321 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.searcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+
+/**
+ * Counts the hits of a search by value of some fields, while they are
+ * collected, using the {@link FieldCache} ordinals of the fields.
+ *
+ * <p>Faceted fields must have a single untokenized term per document.  A
+ * facet may also combine several such fields, separated by '/', counted by
+ * pairs of values: "primaryType/subType" counts by MIME type.  The facet
+ * "type" is an alias for it, since the "type" field itself has three terms
+ * per document.</p>
+ *
+ * <p>Only the facets listed by <tt>searcher.facet.fields</tt> are counted,
+ * and a facet with too many combinations of values is skipped.  Facets with
+ * few combinations are counted in an array, the others in a hash table of
+ * the combinations found, so that a search does not allocate an array as
+ * large as the number of sites.</p>
+ */
+class FacetCounter {
+
+  private static final Log LOG = LogFactory.getLog(FacetCounter.class);
+
+  /* The maximum number of distinct combinations of values of a facet. */
+  private static final int MAX_COMBINATIONS = 1 << 22;
+
+  /* The maximum number of combinations of a facet counted in an array. */
+  private static final int MAX_DENSE = 1 << 12;
+
+  private final IndexReader reader;
+  private final String[] names;
+  /** The ordinals of the documents, for each field of each facet */
+  private final int[][][] orders;
+  /** The values of the ordinals, for each field of each facet */
+  private final String[][][] lookups;
+  /** The counts of the value combinations of each facet, when few */
+  private final int[][] counts;
+  /** The counts of the value combinations of each facet, when many */
+  private final SparseCounts[] sparseCounts;
+
+  private long millis;
+  private int collected;
+  private boolean exact = true;
+
+  /**
+   * Returns the facets of <code>names</code> which may be counted, without
+   * duplicates, so that clients cannot load the field caches of other
+   * fields.
+   * @param allowed the facets of <tt>searcher.facet.fields</tt>.
+   */
+  static String[] select(String[] names, Set allowed) {
+    List selected = new ArrayList(names.length);
+    for (int i = 0; i < names.length; i++) {
+      if (allowed.contains(names[i]) && !selected.contains(names[i])) {
+        selected.add(names[i]);
+      } else if (LOG.isDebugEnabled()) {
+        LOG.debug("not counting facet " + names[i]);
+      }
+    }
+    return (String[])selected.toArray(new String[selected.size()]);
+  }
+
+  /**
+   * Loads the ordinals of the facet fields.
+   * @param names the facets to count, among those of {@link #select}.
+   */
+  FacetCounter(IndexReader reader, String[] names) throws IOException {
+    long start = System.currentTimeMillis();
+    this.reader = reader;
+    List kept = new ArrayList(names.length);
+    List keptOrders = new ArrayList(names.length);
+    List keptLookups = new ArrayList(names.length);
+    for (int f = 0; f < names.length; f++) {
+      String name = "type".equals(names[f]) ? "primaryType/subType" : names[f];
+      String[] fields = name.split("/");
+      int[][] order = new int[fields.length][];
+      String[][] lookup = new String[fields.length][];
+      long combinations = 1;
+      for (int i = 0; i < fields.length; i++) {
+        FieldCache.StringIndex index =
+          FieldCache.DEFAULT.getStringIndex(reader, fields[i].intern());
+        order[i] = index.order;
+        lookup[i] = index.lookup;
+        combinations *= index.lookup.length;
+      }
+      if (combinations > MAX_COMBINATIONS) {      // skipped, not failed
+        if (LOG.isWarnEnabled()) {
+          LOG.warn("Too many values to count facet " + names[f] + ": "
+                   + combinations);
+        }
+        continue;
+      }
+      kept.add(names[f]);
+      keptOrders.add(order);
+      keptLookups.add(lookup);
+    }
+    this.names = (String[])kept.toArray(new String[kept.size()]);
+    this.orders = (int[][][])keptOrders.toArray(new int[kept.size()][][]);
+    this.lookups =
+      (String[][][])keptLookups.toArray(new String[kept.size()][][]);
+    this.counts = new int[this.names.length][];
+    this.sparseCounts = new SparseCounts[this.names.length];
+    for (int f = 0; f < this.names.length; f++) {
+      long combinations = 1;
+      for (int i = 0; i < lookups[f].length; i++) {
+        combinations *= lookups[f][i].length;
+      }
+      if (combinations <= MAX_DENSE) {
+        counts[f] = new int[(int)combinations];
+      } else {
+        sparseCounts[f] = new SparseCounts();
+      }
+    }
+    millis = System.currentTimeMillis() - start;
+  }
+
+  /** Counts a hit. */
+  void collect(int doc) {
+    collected++;
+    for (int f = 0; f < counts.length; f++) {
+      int[][] order = orders[f];
+      int combination = order[0][doc];
+      for (int i = 1; i < order.length; i++) {
+        combination = combination * lookups[f][i].length + order[i][doc];
+      }
+      if (counts[f] != null) {
+        counts[f][combination]++;
+      } else {
+        sparseCounts[f].increment(combination);
+      }
+    }
+  }
+
+  /** Returns the index whose hits are counted. */
+  IndexReader getReader() {
+    return reader;
+  }
+
+  /** Returns the number of hits counted. */
+  int getCollected() {
+    return collected;
+  }
+
+  /** Notes that the collection stopped before all hits were counted. */
+  void stopped() {
+    exact = false;
+  }
+
+  /**
+   * Returns the most frequent values of each facet.  If values were left
+   * out, the facets are not exact, since the counts of the values left out
+   * by an index are missing from the sums of a merge.
+   * @param limit the maximum number of values per facet.
+   */
+  Facets getFacets(int limit) {
+    long start = System.currentTimeMillis();
+    String[][] values = new String[names.length][];
+    long[][] valueCounts = new long[names.length][];
+    boolean truncated = false;
+    for (int f = 0; f < names.length; f++) {
+      // select the most frequent combinations; ordinal 0 is "no value"
+      Top top = new Top(limit);
+      if (counts[f] != null) {
+        int[] count = counts[f];
+        for (int c = 0; c < count.length; c++) {
+          if (count[c] != 0 && !hasNoValue(f, c))
+            top.offer(c, count[c]);
+        }
+      } else {
+        int[] keys = sparseCounts[f].keys;
+        int[] count = sparseCounts[f].counts;
+        for (int slot = 0; slot < keys.length; slot++) {
+          if (keys[slot] != SparseCounts.EMPTY && !hasNoValue(f, keys[slot]))
+            top.offer(keys[slot], count[slot]);
+        }
+      }
+      truncated |= top.dropped;
+      values[f] = new String[top.size];
+      valueCounts[f] = new long[top.size];
+      for (int i = 0; i < top.size; i++) {
+        values[f][i] = getValue(f, top.combinations[i]);
+        valueCounts[f][i] = top.counts[i];
+      }
+    }
+    millis += System.currentTimeMillis() - start;
+    return new Facets(names, values, valueCounts, exact && !truncated,
+                      millis);
+  }
+
+  /** The most frequent combinations of a facet, by decreasing count. */
+  private static class Top {
+    final int[] combinations;
+    final int[] counts;
+    int size;
+    /** True if a counted combination was left out. */
+    boolean dropped;
+
+    Top(int limit) {
+      combinations = new int[limit];
+      counts = new int[limit];
+    }
+
+    void offer(int combination, int count) {
+      if (size == counts.length) {
+        dropped = true;
+        if (size == 0 || count <= counts[size - 1])
+          return;
+      }
+      int i = (size < counts.length) ? size++ : size - 1;
+      while (i > 0 && counts[i - 1] < count) {
+        combinations[i] = combinations[i - 1];
+        counts[i] = counts[i - 1];
+        i--;
+      }
+      combinations[i] = combination;
+      counts[i] = count;
+    }
+  }
+
+  /** Counts by combination in an open addressing hash table. */
+  private static class SparseCounts {
+    static final int EMPTY = -1;
+
+    int[] keys = newKeys(64);
+    int[] counts = new int[64];
+    private int size;
+
+    private static int[] newKeys(int capacity) {
+      int[] keys = new int[capacity];
+      java.util.Arrays.fill(keys, EMPTY);
+      return keys;
+    }
+
+    void increment(int key) {
+      int mask = keys.length - 1;
+      int slot = hash(key) & mask;
+      while (keys[slot] != EMPTY && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      if (keys[slot] == EMPTY) {
+        keys[slot] = key;
+        if (++size * 2 > keys.length) {
+          counts[slot]++;
+          grow();
+          return;
+        }
+      }
+      counts[slot]++;
+    }
+
+    private static int hash(int key) {
+      int h = key * 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+
+    private void grow() {
+      int[] oldKeys = keys;
+      int[] oldCounts = counts;
+      keys = newKeys(oldKeys.length * 2);
+      counts = new int[oldKeys.length * 2];
+      int mask = keys.length - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] == EMPTY)
+          continue;
+        int slot = hash(oldKeys[i]) & mask;
+        while (keys[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        counts[slot] = oldCounts[i];
+      }
+    }
+  }
+
+  private boolean hasNoValue(int f, int combination) {
+    String[][] lookup = lookups[f];
+    for (int i = lookup.length - 1; i >= 0; i--) {
+      if (combination % lookup[i].length == 0)
+        return true;
+      combination /= lookup[i].length;
+    }
+    return false;
+  }
+
+  private String getValue(int f, int combination) {
+    String[][] lookup = lookups[f];
+    String value = null;
+    for (int i = lookup.length - 1; i >= 0; i--) {
+      String part = lookup[i][combination % lookup[i].length];
+      value = (value == null) ? part : part + "/" + value;
+      combination /= lookup[i].length;
+    }
+    return value;
+  }
+}
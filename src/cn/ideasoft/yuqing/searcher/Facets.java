@@ -0,0 +1,224 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.searcher;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * The number of hits of a query for each value of some fields, e.g. by
+ * site, day, MIME type and language.  Each facet keeps its most frequent
+ * values, in decreasing order of count.
+ *
+ * <p>Facets of several indexes are added with {@link #merge(Facets[], int)}.
+ * Counts are exact unless {@link #isExact()} is false: when the collection
+ * of the hits stopped early, or when values of a facet were left out by an
+ * index or by a merge, since their counts are missing from the sums.  {@link #getMillis()} reports the time spent on facets,
+ * apart from the search itself.</p>
+ */
+public final class Facets implements Writable {
+
+  private String[] names = new String[0];
+  private String[][] values = new String[0][];
+  private long[][] counts = new long[0][];
+  private boolean exact = true;
+  private long millis;
+
+  public Facets() {}
+
+  /**
+   * @param names the facet names.
+   * @param values the values of each facet, by decreasing count.
+   * @param counts the count of each value.
+   */
+  public Facets(String[] names, String[][] values, long[][] counts,
+                boolean exact, long millis) {
+    this.names = names;
+    this.values = values;
+    this.counts = counts;
+    this.exact = exact;
+    this.millis = millis;
+  }
+
+  /** Returns the facet names, in the requested order. */
+  public String[] getNames() { return names; }
+
+  /** Returns the values of a facet, by decreasing count, or null. */
+  public String[] getValues(String name) {
+    int i = indexOf(name);
+    return i < 0 ? null : values[i];
+  }
+
+  /** Returns the counts of the values of a facet, or null. */
+  public long[] getCounts(String name) {
+    int i = indexOf(name);
+    return i < 0 ? null : counts[i];
+  }
+
+  /** True if the counts are exact. */
+  public boolean isExact() { return exact; }
+
+  /** The time spent on facets, in milliseconds.  Merged facets report the
+   * time of the slowest part. */
+  public long getMillis() { return millis; }
+
+  private int indexOf(String name) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(name))
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Adds the counts of facets computed over different indexes.
+   * @param parts the facets of each index, or null for indexes that did
+   * not answer.
+   * @param limit the maximum number of values kept per facet.
+   * @return the merged facets, or null if no part has facets.
+   */
+  public static Facets merge(Facets[] parts, int limit) {
+    Map merged = new LinkedHashMap();             // name -> (value -> long[])
+    boolean exact = true;
+    long millis = 0;
+    int numParts = 0;
+    for (int p = 0; p < parts.length; p++) {
+      Facets part = parts[p];
+      if (part == null) {
+        continue;
+      }
+      numParts++;
+      exact &= part.exact;
+      millis = Math.max(millis, part.millis);
+      for (int i = 0; i < part.names.length; i++) {
+        Map valueCounts = (Map)merged.get(part.names[i]);
+        if (valueCounts == null) {
+          valueCounts = new HashMap();
+          merged.put(part.names[i], valueCounts);
+        }
+        for (int j = 0; j < part.values[i].length; j++) {
+          long[] count = (long[])valueCounts.get(part.values[i][j]);
+          if (count == null) {
+            valueCounts.put(part.values[i][j], count = new long[1]);
+          }
+          count[0] += part.counts[i][j];
+        }
+      }
+    }
+    if (numParts == 0) {
+      return null;
+    }
+
+    String[] names = new String[merged.size()];
+    String[][] values = new String[names.length][];
+    long[][] counts = new long[names.length][];
+    int i = 0;
+    for (Iterator it = merged.entrySet().iterator(); it.hasNext(); i++) {
+      Map.Entry entry = (Map.Entry)it.next();
+      names[i] = (String)entry.getKey();
+      Map valueCounts = (Map)entry.getValue();
+      if (valueCounts.size() > limit) {
+        exact = false;
+      }
+      Map.Entry[] top = top((Map.Entry[])valueCounts.entrySet().toArray
+                            (new Map.Entry[valueCounts.size()]), limit);
+      values[i] = new String[top.length];
+      counts[i] = new long[top.length];
+      for (int j = 0; j < top.length; j++) {
+        values[i][j] = (String)top[j].getKey();
+        counts[i][j] = ((long[])top[j].getValue())[0];
+      }
+    }
+    return new Facets(names, values, counts, exact, millis);
+  }
+
+  /** Sorts value/count entries by decreasing count, then value. */
+  private static Map.Entry[] top(Map.Entry[] entries, int limit) {
+    Arrays.sort(entries, new Comparator() {
+        public int compare(Object o1, Object o2) {
+          Map.Entry e1 = (Map.Entry)o1, e2 = (Map.Entry)o2;
+          long c1 = ((long[])e1.getValue())[0], c2 = ((long[])e2.getValue())[0];
+          if (c1 != c2)
+            return c1 > c2 ? -1 : 1;
+          return ((String)e1.getKey()).compareTo((String)e2.getKey());
+        }
+      });
+    if (entries.length <= limit) {
+      return entries;
+    }
+    Map.Entry[] top = new Map.Entry[limit];
+    System.arraycopy(entries, 0, top, 0, limit);
+    return top;
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeBoolean(exact);
+    WritableUtils.writeVLong(out, millis);
+    WritableUtils.writeVInt(out, names.length);
+    for (int i = 0; i < names.length; i++) {
+      Text.writeString(out, names[i]);
+      WritableUtils.writeVInt(out, values[i].length);
+      for (int j = 0; j < values[i].length; j++) {
+        Text.writeString(out, values[i][j]);
+        WritableUtils.writeVLong(out, counts[i][j]);
+      }
+    }
+  }
+
+  public void readFields(DataInput in) throws IOException {
+    exact = in.readBoolean();
+    millis = WritableUtils.readVLong(in);
+    names = new String[WritableUtils.readVInt(in)];
+    values = new String[names.length][];
+    counts = new long[names.length][];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = Text.readString(in);
+      values[i] = new String[WritableUtils.readVInt(in)];
+      counts[i] = new long[values[i].length];
+      for (int j = 0; j < values[i].length; j++) {
+        values[i][j] = Text.readString(in);
+        counts[i][j] = WritableUtils.readVLong(in);
+      }
+    }
+  }
+
+  public String toString() {
+    StringBuffer buffer = new StringBuffer();
+    for (int i = 0; i < names.length; i++) {
+      buffer.append(names[i]).append(':');
+      for (int j = 0; j < values[i].length; j++) {
+        buffer.append(' ').append(values[i][j]).append('=').append(counts[i][j]);
+      }
+      buffer.append('\n');
+    }
+    buffer.append(exact ? "exact" : "estimated").append(", ")
+      .append(millis).append(" ms");
+    return buffer.toString();
+  }
+}
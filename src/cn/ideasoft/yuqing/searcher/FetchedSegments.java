@@ -21,6 +21,18 @@ import java.io.IOException;
 
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import org.apache.hadoop.io.*;
 import org.apache.hadoop.fs.*;
@@ -35,18 +47,30 @@ import cn.ideasoft.yuqing.crawl.*;
  * fetched segments. */
 public class FetchedSegments implements HitSummarizer, HitContent {
 
+  public static final Log LOG = LogFactory.getLog(FetchedSegments.class);
+
   private static class Segment implements Closeable {
     
     private static final Partitioner PARTITIONER = new HashPartitioner();
 
+    /** Reused to read content, with its buffer of deflated bytes. */
+    private static final ThreadLocal<Content> CONTENTS =
+      new ThreadLocal<Content>() {
+        protected Content initialValue() {
+          return new Content();
+        }
+      };
+
     private FileSystem fs;
     private Path segmentDir;
 
     private MapFile.Reader[] content;
     private MapFile.Reader[] parseText;
     private MapFile.Reader[] parseData;
+    private MapFile.Reader[] termOffsets;
     private MapFile.Reader[] crawl;
     private Configuration conf;
+    private boolean closed;
 
     public Segment(FileSystem fs, Path segmentDir, Configuration conf) throws IOException {
       this.fs = fs;
@@ -67,7 +91,7 @@ public class FetchedSegments implements HitSummarizer, HitContent {
         if (content == null)
           content = getReaders(Content.DIR_NAME);
       }
-      return ((Content)getEntry(content, url, new Content())).getContent();
+      return ((Content)getEntry(content, url, CONTENTS.get())).getContent();
     }
 
     public ParseData getParseData(Text url) throws IOException {
@@ -86,6 +110,51 @@ public class FetchedSegments implements HitSummarizer, HitContent {
       return (ParseText)getEntry(parseText, url, new ParseText());
     }
     
+    /** Returns null if the segment has no term offsets. */
+    public TermOffsets getTermOffsets(Text url) throws IOException {
+      synchronized (this) {
+        if (termOffsets == null) {
+          termOffsets = fs.exists(new Path(segmentDir, TermOffsets.DIR_NAME))
+            ? getReaders(TermOffsets.DIR_NAME) : new MapFile.Reader[0];
+        }
+      }
+      if (termOffsets.length == 0) { return null; }
+      return (TermOffsets)getEntry(termOffsets, url, new TermOffsets());
+    }
+
+    /**
+     * Opens the readers used for summaries and cached content, one part
+     * after the other, so that searches for the segment wait at most for
+     * one of them.
+     */
+    public void open() throws IOException {
+      boolean hasOffsets = fs.exists(new Path(segmentDir, TermOffsets.DIR_NAME));
+      synchronized (this) {
+        if (!closed && termOffsets == null) {
+          termOffsets = hasOffsets
+            ? getReaders(TermOffsets.DIR_NAME) : new MapFile.Reader[0];
+        }
+      }
+      synchronized (this) {
+        if (!closed && parseText == null)
+          parseText = getReaders(ParseText.DIR_NAME);
+      }
+      synchronized (this) {
+        if (!closed && parseData == null)
+          parseData = getReaders(ParseData.DIR_NAME);
+      }
+      synchronized (this) {
+        if (!closed && crawl == null)
+          crawl = getReaders(CrawlDatum.FETCH_DIR_NAME);
+      }
+      if (!fs.exists(new Path(segmentDir, Content.DIR_NAME)))
+        return;                                   // content not stored
+      synchronized (this) {
+        if (!closed && content == null)
+          content = getReaders(Content.DIR_NAME);
+      }
+    }
+
     private MapFile.Reader[] getReaders(String subDir) throws IOException {
       return MapFileOutputFormat.getReaders(fs, new Path(segmentDir, subDir), this.conf);
     }
@@ -95,10 +164,12 @@ public class FetchedSegments implements HitSummarizer, HitContent {
       return MapFileOutputFormat.getEntry(readers, PARTITIONER, url, entry);
     }
 
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
+      closed = true;
       if (content != null) { closeReaders(content); }
       if (parseText != null) { closeReaders(parseText); }
       if (parseData != null) { closeReaders(parseData); }
+      if (termOffsets != null) { closeReaders(termOffsets); }
       if (crawl != null) { closeReaders(crawl); }
     }
 
@@ -113,10 +184,30 @@ public class FetchedSegments implements HitSummarizer, HitContent {
   private HashMap segments = new HashMap();
   private Summarizer summarizer;
 
-  /** Construct given a directory containing fetcher output. */
+  /** Opens the readers of segments in the background, or null. */
+  private ExecutorService opener;
+  /** Builds summaries, on at most <code>searcher.summary.threads</code>
+   * threads. */
+  private ExecutorService summarizers;
+  private final AtomicInteger opened = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+
+  /** Construct given a directory containing fetcher output.  Searches can
+   * start at once: the readers of each segment are opened when it is first
+   * used, and, if <code>searcher.segments.warmup</code> is true, in the
+   * background on <code>searcher.open.threads</code> threads. */
   public FetchedSegments(FileSystem fs, String segmentsDir, Configuration conf) throws IOException {
     Path[] segmentDirs = fs.listPaths(new Path(segmentsDir));
     this.summarizer = new SummarizerFactory(conf).getSummarizer();
+    int threads = Math.max(conf.getInt("searcher.summary.threads", 16), 1);
+    this.summarizers = Executors.newFixedThreadPool(threads,
+                                                    new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "FetchedSegments summarizer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
 
     if (segmentDirs != null) {
         for (int i = 0; i < segmentDirs.length; i++) {
@@ -129,6 +220,66 @@ public class FetchedSegments implements HitSummarizer, HitContent {
 
         }
     }
+    if (conf.getBoolean("searcher.segments.warmup", true) && !segments.isEmpty()) {
+      warmUp(Math.min(conf.getInt("searcher.open.threads", 8), segments.size()));
+    }
+  }
+
+  /** Opens the readers of all segments on a pool of threads. */
+  private void warmUp(int threads) {
+    final long start = System.currentTimeMillis();
+    final int total = segments.size();
+    opener = Executors.newFixedThreadPool(Math.max(threads, 1),
+                                          new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "FetchedSegments opener");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    Iterator iterator = segments.values().iterator();
+    while (iterator.hasNext()) {
+      final Segment segment = (Segment)iterator.next();
+      opener.execute(new Runnable() {
+          public void run() {
+            int done;
+            try {
+              segment.open();
+              done = opened.incrementAndGet() + failed.get();
+            } catch (IOException e) {             // opened again when used
+              if (LOG.isWarnEnabled()) {
+                LOG.warn("Cannot open segment " + segment.segmentDir + ": " + e);
+              }
+              done = failed.incrementAndGet() + opened.get();
+            }
+            if (done == total && LOG.isInfoEnabled()) {
+              LOG.info("opened the readers of " + opened.get() + " of "
+                       + total + " segments in "
+                       + (System.currentTimeMillis() - start) + " ms");
+            }
+          }
+        });
+    }
+    opener.shutdown();                            // once all are opened
+  }
+
+  /** Returns the number of segments whose readers were opened in the
+   * background. */
+  public int getOpenedSegments() {
+    return opened.get();
+  }
+
+  /** Returns the number of segments whose readers could not be opened in
+   * the background; they are opened again when used. */
+  public int getFailedSegments() {
+    return failed.get();
+  }
+
+  /** True once the readers of all segments were opened in the background,
+   * or if they are only opened when used.  Segments that failed to open are
+   * not warm. */
+  public boolean isWarm() {
+    return opener == null || opened.get() == segments.size();
   }
 
   public String[] getSegmentNames() {
@@ -156,54 +307,97 @@ public class FetchedSegments implements HitSummarizer, HitContent {
     throws IOException {
 
     if (this.summarizer == null) { return new Summary(); }
-    String text = getSegment(details).getParseText(getUrl(details)).getText();
-    return this.summarizer.getSummary(text, query);
+    long start = System.currentTimeMillis();
+    Segment segment = getSegment(details);
+    Text url = getUrl(details);
+    String text = segment.getParseText(url).getText();
+    TermOffsets offsets = null;
+    if (this.summarizer instanceof TermOffsetsSummarizer) {
+      offsets = segment.getTermOffsets(url);
+      if (offsets != null && !fits(offsets, text)) {
+        if (LOG.isWarnEnabled()) {
+          LOG.warn("term offsets of " + url + " do not match its text");
+        }
+        offsets = null;                           // summarize the text
+      }
+    }
+    long read = System.currentTimeMillis();
+    Summary summary = (offsets != null)
+      ? ((TermOffsetsSummarizer) this.summarizer).getSummary(text, offsets, query)
+      : this.summarizer.getSummary(text, query);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("summary of " + url + " (" + text.length() + " chars"
+                + ((offsets != null) ? ", term offsets" : "") + "): read in "
+                + (read - start) + " ms, summarized in "
+                + (System.currentTimeMillis() - read) + " ms");
+    }
+    return summary;
   }
     
-  private class SummaryThread extends Thread {
-    private HitDetails details;
-    private Query query;
-
-    private Summary summary;
-    private Throwable throwable;
-
-    public SummaryThread(HitDetails details, Query query) {
-      this.details = details;
-      this.query = query;
+  /** True if the tokens of <code>offsets</code> lie within
+   * <code>text</code>, which the offsets do not identify otherwise. */
+  private static boolean fits(TermOffsets offsets, String text) {
+    int length = text.length();
+    for (int i = 0; i < offsets.size(); i++) {
+      int start = offsets.getStart(i);
+      int end = offsets.getEnd(i);
+      if (start < 0 || start > end || end > length)
+        return false;
     }
-
-    public void run() {
-      try {
-        this.summary = getSummary(details, query);
-      } catch (Throwable throwable) {
-        this.throwable = throwable;
-      }
-    }
-
+    return true;
   }
 
-
   public Summary[] getSummary(HitDetails[] details, Query query)
     throws IOException {
-    SummaryThread[] threads = new SummaryThread[details.length];
-    for (int i = 0; i < threads.length; i++) {
-      threads[i] = new SummaryThread(details[i], query);
-      threads[i].start();
+    return getSummary(details, query, null);
+  }
+
+  public Summary[] getSummary(HitDetails[] details, final Query query,
+                              Deadline deadline)
+    throws IOException {
+    Future[] futures = new Future[details.length];
+    for (int i = 0; i < futures.length; i++) {
+      if (details[i] == null) continue;           // details not available
+      final HitDetails hit = details[i];
+      futures[i] = summarizers.submit(new Callable() {
+          public Object call() throws IOException {
+            return getSummary(hit, query);
+          }
+        });
     }
 
     Summary[] results = new Summary[details.length];
-    for (int i = 0; i < threads.length; i++) {
-      try {
-        threads[i].join();
-      } catch (InterruptedException e) {
-        throw new RuntimeException(e);
+    boolean limited = deadline != null && deadline.isLimited();
+    try {
+      for (int i = 0; i < futures.length; i++) {
+        if (futures[i] == null) {
+          results[i] = new Summary();
+          continue;
+        }
+        try {
+          results[i] = (Summary)(limited
+            ? futures[i].get(deadline.remaining(), TimeUnit.MILLISECONDS)
+            : futures[i].get());
+        } catch (TimeoutException e) {            // out of time: empty
+          deadline.exhaust(Deadline.Stage.SUMMARY);
+          results[i] = new Summary();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException)e.getCause();
+          }
+          throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
       }
-      if (threads[i].throwable instanceof IOException) {
-        throw (IOException)threads[i].throwable;
-      } else if (threads[i].throwable != null) {
-        throw new RuntimeException(threads[i].throwable);
+    } finally {
+      // drop the summaries still queued or running.  Not interrupted: an
+      // interrupt could close the channels of the shared segment readers.
+      for (int i = 0; i < futures.length; i++) {
+        if (futures[i] != null) {
+          futures[i].cancel(false);
+        }
       }
-      results[i] = threads[i].summary;
     }
     return results;
   }
@@ -218,6 +412,10 @@ public class FetchedSegments implements HitSummarizer, HitContent {
   }
 
   public void close() throws IOException {
+    if (opener != null) {
+      opener.shutdownNow();
+    }
+    summarizers.shutdownNow();
     Iterator iterator = segments.values().iterator();
     while (iterator.hasNext()) {
       ((Segment) iterator.next()).close();
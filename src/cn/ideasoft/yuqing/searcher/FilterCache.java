@@ -0,0 +1,307 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.searcher;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+
+import cn.ideasoft.yuqing.util.SegmentedLRUCache;
+
+/**
+ * A cache of the documents matched by filter clauses, shared by all the
+ * {@link IndexSearcher}s of a {@link Configuration}.
+ *
+ * <p>The documents of a clause are cached separately for each sub-index,
+ * keyed by the identity and version of the sub-index, so that the entries
+ * of unchanged indexes remain valid when the searcher is reopened over a
+ * new set of indexes. Sparse document sets are kept as delta-encoded
+ * variable-length integers, dense ones as bit sets, whichever is smaller.</p>
+ *
+ * <p>The total size of the entries is bounded by
+ * <tt>searcher.filter.cache.bytes</tt>; a size of zero disables caching.
+ * Entries are kept in a number of independently locked LRU segments, so the
+ * cache may be used by concurrent searches.</p>
+ */
+public class FilterCache {
+
+  public static final Log LOG = LogFactory.getLog(FilterCache.class);
+
+  /** Maximum size of the cached document sets, in bytes. */
+  public static final String CACHE_BYTES = "searcher.filter.cache.bytes";
+
+  private static final int NUM_SEGMENTS = 16;
+
+  /* Approximate overhead of a cache entry: the key, the clause query and
+   * the map entry objects. */
+  private static final int ENTRY_OVERHEAD = 256;
+
+  private final Cache cache;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Returns the cache shared by all users of this configuration, creating it
+   * on first use.
+   */
+  public static FilterCache get(Configuration conf) {
+    String key = FilterCache.class.getName();
+    synchronized (conf) {
+      FilterCache cache = (FilterCache) conf.getObject(key);
+      if (cache == null) {
+        cache = new FilterCache(conf.getLong(CACHE_BYTES, 32 * 1024 * 1024));
+        conf.setObject(key, cache);
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * @param maxBytes upper bound of the memory used by the document sets;
+   * zero or less disables caching.
+   */
+  public FilterCache(long maxBytes) {
+    cache = new Cache(maxBytes);
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Filter cache: " + maxBytes + " bytes");
+    }
+  }
+
+  /** One of the indexes searched together, and its first document number. */
+  public static class SubIndex {
+    private final String id;
+    private final IndexReader reader;
+    private final int base;
+
+    /**
+     * @param id the identity of the index, including its version: entries
+     * are shared by all sub-indexes with the same id.
+     * @param reader the reader of this index alone.
+     * @param base the number of its first document in the searched reader.
+     */
+    public SubIndex(String id, IndexReader reader, int base) {
+      this.id = id;
+      this.reader = reader;
+      this.base = base;
+    }
+
+    public String toString() {
+      return id + "+" + base;
+    }
+  }
+
+  /**
+   * Returns the documents matched by all the clauses, over all the
+   * sub-indexes. The result may be shared with the cache and must not be
+   * modified.
+   * @param queries the clauses, used as cache keys.
+   * @param filters the filter computing the documents of each clause.
+   * @param maxDoc the number of documents of the searched reader.
+   */
+  public BitSet bits(SubIndex[] subIndexes, int maxDoc,
+                     Query[] queries, Filter[] filters) throws IOException {
+    BitSet result = null;
+    boolean shared = false;
+    for (int c = 0; c < queries.length; c++) {
+      BitSet bits;
+      boolean sharedBits = false;
+      if (subIndexes.length == 1 && subIndexes[0].base == 0) {
+        DocSet docs = docs(subIndexes[0], queries[c], filters[c]);
+        if (docs.bits != null) {
+          bits = docs.bits;
+          sharedBits = true;
+        } else {
+          bits = new BitSet(maxDoc);
+          docs.addTo(bits, 0);
+        }
+      } else {
+        bits = new BitSet(maxDoc);
+        for (int i = 0; i < subIndexes.length; i++) {
+          docs(subIndexes[i], queries[c], filters[c])
+            .addTo(bits, subIndexes[i].base);
+        }
+      }
+
+      if (result == null) {
+        result = bits;
+        shared = sharedBits;
+      } else {
+        if (shared) {
+          result = (BitSet) result.clone();
+          shared = false;
+        }
+        result.and(bits);
+      }
+    }
+    return result;
+  }
+
+  /** Returns the documents of a clause in a sub-index, cached. */
+  private DocSet docs(SubIndex subIndex, Query query, Filter filter)
+    throws IOException {
+    if (!cache.isEnabled()) {
+      misses.incrementAndGet();
+      return DocSet.compress(filter.bits(subIndex.reader),
+                             subIndex.reader.maxDoc());
+    }
+    Key key = new Key(subIndex.id, query);
+    DocSet docs = cache.get(key);
+    if (docs != null) {
+      hits.incrementAndGet();
+      return docs;
+    }
+    misses.incrementAndGet();
+    docs = DocSet.compress(filter.bits(subIndex.reader),
+                           subIndex.reader.maxDoc());
+    cache.put(key, docs);
+    return docs;
+  }
+
+  public long getHits() { return hits.get(); }
+
+  public long getMisses() { return misses.get(); }
+
+  public long getEvictions() { return cache.getEvictions(); }
+
+  /** Returns the size of all entries, in bytes. */
+  public long getBytes() {
+    return cache.getBytes();
+  }
+
+  public String toString() {
+    long h = hits.get(), m = misses.get();
+    return "hits=" + h + ", misses=" + m + ", evictions=" + getEvictions()
+      + ", hitRate=" + (h + m == 0 ? 0f : (float)h / (h + m))
+      + ", bytes=" + getBytes();
+  }
+
+  /** The documents of a clause in a sub-index. */
+  private static final class DocSet {
+    /** The documents, when dense; read only. */
+    final BitSet bits;
+    /** The gaps between the documents as VInts, when sparse. */
+    final byte[] gaps;
+    final int size;
+
+    private DocSet(BitSet bits, byte[] gaps, int size) {
+      this.bits = bits;
+      this.gaps = gaps;
+      this.size = size;
+    }
+
+    /** Keeps the smallest of the bit set and its delta encoding. */
+    static DocSet compress(BitSet bits, int maxDoc) {
+      int maxBytes = maxDoc / 8;
+      byte[] gaps = new byte[Math.min(64, maxBytes)];
+      int length = 0;
+      int previous = 0;
+      for (int doc = bits.nextSetBit(0); doc >= 0;
+           doc = bits.nextSetBit(doc + 1)) {
+        if (length + 5 > gaps.length) {
+          if (length + 5 > maxBytes) {
+            return new DocSet(bits, null, bits.size() / 8);
+          }
+          byte[] grown = new byte[Math.min(gaps.length * 2 + 5, maxBytes)];
+          System.arraycopy(gaps, 0, grown, 0, length);
+          gaps = grown;
+        }
+        int gap = doc - previous;
+        previous = doc;
+        while ((gap & ~0x7F) != 0) {
+          gaps[length++] = (byte)((gap & 0x7F) | 0x80);
+          gap >>>= 7;
+        }
+        gaps[length++] = (byte)gap;
+      }
+      byte[] trimmed = new byte[length];
+      System.arraycopy(gaps, 0, trimmed, 0, length);
+      return new DocSet(null, trimmed, length);
+    }
+
+    /** Sets the bits of these documents, shifted by <code>base</code>. */
+    void addTo(BitSet target, int base) {
+      if (bits != null) {
+        if (base == 0) {
+          target.or(bits);
+        } else {
+          for (int doc = bits.nextSetBit(0); doc >= 0;
+               doc = bits.nextSetBit(doc + 1)) {
+            target.set(base + doc);
+          }
+        }
+        return;
+      }
+      int doc = base;
+      int i = 0;
+      while (i < gaps.length) {
+        int gap = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = gaps[i++];
+          gap |= (b & 0x7F) << shift;
+          shift += 7;
+        } while (b < 0);
+        doc += gap;
+        target.set(doc);
+      }
+    }
+  }
+
+  private static final class Key {
+    final String index;
+    final Query query;
+    final int hash;
+
+    Key(String index, Query query) {
+      this.index = index;
+      this.query = query;
+      this.hash = index.hashCode() * 31 + query.hashCode();
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return hash == other.hash
+        && index.equals(other.index) && query.equals(other.query);
+    }
+  }
+
+  /** The cached document sets, sized by the memory they use. */
+  private static final class Cache extends SegmentedLRUCache<Key, DocSet> {
+    Cache(long maxBytes) {
+      super(maxBytes, NUM_SEGMENTS);
+    }
+
+    protected long sizeOf(Key key, DocSet value) {
+      return ENTRY_OVERHEAD + 2 * key.index.length() + value.size;
+    }
+  }
+}
@@ -27,4 +27,8 @@ public interface HitDetailer {
   /** Returns the details for a set of hits.  Hook for parallel IPC calls. */
   HitDetails[] getDetails(Hit[] hits) throws IOException;
 
+  /** Returns the details for a set of hits, within a deadline.  The details
+   * of the hits not reached before it expires are null. */
+  HitDetails[] getDetails(Hit[] hits, Deadline deadline) throws IOException;
+
 }
@@ -27,6 +27,15 @@ public interface HitInlinks extends Closeable {
   /** Returns the anchors of a hit document. */
   String[] getAnchors(HitDetails details) throws IOException;
 
+  /** Returns the anchors of a set of hit documents.  Hook for batched
+   * lookups and parallel IPC calls. */
+  String[][] getAnchors(HitDetails[] details) throws IOException;
+
+  /** Returns the anchors of a set of hit documents, within a deadline.  The
+   * anchors not looked up before it expires are null. */
+  String[][] getAnchors(HitDetails[] details, Deadline deadline)
+    throws IOException;
+
   /** Return the inlinks of a hit document. */
   Inlinks getInlinks(HitDetails details) throws IOException;
 }
@@ -37,4 +37,14 @@ public interface HitSummarizer {
    * @param query  indicates what should be higlighted in the summary text
    */
   Summary[] getSummary(HitDetails[] details, Query query) throws IOException;
+
+  /**
+   * Returns summaries for a set of details, within a deadline.  The
+   * summaries not built before it expires are empty.
+   *
+   * @param details the details of hits to be summarized, or null
+   * @param query  indicates what should be higlighted in the summary text
+   */
+  Summary[] getSummary(HitDetails[] details, Query query, Deadline deadline)
+    throws IOException;
 }
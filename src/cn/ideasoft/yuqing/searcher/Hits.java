@@ -31,6 +31,8 @@ public final class Hits implements Writable {
   private long total;
   private boolean totalIsExact = true;
   private Hit[] top;
+  private Facets facets;
+  private float rankBound;
 
   public Hits() {}
 
@@ -65,6 +67,19 @@ public final class Hits implements Writable {
     return results;
   }
 
+  /** Returns the facet counts of the hits, or null if none were asked. */
+  public Facets getFacets() { return facets; }
+
+  /** Set {@link #getFacets()}. */
+  public void setFacets(Facets facets) { this.facets = facets; }
+
+  /** Returns an upper bound of the boost of the hits that were not
+   * collected, when searching stopped early on indexes sorted by static
+   * rank, or zero if all hits were collected. */
+  public float getRankBound() { return rankBound; }
+
+  /** Set {@link #getRankBound()}. */
+  public void setRankBound(float rankBound) { this.rankBound = rankBound; }
 
   public void write(DataOutput out) throws IOException {
     out.writeLong(total);                         // write total hits
@@ -78,6 +93,11 @@ public final class Hits implements Writable {
       h.getSortValue().write(out);                // write sortValue
       Text.writeString(out, h.getDedupValue());   // write dedupValue
     }
+    out.writeFloat(rankBound);                    // write rank bound
+    out.writeBoolean(totalIsExact);               // write exactness of total
+    out.writeBoolean(facets != null);             // write facets
+    if (facets != null)
+      facets.write(out);
   }
 
   public void readFields(DataInput in) throws IOException {
@@ -107,6 +127,14 @@ public final class Hits implements Writable {
 
       top[i] = new Hit(indexDocNo, sortValue, dedupValue);
     }
+
+    rankBound = in.readFloat();                   // read rank bound
+    totalIsExact = in.readBoolean();              // read exactness of total
+    facets = null;
+    if (in.readBoolean()) {                       // read facets
+      facets = new Facets();
+      facets.readFields(in);
+    }
   }
 
 }
@@ -20,18 +20,33 @@ package cn.ideasoft.yuqing.searcher;
 import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
 
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Similarity;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
@@ -42,8 +57,19 @@ import org.apache.hadoop.conf.*;
 import cn.ideasoft.yuqing.indexer.*;
 
 /** Implements {@link Searcher} and {@link HitDetailer} for either a single
- * merged index, or a set of indexes. */
+ * merged index, or a set of indexes.
+ *
+ * <p>If every index has a tier-1 index built by {@link IndexPruner}, a
+ * search is answered from the tier-1 indexes when they return the hits
+ * requested, and the static rank of the last one is no lower than that of
+ * the documents left out of the tiers; from the full indexes otherwise.
+ * Searches sorted by a field or counting facets always use the full
+ * indexes. */
 public class IndexSearcher implements Searcher, HitDetailer {
+  public static final Log LOG = LogFactory.getLog(IndexSearcher.class);
+
+  /** Number of tier-1 searches between two logs of their statistics. */
+  private static final int TIER_LOG_INTERVAL = 1000;
 
   private org.apache.lucene.search.Searcher luceneSearcher;
   private org.apache.lucene.index.IndexReader reader;
@@ -51,16 +77,55 @@ public class IndexSearcher implements Searcher, HitDetailer {
   private FileSystem fs;
   private Configuration conf;
   private QueryFilters queryFilters;
+  private int facetLimit;
+  private Set allowedFacets;
+
+  private org.apache.lucene.search.Searcher tierSearcher;
+  private IndexReader tierReader;
+  private LuceneQueryOptimizer tierOptimizer;
+  private int[] tierDocs;                // full index number of tier-1 docs
+  private byte[] tierBoosts;             // boosts of tier-1 docs, or null
+  private float prunedBoost;             // max boost of docs not in tier-1
+
+  private final AtomicLong tierSearches = new AtomicLong();
+  private final AtomicLong tierFallbacks = new AtomicLong();
+  private final AtomicLong tierTime = new AtomicLong();
+  private final AtomicLong fallbackTime = new AtomicLong();
 
-  /** Construct given a number of indexes. */
+  /** Scores tier-1 hits with the document frequencies of the full index,
+   * so that they score as they would in the full index. */
+  private class FullIndexSimilarity extends YuQingSimilarity {
+    public float idf(Term term, org.apache.lucene.search.Searcher searcher)
+      throws IOException {
+      return idf(luceneSearcher.docFreq(term), luceneSearcher.maxDoc());
+    }
+  }
+
+  /** Construct given a number of indexes, opened in parallel. */
   public IndexSearcher(Path[] indexDirs, Configuration conf) throws IOException {
-    IndexReader[] readers = new IndexReader[indexDirs.length];
+    FilterCache.SubIndex[] subIndexes = new FilterCache.SubIndex[indexDirs.length];
+    int[] starts = new int[indexDirs.length];
+    boolean sorted = true;
     this.conf = conf;
     this.fs = FileSystem.get(conf);
+    long start = System.currentTimeMillis();
+    String[] ids = new String[indexDirs.length];
+    IndexReader[] readers = openReaders(indexDirs, ids);
+    long[] versions = new long[indexDirs.length];
+    int base = 0;
     for (int i = 0; i < indexDirs.length; i++) {
-      readers[i] = IndexReader.open(getDirectory(indexDirs[i]));
+      subIndexes[i] = new FilterCache.SubIndex(ids[i], readers[i], base);
+      starts[i] = base;
+      versions[i] = readers[i].getVersion();
+      sorted &= isSorted(indexDirs[i]);
+      base += readers[i].maxDoc();
+    }
+    if (LOG.isInfoEnabled()) {
+      LOG.info("opened " + indexDirs.length + " indexes in "
+               + (System.currentTimeMillis() - start) + " ms");
     }
-    init(new MultiReader(readers), conf);
+    init(new MultiReader(readers), subIndexes, sorted ? starts : null, conf);
+    initTier(indexDirs, starts, versions, sorted);
   }
 
   /** Construct given a single merged index. */
@@ -68,35 +133,282 @@ public class IndexSearcher implements Searcher, HitDetailer {
     throws IOException {
     this.conf = conf;
     this.fs = FileSystem.get(conf);
-    init(IndexReader.open(getDirectory(index)), conf);
+    Directory directory = getDirectory(index);
+    IndexReader reader = IndexReader.open(directory);
+    init(reader, new FilterCache.SubIndex[] {
+        new FilterCache.SubIndex(getId(index, directory), reader, 0) },
+         isSorted(index) ? new int[] { 0 } : null, conf);
+    initTier(new Path[] { index }, new int[] { 0 },
+             new long[] { reader.getVersion() }, isSorted(index));
   }
 
-  private void init(IndexReader reader, Configuration conf) throws IOException {
+  /**
+   * @param starts the first document of each sub-index, if all are sorted
+   * by static rank, or null.
+   */
+  private void init(IndexReader reader, FilterCache.SubIndex[] subIndexes,
+                    int[] starts, Configuration conf) throws IOException {
     this.reader = reader;
     this.luceneSearcher = new org.apache.lucene.search.IndexSearcher(reader);
     this.luceneSearcher.setSimilarity(new YuQingSimilarity());
-    this.optimizer = new LuceneQueryOptimizer(conf);
+    StaticRank rank = null;
+    byte[] boosts = starts == null ? null : reader.norms("site");
+    if (boosts != null) {
+      rank = new StaticRank(starts, reader.maxDoc(), boosts);
+    }
+    this.optimizer = new LuceneQueryOptimizer(conf, subIndexes, rank);
     this.queryFilters = new QueryFilters(conf);
+    this.facetLimit = conf.getInt("searcher.facet.limit", 100);
+    this.allowedFacets = new HashSet(Arrays.asList
+      (conf.get("searcher.facet.fields", "site,date,type,lang").trim()
+       .split("\\s*,\\s*")));
+  }
+
+  /**
+   * Opens the tier-1 indexes, if every index has an up to date one.
+   * @param versions the version of each index.
+   */
+  private void initTier(Path[] indexDirs, int[] starts, long[] versions,
+                        boolean sorted) throws IOException {
+    if (!conf.getBoolean("searcher.tier", true) || indexDirs.length == 0)
+      return;
+    Path[] tiers = new Path[indexDirs.length];
+    int[][] docs = new int[indexDirs.length][];
+    float prunedBoost = 0.0f;
+    for (int i = 0; i < indexDirs.length; i++) {
+      tiers[i] = new Path(indexDirs[i], IndexPruner.TIER_NAME);
+      if (!fs.exists(tiers[i]))
+        return;
+      int end = i + 1 < starts.length ? starts[i + 1] : reader.maxDoc();
+      IndexPruner.TierDocs read =
+        IndexPruner.readDocs(fs, tiers[i], versions[i], end - starts[i]);
+      if (read == null) {
+        if (LOG.isWarnEnabled()) {
+          LOG.warn("ignoring tier-1 indexes: " + tiers[i] + " is out of date");
+        }
+        return;
+      }
+      docs[i] = read.docs;
+      prunedBoost = Math.max(prunedBoost, read.prunedBoost);
+    }
+    String[] ids = new String[tiers.length];
+    IndexReader[] readers = openReaders(tiers, ids);
+    FilterCache.SubIndex[] subIndexes = new FilterCache.SubIndex[tiers.length];
+    int[] tierStarts = new int[tiers.length];
+    int base = 0;
+    for (int i = 0; i < tiers.length; i++) {
+      subIndexes[i] = new FilterCache.SubIndex(ids[i], readers[i], base);
+      tierStarts[i] = base;
+      base += readers[i].maxDoc();
+    }
+
+    this.tierDocs = new int[base];
+    for (int i = 0; i < docs.length; i++) {
+      for (int j = 0; j < docs[i].length; j++) {
+        tierDocs[tierStarts[i] + j] = starts[i] + docs[i][j];
+      }
+    }
+    this.tierReader =
+      readers.length == 1 ? readers[0] : new MultiReader(readers);
+    this.tierSearcher = new org.apache.lucene.search.IndexSearcher(tierReader);
+    this.tierSearcher.setSimilarity(new FullIndexSimilarity());
+    this.tierBoosts = tierReader.norms("site");
+    this.prunedBoost = prunedBoost;
+    StaticRank rank = null;
+    byte[] boosts = sorted ? tierBoosts : null;
+    if (boosts != null) {
+      rank = new StaticRank(tierStarts, tierReader.maxDoc(), boosts);
+    }
+    this.tierOptimizer = new LuceneQueryOptimizer(conf, subIndexes, rank);
+    if (LOG.isInfoEnabled()) {
+      LOG.info("searching " + tierReader.numDocs() + " tier-1 documents of "
+               + reader.numDocs() + " first");
+    }
+  }
+
+  /**
+   * Opens the readers of indexes, on at most
+   * <code>searcher.open.threads</code> threads, so that a server with many
+   * indexes starts faster.  If one fails, the others are closed.
+   *
+   * @param ids set to the {@link #getId(Path, Directory)} of each index.
+   */
+  private IndexReader[] openReaders(final Path[] dirs, final String[] ids)
+    throws IOException {
+    final IndexReader[] readers = new IndexReader[dirs.length];
+    int threads = Math.min(conf.getInt("searcher.open.threads", 8),
+                           dirs.length);
+    ExecutorService pool =
+      Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "IndexSearcher opener");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    try {
+      Future[] futures = new Future[dirs.length];
+      for (int i = 0; i < dirs.length; i++) {
+        final int index = i;
+        futures[i] = pool.submit(new Callable() {
+            public Object call() throws IOException {
+              Directory directory = getDirectory(dirs[index]);
+              readers[index] = IndexReader.open(directory);
+              ids[index] = getId(dirs[index], directory);
+              return null;
+            }
+          });
+      }
+      IOException failure = null;
+      for (int i = 0; i < futures.length; i++) {
+        try {
+          futures[i].get();
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause() instanceof IOException
+              ? (IOException)e.getCause()
+              : new IOException("Cannot open " + dirs[i] + ": " + e.getCause());
+          }
+        } catch (InterruptedException e) {
+          if (failure == null) {
+            failure = new IOException("Interrupted while opening " + dirs[i]);
+          }
+        }
+      }
+      if (failure != null) {
+        for (int i = 0; i < readers.length; i++) {
+          if (readers[i] != null)
+            readers[i].close();
+        }
+        throw failure;
+      }
+      return readers;
+    } finally {
+      pool.shutdown();
+    }
   }
 
   private Directory getDirectory(Path file) throws IOException {
     if ("local".equals(this.fs.getName())) {
       return FSDirectory.getDirectory(file.toString(), false);
     } else {
-      return new FsDirectory(this.fs, file, false, this.conf);
+      return new FsDirectory(this.fs, file, false, this.conf,
+                             BlockCache.get(this.conf));
     }
   }
 
+  /** True if an index was sorted by {@link IndexSorter}. */
+  private boolean isSorted(Path index) throws IOException {
+    return this.fs.exists(new Path(index, IndexSorter.SORTED_NAME));
+  }
+
+  /** Identifies an index and its version, for the {@link FilterCache}. */
+  private String getId(Path index, Directory directory) throws IOException {
+    return this.fs.getName() + ":" + index + "@"
+      + IndexReader.getCurrentVersion(directory);
+  }
+
   public Hits search(Query query, int numHits,
                      String dedupField, String sortField, boolean reverse)
 
     throws IOException {
+    return search(query, numHits, dedupField, sortField, reverse, null);
+  }
+
+  public Hits search(Query query, int numHits,
+                     String dedupField, String sortField, boolean reverse,
+                     Deadline deadline)
+    throws IOException {
+    return search(query, numHits, dedupField, sortField, reverse, deadline,
+                  null);
+  }
+
+  public Hits search(Query query, int numHits,
+                     String dedupField, String sortField, boolean reverse,
+                     Deadline deadline, String[] facetFields)
+    throws IOException {
     org.apache.lucene.search.BooleanQuery luceneQuery =
       this.queryFilters.filter(query);
-    return translateHits
+    FacetCounter counter = null;
+    if (facetFields != null) {
+      facetFields = FacetCounter.select(facetFields, allowedFacets);
+      if (facetFields.length > 0) {
+        counter = new FacetCounter(reader, facetFields);
+      }
+    }
+    StaticRank.Bound bound = new StaticRank.Bound();
+    if (tierSearcher != null && sortField == null && counter == null) {
+      Hits hits = searchTier(luceneQuery, numHits, dedupField, deadline);
+      if (hits != null)
+        return hits;
+    }
+    long start = System.currentTimeMillis();
+    Hits hits = translateHits
       (optimizer.optimize(luceneQuery, luceneSearcher, numHits,
-                          sortField, reverse),
+                          sortField, reverse, deadline, counter, bound),
        dedupField, sortField);
+    hits.setRankBound(bound.boost);
+    if (counter != null) {
+      hits.setFacets(counter.getFacets(facetLimit));
+    }
+    if (tierSearcher != null && sortField == null && counter == null) {
+      fallbackTime.addAndGet(System.currentTimeMillis() - start);
+    }
+    return hits;
+  }
+
+  /** Searches the tier-1 indexes, returning null if they have fewer hits
+   * than requested, or if a document left out of the tiers may rank before
+   * the last of them, and the full indexes must be searched. */
+  private Hits searchTier(org.apache.lucene.search.BooleanQuery luceneQuery,
+                          int numHits, String dedupField, Deadline deadline)
+    throws IOException {
+    long start = System.currentTimeMillis();
+    StaticRank.Bound bound = new StaticRank.Bound();
+    TopDocs topDocs = tierOptimizer.optimize
+      (luceneQuery, tierSearcher, numHits, null, false, deadline, null, bound);
+    long elapsed = System.currentTimeMillis() - start;
+
+    long searches = tierSearches.incrementAndGet();
+    Hits hits = null;
+    if (topDocs.scoreDocs.length < numHits
+        || boostOf(topDocs.scoreDocs[numHits - 1].doc) < prunedBoost) {
+      tierFallbacks.incrementAndGet();
+      fallbackTime.addAndGet(elapsed);
+    } else {
+      tierTime.addAndGet(elapsed);
+      ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+      for (int i = 0; i < scoreDocs.length; i++) {
+        scoreDocs[i].doc = tierDocs[scoreDocs[i].doc];
+      }
+      hits = translateHits(topDocs, dedupField, null);
+      hits.setRankBound(Math.max(bound.boost, prunedBoost));
+      hits.setTotalIsExact(false);                // only the tier-1 hits
+    }
+    if (searches % TIER_LOG_INTERVAL == 0 && LOG.isInfoEnabled()) {
+      LOG.info(getTierStats());
+    }
+    return hits;
+  }
+
+  /** Returns the boost of a tier-1 document, its static rank. */
+  private float boostOf(int tierDoc) {
+    return tierBoosts == null ? 1.0f
+      : Similarity.decodeNorm(tierBoosts[tierDoc]);
+  }
+
+  /** Reports the share of searches answered by the tier-1 indexes, and the
+   * average time of those searches and of the others. */
+  public String getTierStats() {
+    long searches = tierSearches.get();
+    long fallbacks = tierFallbacks.get();
+    long answered = searches - fallbacks;
+    return "tier-1: " + searches + " searches, " + fallbacks
+      + " fell back to the full index ("
+      + (searches == 0 ? 0 : fallbacks * 100 / searches) + "%), "
+      + (answered == 0 ? 0 : tierTime.get() / answered) + " ms vs. "
+      + (fallbacks == 0 ? 0 : fallbackTime.get() / fallbacks)
+      + " ms on average";
   }
 
   public String getExplanation(Query query, Hit hit) throws IOException {
@@ -122,9 +434,19 @@ public class IndexSearcher implements Searcher, HitDetailer {
   }
 
   public HitDetails[] getDetails(Hit[] hits) throws IOException {
+    return getDetails(hits, null);
+  }
+
+  public HitDetails[] getDetails(Hit[] hits, Deadline deadline)
+    throws IOException {
     HitDetails[] results = new HitDetails[hits.length];
-    for (int i = 0; i < hits.length; i++)
+    for (int i = 0; i < hits.length; i++) {
+      if (deadline != null && deadline.isExpired()) {
+        deadline.exhaust(Deadline.Stage.DETAILS);
+        break;
+      }
       results[i] = getDetails(hits[i]);
+    }
     return results;
   }
 
@@ -169,6 +491,8 @@ public class IndexSearcher implements Searcher, HitDetailer {
   public void close() throws IOException {
     if (luceneSearcher != null) { luceneSearcher.close(); }
     if (reader != null) { reader.close(); }
+    if (tierSearcher != null) { tierSearcher.close(); }
+    if (tierReader != null) { tierReader.close(); }
   }
 
 }
@@ -34,6 +34,9 @@ import org.apache.hadoop.fs.Path;
 
 public class LinkDbInlinks implements HitInlinks {
   private static final Log LOG = LogFactory.getLog(LinkDbInlinks.class);
+
+  /** The number of hits looked up between two checks of a deadline. */
+  private static final int DEADLINE_BATCH = 8;
   
   private LinkDbReader linkdb = null;
   
@@ -49,6 +52,41 @@ public class LinkDbInlinks implements HitInlinks {
     return linkdb.getAnchors(new Text(details.getValue("url")));
   }
 
+  public String[][] getAnchors(HitDetails[] details) throws IOException {
+    return getAnchors(details, null);
+  }
+
+  public String[][] getAnchors(HitDetails[] details, Deadline deadline)
+    throws IOException {
+    // look up the hits with a url, leave null anchors for the others
+    int[] positions = new int[details.length];
+    int count = 0;
+    for (int i = 0; i < details.length; i++) {
+      if (details[i] != null && details[i].getValue("url") != null) {
+        positions[count++] = i;
+      }
+    }
+    // without a limited deadline, all in one batch
+    int batch = (deadline != null && deadline.isLimited())
+      ? DEADLINE_BATCH : Math.max(count, 1);
+    String[][] anchors = new String[details.length][];
+    for (int first = 0; first < count; first += batch) {
+      if (deadline != null && deadline.isExpired()) {
+        deadline.exhaust(Deadline.Stage.ANCHORS);
+        break;
+      }
+      Text[] urls = new Text[Math.min(batch, count - first)];
+      for (int i = 0; i < urls.length; i++) {
+        urls[i] = new Text(details[positions[first + i]].getValue("url"));
+      }
+      String[][] found = linkdb.getAnchors(urls);
+      for (int i = 0; i < urls.length; i++) {
+        anchors[positions[first + i]] = found[i];
+      }
+    }
+    return anchors;
+  }
+
   public Inlinks getInlinks(HitDetails details) throws IOException {
     return linkdb.getInlinks(new Text(details.getValue("url")));
   }
@@ -20,14 +20,13 @@ package cn.ideasoft.yuqing.searcher;
 import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.QueryFilter;
 import org.apache.lucene.search.*;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.misc.ChainedFilter;
 
 import org.apache.hadoop.conf.Configuration;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.ArrayList;
+import java.util.BitSet;
 
 import java.io.IOException;
 
@@ -35,54 +34,15 @@ import java.io.IOException;
  * caches these.  Only required clauses whose boost is zero are converted to
  * cached filters.  Range queries are converted to range filters.  This
  * accellerates query constraints like date, language, document format, etc.,
- * which do not affect ranking but might otherwise slow search considerably. */
+ * which do not affect ranking but might otherwise slow search considerably.
+ * The documents of each clause are cached per sub-index in the
+ * {@link FilterCache} of the configuration.
+ *
+ * <p>On indexes sorted by static rank, <tt>searcher.max.hits</tt> limits
+ * the hits collected from each sub-index: these are its highest ranked
+ * hits, and the static rank of the hits left is bounded.</p> */
 class LuceneQueryOptimizer {
 
-  // This thread provides a pseudo-clock service to all searching
-  // threads, so that they can count elapsed time with less overhead than
-  // repeatedly calling System.currentTimeMillis.
-  private TimerThread timerThread = null;
-
-  private static class TimerThread extends Thread {
-    private int tick;
-    // NOTE: we can avoid explicit synchronization here for several reasons:
-    // * updates to 32-bit-sized variables are atomic
-    // * only single thread modifies this value
-    // * use of volatile keyword ensures that it does not reside in
-    //   a register, but in main memory (so that changes are visible to
-    //   other threads).
-    // * visibility of changes does not need to be instantanous, we can
-    //   afford losing a tick or two.
-    //
-    // See section 17 of the Java Language Specification for details.
-    public volatile int timeCounter = 0;
-
-    boolean running = true;
-
-    public TimerThread(int tick) {
-      super("LQO timer thread");
-      this.tick = tick;
-      this.setDaemon(true);
-    }
-
-    public void run() {
-      while(running) {
-        timeCounter++;
-        try {
-          Thread.sleep(tick);
-        } catch (InterruptedException ie) {};
-      }
-    }
-  }
-
-  private void initTimerThread(int p) {
-    if (timerThread == null || !timerThread.isAlive()) {
-      timerThread = new TimerThread(p);
-      timerThread.start();
-    }
-  }
-  
-
   private static class TimeExceeded extends RuntimeException {
     public long maxTime;
     private int maxDoc;
@@ -94,86 +54,199 @@ class LuceneQueryOptimizer {
   }
 
   private static class LimitedCollector extends TopDocCollector {
-    private int maxHits;
-    private int maxTicks;
-    private int startTicks;
-    private TimerThread timer;
-    private int curTicks;
+    // the clock is read every CHECK_INTERVAL documents only
+    private static final int CHECK_INTERVAL = 64;
 
-    public LimitedCollector(int numHits, int maxHits, int maxTicks,
-            TimerThread timer) {
+    private int maxHits;
+    private long start;
+    private long expires;
+    private int count;
+    private FacetCounter counter;
+
+    // with a static rank: the hits collected from each sub-index, and the
+    // first document not collected from those that reached maxHits, or -1
+    private StaticRank rank;
+    private int[] counts;
+    private int[] stops;
+    private int numStopped;
+    private float bound;
+
+    /**
+     * @param expires the time at which to stop collecting, or
+     * <code>Long.MAX_VALUE</code>
+     * @param counter counts the facets of the hits collected, or null
+     */
+    public LimitedCollector(int numHits, int maxHits, long expires,
+                            FacetCounter counter) {
       super(numHits);
       this.maxHits = maxHits;
-      this.maxTicks = maxTicks;
-      if (timer != null) {
-    	this.timer = timer;
-        this.startTicks = timer.timeCounter;
-      }
+      this.expires = expires;
+      this.counter = counter;
+      this.start = System.currentTimeMillis();
+    }
+
+    /** Limits the hits collected from each sub-index of a sorted index. */
+    public LimitedCollector(int numHits, int maxHits, long expires,
+                            FacetCounter counter, StaticRank rank) {
+      this(numHits, maxHits, expires, counter);
+      this.rank = rank;
+      this.counts = new int[rank.getNumIndexes()];
+      this.stops = new int[rank.getNumIndexes()];
+      java.util.Arrays.fill(stops, -1);
     }
 
     public void collect(int doc, float score) {
-      if (maxHits > 0 && getTotalHits() >= maxHits) {
+      if (rank != null) {
+        int index = rank.getIndex(doc);
+        if (stops[index] != -1) {                 // enough from this index
+          return;
+        }
+        if (counts[index] >= maxHits) {
+          stops[index] = doc;                     // rank of the rest <= doc's
+          bound = Math.max(bound, rank.getBoost(doc));
+          if (++numStopped == stops.length) {
+            throw new LimitExceeded(doc);
+          }
+          return;
+        }
+        counts[index]++;
+      } else if (maxHits > 0 && getTotalHits() >= maxHits) {
         throw new LimitExceeded(doc);
       }
-      if (timer != null) {
-        curTicks = timer.timeCounter;
-        // overflow check
-        if (curTicks < startTicks) curTicks += Integer.MAX_VALUE;
-        if (curTicks - startTicks > maxTicks) {
-          throw new TimeExceeded(timer.tick * (curTicks - startTicks), doc);
+      if (expires != Long.MAX_VALUE && ++count % CHECK_INTERVAL == 0) {
+        long now = System.currentTimeMillis();
+        if (now >= expires) {
+          throw new TimeExceeded(now - start, doc);
         }
       }
       super.collect(doc, score);
+      if (counter != null) {
+        counter.collect(doc);
+      }
     }
-  }  private static class LimitExceeded extends RuntimeException {
+
+    /** Estimates the total number of hits of the sub-indexes that were not
+     * fully collected, from the proportion of their documents examined. */
+    public int estimateTotalHits() {
+      float total = 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (stops[i] == -1) {
+          total += counts[i];
+        } else {
+          int start = rank.getStart(i);
+          total += counts[i] * ((rank.getEnd(i) - start)
+                                / (float)Math.max(1, stops[i] - start));
+        }
+      }
+      return (int)total;
+    }
+  }
+
+  /** Collects the top hits by a sort field, and counts their facets. */
+  private static class SortedCollector extends TopFieldDocCollector {
+    private FacetCounter counter;
+
+    public SortedCollector(IndexReader reader, Sort sort, int numHits,
+                           FacetCounter counter) throws IOException {
+      super(reader, sort, numHits);
+      this.counter = counter;
+    }
+
+    public void collect(int doc, float score) {
+      super.collect(doc, score);
+      counter.collect(doc);
+    }
+  }
+
+  private static class LimitExceeded extends RuntimeException {
     private int maxDoc;
     public LimitExceeded(int maxDoc) { this.maxDoc = maxDoc; }    
   }
   
-  private LinkedHashMap cache;                   // an LRU cache of QueryFilter
+  private FilterCache cache;
+
+  private FilterCache.SubIndex[] subIndexes;
 
   private float threshold;
 
   private int searcherMaxHits;
 
-  private int tickLength;
+  private long maxTime;
 
-  private int maxTickCount;
+  private StaticRank rank;
   
   /**
    * Construct an optimizer that caches and uses filters for required clauses
    * whose boost is zero.
    * 
-   * @param cacheSize
-   *          the number of QueryFilters to cache
-   * @param threshold
-   *          the fraction of documents which must contain a term
+   * @param subIndexes
+   *          the indexes searched, in the order of their documents
+   */
+  public LuceneQueryOptimizer(Configuration conf,
+                              FilterCache.SubIndex[] subIndexes) {
+    this(conf, subIndexes, null);
+  }
+
+  /**
+   * @param rank the static rank of the indexes searched, if they are all
+   * sorted, or null.
    */
-  public LuceneQueryOptimizer(Configuration conf) {
-    final int cacheSize = conf.getInt("searcher.filter.cache.size", 16);
+  public LuceneQueryOptimizer(Configuration conf,
+                              FilterCache.SubIndex[] subIndexes,
+                              StaticRank rank) {
+    this.rank = rank;
+    this.cache = FilterCache.get(conf);
+    this.subIndexes = subIndexes;
     this.threshold = conf.getFloat("searcher.filter.cache.threshold",
         0.05f);
     this.searcherMaxHits = conf.getInt("searcher.max.hits", -1);
-    this.cache = new LinkedHashMap(cacheSize, 0.75f, true) {
-      protected boolean removeEldestEntry(Map.Entry eldest) {
-        return size() > cacheSize; // limit size of cache
-      }
-    };
-    this.tickLength = conf.getInt("searcher.max.time.tick_length", 200);
-    this.maxTickCount = conf.getInt("searcher.max.time.tick_count", -1);
-    if (this.maxTickCount > 0) {
-      initTimerThread(this.tickLength);
-    }
+    this.maxTime = conf.getLong("searcher.max.time", -1);
   }
 
   public TopDocs optimize(BooleanQuery original,
                           Searcher searcher, int numHits,
                           String sortField, boolean reverse)
     throws IOException {
+    return optimize(original, searcher, numHits, sortField, reverse, null);
+  }
+
+  public TopDocs optimize(BooleanQuery original,
+                          Searcher searcher, int numHits,
+                          String sortField, boolean reverse,
+                          Deadline deadline)
+    throws IOException {
+    return optimize(original, searcher, numHits, sortField, reverse,
+                    deadline, null, null);
+  }
+
+  /**
+   * Searches within the time left by a deadline and by
+   * <tt>searcher.max.time</tt>, whichever expires first.  When time is
+   * exceeded, the hits collected so far are returned, the total is estimated
+   * and the search stage of the deadline is marked as exhausted.
+   * @param deadline the deadline of the request, or null
+   * @param counter counts the facets of the hits as they are collected, or
+   * null.  It is marked as stopped if not all hits were collected.
+   * @param bound receives the bound of the static rank of the hits not
+   * collected, on sorted indexes, or null.
+   */
+  public TopDocs optimize(BooleanQuery original,
+                          Searcher searcher, int numHits,
+                          String sortField, boolean reverse,
+                          Deadline deadline, FacetCounter counter,
+                          StaticRank.Bound bound)
+    throws IOException {
+
+    long expires = Long.MAX_VALUE;
+    if (maxTime > 0) {
+      expires = System.currentTimeMillis() + maxTime;
+    }
+    if (deadline != null && deadline.isLimited()) {
+      expires = Math.min(expires, deadline.getExpires());
+    }
 
     BooleanQuery query = new BooleanQuery();
-    BooleanQuery cacheQuery = new BooleanQuery();
-    BooleanQuery filterQuery = new BooleanQuery();
+    ArrayList cacheQueries = new ArrayList();
     ArrayList filters = new ArrayList();
 
     BooleanClause[] clauses = original.getClauses();
@@ -198,13 +271,13 @@ class LuceneQueryOptimizer {
                                       lower != null ? lower.text() : null,
                                       upper != null ? upper.text() : null,
                                       inclusive, inclusive));
-          cacheQuery.add(c.getQuery(), BooleanClause.Occur.MUST); // cache it
+          cacheQueries.add(c.getQuery());         // cache it
           continue;
         }
 
         // all other query types
-        filterQuery.add(c.getQuery(), BooleanClause.Occur.MUST);  // filter it
-        cacheQuery.add(c.getQuery(), BooleanClause.Occur.MUST);   // cache it
+        filters.add(new QueryFilter(c.getQuery())); // filter it
+        cacheQueries.add(c.getQuery());             // cache it
         continue;
       }
 
@@ -212,40 +285,36 @@ class LuceneQueryOptimizer {
     }
 
     Filter filter = null;
-    if (cacheQuery.getClauses().length != 0) {
-      synchronized (cache) {                      // check cache
-        filter = (Filter)cache.get(cacheQuery);
-      }
-      if (filter == null) {                       // miss
-
-        if (filterQuery.getClauses().length != 0) // add filterQuery to filters
-          filters.add(new QueryFilter(filterQuery));
-
-        if (filters.size() == 1) {                // convert filters to filter
-          filter = (Filter)filters.get(0);
-        } else {
-          filter = new ChainedFilter((Filter[])filters.toArray
-                                     (new Filter[filters.size()]),
-                                     ChainedFilter.AND);
-        }
-        if (!(filter instanceof QueryFilter))     // make sure bits are cached
-          filter = new CachingWrapperFilter(filter);
-        
-        synchronized (cache) {
-          cache.put(cacheQuery, filter);          // cache the filter
+    if (cacheQueries.size() != 0) {
+      final BitSet bits = cache.bits
+        (subIndexes, searcher.maxDoc(),
+         (org.apache.lucene.search.Query[])cacheQueries.toArray
+           (new org.apache.lucene.search.Query[cacheQueries.size()]),
+         (Filter[])filters.toArray(new Filter[filters.size()]));
+      filter = new Filter() {
+        public BitSet bits(IndexReader reader) {
+          return bits;
         }
-      }        
+      };
     }
     if (sortField == null && !reverse) {
 
-      // no hit limit
-      if (this.searcherMaxHits <= 0 && timerThread == null)  {
+      // no hit limit and no facets
+      if (this.searcherMaxHits <= 0 && expires == Long.MAX_VALUE
+          && counter == null)  {
         return searcher.search(query, filter, numHits);
       }
 
-      // hits limited in time or in count -- use a LimitedCollector
-      LimitedCollector collector = new LimitedCollector(numHits, searcherMaxHits,
-              maxTickCount, timerThread);
+      // hits limited in time or in count, or counted -- use a LimitedCollector
+      LimitedCollector collector;
+      if (rank != null && searcherMaxHits > 0) {  // best hits of each index
+        collector = new LimitedCollector(numHits,
+                                         Math.max(numHits, searcherMaxHits),
+                                         expires, counter, rank);
+      } else {
+        collector =
+          new LimitedCollector(numHits, searcherMaxHits, expires, counter);
+      }
       LimitExceeded exceeded = null;
       TimeExceeded timeExceeded = null;
       try {
@@ -256,18 +325,37 @@ class LuceneQueryOptimizer {
         timeExceeded = te;
       }
       TopDocs results = collector.topDocs();
-      if (exceeded != null) {                     // limit was exceeded
+      boolean ranked = collector.rank != null && collector.numStopped > 0;
+      if (counter != null
+          && (exceeded != null || timeExceeded != null || ranked)) {
+        counter.stopped();
+      }
+      if (ranked && timeExceeded == null) {       // stopped by static rank
+        results.totalHits = collector.estimateTotalHits();
+        if (bound != null) {
+          bound.boost = collector.bound;
+        }
+      } else if (exceeded != null) {              // limit was exceeded
         results.totalHits = (int)                 // must estimate totalHits
           (results.totalHits*(searcher.maxDoc()/(float)exceeded.maxDoc));
       } else if (timeExceeded != null) {
         // Estimate total hits.
         results.totalHits = (int)(results.totalHits * (searcher.maxDoc()/(float)timeExceeded.maxDoc));
+        if (deadline != null) {
+          deadline.exhaust(Deadline.Stage.SEARCH);
+        }
       }
       return results;
 
-    } else {
+    } else if (counter == null) {
       return searcher.search(query, filter, numHits,
                              new Sort(sortField, reverse));
+    } else {
+      SortedCollector collector =
+        new SortedCollector(counter.getReader(), new Sort(sortField, reverse),
+                            numHits, counter);
+      searcher.search(query, filter, collector);
+      return collector.topDocs();
     }
   }
 }
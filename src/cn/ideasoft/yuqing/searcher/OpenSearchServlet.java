@@ -18,11 +18,13 @@
 package cn.ideasoft.yuqing.searcher;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URLEncoder;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletConfig;
@@ -30,21 +32,20 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import javax.xml.parsers.*;
-
 import org.apache.hadoop.conf.Configuration;
 import cn.ideasoft.yuqing.util.YuQingConfiguration;
-import org.w3c.dom.*;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 
 /** Present search results using A9's OpenSearch extensions to RSS, plus a few
- * Nutch-specific extensions. */   
+ * Nutch-specific extensions, or as JSON with <code>format=json</code>.  The
+ * results are streamed: the channel is sent before the hit details and
+ * summaries are fetched, then the items are sent by batches, compressed if
+ * the client accepts gzip. */   
 public class OpenSearchServlet extends HttpServlet {
-  private static final Map NS_MAP = new HashMap();
+  private static final Map NS_MAP = new LinkedHashMap();
+
+  /** Number of hits whose details and summaries are fetched at once. */
+  private static final int BATCH_SIZE = 10;
 
   static {
     NS_MAP.put("opensearch", "http://a9.com/-/spec/opensearchrss/1.0/");
@@ -96,6 +97,16 @@ public class OpenSearchServlet extends HttpServlet {
     if (hitsString != null)
       hitsPerPage = Integer.parseInt(hitsString);
 
+    String format = request.getParameter("format");   // rss or json
+    if (!"json".equals(format))
+      format = "rss";
+
+    // facets to count, e.g. "site,date,type,lang"
+    String facetParam = request.getParameter("facets");
+    String[] facetFields = null;
+    if (facetParam != null && facetParam.trim().length() > 0)
+      facetFields = facetParam.trim().split("\\s*,\\s*");
+
     String sort = request.getParameter("sort");
     boolean reverse =
       sort!=null && "true".equals(request.getParameter("reverse"));
@@ -123,7 +134,10 @@ public class OpenSearchServlet extends HttpServlet {
     String params = "&hitsPerPage=" + hitsPerPage +
         (queryLang == null ? "" : "&lang=" + queryLang) +
         (sort == null ? "" : "&sort=" + sort + (reverse? "&reverse=true": "") +
-        (dedupField == null ? "" : "&dedupField=" + dedupField));
+        (dedupField == null ? "" : "&dedupField=" + dedupField)) +
+        ("rss".equals(format) ? "" : "&format=" + format) +
+        (facetParam == null ? ""
+         : "&facets=" + URLEncoder.encode(facetParam, "UTF-8"));
 
     Query query = Query.parse(queryString, queryLang, this.conf);
     if (YuQingBean.LOG.isInfoEnabled()) {
@@ -132,10 +146,11 @@ public class OpenSearchServlet extends HttpServlet {
     }
 
     // execute the query
+    Deadline deadline = Deadline.get(this.conf);
     Hits hits;
     try {
       hits = bean.search(query, start + hitsPerPage, hitsPerDup, dedupField,
-          sort, reverse);
+          sort, reverse, deadline, facetFields);
     } catch (IOException e) {
       if (YuQingBean.LOG.isWarnEnabled()) {
         YuQingBean.LOG.warn("Search Error", e);
@@ -147,146 +162,123 @@ public class OpenSearchServlet extends HttpServlet {
       YuQingBean.LOG.info("total hits: " + hits.getTotal());
     }
 
-    // generate xml results
+    // stream the results, a batch of details and summaries at a time
     int end = (int)Math.min(hits.getLength(), start + hitsPerPage);
-    int length = end-start;
-
-    Hit[] show = hits.getHits(start, end-start);
-    HitDetails[] details = bean.getDetails(show);
-    Summary[] summaries = bean.getSummary(details, query);
+    int length = Math.max(end-start, 0);
+    Hit[] show = hits.getHits(start, length);
 
     String requestUrl = request.getRequestURL().toString();
     String base = requestUrl.substring(0, requestUrl.lastIndexOf('/'));
-      
 
-    try {
-      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-      factory.setNamespaceAware(true);
-      Document doc = factory.newDocumentBuilder().newDocument();
- 
-      Element rss = addNode(doc, doc, "rss");
-      addAttribute(doc, rss, "version", "2.0");
-      addAttribute(doc, rss, "xmlns:opensearch",
-                   (String)NS_MAP.get("opensearch"));
-      addAttribute(doc, rss, "xmlns:nutch", (String)NS_MAP.get("nutch"));
-
-      Element channel = addNode(doc, rss, "channel");
-    
-      addNode(doc, channel, "title", "Nutch: " + queryString);
-      addNode(doc, channel, "description", "Nutch search results for query: "
-              + queryString);
-      addNode(doc, channel, "link",
-              base+"/search.jsp"
-              +"?query="+urlQuery
-              +"&start="+start
-              +"&hitsPerDup="+hitsPerDup
-              +params);
-
-      addNode(doc, channel, "opensearch", "totalResults", ""+hits.getTotal());
-      addNode(doc, channel, "opensearch", "startIndex", ""+start);
-      addNode(doc, channel, "opensearch", "itemsPerPage", ""+hitsPerPage);
-
-      addNode(doc, channel, "nutch", "query", queryString);
-    
+    OutputStream out = response.getOutputStream();
+    GZIPOutputStream gzip = null;
+    String encodings = request.getHeader("Accept-Encoding");
+    if (encodings != null && encodings.indexOf("gzip") != -1) {
+      response.setHeader("Content-Encoding", "gzip");
+      response.setHeader("Vary", "Accept-Encoding");
+      out = gzip = new GZIPOutputStream(out, 8192);
+    }
+    OpenSearchWriter writer = OpenSearchWriter.get(format, out, NS_MAP);
+    response.setContentType(writer.getContentType());
+
+    writer.startChannel();
+    writer.field(null, "title", "Nutch: " + queryString);
+    writer.field(null, "description", "Nutch search results for query: "
+                 + queryString);
+    writer.field(null, "link",
+                 base+"/search.jsp"
+                 +"?query="+urlQuery
+                 +"&start="+start
+                 +"&hitsPerDup="+hitsPerDup
+                 +params);
+
+    writer.field("opensearch", "totalResults", hits.getTotal());
+    writer.field("opensearch", "startIndex", start);
+    writer.field("opensearch", "itemsPerPage", hitsPerPage);
+
+    writer.field("nutch", "query", queryString);
+
+    if ((hits.totalIsExact() && end < hits.getTotal()) // more hits to show
+        || (!hits.totalIsExact() && (hits.getLength() > start+hitsPerPage))){
+      writer.field("nutch", "nextPage", requestUrl
+                   +"?query="+urlQuery
+                   +"&start="+end
+                   +"&hitsPerDup="+hitsPerDup
+                   +params);
+    }
 
-      if ((hits.totalIsExact() && end < hits.getTotal()) // more hits to show
-          || (!hits.totalIsExact() && (hits.getLength() > start+hitsPerPage))){
-        addNode(doc, channel, "nutch", "nextPage", requestUrl
-                +"?query="+urlQuery
-                +"&start="+end
-                +"&hitsPerDup="+hitsPerDup
-                +params);
-      }
+    if ((!hits.totalIsExact() && (hits.getLength() <= start+hitsPerPage))) {
+      writer.field("nutch", "showAllHits", requestUrl
+                   +"?query="+urlQuery
+                   +"&hitsPerDup="+0
+                   +params);
+    }
+    if (hits.getFacets() != null) {
+      writer.facets("nutch", hits.getFacets());
+    }
+    writer.flush();                               // send the channel first
 
-      if ((!hits.totalIsExact() && (hits.getLength() <= start+hitsPerPage))) {
-        addNode(doc, channel, "nutch", "showAllHits", requestUrl
-                +"?query="+urlQuery
-                +"&hitsPerDup="+0
-                +params);
-      }
+    for (int first = 0; first < length; first += BATCH_SIZE) {
+      Hit[] batch = new Hit[Math.min(BATCH_SIZE, length - first)];
+      System.arraycopy(show, first, batch, 0, batch.length);
+      HitDetails[] details = bean.getDetails(batch, deadline);
+      Summary[] summaries = bean.getSummary(details, query, deadline);
 
-      for (int i = 0; i < length; i++) {
-        Hit hit = show[i];
+      for (int i = 0; i < batch.length; i++) {
+        Hit hit = batch[i];
         HitDetails detail = details[i];
+        if (detail == null) {                     // out of time for details
+          continue;
+        }
         String title = detail.getValue("title");
         String url = detail.getValue("url");
         String id = "idx=" + hit.getIndexNo() + "&id=" + hit.getIndexDocNo();
-      
+
         if (title == null || title.equals("")) {   // use url for docs w/o title
           title = url;
         }
-        
-        Element item = addNode(doc, channel, "item");
 
-        addNode(doc, item, "title", title);
-        addNode(doc, item, "description", summaries[i].toHtml(false));
-        addNode(doc, item, "link", url);
+        writer.startItem();
 
-        addNode(doc, item, "nutch", "site", hit.getDedupValue());
+        writer.field(null, "title", title);
+        writer.field(null, "description", summaries[i].toHtml(false));
+        writer.field(null, "link", url);
 
-        addNode(doc, item, "nutch", "cache", base+"/cached.jsp?"+id);
-        addNode(doc, item, "nutch", "explain", base+"/explain.jsp?"+id
-                +"&query="+urlQuery+"&lang="+queryLang);
+        writer.field("nutch", "site", hit.getDedupValue());
+
+        writer.field("nutch", "cache", base+"/cached.jsp?"+id);
+        writer.field("nutch", "explain", base+"/explain.jsp?"+id
+                     +"&query="+urlQuery+"&lang="+queryLang);
 
         if (hit.moreFromDupExcluded()) {
-          addNode(doc, item, "nutch", "moreFromSite", requestUrl
-                  +"?query="
-                  +URLEncoder.encode("site:"+hit.getDedupValue()
-                                     +" "+queryString, "UTF-8")
-                  +"&hitsPerSite="+0
-                  +params);
+          writer.field("nutch", "moreFromSite", requestUrl
+                       +"?query="
+                       +URLEncoder.encode("site:"+hit.getDedupValue()
+                                          +" "+queryString, "UTF-8")
+                       +"&hitsPerSite="+0
+                       +params);
         }
 
-        for (int j = 0; j < detail.getLength(); j++) { // add all from detail
-          String field = detail.getField(j);
-          if (!SKIP_DETAILS.contains(field))
-            addNode(doc, item, "nutch", field, detail.getValue(j));
-        }
+        writer.details("nutch", detail, SKIP_DETAILS); // add all from detail
+        writer.endItem();
       }
-
-      // dump DOM tree
-
-      DOMSource source = new DOMSource(doc);
-      TransformerFactory transFactory = TransformerFactory.newInstance();
-      Transformer transformer = transFactory.newTransformer();
-      transformer.setOutputProperty("indent", "yes");
-      StreamResult result = new StreamResult(response.getOutputStream());
-      response.setContentType("text/xml");
-      transformer.transform(source, result);
-
-    } catch (javax.xml.parsers.ParserConfigurationException e) {
-      throw new ServletException(e);
-    } catch (javax.xml.transform.TransformerException e) {
-      throw new ServletException(e);
+      writer.flush();
     }
-      
-  }
-
-  private static Element addNode(Document doc, Node parent, String name) {
-    Element child = doc.createElement(name);
-    parent.appendChild(child);
-    return child;
-  }
-
-  private static void addNode(Document doc, Node parent,
-                              String name, String text) {
-    Element child = doc.createElement(name);
-    child.appendChild(doc.createTextNode(getLegalXml(text)));
-    parent.appendChild(child);
-  }
-
-  private static void addNode(Document doc, Node parent,
-                              String ns, String name, String text) {
-    Element child = doc.createElementNS((String)NS_MAP.get(ns), ns+":"+name);
-    child.appendChild(doc.createTextNode(getLegalXml(text)));
-    parent.appendChild(child);
-  }
 
-  private static void addAttribute(Document doc, Element node,
-                                   String name, String value) {
-    Attr attribute = doc.createAttribute(name);
-    attribute.setValue(getLegalXml(value));
-    node.getAttributes().setNamedItem(attribute);
+    if (deadline.getExhausted() != null) {        // results are partial
+      writer.field("nutch", "partial",
+                   deadline.getExhausted().name().toLowerCase());
+      if (YuQingBean.LOG.isWarnEnabled()) {
+        YuQingBean.LOG.warn("partial results for " + queryString + ": "
+                            + deadline);
+      }
+    } else if (YuQingBean.LOG.isInfoEnabled()) {
+      YuQingBean.LOG.info(deadline.toString());
+    }
+    writer.endChannel();
+    if (gzip != null) {
+      gzip.finish();
+    }
   }
 
   /*
@@ -319,7 +311,7 @@ public class OpenSearchServlet extends HttpServlet {
       return (buffer != null)? buffer.toString(): text;
   }
  
-  private static boolean isLegalXml(final char c) {
+  static boolean isLegalXml(final char c) {
     return c == 0x9 || c == 0xa || c == 0xd || (c >= 0x20 && c <= 0xd7ff)
         || (c >= 0xe000 && c <= 0xfffd) || (c >= 0x10000 && c <= 0x10ffff);
   }
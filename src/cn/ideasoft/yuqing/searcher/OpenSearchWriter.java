@@ -0,0 +1,384 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.searcher;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes OpenSearch results as they are produced: the channel, then each
+ * item, then the end of the channel.  Nothing is kept in memory but the
+ * output buffer, which is flushed by {@link #flush()}.
+ *
+ * <p>Fields are named by an optional namespace prefix, as registered in the
+ * namespace map, and a name.  The RSS writer emits them as elements; the
+ * JSON writer ignores the prefix.</p>
+ */
+abstract class OpenSearchWriter {
+
+  protected final Writer out;
+
+  protected OpenSearchWriter(OutputStream out) throws IOException {
+    this.out = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 8192);
+  }
+
+  /** Returns a writer for a format, "rss" or "json". */
+  static OpenSearchWriter get(String format, OutputStream out,
+                              Map namespaces) throws IOException {
+    if ("json".equals(format)) {
+      return new JsonWriter(out);
+    }
+    return new RssWriter(out, namespaces);
+  }
+
+  /** The content type of the response. */
+  abstract String getContentType();
+
+  /** Starts the channel, before its fields. */
+  abstract void startChannel() throws IOException;
+
+  /** Writes a text field of the channel or of the current item. */
+  abstract void field(String prefix, String name, String value)
+    throws IOException;
+
+  /** Writes a numeric field of the channel or of the current item. */
+  abstract void field(String prefix, String name, long value)
+    throws IOException;
+
+  /** Writes the details of a hit in the current item, except some fields. */
+  abstract void details(String prefix, HitDetails details, Set skip)
+    throws IOException;
+
+  /** Writes the facet counts of the hits in the channel, by decreasing
+   * count, with the time spent on facets and whether counts are exact. */
+  abstract void facets(String prefix, Facets facets) throws IOException;
+
+  abstract void startItem() throws IOException;
+
+  abstract void endItem() throws IOException;
+
+  /** Ends the channel, after its last item, and flushes the output. */
+  abstract void endChannel() throws IOException;
+
+  /** Sends what was written so far. */
+  void flush() throws IOException {
+    out.flush();
+  }
+
+  /** Writes a string, replacing the characters illegal in XML. */
+  protected void writeXml(String text, boolean attribute) throws IOException {
+    if (text == null) return;
+    int length = text.length();
+    int run = 0;                                  // start of unescaped run
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      String escape;
+      if (c == '&') {
+        escape = "&amp;";
+      } else if (c == '<') {
+        escape = "&lt;";
+      } else if (c == '>') {
+        escape = "&gt;";
+      } else if (c == '"' && attribute) {
+        escape = "&quot;";
+      } else if (!OpenSearchServlet.isLegalXml(c)) {
+        escape = "";
+      } else {
+        continue;
+      }
+      out.write(text, run, i - run);
+      out.write(escape);
+      run = i + 1;
+    }
+    out.write(text, run, length - run);
+  }
+
+  /** Writes a quoted JSON string. */
+  protected void writeJson(String text) throws IOException {
+    out.write('"');
+    int length = text.length();
+    int run = 0;
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c >= 0x20 && c != '"' && c != '\\' && c != 0x2028 && c != 0x2029) {
+        continue;
+      }
+      out.write(text, run, i - run);
+      switch (c) {
+      case '"':  out.write("\\\""); break;
+      case '\\': out.write("\\\\"); break;
+      case '\n': out.write("\\n"); break;
+      case '\r': out.write("\\r"); break;
+      case '\t': out.write("\\t"); break;
+      default:
+        out.write("\\u");
+        String hex = Integer.toHexString(c);
+        for (int j = hex.length(); j < 4; j++) out.write('0');
+        out.write(hex);
+      }
+      run = i + 1;
+    }
+    out.write(text, run, length - run);
+    out.write('"');
+  }
+
+  /** RSS 2.0 with the OpenSearch and Nutch extensions. */
+  private static class RssWriter extends OpenSearchWriter {
+    private final Map namespaces;
+    private boolean inItem;
+
+    RssWriter(OutputStream out, Map namespaces) throws IOException {
+      super(out);
+      this.namespaces = namespaces;
+    }
+
+    String getContentType() {
+      return "text/xml; charset=UTF-8";
+    }
+
+    void startChannel() throws IOException {
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<rss");
+      for (java.util.Iterator i = namespaces.entrySet().iterator();
+           i.hasNext(); ) {
+        Map.Entry entry = (Map.Entry)i.next();
+        out.write(" xmlns:");
+        out.write((String)entry.getKey());
+        out.write("=\"");
+        writeXml((String)entry.getValue(), true);
+        out.write('"');
+      }
+      out.write(" version=\"2.0\">\n<channel>\n");
+    }
+
+    void field(String prefix, String name, String value) throws IOException {
+      if (inItem) out.write("  ");
+      out.write('<');
+      writeName(prefix, name);
+      out.write('>');
+      writeXml(value, false);
+      out.write("</");
+      writeName(prefix, name);
+      out.write(">\n");
+    }
+
+    void field(String prefix, String name, long value) throws IOException {
+      field(prefix, name, Long.toString(value));
+    }
+
+    void details(String prefix, HitDetails details, Set skip)
+      throws IOException {
+      for (int j = 0; j < details.getLength(); j++) {
+        String field = details.getField(j);
+        if (!skip.contains(field))
+          field(prefix, field, details.getValue(j));
+      }
+    }
+
+    void facets(String prefix, Facets facets) throws IOException {
+      String[] names = facets.getNames();
+      for (int i = 0; i < names.length; i++) {
+        String[] values = facets.getValues(names[i]);
+        long[] counts = facets.getCounts(names[i]);
+        for (int j = 0; j < values.length; j++) {
+          out.write('<');
+          writeName(prefix, "facet");
+          out.write(" name=\"");
+          writeXml(names[i], true);
+          out.write("\" value=\"");
+          writeXml(values[j], true);
+          out.write("\">");
+          out.write(Long.toString(counts[j]));
+          out.write("</");
+          writeName(prefix, "facet");
+          out.write(">\n");
+        }
+      }
+      field(prefix, "facetsExact", String.valueOf(facets.isExact()));
+      field(prefix, "facetTime", facets.getMillis());
+    }
+
+    private void writeName(String prefix, String name) throws IOException {
+      if (prefix != null) {
+        out.write(prefix);
+        out.write(':');
+      }
+      out.write(name);
+    }
+
+    void startItem() throws IOException {
+      out.write("<item>\n");
+      inItem = true;
+    }
+
+    void endItem() throws IOException {
+      out.write("</item>\n");
+      inItem = false;
+    }
+
+    void endChannel() throws IOException {
+      out.write("</channel>\n</rss>\n");
+      out.flush();
+    }
+  }
+
+  /**
+   * A JSON object with the fields of the channel and an <tt>items</tt>
+   * array.  Repeated detail fields of an item become arrays.
+   */
+  private static class JsonWriter extends OpenSearchWriter {
+    private boolean first;                        // first field of an object
+    private boolean inItems;                      // items array started
+    private boolean inItem;
+    private boolean firstItem = true;
+
+    JsonWriter(OutputStream out) throws IOException {
+      super(out);
+    }
+
+    String getContentType() {
+      return "application/json; charset=UTF-8";
+    }
+
+    void startChannel() throws IOException {
+      out.write('{');
+      first = true;
+    }
+
+    private void name(String name) throws IOException {
+      if (inItems && !inItem) {                   // back to the channel
+        out.write(']');
+        inItems = false;
+      }
+      if (!first) out.write(',');
+      first = false;
+      writeJson(name);
+      out.write(':');
+    }
+
+    void field(String prefix, String name, String value) throws IOException {
+      name(name);
+      if (value == null) {
+        out.write("null");
+      } else {
+        writeJson(value);
+      }
+    }
+
+    void field(String prefix, String name, long value) throws IOException {
+      name(name);
+      out.write(Long.toString(value));
+    }
+
+    void details(String prefix, HitDetails details, Set skip)
+      throws IOException {
+      int length = details.getLength();
+      for (int j = 0; j < length; j++) {
+        String field = details.getField(j);
+        if (skip.contains(field)) continue;
+        boolean seen = false;                     // written with a previous?
+        int count = 0;
+        for (int k = 0; k < length; k++) {
+          if (field.equals(details.getField(k))) {
+            if (k < j) seen = true;
+            count++;
+          }
+        }
+        if (seen) continue;
+        if (count == 1) {
+          field(prefix, field, details.getValue(j));
+          continue;
+        }
+        name(field);
+        out.write('[');
+        boolean firstValue = true;
+        for (int k = j; k < length; k++) {
+          if (field.equals(details.getField(k))) {
+            if (!firstValue) out.write(',');
+            firstValue = false;
+            String value = details.getValue(k);
+            if (value == null) {
+              out.write("null");
+            } else {
+              writeJson(value);
+            }
+          }
+        }
+        out.write(']');
+      }
+    }
+
+    /** Writes <tt>"facets":{"site":[{"value":..,"count":..},..],..}</tt>. */
+    void facets(String prefix, Facets facets) throws IOException {
+      name("facets");
+      out.write('{');
+      String[] names = facets.getNames();
+      for (int i = 0; i < names.length; i++) {
+        if (i > 0) out.write(',');
+        writeJson(names[i]);
+        out.write(":[");
+        String[] values = facets.getValues(names[i]);
+        long[] counts = facets.getCounts(names[i]);
+        for (int j = 0; j < values.length; j++) {
+          if (j > 0) out.write(',');
+          out.write("{\"value\":");
+          writeJson(values[j]);
+          out.write(",\"count\":");
+          out.write(Long.toString(counts[j]));
+          out.write('}');
+        }
+        out.write(']');
+      }
+      out.write('}');
+      field(prefix, "facetsExact", String.valueOf(facets.isExact()));
+      field(prefix, "facetTime", facets.getMillis());
+    }
+
+    void startItem() throws IOException {
+      if (!inItems) {
+        name("items");
+        out.write('[');
+        inItems = true;
+      }
+      if (!firstItem) out.write(',');
+      firstItem = false;
+      out.write('{');
+      first = true;
+      inItem = true;
+    }
+
+    void endItem() throws IOException {
+      out.write('}');
+      first = false;
+      inItem = false;
+    }
+
+    void endChannel() throws IOException {
+      if (inItems) {
+        out.write(']');
+        inItems = false;
+      }
+      out.write("}\n");
+      out.flush();
+    }
+  }
+}
@@ -24,7 +24,12 @@ import cn.ideasoft.yuqing.plugin.*;
 import cn.ideasoft.yuqing.searcher.Query.Clause;
 import org.apache.hadoop.conf.Configuration;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.lucene.search.BooleanQuery;
 
@@ -34,11 +39,23 @@ import org.apache.lucene.search.BooleanQuery;
  * query parser.  Raw fields are parsed as a single Query.Term, including
  * internal punctuation, while non-raw fields are parsed containing punctuation
  * are parsed as multi-token Query.Phrase's.
+ *
+ * <p>The Lucene queries produced by {@link #filter(Query)} are cached, up to
+ * <tt>searcher.query.cache.size</tt> queries per configuration, so that
+ * searching and explaining the same query only translates it once. The
+ * cache is dropped when the filters of the configuration are replaced, or
+ * by {@link #clearCache(Configuration)}.</p>
  */
 public class QueryFilters {
   private static final Log LOG = LogFactory.getLog(QueryFilters.class);
 
+  /** Maximum number of cached translations; zero disables the cache. */
+  public static final String CACHE_SIZE = "searcher.query.cache.size";
+
+  private static final String CACHE_KEY = QueryFilters.class.getName() + ".cache";
+
   private QueryFilter[] queryFilters;
+  private QueryCache cache;
   private HashSet FIELD_NAMES ;
   private HashSet RAW_FIELD_NAMES;
 
@@ -73,7 +90,7 @@ public class QueryFilters {
             }
             continue;
           }
-          filters[i] = (QueryFilter) extension.getExtensionInstance();
+          filters[i] = (QueryFilter) extension.getExtensionInstance(conf);
           FIELD_NAMES.addAll(fieldNames);
           FIELD_NAMES.addAll(rawFieldNames);
           conf.setObject("FIELD_NAMES", FIELD_NAMES);
@@ -91,10 +108,62 @@ public class QueryFilters {
       FIELD_NAMES = (HashSet) conf.getObject("FIELD_NAMES");
       RAW_FIELD_NAMES = (HashSet) conf.getObject("RAW_FIELD_NAMES");
     }
-  }              
+    synchronized (conf) {
+      cache = (QueryCache) conf.getObject(CACHE_KEY);
+      if (cache == null || cache.filters != queryFilters) {
+        cache = new QueryCache(queryFilters, conf.getInt(CACHE_SIZE, 1000));
+        conf.setObject(CACHE_KEY, cache);
+      }
+    }
+  }
 
-  /** Run all defined filters. */
+  /** Drops the cached translations of a configuration. */
+  public static void clearCache(Configuration conf) {
+    synchronized (conf) {
+      QueryCache cache = (QueryCache) conf.getObject(CACHE_KEY);
+      if (cache != null) {
+        cache.queries.clear();
+      }
+    }
+  }
+
+  /**
+   * Run all defined filters, or return a copy of the cached result of a
+   * previous run on an equal query.
+   */
   public BooleanQuery filter(Query input) throws QueryException {
+    if (cache.maxSize <= 0) {
+      return translate(input);
+    }
+    String key = cache.key(input);
+    BooleanQuery output = (BooleanQuery) cache.queries.get(key);
+    if (output != null) {
+      cache.hits.incrementAndGet();
+    } else {
+      long start = System.nanoTime();
+      output = translate(input);
+      long elapsed = System.nanoTime() - start;
+      cache.misses.incrementAndGet();
+      cache.nanos.addAndGet(elapsed);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Translated " + input + " in " + (elapsed / 1000) + "us, "
+                  + cache);
+      }
+      if (cache.queries.size() >= cache.maxSize) {
+        cache.queries.clear();
+      }
+      cache.queries.put(key, output);
+    }
+    return (BooleanQuery) output.clone();
+  }
+
+  /** Returns the cache statistics: hits, misses and translation time. */
+  public String getCacheStatistics() {
+    return cache.toString();
+  }
+
+  /** Run all defined filters. */
+  private BooleanQuery translate(Query input) throws QueryException {
     // first check that all field names are claimed by some plugin
     Clause[] clauses = input.getClauses();
     for (int i = 0; i < clauses.length; i++) {
@@ -118,4 +187,40 @@ public class QueryFilters {
   public boolean isRawField(String name) {
     return RAW_FIELD_NAMES.contains(name);
   }
+
+  /** The translated queries of a set of filters. */
+  private static class QueryCache {
+    private final QueryFilter[] filters;
+    private final int maxSize;
+    /** Serialized Query -> BooleanQuery */
+    private final ConcurrentHashMap queries = new ConcurrentHashMap();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+
+    QueryCache(QueryFilter[] filters, int maxSize) {
+      this.filters = filters;
+      this.maxSize = maxSize;
+    }
+
+    /** Returns a key holding the fields, flags, weights and terms of all
+     * clauses, which {@link Query#equals(Object)} does not all compare. */
+    String key(Query query) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try {
+        query.write(new DataOutputStream(bytes));
+        return bytes.toString("ISO-8859-1");
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    public String toString() {
+      long translations = misses.get();
+      return "query cache: " + queries.size() + " queries, " + hits.get()
+        + " hits, " + translations + " misses, "
+        + (translations == 0 ? 0 : nanos.get() / translations / 1000)
+        + "us per translation";
+    }
+  }
 }
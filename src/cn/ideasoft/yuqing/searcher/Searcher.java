@@ -28,6 +28,21 @@ public interface Searcher extends Closeable {
               String dedupField, String sortField, boolean reverse)
     throws IOException;
 
+  /** Return the top-scoring hits for a query found within a deadline.  The
+   * hits may be partial, and their total estimated, if it expires. */
+  Hits search(Query query, int numHits,
+              String dedupField, String sortField, boolean reverse,
+              Deadline deadline)
+    throws IOException;
+
+  /** Return the top-scoring hits for a query found within a deadline, with
+   * the number of hits for each value of some fields, e.g. "site", "date",
+   * "type" or "lang".  See {@link Hits#getFacets()}. */
+  Hits search(Query query, int numHits,
+              String dedupField, String sortField, boolean reverse,
+              Deadline deadline, String[] facetFields)
+    throws IOException;
+
   /** Return an HTML-formatted explanation of how a query scored. */
   String getExplanation(Query query, Hit hit) throws IOException;
 }
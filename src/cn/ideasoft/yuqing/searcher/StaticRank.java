@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.searcher;
+
+import org.apache.lucene.search.Similarity;
+
+/**
+ * The static rank of the documents of indexes sorted by
+ * {@link cn.ideasoft.yuqing.indexer.IndexSorter}: within each sub-index,
+ * documents are numbered by decreasing boost.  Once enough hits were
+ * collected from a sub-index, the hits left have a lower boost than the
+ * last document considered, which bounds their static rank.
+ */
+class StaticRank {
+
+  /** Receives the bound of the static rank of the hits not collected. */
+  static class Bound {
+    /** The maximum boost of the hits not collected, or zero if all hits
+     * were collected. */
+    float boost;
+  }
+
+  private final int[] starts;                     // first doc of each index
+  private final int maxDoc;
+  private final byte[] boosts;
+
+  /**
+   * @param starts the number of the first document of each sub-index.
+   * @param boosts the norms of the <tt>site</tt> field, the document boosts.
+   */
+  StaticRank(int[] starts, int maxDoc, byte[] boosts) {
+    this.starts = starts;
+    this.maxDoc = maxDoc;
+    this.boosts = boosts;
+  }
+
+  /** Returns the number of sub-indexes. */
+  int getNumIndexes() {
+    return starts.length;
+  }
+
+  /** Returns the sub-index of a document. */
+  int getIndex(int doc) {
+    int lo = 0;
+    int hi = starts.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (starts[mid] <= doc) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  /** Returns the number of the first document of a sub-index. */
+  int getStart(int index) {
+    return starts[index];
+  }
+
+  /** Returns the number of the first document after a sub-index. */
+  int getEnd(int index) {
+    return index + 1 < starts.length ? starts[index + 1] : maxDoc;
+  }
+
+  /** Returns the boost of a document. */
+  float getBoost(int doc) {
+    return Similarity.decodeNorm(boosts[doc]);
+  }
+}
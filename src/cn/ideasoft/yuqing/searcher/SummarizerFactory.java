@@ -48,7 +48,7 @@ public class SummarizerFactory {
                                     .get(conf)
                                     .getExtensionPoint(Summarizer.X_POINT_ID)
                                     .getExtensions();
-      summarizer = (Summarizer) extensions[0].getExtensionInstance();
+      summarizer = (Summarizer) extensions[0].getExtensionInstance(conf);
       if (LOG.isInfoEnabled()) {
         LOG.info("Using the first summarizer extension found: " +
                  extensions[0].getId());
@@ -111,6 +111,7 @@ public class YuQingBean
   private void init(Path indexDir, Path indexesDir, Path segmentsDir,
                     Path linkDb)
     throws IOException {
+    long start = System.currentTimeMillis();
     IndexSearcher indexSearcher;
     if (this.fs.exists(indexDir)) {
       if (LOG.isInfoEnabled()) {
@@ -154,6 +155,19 @@ public class YuQingBean
 
     if (LOG.isInfoEnabled()) { LOG.info("opening linkdb in " + linkDb); }
     this.linkDb = new LinkDbInlinks(fs, linkDb, this.conf);
+
+    if (LOG.isInfoEnabled()) {
+      LOG.info("ready to search in " + (System.currentTimeMillis() - start)
+               + " ms, " + (segments.isWarm() ? "all" : "opening")
+               + " segment readers of " + segmentNames.length + " segments");
+    }
+  }
+
+  /** True once all the readers used for summaries and cached content are
+   * opened, so that no request waits for them. */
+  public boolean isWarm() {
+    return !(content instanceof FetchedSegments)
+      || ((FetchedSegments)content).isWarm();
   }
 
   private void init(DistributedSearch.Client client) {
@@ -180,6 +194,22 @@ public class YuQingBean
 
     return searcher.search(query, numHits, dedupField, sortField, reverse);
   }
+
+  public Hits search(Query query, int numHits,
+                     String dedupField, String sortField, boolean reverse,
+                     Deadline deadline)
+    throws IOException {
+    return searcher.search(query, numHits, dedupField, sortField, reverse,
+                           deadline);
+  }
+
+  public Hits search(Query query, int numHits,
+                     String dedupField, String sortField, boolean reverse,
+                     Deadline deadline, String[] facetFields)
+    throws IOException {
+    return searcher.search(query, numHits, dedupField, sortField, reverse,
+                           deadline, facetFields);
+  }
   
   private class DupHits extends ArrayList {
     private boolean maxSizeExceeded;
@@ -239,25 +269,80 @@ public class YuQingBean
                      int maxHitsPerDup, String dedupField,
                      String sortField, boolean reverse)
        throws IOException {
+    return search(query, numHits, maxHitsPerDup, dedupField, sortField,
+                  reverse, null);
+  }
+
+  /** Search for pages matching a query within a deadline, eliminating
+   * excessive hits with matching values for a named field.  See {@link
+   * #search(Query, int, int, String, String, boolean)}.  When the deadline
+   * expires, no more raw hits are searched for, and the total is not exact.
+   *
+   * @param deadline the deadline of the request, or null
+   */
+  public Hits search(Query query, int numHits,
+                     int maxHitsPerDup, String dedupField,
+                     String sortField, boolean reverse, Deadline deadline)
+       throws IOException {
+    return search(query, numHits, maxHitsPerDup, dedupField, sortField,
+                  reverse, deadline, null);
+  }
+
+  /** Search for pages matching a query within a deadline, eliminating
+   * excessive hits with matching values for a named field, and count all
+   * the hits by value of some fields.  See {@link
+   * #search(Query, int, int, String, String, boolean, Deadline)}.  The
+   * facets are counted before duplicates are eliminated.
+   *
+   * @param facetFields the facets to count, or null
+   */
+  public Hits search(Query query, int numHits,
+                     int maxHitsPerDup, String dedupField,
+                     String sortField, boolean reverse, Deadline deadline,
+                     String[] facetFields)
+       throws IOException {
+    long start = deadline == null ? 0 : deadline.begin(Deadline.Stage.SEARCH);
+    try {
+      return dedupSearch(query, numHits, maxHitsPerDup, dedupField,
+                         sortField, reverse, deadline, facetFields);
+    } finally {
+      if (deadline != null) {
+        deadline.end(Deadline.Stage.SEARCH, start);
+      }
+    }
+  }
+
+  private Hits dedupSearch(Query query, int numHits,
+                           int maxHitsPerDup, String dedupField,
+                           String sortField, boolean reverse,
+                           Deadline deadline, String[] facetFields)
+       throws IOException {
     if (maxHitsPerDup <= 0)                      // disable dup checking
-      return search(query, numHits, dedupField, sortField, reverse);
+      return search(query, numHits, dedupField, sortField, reverse, deadline,
+                    facetFields);
 
     float rawHitsFactor = this.conf.getFloat("searcher.hostgrouping.rawhits.factor", 2.0f);
     int numHitsRaw = (int)(numHits * rawHitsFactor);
     if (LOG.isInfoEnabled()) {
       LOG.info("searching for "+numHitsRaw+" raw hits");
     }
-    Hits hits = searcher.search(query, numHitsRaw,
-                                dedupField, sortField, reverse);
+    Hits hits = searcher.search(query, numHitsRaw, dedupField, sortField,
+                                reverse, deadline, facetFields);
     long total = hits.getTotal();
+    Facets facets = hits.getFacets();             // re-searches are not counted
     Map dupToHits = new HashMap();
     List resultList = new ArrayList();
     Set seen = new HashSet();
     List excludedValues = new ArrayList();
-    boolean totalIsExact = true;
+    boolean totalIsExact = hits.totalIsExact();   // false from tier-1 indexes
     for (int rawHitNum = 0; rawHitNum < hits.getTotal(); rawHitNum++) {
       // get the next raw hit
       if (rawHitNum >= hits.getLength()) {
+        if (deadline != null && deadline.isExpired()) {
+          deadline.exhaust(Deadline.Stage.SEARCH);
+          totalIsExact = false;
+          break;
+        }
         // optimize query by prohibiting more matches on some excluded values
         Query optQuery = (Query)query.clone();
         for (int i = 0; i < excludedValues.size(); i++) {
@@ -271,7 +356,7 @@ public class YuQingBean
           LOG.info("re-searching for "+numHitsRaw+" raw hits, query: "+optQuery);
         }
         hits = searcher.search(optQuery, numHitsRaw,
-                               dedupField, sortField, reverse);
+                               dedupField, sortField, reverse, deadline);
         if (LOG.isInfoEnabled()) {
           LOG.info("found "+hits.getTotal()+" raw hits");
         }
@@ -319,6 +404,8 @@ public class YuQingBean
       new Hits(total,
                (Hit[])resultList.toArray(new Hit[resultList.size()]));
     results.setTotalIsExact(totalIsExact);
+    results.setFacets(facets);
+    results.setRankBound(hits.getRankBound());
     return results;
   }
     
@@ -335,6 +422,19 @@ public class YuQingBean
     return detailer.getDetails(hits);
   }
 
+  public HitDetails[] getDetails(Hit[] hits, Deadline deadline)
+    throws IOException {
+    if (deadline == null) {
+      return detailer.getDetails(hits);
+    }
+    long start = deadline.begin(Deadline.Stage.DETAILS);
+    try {
+      return detailer.getDetails(hits, deadline);
+    } finally {
+      deadline.end(Deadline.Stage.DETAILS, start);
+    }
+  }
+
   public Summary getSummary(HitDetails hit, Query query) throws IOException {
     return summarizer.getSummary(hit, query);
   }
@@ -344,6 +444,20 @@ public class YuQingBean
     return summarizer.getSummary(hits, query);
   }
 
+  public Summary[] getSummary(HitDetails[] hits, Query query,
+                              Deadline deadline)
+    throws IOException {
+    if (deadline == null) {
+      return summarizer.getSummary(hits, query);
+    }
+    long start = deadline.begin(Deadline.Stage.SUMMARY);
+    try {
+      return summarizer.getSummary(hits, query, deadline);
+    } finally {
+      deadline.end(Deadline.Stage.SUMMARY, start);
+    }
+  }
+
   public byte[] getContent(HitDetails hit) throws IOException {
     return content.getContent(hit);
   }
@@ -360,6 +474,23 @@ public class YuQingBean
     return linkDb.getAnchors(hit);
   }
 
+  public String[][] getAnchors(HitDetails[] hits) throws IOException {
+    return linkDb.getAnchors(hits);
+  }
+
+  public String[][] getAnchors(HitDetails[] hits, Deadline deadline)
+    throws IOException {
+    if (deadline == null) {
+      return linkDb.getAnchors(hits);
+    }
+    long start = deadline.begin(Deadline.Stage.ANCHORS);
+    try {
+      return linkDb.getAnchors(hits, deadline);
+    } finally {
+      deadline.end(Deadline.Stage.ANCHORS, start);
+    }
+  }
+
   public Inlinks getInlinks(HitDetails hit) throws IOException {
     return linkDb.getInlinks(hit);
   }
@@ -377,7 +508,7 @@ public class YuQingBean
   
   /** For debugging. */
   public static void main(String[] args) throws Exception {
-    String usage = "NutchBean query";
+    String usage = "NutchBean query [repeat]";
 
     if (args.length == 0) {
       System.err.println(usage);
@@ -387,7 +518,19 @@ public class YuQingBean
     Configuration conf = YuQingConfiguration.create();
     YuQingBean bean = new YuQingBean(conf);
     Query query = Query.parse(args[0], conf);
-    Hits hits = bean.search(query, 10);
+    int repeat = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+    Hits hits = null;
+    for (int i = 0; i < repeat; i++) {            // first cold, then warm
+      long start = System.currentTimeMillis();
+      hits = bean.search(query, 10);
+      System.out.println("Search time: "
+                         + (System.currentTimeMillis() - start) + " ms");
+      BlockCache cache =
+        (BlockCache)conf.getObject(BlockCache.class.getName());
+      if (cache != null) {
+        System.out.println(cache);
+      }
+    }
     System.out.println("Total hits: " + hits.getTotal());
     int length = (int)Math.min(hits.getTotal(), 10);
     Hit[] show = hits.getHits(0, length);
@@ -401,7 +544,7 @@ public class YuQingBean
 
   public long getProtocolVersion(String className, long arg1) throws IOException {
     if(DistributedSearch.Protocol.class.getName().equals(className)){
-      return 1;
+      return DistributedSearch.Client.versionID;
     } else {
       throw new IOException("Unknown Protocol classname:" + className);
     }
@@ -0,0 +1,252 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.segment;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import cn.ideasoft.yuqing.parse.ParseData;
+import cn.ideasoft.yuqing.parse.ParseText;
+import cn.ideasoft.yuqing.protocol.Content;
+import cn.ideasoft.yuqing.util.YuQingConfiguration;
+
+/**
+ * The compression of the <code>content</code>, <code>parse_text</code> and
+ * <code>parse_data</code> files of segments, selected by
+ * <code>segment.compression.type</code> and
+ * <code>segment.compression.codec</code>.
+ *
+ * <p>Run as a tool, compares the compression ratio and the encoding and
+ * decoding throughput of codecs on the records of a segment, with the
+ * former format, where each record was deflated on its own.
+ */
+public class SegmentCompression {
+
+  private SegmentCompression() {}                 // no public ctor
+
+  /** Returns the compression type of segment files. */
+  public static CompressionType getType(Configuration conf) {
+    return CompressionType.valueOf(conf.get("segment.compression.type",
+                                            "RECORD"));
+  }
+
+  /** Returns the compression codec of segment files. */
+  public static CompressionCodec getCodec(Configuration conf) {
+    Class codecClass =
+      conf.getClass("segment.compression.codec", DefaultCodec.class);
+    return (CompressionCodec)ReflectionUtils.newInstance(codecClass, conf);
+  }
+
+  /** Creates a writer of segment records, keyed by url. */
+  public static MapFile.Writer createWriter(Configuration conf, FileSystem fs,
+                                            Path dir, Class valClass,
+                                            Progressable progress)
+    throws IOException {
+    return new MapFile.Writer(conf, fs, dir.toString(), Text.class, valClass,
+                              getType(conf), getCodec(conf), progress);
+  }
+
+  /** Serializes the records of a segment directory. */
+  private static List readRecords(FileSystem fs, Path dir, int maxRecords,
+                                  Configuration conf) throws IOException {
+    List records = new ArrayList();
+    DataOutputBuffer buffer = new DataOutputBuffer();
+    Path[] parts = fs.listPaths(dir);
+    for (int i = 0; parts != null && i < parts.length; i++) {
+      SequenceFile.Reader reader = new SequenceFile.Reader
+        (fs, new Path(parts[i], MapFile.DATA_FILE_NAME), conf);
+      try {
+        WritableComparable key = new Text();
+        Writable value =
+          (Writable)ReflectionUtils.newInstance(reader.getValueClass(), conf);
+        while (records.size() < maxRecords && reader.next(key, value)) {
+          if (value instanceof Content) {
+            ((Content)value).ensureInflated();    // write in the new format
+          }
+          buffer.reset();
+          value.write(buffer);
+          byte[] record = new byte[buffer.getLength()];
+          System.arraycopy(buffer.getData(), 0, record, 0, record.length);
+          records.add(record);
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    return records;
+  }
+
+  /** Deflates each record on its own, as the former format did. */
+  private static String benchRecords(List records) throws IOException {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    Inflater inflater = new Inflater();
+    byte[] out = new byte[64 * 1024];
+    long raw = 0;
+    long compressed = 0;
+    List deflated = new ArrayList(records.size());
+    DataOutputBuffer buffer = new DataOutputBuffer();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < records.size(); i++) {
+      byte[] record = (byte[])records.get(i);
+      raw += record.length;
+      deflater.reset();
+      deflater.setInput(record);
+      deflater.finish();
+      buffer.reset();
+      while (!deflater.finished()) {
+        int n = deflater.deflate(out);
+        buffer.write(out, 0, n);
+      }
+      compressed += buffer.getLength();
+      byte[] bytes = new byte[buffer.getLength()];
+      System.arraycopy(buffer.getData(), 0, bytes, 0, bytes.length);
+      deflated.add(bytes);
+    }
+    long encode = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    try {
+      for (int i = 0; i < deflated.size(); i++) {
+        inflater.reset();
+        inflater.setInput((byte[])deflated.get(i));
+        while (!inflater.finished()) {
+          if (inflater.inflate(out) == 0 && inflater.needsInput())
+            break;
+        }
+      }
+    } catch (java.util.zip.DataFormatException e) {
+      throw new IOException(e.toString());
+    }
+    long decode = System.currentTimeMillis() - start;
+    return report("record deflate", raw, compressed, encode, decode);
+  }
+
+  /** Compresses the records by blocks, as SequenceFile does. */
+  private static String benchCodec(List records, CompressionCodec codec,
+                                   int blockSize) throws IOException {
+    DataOutputBuffer compressed = new DataOutputBuffer();
+    CompressionOutputStream out = codec.createOutputStream(compressed);
+    List blocks = new ArrayList();                // {end, raw length}
+    long raw = 0;
+    int inBlock = 0;
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < records.size(); i++) {
+      byte[] record = (byte[])records.get(i);
+      out.write(record);
+      raw += record.length;
+      inBlock += record.length;
+      if (inBlock >= blockSize || i == records.size() - 1) {
+        out.finish();
+        out.resetState();
+        blocks.add(new int[] { compressed.getLength(), inBlock });
+        inBlock = 0;
+      }
+    }
+    long encode = System.currentTimeMillis() - start;
+
+    DataInputBuffer input = new DataInputBuffer();
+    CompressionInputStream in = codec.createInputStream(input);
+    DataInputStream data = new DataInputStream(in);
+    byte[] buffer = new byte[64 * 1024];
+    int blockStart = 0;
+    start = System.currentTimeMillis();
+    for (int b = 0; b < blocks.size(); b++) {
+      int[] block = (int[])blocks.get(b);
+      input.reset(compressed.getData(), blockStart, block[0] - blockStart);
+      in.resetState();
+      for (int left = block[1]; left > 0; ) {
+        int n = Math.min(left, buffer.length);
+        data.readFully(buffer, 0, n);
+        left -= n;
+      }
+      blockStart = block[0];
+    }
+    long decode = System.currentTimeMillis() - start;
+    String name = codec.getClass().getName();
+    return report(name.substring(name.lastIndexOf('.') + 1), raw,
+                  compressed.getLength(), encode, decode);
+  }
+
+  private static String report(String name, long raw, long compressed,
+                               long encode, long decode) {
+    return name + ": ratio " + (raw / (float)Math.max(compressed, 1))
+      + ", encode " + (raw / 1024f / 1024f / Math.max(encode, 1) * 1000)
+      + " MB/s, decode " + (raw / 1024f / 1024f / Math.max(decode, 1) * 1000)
+      + " MB/s";
+  }
+
+  public static void main(String[] args) throws Exception {
+    String usage = "SegmentCompression <segment> [-records <n>] [-codecs <class,class...>]";
+    if (args.length < 1) {
+      System.err.println("Usage: " + usage);
+      return;
+    }
+    Configuration conf = YuQingConfiguration.create();
+    FileSystem fs = FileSystem.get(conf);
+    Path segment = new Path(args[0]);
+    int maxRecords = 10000;
+    String codecs = "org.apache.hadoop.io.compress.DefaultCodec,"
+      + "cn.ideasoft.yuqing.util.LZCodec";
+    for (int i = 1; i < args.length; i++) {
+      if ("-records".equals(args[i])) {
+        maxRecords = Integer.parseInt(args[++i]);
+      } else if ("-codecs".equals(args[i])) {
+        codecs = args[++i];
+      }
+    }
+    int blockSize = conf.getInt("io.seqfile.compress.blocksize", 1000000);
+    String[] codecNames = codecs.split(",");
+    String[] dirs =
+      { Content.DIR_NAME, ParseText.DIR_NAME, ParseData.DIR_NAME };
+    for (int d = 0; d < dirs.length; d++) {
+      Path dir = new Path(segment, dirs[d]);
+      if (!fs.exists(dir))
+        continue;
+      List records = readRecords(fs, dir, maxRecords, conf);
+      System.out.println(dirs[d] + ", " + records.size() + " records:");
+      System.out.println("  " + benchRecords(records));
+      for (int c = 0; c < codecNames.length; c++) {
+        CompressionCodec codec = (CompressionCodec)ReflectionUtils.newInstance
+          (conf.getClassByName(codecNames[c].trim()), conf);
+        System.out.println("  " + benchCodec(records, codec, blockSize));
+      }
+    }
+  }
+}
@@ -17,10 +17,15 @@
 
 package cn.ideasoft.yuqing.segment;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TreeMap;
 
 import org.apache.commons.logging.Log;
@@ -28,14 +33,17 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.ObjectWritable;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.UTF8;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobClient;
@@ -50,13 +58,14 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.SequenceFileInputFormat;
 import org.apache.hadoop.mapred.SequenceFileRecordReader;
 import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.ReflectionUtils;
 import cn.ideasoft.yuqing.crawl.CrawlDatum;
 import cn.ideasoft.yuqing.crawl.Generator;
-import cn.ideasoft.yuqing.metadata.MetaWrapper;
 import cn.ideasoft.yuqing.metadata.YuQing;
 import cn.ideasoft.yuqing.net.URLFilters;
 import cn.ideasoft.yuqing.parse.ParseData;
 import cn.ideasoft.yuqing.parse.ParseText;
+import cn.ideasoft.yuqing.parse.TermOffsets;
 import cn.ideasoft.yuqing.protocol.Content;
 import cn.ideasoft.yuqing.util.YuQingConfiguration;
 import cn.ideasoft.yuqing.util.YuQingJob;
@@ -111,15 +120,56 @@ import cn.ideasoft.yuqing.util.YuQingJob;
 public class SegmentMerger extends Configured implements Mapper, Reducer {
   private static final Log LOG = LogFactory.getLog(SegmentMerger.class);
 
-  private static final String SEGMENT_PART_KEY = "part";
-  private static final String SEGMENT_SLICE_KEY = "slice";
+  /**
+   * Wraps a segment record with the type and segment of its part, and the
+   * slice it is written to, to permit merging different types in reduce.
+   */
+  public static class PartWrapper extends ObjectWritable {
+    private byte part;
+    private String segment;
+    private int slice = -1;
+
+    public PartWrapper() {
+      super();
+    }
+
+    /** The type of the part, one of {@link SegmentPart#GENERATE}... */
+    public byte getPart() { return part; }
+
+    /** The name of the segment of the record. */
+    public String getSegment() { return segment; }
+
+    /** The output slice, or -1 if the output is not sliced. */
+    public int getSlice() { return slice; }
+
+    public void setPart(byte part, String segment) {
+      this.part = part;
+      this.segment = segment;
+    }
+
+    public void setSlice(int slice) { this.slice = slice; }
+
+    public void readFields(DataInput in) throws IOException {
+      super.readFields(in);
+      part = in.readByte();
+      segment = Text.readString(in);
+      slice = WritableUtils.readVInt(in);
+    }
+
+    public void write(DataOutput out) throws IOException {
+      super.write(out);
+      out.writeByte(part);
+      Text.writeString(out, segment);
+      WritableUtils.writeVInt(out, slice);
+    }
+  }
 
   private URLFilters filters = null;
   private long sliceSize = -1;
   private long curCount = 0;
   
   /**
-   * Wraps inputs in an {@link MetaWrapper}, to permit merging different
+   * Wraps inputs in a {@link PartWrapper}, to permit merging different
    * types in reduce and use additional metadata.
    */
   public static class ObjectInputFormat extends SequenceFileInputFormat {
@@ -134,11 +184,12 @@ public class SegmentMerger extends Configured implements Mapper, Reducer {
         throw new RuntimeException("Cannot set status for reported:", e);
       }
       // find part name
-      SegmentPart segmentPart;
-      final String spString;
+      final byte part;
+      final String segment;
       try {
-        segmentPart = SegmentPart.get((FileSplit) split);
-        spString = segmentPart.toString();
+        SegmentPart segmentPart = SegmentPart.get((FileSplit) split);
+        part = SegmentPart.getType(segmentPart.partName);
+        segment = segmentPart.segmentName;
       } catch (IOException e) {
         throw new RuntimeException("Cannot identify segment:", e);
       }
@@ -150,7 +201,7 @@ public class SegmentMerger extends Configured implements Mapper, Reducer {
           public synchronized boolean next(Writable key, Writable value) throws IOException {
             LOG.debug("Running OIF.next()");
             
-            MetaWrapper wrapper = (MetaWrapper) value;
+            PartWrapper wrapper = (PartWrapper) value;
             try {
               wrapper.set(getValueClass().newInstance());
             } catch (Exception e) {
@@ -158,13 +209,13 @@ public class SegmentMerger extends Configured implements Mapper, Reducer {
             }
 
             boolean res = super.next(key, (Writable) wrapper.get());
-            wrapper.setMeta(SEGMENT_PART_KEY, spString);
+            wrapper.setPart(part, segment);
             return res;
           }
           
           @Override
           public Writable createValue() {
-            return new MetaWrapper();
+            return new PartWrapper();
           }
           
         };
@@ -191,22 +242,27 @@ public class SegmentMerger extends Configured implements Mapper, Reducer {
         
         public void write(WritableComparable key, Writable value) throws IOException {
           // unwrap
-          MetaWrapper wrapper = (MetaWrapper)value;
-          SegmentPart sp = SegmentPart.parse(wrapper.getMeta(SEGMENT_PART_KEY));
+          PartWrapper wrapper = (PartWrapper)value;
           Writable o = (Writable)wrapper.get();
-          String slice = wrapper.getMeta(SEGMENT_SLICE_KEY);
+          String slice = wrapper.getSlice() < 0
+            ? null : String.valueOf(wrapper.getSlice());
           if (o instanceof CrawlDatum) {
-            if (sp.partName.equals(CrawlDatum.GENERATE_DIR_NAME)) {
+            switch (wrapper.getPart()) {
+            case SegmentPart.GENERATE:
               g_out = ensureSequenceFile(slice, CrawlDatum.GENERATE_DIR_NAME);
               g_out.append(key, o);
-            } else if (sp.partName.equals(CrawlDatum.FETCH_DIR_NAME)) {
+              break;
+            case SegmentPart.FETCH:
               f_out = ensureMapFile(slice, CrawlDatum.FETCH_DIR_NAME, CrawlDatum.class);
               f_out.append(key, o);
-            } else if (sp.partName.equals(CrawlDatum.PARSE_DIR_NAME)) {
+              break;
+            case SegmentPart.PARSE:
               p_out = ensureSequenceFile(slice, CrawlDatum.PARSE_DIR_NAME);
               p_out.append(key, o);
-            } else {
-              throw new IOException("Cannot determine segment part: " + sp.partName);
+              break;
+            default:
+              throw new IOException("Cannot determine segment part: "
+                                    + SegmentPart.getName(wrapper.getPart()));
             }
           } else if (o instanceof Content) {
             c_out = ensureMapFile(slice, Content.DIR_NAME, Content.class);
@@ -253,7 +309,11 @@ public class SegmentMerger extends Configured implements Mapper, Reducer {
           } else {
             wname = new Path(new Path(new Path(job.getOutputPath(), segmentName + "-" + slice), dirName), name);
           }
-          res = new MapFile.Writer(job, fs, wname.toString(), Text.class, clazz);
+          if (clazz == CrawlDatum.class) {
+            res = new MapFile.Writer(job, fs, wname.toString(), Text.class, clazz);
+          } else {                                // content, parse_text, parse_data
+            res = SegmentCompression.createWriter(job, fs, wname, clazz, progress);
+          }
           sliceWriters.put(slice + dirName, res);
           return res;
         }
@@ -331,164 +391,68 @@ public class SegmentMerger extends Configured implements Mapper, Reducer {
    * their creation time increases.
    */
   public void reduce(WritableComparable key, Iterator values, OutputCollector output, Reporter reporter) throws IOException {
-    CrawlDatum lastG = null;
-    CrawlDatum lastF = null;
+    // the latest record and its segment, by part type
+    Writable[] last = new Writable[SegmentPart.PARSE_TEXT + 1];
+    String[] lastName = new String[last.length];
     CrawlDatum lastSig = null;
-    Content lastC = null;
-    ParseData lastPD = null;
-    ParseText lastPT = null;
-    String lastGname = null;
-    String lastFname = null;
     String lastSigname = null;
-    String lastCname = null;
-    String lastPDname = null;
-    String lastPTname = null;
     TreeMap linked = new TreeMap();
     while (values.hasNext()) {
-      MetaWrapper wrapper = (MetaWrapper)values.next();
-      Object o = wrapper.get();
-      String spString = wrapper.getMeta(SEGMENT_PART_KEY);
-      if (spString == null) {
+      PartWrapper wrapper = (PartWrapper)values.next();
+      Writable o = (Writable)wrapper.get();
+      String segment = wrapper.getSegment();
+      if (segment == null) {
         throw new IOException("Null segment part, key=" + key);        
       }
-      SegmentPart sp = SegmentPart.parse(spString);
-      if (o instanceof CrawlDatum) {
+      byte part = wrapper.getPart();
+      if (part == SegmentPart.PARSE) {
         CrawlDatum val = (CrawlDatum)o;
-        // check which output dir it belongs to
-        if (sp.partName.equals(CrawlDatum.GENERATE_DIR_NAME)) {
-          if (lastG == null) {
-            lastG = val;
-            lastGname = sp.segmentName;
-          } else {
-            // take newer
-            if (lastGname.compareTo(sp.segmentName) < 0) {
-              lastG = val;
-              lastGname = sp.segmentName;
-            }
-          }
-        } else if (sp.partName.equals(CrawlDatum.FETCH_DIR_NAME)) {
-          if (lastF == null) {
-            lastF = val;
-            lastFname = sp.segmentName;
-          } else {
-            // take newer
-            if (lastFname.compareTo(sp.segmentName) < 0) {
-              lastF = val;
-              lastFname = sp.segmentName;
-            }
+        if (val.getStatus() == CrawlDatum.STATUS_SIGNATURE) {
+          // take newer
+          if (lastSig == null || lastSigname.compareTo(segment) < 0) {
+            lastSig = val;
+            lastSigname = segment;
           }
-        } else if (sp.partName.equals(CrawlDatum.PARSE_DIR_NAME)) {
-          if (val.getStatus() == CrawlDatum.STATUS_SIGNATURE) {
-            if (lastSig == null) {
-              lastSig = val;
-              lastSigname = sp.segmentName;
-            } else {
-              // take newer
-              if (lastSigname.compareTo(sp.segmentName) < 0) {
-                lastSig = val;
-                lastSigname = sp.segmentName;
-              }
-            }
-            continue;
-          }
-          // collect all LINKED values from the latest segment
-          ArrayList segLinked = (ArrayList)linked.get(sp.segmentName);
-          if (segLinked == null) {
-            segLinked = new ArrayList();
-            linked.put(sp.segmentName, segLinked);
-          }
-          segLinked.add(val);
-        } else {
-          throw new IOException("Cannot determine segment part: " + sp.partName);
+          continue;
         }
-      } else if (o instanceof Content) {
-        if (lastC == null) {
-          lastC = (Content)o;
-          lastCname = sp.segmentName;
-        } else {
-          if (lastCname.compareTo(sp.segmentName) < 0) {
-            lastC = (Content)o;
-            lastCname = sp.segmentName;
-          }
-        }
-      } else if (o instanceof ParseData) {
-        if (lastPD == null) {
-          lastPD = (ParseData)o;
-          lastPDname = sp.segmentName;
-        } else {
-          if (lastPDname.compareTo(sp.segmentName) < 0) {
-            lastPD = (ParseData)o;
-            lastPDname = sp.segmentName;
-          }
-        }
-      } else if (o instanceof ParseText) {
-        if (lastPT == null) {
-          lastPT = (ParseText)o;
-          lastPTname = sp.segmentName;
-        } else {
-          if (lastPTname.compareTo(sp.segmentName) < 0) {
-            lastPT = (ParseText)o;
-            lastPTname = sp.segmentName;
-          }
+        // collect all LINKED values from the latest segment
+        ArrayList segLinked = (ArrayList)linked.get(segment);
+        if (segLinked == null) {
+          segLinked = new ArrayList();
+          linked.put(segment, segLinked);
         }
+        segLinked.add(val);
+      } else if (last[part] == null || lastName[part].compareTo(segment) < 0) {
+        // take newer
+        last[part] = o;
+        lastName[part] = segment;
       }
     }
     curCount++;
-    String sliceName = null;
-    MetaWrapper wrapper = new MetaWrapper();
+    PartWrapper wrapper = new PartWrapper();
     if (sliceSize > 0) {
-      sliceName = String.valueOf(curCount / sliceSize);
-      wrapper.setMeta(SEGMENT_SLICE_KEY, sliceName);
+      wrapper.setSlice((int)(curCount / sliceSize));
     }
-    SegmentPart sp = new SegmentPart();
     // now output the latest values
-    if (lastG != null) {
-      wrapper.set(lastG);
-      sp.partName = CrawlDatum.GENERATE_DIR_NAME;
-      sp.segmentName = lastGname;
-      wrapper.setMeta(SEGMENT_PART_KEY, sp.toString());
-      output.collect(key, wrapper);
+    if (last[SegmentPart.GENERATE] != null) {
+      collect(key, SegmentPart.GENERATE, last, lastName, wrapper, output);
     }
-    if (lastF != null) {
-      wrapper.set(lastF);
-      sp.partName = CrawlDatum.FETCH_DIR_NAME;
-      sp.segmentName = lastFname;
-      wrapper.setMeta(SEGMENT_PART_KEY, sp.toString());
-      output.collect(key, wrapper);
+    if (last[SegmentPart.FETCH] != null) {
+      collect(key, SegmentPart.FETCH, last, lastName, wrapper, output);
     }
     if (lastSig != null) {
       wrapper.set(lastSig);
-      sp.partName = CrawlDatum.PARSE_DIR_NAME;
-      sp.segmentName = lastSigname;
-      wrapper.setMeta(SEGMENT_PART_KEY, sp.toString());
-      output.collect(key, wrapper);
-    }
-    if (lastC != null) {
-      wrapper.set(lastC);
-      sp.partName = Content.DIR_NAME;
-      sp.segmentName = lastCname;
-      wrapper.setMeta(SEGMENT_PART_KEY, sp.toString());
-      output.collect(key, wrapper);
-    }
-    if (lastPD != null) {
-      wrapper.set(lastPD);
-      sp.partName = ParseData.DIR_NAME;
-      sp.segmentName = lastPDname;
-      wrapper.setMeta(SEGMENT_PART_KEY, sp.toString());
+      wrapper.setPart(SegmentPart.PARSE, lastSigname);
       output.collect(key, wrapper);
     }
-    if (lastPT != null) {
-      wrapper.set(lastPT);
-      sp.partName = ParseText.DIR_NAME;
-      sp.segmentName = lastPTname;
-      wrapper.setMeta(SEGMENT_PART_KEY, sp.toString());
-      output.collect(key, wrapper);
+    for (byte part = SegmentPart.CONTENT; part <= SegmentPart.PARSE_TEXT; part++) {
+      if (last[part] != null) {
+        collect(key, part, last, lastName, wrapper, output);
+      }
     }
     if (linked.size() > 0) {
       String name = (String)linked.lastKey();
-      sp.partName = CrawlDatum.PARSE_DIR_NAME;
-      sp.segmentName = name;
-      wrapper.setMeta(SEGMENT_PART_KEY, sp.toString());
+      wrapper.setPart(SegmentPart.PARSE, name);
       ArrayList segLinked = (ArrayList)linked.get(name);
       for (int i = 0; i < segLinked.size(); i++) {
         CrawlDatum link = (CrawlDatum)segLinked.get(i);
@@ -498,6 +462,15 @@ public class SegmentMerger extends Configured implements Mapper, Reducer {
     }
   }
 
+  private static void collect(WritableComparable key, byte part,
+                              Writable[] last, String[] lastName,
+                              PartWrapper wrapper, OutputCollector output)
+    throws IOException {
+    wrapper.set(last[part]);
+    wrapper.setPart(part, lastName[part]);
+    output.collect(key, wrapper);
+  }
+
   public void merge(Path out, Path[] segs, boolean filter, long slice) throws Exception {
     String segmentName = Generator.generateSegmentName();
     if (LOG.isInfoEnabled()) {
@@ -582,7 +555,7 @@ public class SegmentMerger extends Configured implements Mapper, Reducer {
     job.setReducerClass(SegmentMerger.class);
     job.setOutputPath(out);
     job.setOutputKeyClass(Text.class);
-    job.setOutputValueClass(MetaWrapper.class);
+    job.setOutputValueClass(PartWrapper.class);
     job.setOutputFormat(SegmentOutputFormat.class);
     
     setConf(job);
@@ -590,6 +563,304 @@ public class SegmentMerger extends Configured implements Mapper, Reducer {
     JobClient.runJob(job);
   }
 
+  /** The records of a MapFile part, merged by {@link #append}. */
+  private static class Source {
+    private final MapFile.Reader reader;
+    private final WritableComparable rawKey;
+    private final int partition;                  // or -1 for all keys
+    private final int numParts;
+    private final URLFilters filters;
+    final String segment;
+    final Text key;
+    final Writable value;
+    boolean done;
+
+    Source(FileSystem fs, Path part, String segment, int partition,
+           int numParts, URLFilters filters, Configuration conf)
+      throws IOException {
+      this.reader = new MapFile.Reader(fs, part.toString(), conf);
+      this.segment = segment;
+      this.partition = partition;
+      this.numParts = numParts;
+      this.filters = filters;
+      this.rawKey = (WritableComparable)
+        ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+      this.key = rawKey instanceof Text ? (Text)rawKey : new Text();
+      this.value =
+        (Writable)ReflectionUtils.newInstance(reader.getValueClass(), conf);
+    }
+
+    /** Reads the next record of the partition, if any. */
+    boolean next() throws IOException {
+      while (reader.next(rawKey, value)) {
+        if (rawKey != key) {                      // convert from UTF8
+          key.set(rawKey.toString());
+        }
+        if (partition >= 0
+            && (key.hashCode() & Integer.MAX_VALUE) % numParts != partition)
+          continue;
+        if (filters != null) {
+          try {
+            if (filters.filter(key.toString()) == null)
+              continue;
+          } catch (Exception e) {
+            if (LOG.isWarnEnabled()) {
+              LOG.warn("Cannot filter key " + key + ": " + e.getMessage());
+            }
+          }
+        }
+        return true;
+      }
+      done = true;
+      reader.close();
+      return false;
+    }
+  }
+
+  /**
+   * Merges new segments into an existing one, in place.  The sorted MapFile
+   * parts ({@link CrawlDatum#FETCH_DIR_NAME}, {@link Content#DIR_NAME},
+   * {@link ParseData#DIR_NAME} and {@link ParseText#DIR_NAME}) are hash
+   * partitioned by url: only the partitions where the new segments have
+   * urls are rewritten, by streaming the base partition and the new
+   * records in key order, keeping the latest version of each url.  Only one
+   * record per input is held in memory, and records are not re-sorted.
+   *
+   * <p>The unsorted {@link CrawlDatum#GENERATE_DIR_NAME} and
+   * {@link CrawlDatum#PARSE_DIR_NAME} parts of the new segments are copied
+   * next to those of the base segment, without removing older versions.
+   *
+   * <p>The {@link TermOffsets#DIR_NAME} part of the base segment is removed
+   * if its parse text changes, as the offsets would no longer match it.
+   *
+   * <p>The base segment must not be served or processed meanwhile.
+   */
+  public void append(Path base, Path[] segs, boolean filter)
+    throws IOException {
+    Configuration conf = getConf();
+    FileSystem fs = FileSystem.get(conf);
+    URLFilters urlFilters = filter ? new URLFilters(conf) : null;
+    String baseName = base.getName();
+    Path tmp = new Path(base, "_append-" + System.currentTimeMillis());
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Appending " + segs.length + " segments to " + base);
+    }
+
+    long rewritten = 0;                           // base bytes rewritten
+    long untouched = 0;                           // base bytes left as is
+    long written = 0;
+    long copied = 0;
+    int partsRewritten = 0;
+    int numPartsTotal = 0;
+    boolean textRewritten = false;
+    byte[] sorted = { SegmentPart.FETCH, SegmentPart.CONTENT,
+                      SegmentPart.PARSE_DATA, SegmentPart.PARSE_TEXT };
+    for (int t = 0; t < sorted.length; t++) {
+      byte type = sorted[t];
+      String dirName = SegmentPart.getName(type);
+      Path baseDir = new Path(base, dirName);
+      if (!fs.exists(baseDir))
+        continue;
+      ArrayList newSegs = new ArrayList();
+      for (int i = 0; i < segs.length; i++) {
+        if (fs.exists(new Path(segs[i], dirName))) {
+          newSegs.add(segs[i]);
+        } else if (LOG.isWarnEnabled()) {
+          LOG.warn(segs[i] + " has no " + dirName + ", skipping it there.");
+        }
+      }
+      Path[] baseParts = listParts(fs, baseDir);
+      int numParts = baseParts.length;
+      numPartsTotal += numParts;
+      BitSet affected =
+        getPartitions(fs, newSegs, dirName, numParts, urlFilters, conf);
+
+      for (int i = 0; i < numParts; i++) {
+        long size = getSize(fs, baseParts[i]);
+        if (!affected.get(i)) {
+          untouched += size;
+          continue;
+        }
+        Path merged = new Path(new Path(tmp, dirName), baseParts[i].getName());
+        appendPart(fs, baseParts[i], baseName, newSegs, dirName, type, i,
+                   numParts, merged, urlFilters);
+        written += getSize(fs, merged);
+        Path old = new Path(new Path(tmp, dirName),
+                            baseParts[i].getName() + ".old");
+        if (!fs.rename(baseParts[i], old) || !fs.rename(merged, baseParts[i])) {
+          throw new IOException("Cannot replace " + baseParts[i]);
+        }
+        fs.delete(old);
+        rewritten += size;
+        partsRewritten++;
+        textRewritten |= type == SegmentPart.PARSE_TEXT;
+      }
+    }
+
+    Path offsetsDir = new Path(base, TermOffsets.DIR_NAME);
+    if (textRewritten && fs.exists(offsetsDir)) {
+      fs.delete(offsetsDir);                      // stale for updated urls
+      if (LOG.isInfoEnabled()) {
+        LOG.info("Removed " + offsetsDir + ", its parse text was rewritten");
+      }
+    }
+
+    byte[] unsorted = { SegmentPart.GENERATE, SegmentPart.PARSE };
+    for (int t = 0; t < unsorted.length; t++) {
+      String dirName = SegmentPart.getName(unsorted[t]);
+      Path baseDir = new Path(base, dirName);
+      if (!fs.exists(baseDir))
+        continue;
+      for (int i = 0; i < segs.length; i++) {
+        Path dir = new Path(segs[i], dirName);
+        if (!fs.exists(dir))
+          continue;
+        Path[] parts = listParts(fs, dir);
+        for (int j = 0; j < parts.length; j++) {
+          Path to = new Path(baseDir, parts[j].getName() + "-" + segs[i].getName());
+          FileUtil.copy(fs, parts[j], fs, to, false, conf);
+          copied += getSize(fs, to);
+        }
+      }
+    }
+    fs.delete(tmp);
+
+    if (LOG.isInfoEnabled()) {
+      long mb = 1024 * 1024;
+      LOG.info("SegmentMerger: rewrote " + partsRewritten + " of "
+               + numPartsTotal + " sorted parts (" + rewritten / mb + " MB read, "
+               + written / mb + " MB written), left " + untouched / mb
+               + " MB untouched, copied " + copied / mb
+               + " MB of unsorted parts; a full merge would have sorted and"
+               + " rewritten all " + (rewritten + untouched) / mb
+               + " MB of the base segment");
+    }
+  }
+
+  /** Returns the partitions of a part where new segments have urls. */
+  private static BitSet getPartitions(FileSystem fs, List newSegs,
+                                      String dirName, int numParts,
+                                      URLFilters urlFilters,
+                                      Configuration conf) throws IOException {
+    BitSet partitions = new BitSet(numParts);
+    for (int i = 0; i < newSegs.size(); i++) {
+      Path[] parts = listParts(fs, new Path((Path)newSegs.get(i), dirName));
+      for (int j = 0; j < parts.length; j++) {
+        SequenceFile.Reader reader = new SequenceFile.Reader
+          (fs, new Path(parts[j], MapFile.DATA_FILE_NAME), conf);
+        try {
+          Writable key =
+            (Writable)ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+          Text text = key instanceof Text ? (Text)key : new Text();
+          while (reader.next(key)) {              // skips the values
+            if (key != text) {
+              text.set(key.toString());
+            }
+            if (urlFilters != null) {
+              try {
+                if (urlFilters.filter(text.toString()) == null)
+                  continue;
+              } catch (Exception e) {
+                // kept, as by the other filters
+              }
+            }
+            partitions.set((text.hashCode() & Integer.MAX_VALUE) % numParts);
+          }
+        } finally {
+          reader.close();
+        }
+      }
+    }
+    return partitions;
+  }
+
+  /** Merges the new records of a partition with its base part. */
+  private void appendPart(FileSystem fs, Path basePart, String baseName,
+                          List newSegs, String dirName, byte type,
+                          int partition, int numParts, Path output,
+                          URLFilters urlFilters) throws IOException {
+    Configuration conf = getConf();
+    ArrayList sources = new ArrayList();
+    sources.add(new Source(fs, basePart, baseName, -1, numParts, null, conf));
+    for (int i = 0; i < newSegs.size(); i++) {
+      Path seg = (Path)newSegs.get(i);
+      Path[] parts = listParts(fs, new Path(seg, dirName));
+      for (int j = 0; j < parts.length; j++) {
+        sources.add(new Source(fs, parts[j], seg.getName(), partition,
+                               numParts, urlFilters, conf));
+      }
+    }
+    for (int i = 0; i < sources.size(); i++) {
+      ((Source)sources.get(i)).next();
+    }
+
+    Class valueClass = ((Source)sources.get(0)).value.getClass();
+    MapFile.Writer writer = type == SegmentPart.FETCH
+      ? new MapFile.Writer(conf, fs, output.toString(), Text.class, valueClass)
+      : SegmentCompression.createWriter(conf, fs, output, valueClass, null);
+    try {
+      while (true) {
+        // the least key, from the latest segment
+        Source min = null;
+        for (int i = 0; i < sources.size(); i++) {
+          Source source = (Source)sources.get(i);
+          if (source.done)
+            continue;
+          int c = min == null ? -1 : source.key.compareTo(min.key);
+          if (c < 0 || (c == 0 && source.segment.compareTo(min.segment) > 0)) {
+            min = source;
+          }
+        }
+        if (min == null)
+          break;
+        if (type == SegmentPart.PARSE_DATA && min != sources.get(0)) {
+          // the segment holding the record is now the base
+          ((ParseData)min.value).getContentMeta()
+            .set(YuQing.SEGMENT_NAME_KEY, baseName);
+        }
+        writer.append(min.key, min.value);
+        for (int i = 0; i < sources.size(); i++) {  // skip older versions
+          Source source = (Source)sources.get(i);
+          if (source != min && !source.done && source.key.equals(min.key)) {
+            source.next();
+          }
+        }
+        min.next();
+      }
+    } finally {
+      writer.close();
+      for (int i = 0; i < sources.size(); i++) {
+        Source source = (Source)sources.get(i);
+        if (!source.done) {
+          source.reader.close();
+        }
+      }
+    }
+  }
+
+  /** Returns the part-xxxxx files or MapFiles of a segment directory. */
+  private static Path[] listParts(FileSystem fs, Path dir) throws IOException {
+    Path[] parts = fs.listPaths(dir, new PathFilter() {
+        public boolean accept(Path f) {
+          return f.getName().startsWith("part-");
+        }
+      });
+    Arrays.sort(parts);
+    return parts;
+  }
+
+  /** Returns the bytes of a file, or of the files in a directory. */
+  private static long getSize(FileSystem fs, Path path) throws IOException {
+    if (!fs.isDirectory(path))
+      return fs.getLength(path);
+    long size = 0;
+    Path[] files = fs.listPaths(path);
+    for (int i = 0; i < files.length; i++) {
+      size += getSize(fs, files[i]);
+    }
+    return size;
+  }
+
   /**
    * @param args
    */
@@ -601,6 +872,8 @@ public class SegmentMerger extends Configured implements Mapper, Reducer {
       System.err.println("\tseg1 seg2 ...\tlist of segment dirs");
       System.err.println("\t-filter\t\tfilter out URL-s prohibited by current URLFilters");
       System.err.println("\t-slice NNNN\tcreate many output segments, each containing NNNN URLs");
+      System.err.println("\t-append\t\tmerge the segments into output_dir, an existing segment,");
+      System.err.println("\t\t\trewriting only the partitions they update");
       return;
     }
     Configuration conf = YuQingConfiguration.create();
@@ -609,6 +882,7 @@ public class SegmentMerger extends Configured implements Mapper, Reducer {
     ArrayList segs = new ArrayList();
     long sliceSize = 0;
     boolean filter = false;
+    boolean append = false;
     for (int i = 1; i < args.length; i++) {
       if (args[i].equals("-dir")) {
         Path[] files = fs.listPaths(new Path(args[++i]), new PathFilter() {
@@ -626,6 +900,8 @@ public class SegmentMerger extends Configured implements Mapper, Reducer {
         filter = true;
       } else if (args[i].equals("-slice")) {
         sliceSize = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-append")) {
+        append = true;
       } else {
         segs.add(new Path(args[i]));
       }
@@ -635,7 +911,11 @@ public class SegmentMerger extends Configured implements Mapper, Reducer {
       return;
     }
     SegmentMerger merger = new SegmentMerger(conf);
-    merger.merge(out, (Path[]) segs.toArray(new Path[segs.size()]), filter, sliceSize);
+    if (append) {
+      merger.append(out, (Path[]) segs.toArray(new Path[segs.size()]), filter);
+    } else {
+      merger.merge(out, (Path[]) segs.toArray(new Path[segs.size()]), filter, sliceSize);
+    }
   }
 
 }
@@ -21,12 +21,36 @@ import java.io.IOException;
 
 import org.apache.hadoop.mapred.FileSplit;
 
+import cn.ideasoft.yuqing.crawl.CrawlDatum;
+import cn.ideasoft.yuqing.parse.ParseData;
+import cn.ideasoft.yuqing.parse.ParseText;
+import cn.ideasoft.yuqing.protocol.Content;
+
 /**
  * Utility class for handling information about segment parts.
  * 
  * @author Andrzej Bialecki
  */
 public class SegmentPart {
+  /** Type of the {@link CrawlDatum#GENERATE_DIR_NAME} part. */
+  public static final byte GENERATE = 0;
+  /** Type of the {@link CrawlDatum#FETCH_DIR_NAME} part. */
+  public static final byte FETCH = 1;
+  /** Type of the {@link CrawlDatum#PARSE_DIR_NAME} part. */
+  public static final byte PARSE = 2;
+  /** Type of the {@link Content#DIR_NAME} part. */
+  public static final byte CONTENT = 3;
+  /** Type of the {@link ParseData#DIR_NAME} part. */
+  public static final byte PARSE_DATA = 4;
+  /** Type of the {@link ParseText#DIR_NAME} part. */
+  public static final byte PARSE_TEXT = 5;
+
+  private static final String[] NAMES = {
+    CrawlDatum.GENERATE_DIR_NAME, CrawlDatum.FETCH_DIR_NAME,
+    CrawlDatum.PARSE_DIR_NAME, Content.DIR_NAME, ParseData.DIR_NAME,
+    ParseText.DIR_NAME
+  };
+
   /** Name of the segment (just the last path component). */
   public String segmentName;
   /** Name of the segment part (ie. one of subdirectories inside a segment). */
@@ -104,4 +128,22 @@ public class SegmentPart {
     String part = string.substring(idx + 1);
     return new SegmentPart(segment, part);
   }
-}
\ No newline at end of file
+
+  /**
+   * Returns the type of a part name, one of {@link #GENERATE}...
+   * {@link #PARSE_TEXT}.
+   * @throws IOException if the name is not a segment part.
+   */
+  public static byte getType(String partName) throws IOException {
+    for (byte i = 0; i < NAMES.length; i++) {
+      if (NAMES[i].equals(partName))
+        return i;
+    }
+    throw new IOException("Cannot determine segment part: " + partName);
+  }
+
+  /** Returns the name of a part type. */
+  public static String getName(byte type) {
+    return NAMES[type];
+  }
+}
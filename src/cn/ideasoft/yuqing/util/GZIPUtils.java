@@ -35,6 +35,7 @@ public class GZIPUtils {
   private static final Log LOG = LogFactory.getLog(GZIPUtils.class);
   private static final int EXPECTED_COMPRESSION_RATIO= 5;
   private static final int BUF_SIZE= 4096;
+  private static final int MAX_EXPECTED_RATIO= 1032;  // deflate's maximum
 
   /**
    * Returns an gunzipped copy of the input array.  If the gzipped
@@ -55,37 +56,7 @@ public class GZIPUtils {
    */
   public static final byte[] unzipBestEffort(byte[] in, int sizeLimit) {
     try {
-      // decompress using GZIPInputStream 
-      ByteArrayOutputStream outStream = 
-        new ByteArrayOutputStream(EXPECTED_COMPRESSION_RATIO * in.length);
-
-      GZIPInputStream inStream = 
-        new GZIPInputStream ( new ByteArrayInputStream(in) );
-
-      byte[] buf = new byte[BUF_SIZE];
-      int written = 0;
-      while (true) {
-        try {
-          int size = inStream.read(buf);
-          if (size <= 0) 
-            break;
-          if ((written + size) > sizeLimit) {
-            outStream.write(buf, 0, sizeLimit - written);
-            break;
-          }
-          outStream.write(buf, 0, size);
-          written+= size;
-        } catch (Exception e) {
-          break;
-        }
-      }
-      try {
-        outStream.close();
-      } catch (IOException e) {
-      }
-
-      return outStream.toByteArray();
-
+      return unzip(in, sizeLimit, true);
     } catch (IOException e) {
       return null;
     }
@@ -97,23 +68,75 @@ public class GZIPUtils {
    * @throws IOException if the input cannot be properly decompressed
    */
   public static final byte[] unzip(byte[] in) throws IOException {
-    // decompress using GZIPInputStream 
-    ByteArrayOutputStream outStream = 
-      new ByteArrayOutputStream(EXPECTED_COMPRESSION_RATIO * in.length);
+    return unzip(in, Integer.MAX_VALUE, false);
+  }
 
+  /** Unzips into an array sized by the gzip trailer, grown if needed. */
+  private static byte[] unzip(byte[] in, int sizeLimit, boolean bestEffort)
+    throws IOException {
+    // decompress using GZIPInputStream 
     GZIPInputStream inStream = 
       new GZIPInputStream ( new ByteArrayInputStream(in) );
 
-    byte[] buf = new byte[BUF_SIZE];
-    while (true) {
-      int size = inStream.read(buf);
-      if (size <= 0) 
+    byte[] out = new byte[Math.min(sizeLimit, expectedSize(in))];
+    int written = 0;
+    while (written < sizeLimit) {
+      try {
+        if (written == out.length) {              // check for the end
+          int b = inStream.read();
+          if (b < 0)
+            break;
+          out = grow(out, sizeLimit);
+          out[written++] = (byte)b;
+          continue;
+        }
+        int size = inStream.read(out, written, out.length - written);
+        if (size <= 0) 
+          break;
+        written+= size;
+      } catch (IOException e) {
+        if (!bestEffort)
+          throw e;
+        break;
+      } catch (RuntimeException e) {
+        if (!bestEffort)
+          throw e;
         break;
-      outStream.write(buf, 0, size);
+      }
     }
-    outStream.close();
+    return trim(out, written);
+  }
+
+  /**
+   * Returns the unzipped size recorded at the end of gzipped data, if it is
+   * plausible, else an estimate.
+   */
+  private static int expectedSize(byte[] in) {
+    int estimate = Math.max(BUF_SIZE, EXPECTED_COMPRESSION_RATIO * in.length);
+    if (in.length < 18)                           // header and trailer
+      return estimate;
+    int n = in.length;
+    long size = (in[n - 4] & 0xff) | ((in[n - 3] & 0xff) << 8)
+      | ((in[n - 2] & 0xff) << 16) | ((long)(in[n - 1] & 0xff) << 24);
+    // the size is modulo 2^32, and garbage if the input was truncated
+    if (size == 0 || size > MAX_EXPECTED_RATIO * (long)in.length)
+      return estimate;
+    return (int)size;
+  }
+
+  private static byte[] grow(byte[] out, int sizeLimit) {
+    int length = (int)Math.min((long)out.length * 2 + BUF_SIZE, sizeLimit);
+    byte[] grown = new byte[length];
+    System.arraycopy(out, 0, grown, 0, out.length);
+    return grown;
+  }
 
-    return outStream.toByteArray();
+  private static byte[] trim(byte[] out, int length) {
+    if (out.length == length)
+      return out;
+    byte[] trimmed = new byte[length];
+    System.arraycopy(out, 0, trimmed, 0, length);
+    return trimmed;
   }
 
   /**
@@ -0,0 +1,374 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+
+/**
+ * A fast LZ77 compression codec, in pure Java.
+ *
+ * <p>Data is cut into chunks of <code>io.compression.codec.lz.buffersize</code>
+ * bytes, compressed separately.  Each chunk is written as its length, the
+ * length of its compressed form, then the compressed form, or the chunk
+ * itself if it did not compress.  A compressed chunk is a sequence of
+ * literal runs, each followed by a match: a token byte holding the length
+ * of both, the literals, then the little-endian 16-bit offset of the match.
+ * Lengths above 14 are continued by bytes, as long as they are 255.  The
+ * last run has no match.
+ *
+ * <p>Matches are found by hashing four bytes, within 64KB back.  This
+ * compresses less than deflate, but several times faster, and each stream
+ * reuses its buffers from chunk to chunk.
+ */
+public class LZCodec implements Configurable, CompressionCodec {
+
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_OFFSET = 0xFFFF;
+  private static final int HASH_BITS = 14;
+  private static final int RUN_MASK = 0x0F;
+  private static final int SKIP_TRIGGER = 6;      // speed up when no match
+
+  private Configuration conf;
+  private int bufferSize = 256 * 1024;
+
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    this.bufferSize = conf.getInt("io.compression.codec.lz.buffersize",
+                                  256 * 1024);
+  }
+
+  public Configuration getConf() {
+    return conf;
+  }
+
+  public CompressionOutputStream createOutputStream(OutputStream out)
+    throws IOException {
+    return new LZOutputStream(out, bufferSize);
+  }
+
+  public CompressionInputStream createInputStream(InputStream in)
+    throws IOException {
+    return new LZInputStream(in);
+  }
+
+  public String getDefaultExtension() {
+    return ".lz";
+  }
+
+  /** Returns the largest compressed size of <code>length</code> bytes. */
+  public static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  /**
+   * Compresses bytes.
+   *
+   * @param table a work area of {@link #newTable()}.
+   * @return the number of bytes written to <code>dst</code>, which must hold
+   * {@link #maxCompressedLength(int)} bytes.
+   */
+  public static int compress(byte[] src, int srcOff, int srcLen,
+                             byte[] dst, int dstOff, int[] table) {
+    Arrays.fill(table, -1);
+    int end = srcOff + srcLen;
+    int limit = end - MIN_MATCH;
+    int anchor = srcOff;
+    int ip = srcOff;
+    int op = dstOff;
+
+    while (ip <= limit) {
+      int seq = readInt(src, ip);
+      int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+      int ref = table[h];
+      table[h] = ip;
+      if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+        ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+        continue;
+      }
+      int length = MIN_MATCH;
+      while (ip + length < end && src[ref + length] == src[ip + length]) {
+        length++;
+      }
+      op = writeSequence(src, anchor, ip - anchor, ip - ref, length, dst, op);
+      ip += length;
+      anchor = ip;
+    }
+    return writeSequence(src, anchor, end - anchor, 0, 0, dst, op) - dstOff;
+  }
+
+  /** Returns a work area for {@link #compress}. */
+  public static int[] newTable() {
+    return new int[1 << HASH_BITS];
+  }
+
+  /**
+   * Decompresses bytes.
+   *
+   * @return the number of bytes written to <code>dst</code>.
+   * @throws IOException if the data is corrupt or does not fit.
+   */
+  public static int decompress(byte[] src, int srcOff, int srcLen,
+                               byte[] dst, int dstOff, int dstLen)
+    throws IOException {
+    int ip = srcOff;
+    int end = srcOff + srcLen;
+    int op = dstOff;
+    int dstEnd = dstOff + dstLen;
+    try {
+      while (ip < end) {
+        int token = src[ip++] & 0xFF;
+
+        int literals = token >>> 4;
+        if (literals == RUN_MASK) {
+          int b;
+          do {
+            b = src[ip++] & 0xFF;
+            literals += b;
+          } while (b == 0xFF);
+        }
+        if (ip + literals > end || op + literals > dstEnd)
+          throw new IOException("Corrupt LZ data: literals overflow");
+        System.arraycopy(src, ip, dst, op, literals);
+        ip += literals;
+        op += literals;
+        if (ip == end)                            // last run
+          break;
+
+        int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+        ip += 2;
+        int length = token & RUN_MASK;
+        if (length == RUN_MASK) {
+          int b;
+          do {
+            b = src[ip++] & 0xFF;
+            length += b;
+          } while (b == 0xFF);
+        }
+        length += MIN_MATCH;
+        int ref = op - offset;
+        if (offset == 0 || ref < dstOff || op + length > dstEnd)
+          throw new IOException("Corrupt LZ data: bad match");
+        if (offset >= length) {
+          System.arraycopy(dst, ref, dst, op, length);
+          op += length;
+        } else {                                  // overlapping: repeats
+          for (int i = 0; i < length; i++) {
+            dst[op++] = dst[ref++];
+          }
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Corrupt LZ data: truncated");
+    }
+    return op - dstOff;
+  }
+
+  private static int writeSequence(byte[] src, int literalOff, int literals,
+                                   int offset, int length,
+                                   byte[] dst, int op) {
+    int token = op++;
+    if (literals >= RUN_MASK) {
+      dst[token] = (byte)(RUN_MASK << 4);
+      op = writeLength(literals - RUN_MASK, dst, op);
+    } else {
+      dst[token] = (byte)(literals << 4);
+    }
+    System.arraycopy(src, literalOff, dst, op, literals);
+    op += literals;
+    if (length == 0)                              // last run
+      return op;
+
+    dst[op++] = (byte)offset;
+    dst[op++] = (byte)(offset >>> 8);
+    length -= MIN_MATCH;
+    if (length >= RUN_MASK) {
+      dst[token] |= RUN_MASK;
+      op = writeLength(length - RUN_MASK, dst, op);
+    } else {
+      dst[token] |= length;
+    }
+    return op;
+  }
+
+  private static int writeLength(int length, byte[] dst, int op) {
+    while (length >= 0xFF) {
+      dst[op++] = (byte)0xFF;
+      length -= 0xFF;
+    }
+    dst[op++] = (byte)length;
+    return op;
+  }
+
+  private static int readInt(byte[] b, int i) {
+    return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8)
+      | ((b[i + 2] & 0xFF) << 16) | ((b[i + 3] & 0xFF) << 24);
+  }
+
+  /** Compresses chunks of the data written. */
+  public static class LZOutputStream extends CompressionOutputStream {
+    private final byte[] buffer;
+    private final byte[] compressed;
+    private final int[] table = newTable();
+    private final byte[] header = new byte[8];
+    private int count;
+
+    public LZOutputStream(OutputStream out, int bufferSize) {
+      super(out);
+      this.buffer = new byte[bufferSize];
+      this.compressed = new byte[maxCompressedLength(bufferSize)];
+    }
+
+    public void write(int b) throws IOException {
+      if (count == buffer.length)
+        writeChunk();
+      buffer[count++] = (byte)b;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == buffer.length)
+          writeChunk();
+        int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    public void finish() throws IOException {
+      if (count > 0)
+        writeChunk();
+    }
+
+    public void resetState() throws IOException {
+      count = 0;
+    }
+
+    private void writeChunk() throws IOException {
+      int length = compress(buffer, 0, count, compressed, 0, table);
+      boolean stored = length >= count;           // did not compress
+      writeInt(count, 0);
+      writeInt(stored ? count : length, 4);
+      out.write(header, 0, 8);
+      if (stored) {
+        out.write(buffer, 0, count);
+      } else {
+        out.write(compressed, 0, length);
+      }
+      count = 0;
+    }
+
+    private void writeInt(int v, int i) {
+      header[i] = (byte)(v >>> 24);
+      header[i + 1] = (byte)(v >>> 16);
+      header[i + 2] = (byte)(v >>> 8);
+      header[i + 3] = (byte)v;
+    }
+  }
+
+  /** Decompresses the chunks of an {@link LZOutputStream}. */
+  public static class LZInputStream extends CompressionInputStream {
+    private byte[] buffer = new byte[0];
+    private byte[] compressed = new byte[0];
+    private final byte[] header = new byte[8];
+    private int pos;
+    private int limit;
+
+    public LZInputStream(InputStream in) {
+      super(in);
+    }
+
+    public int read() throws IOException {
+      if (pos == limit && !readChunk())
+        return -1;
+      return buffer[pos++] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      if (pos == limit && !readChunk())
+        return -1;
+      int n = Math.min(len, limit - pos);
+      System.arraycopy(buffer, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    public int available() throws IOException {
+      return limit - pos;
+    }
+
+    public void resetState() throws IOException {
+      pos = limit = 0;
+    }
+
+    private boolean readChunk() throws IOException {
+      int first = in.read();
+      if (first < 0)
+        return false;
+      header[0] = (byte)first;
+      readFully(header, 1, 7);
+      int length = readInt(0);
+      int compressedLength = readInt(4);
+      if (length < 0 || compressedLength < 0 || compressedLength > length)
+        throw new IOException("Corrupt LZ chunk header");
+      if (buffer.length < length)
+        buffer = new byte[length];
+      if (compressedLength == length) {           // stored
+        readFully(buffer, 0, length);
+      } else {
+        if (compressed.length < compressedLength)
+          compressed = new byte[compressedLength];
+        readFully(compressed, 0, compressedLength);
+        if (decompress(compressed, 0, compressedLength, buffer, 0, length)
+            != length)
+          throw new IOException("Corrupt LZ data: short chunk");
+      }
+      pos = 0;
+      limit = length;
+      return true;
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int n = in.read(b, off, len);
+        if (n < 0)
+          throw new EOFException("Truncated LZ chunk");
+        off += n;
+        len -= n;
+      }
+    }
+
+    private int readInt(int i) {
+      return ((header[i] & 0xFF) << 24) | ((header[i + 1] & 0xFF) << 16)
+        | ((header[i + 2] & 0xFF) << 8) | (header[i + 3] & 0xFF);
+    }
+  }
+}
@@ -17,8 +17,10 @@
 
 package cn.ideasoft.yuqing.util;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
 
 /**
  * A class for efficiently matching <code>String</code>s against a set
@@ -32,9 +34,7 @@ public class PrefixStringMatcher extends TrieStringMatcher {
    * Zero-length <code>Strings</code> are ignored.
    */
   public PrefixStringMatcher(String[] prefixes) {
-    super();
-    for (int i= 0; i < prefixes.length; i++)
-      addPatternForward(prefixes[i]);
+    super(Arrays.asList(prefixes), false);
   }
 
   /**
@@ -46,10 +46,15 @@ public class PrefixStringMatcher extends TrieStringMatcher {
    * collection are not <code>String</code>s
    */
   public PrefixStringMatcher(Collection prefixes) {
-    super();
-    Iterator iter= prefixes.iterator();
-    while (iter.hasNext())
-      addPatternForward((String)iter.next());
+    super(prefixes, false);
+  }
+
+  /**
+   * Maps a <code>PrefixStringMatcher</code> written to a file by
+   * {@link TrieStringMatcher#write(File)}.
+   */
+  public PrefixStringMatcher(File file) throws IOException {
+    super(file, false);
   }
 
   /**
@@ -57,12 +62,12 @@ public class PrefixStringMatcher extends TrieStringMatcher {
    * prefix in the trie
    */
   public boolean matches(String input) {
-    TrieNode node= root;
+    int node= ROOT;
     for (int i= 0; i < input.length(); i++) {
-      node= node.getChild(input.charAt(i));
-      if (node == null) 
+      node= getChild(node, input.charAt(i));
+      if (node < 0) 
         return false;
-      if (node.isTerminal())
+      if (isTerminal(node))
         return true;
     }
     return false;
@@ -73,12 +78,12 @@ public class PrefixStringMatcher extends TrieStringMatcher {
    * or <code>null<code> if no match exists.
    */
   public String shortestMatch(String input) {
-    TrieNode node= root;
+    int node= ROOT;
     for (int i= 0; i < input.length(); i++) {
-      node= node.getChild(input.charAt(i));
-      if (node == null) 
+      node= getChild(node, input.charAt(i));
+      if (node < 0) 
         return null;
-      if (node.isTerminal())
+      if (isTerminal(node))
         return input.substring(0, i+1);
     }
     return null;
@@ -89,13 +94,13 @@ public class PrefixStringMatcher extends TrieStringMatcher {
    * or <code>null<code> if no match exists.
    */
   public String longestMatch(String input) {
-    TrieNode node= root;
+    int node= ROOT;
     String result= null;
     for (int i= 0; i < input.length(); i++) {
-      node= node.getChild(input.charAt(i));
-      if (node == null) 
+      node= getChild(node, input.charAt(i));
+      if (node < 0) 
         break;
-      if (node.isTerminal())
+      if (isTerminal(node))
         result= input.substring(0, i+1);
     }
     return result;
@@ -0,0 +1,128 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cn.ideasoft.yuqing.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache bounded by the estimated size of its entries, kept in a number of
+ * independently locked, access-ordered LRU segments so that it may be used
+ * concurrently. Subclasses estimate the size of an entry.
+ */
+public abstract class SegmentedLRUCache<K, V> {
+
+  private final Segment<K, V>[] segments;
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxBytes upper bound of the estimated size of the entries; zero
+   * or less disables caching.
+   * @param numSegments number of independently locked segments.
+   */
+  public SegmentedLRUCache(long maxBytes, int numSegments) {
+    if (maxBytes <= 0) {
+      numSegments = 0;
+    } else if (numSegments < 1) {
+      numSegments = 1;
+    }
+    // a generic array cannot be created: cast a raw one, which only ever
+    // holds segments of this cache
+    @SuppressWarnings("unchecked")
+    Segment<K, V>[] array = (Segment<K, V>[]) new Segment[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      array[i] = new Segment<K, V>(this, maxBytes / numSegments);
+    }
+    segments = array;
+  }
+
+  /** Returns the estimated size of an entry, in bytes. */
+  protected abstract long sizeOf(K key, V value);
+
+  /** Returns true if this cache actually stores anything. */
+  public boolean isEnabled() {
+    return segments.length > 0;
+  }
+
+  /** Returns the cached value of the key, or <code>null</code>. */
+  public V get(K key) {
+    if (segments.length == 0) return null;
+    return segment(key).get(key);
+  }
+
+  /** Caches a value, evicting the least recently used entries if needed. */
+  public void put(K key, V value) {
+    if (segments.length == 0) return;
+    segment(key).put(key, value);
+  }
+
+  public long getEvictions() { return evictions.get(); }
+
+  /** Returns the estimated size of all entries, in bytes. */
+  public long getBytes() {
+    long bytes = 0;
+    for (int i = 0; i < segments.length; i++) {
+      bytes += segments[i].getBytes();
+    }
+    return bytes;
+  }
+
+  private Segment<K, V> segment(K key) {
+    return segments[(key.hashCode() & 0x7fffffff) % segments.length];
+  }
+
+  /** An access-ordered LRU map bounded by the size of its entries. */
+  private static final class Segment<K, V> {
+    private final SegmentedLRUCache<K, V> cache;
+    private final long maxBytes;
+    private long bytes;
+    private final LinkedHashMap<K, V> map =
+      new LinkedHashMap<K, V>(16, 0.75f, true);
+
+    Segment(SegmentedLRUCache<K, V> cache, long maxBytes) {
+      this.cache = cache;
+      this.maxBytes = maxBytes;
+    }
+
+    synchronized V get(K key) {
+      return map.get(key);
+    }
+
+    synchronized void put(K key, V value) {
+      V old = map.put(key, value);
+      if (old != null) {
+        bytes -= cache.sizeOf(key, old);
+      }
+      bytes += cache.sizeOf(key, value);
+      Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
+      while (bytes > maxBytes && it.hasNext()) {
+        Map.Entry<K, V> eldest = it.next();
+        bytes -= cache.sizeOf(eldest.getKey(), eldest.getValue());
+        it.remove();
+        cache.evictions.incrementAndGet();
+      }
+    }
+
+    synchronized long getBytes() {
+      return bytes;
+    }
+  }
+}
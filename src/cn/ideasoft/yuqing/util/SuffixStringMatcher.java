@@ -17,8 +17,10 @@
 
 package cn.ideasoft.yuqing.util;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
 
 /**
  * A class for efficiently matching <code>String</code>s against a set
@@ -31,9 +33,7 @@ public class SuffixStringMatcher extends TrieStringMatcher {
    * <code>String</code>s with any suffix in the supplied array.
    */
   public SuffixStringMatcher(String[] suffixes) {
-    super();
-    for (int i= 0; i < suffixes.length; i++)
-      addPatternBackward(suffixes[i]);
+    super(Arrays.asList(suffixes), true);
   }
 
   /**
@@ -42,10 +42,15 @@ public class SuffixStringMatcher extends TrieStringMatcher {
    * <code>Collection</code>
    */
   public SuffixStringMatcher(Collection suffixes) {
-    super();
-    Iterator iter= suffixes.iterator();
-    while (iter.hasNext())
-      addPatternBackward((String)iter.next());
+    super(suffixes, true);
+  }
+
+  /**
+   * Maps a <code>SuffixStringMatcher</code> written to a file by
+   * {@link TrieStringMatcher#write(File)}.
+   */
+  public SuffixStringMatcher(File file) throws IOException {
+    super(file, true);
   }
 
   /**
@@ -53,12 +58,12 @@ public class SuffixStringMatcher extends TrieStringMatcher {
    * suffix in the trie
    */
   public boolean matches(String input) {
-    TrieNode node= root;
+    int node= ROOT;
     for (int i= input.length() - 1; i >= 0; i--) {
-      node= node.getChild(input.charAt(i));
-      if (node == null) 
+      node= getChild(node, input.charAt(i));
+      if (node < 0) 
         return false;
-      if (node.isTerminal())
+      if (isTerminal(node))
         return true;
     }
     return false;
@@ -70,12 +75,12 @@ public class SuffixStringMatcher extends TrieStringMatcher {
    * or <code>null<code> if no match exists.
    */
   public String shortestMatch(String input) {
-    TrieNode node= root;
+    int node= ROOT;
     for (int i= input.length() - 1; i >= 0; i--) {
-      node= node.getChild(input.charAt(i));
-      if (node == null) 
+      node= getChild(node, input.charAt(i));
+      if (node < 0) 
         return null;
-      if (node.isTerminal())
+      if (isTerminal(node))
         return input.substring(i);
     }
     return null;
@@ -86,13 +91,13 @@ public class SuffixStringMatcher extends TrieStringMatcher {
    * or <code>null<code> if no match exists.
    */
   public String longestMatch(String input) {
-    TrieNode node= root;
+    int node= ROOT;
     String result= null;
     for (int i= input.length() - 1; i >= 0; i--) {
-      node= node.getChild(input.charAt(i));
-      if (node == null) 
+      node= getChild(node, input.charAt(i));
+      if (node < 0) 
         break;
-      if (node.isTerminal())
+      if (isTerminal(node))
         result= input.substring(i);
     }
     return result;
@@ -17,172 +17,226 @@
 
 package cn.ideasoft.yuqing.util;
 
-
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 /**
  * TrieStringMatcher is a base class for simple tree-based string
  * matching.
  *
+ * <p>The trie is held in primitive arrays, with its nodes numbered
+ * breadth-first from the root, 0: the children of a node are numbered
+ * consecutively, in the order of their chars, so that a node is only its
+ * char, the number of its first child and a terminal bit.  Matching
+ * allocates nothing, and walks the arrays rather than node objects.
+ *
+ * <p>A trie may be written to a file, and mapped back without sorting and
+ * building it again.
  */
 public abstract class TrieStringMatcher {
-  protected TrieNode root;
 
-  protected TrieStringMatcher() {
-    this.root= new TrieNode('\000', false);
-  }
+  private static final int MAGIC = 0x54726965;    // "Trie"
+  private static final int VERSION = 1;
 
-  /**
-   * Node class for the character tree.
-   */
-  protected class TrieNode implements Comparable {
-    protected TrieNode[] children;
-    protected LinkedList childrenList;
-    protected char nodeChar;
-    protected boolean terminal;
-
-    /**
-     * Creates a new TrieNode, which contains the given
-     * <code>nodeChar</code>.  If <code>isTerminal</code> is
-     * <code>true</code>, the new node is a <em>terminal</em> node in
-     * the trie.
-     */  
-    TrieNode(char nodeChar, boolean isTerminal) {
-      this.nodeChar= nodeChar;
-      this.terminal= isTerminal;
-      this.childrenList= new LinkedList();
-    }
+  /** The root node, where matching starts. */
+  protected static final int ROOT = 0;
 
-    /**
-     * Returns <code>true</code> if this node is a <em>terminal</em>
-     * node in the trie.
-     */
-    boolean isTerminal() {
-      return terminal;
-    }
+  /** Below this many children, a node's children are searched linearly. */
+  private static final int LINEAR_SEARCH = 8;
 
-    /**
-     * Returns the child node of this node whose node-character is
-     * <code>nextChar</code>.  If no such node exists, one will be is
-     * added.  If <em>isTerminal</em> is <code>true</code>, the node 
-     * will be a terminal node in the trie.
-     */
-    TrieNode getChildAddIfNotPresent(char nextChar, boolean isTerminal) {
-      if (childrenList == null) {
-        childrenList= new LinkedList();
-        childrenList.addAll(Arrays.asList(children));
-        children= null;
-      }
+  private final boolean backward;
 
-      if (childrenList.size() == 0) {
-        TrieNode newNode= new TrieNode(nextChar, isTerminal);
-        childrenList.add(newNode);
-        return newNode;
-      }
+  /** The char of each node.  The root's is unused. */
+  private final char[] chars;
 
-      ListIterator iter= childrenList.listIterator();
-      TrieNode node= (TrieNode) iter.next();
-      while ( (node.nodeChar < nextChar) && iter.hasNext() ) 
-        node= (TrieNode) iter.next();
-                        
-      if (node.nodeChar == nextChar) {
-        node.terminal= node.terminal | isTerminal;
-        return node;
-      }
+  /** The children of node n are the nodes from children[n] to
+   * children[n+1], excluded. */
+  private final int[] children;
 
-      if (node.nodeChar > nextChar) 
-        iter.previous();
+  /** The terminal nodes, as a bit set. */
+  private final long[] terminal;
 
-      TrieNode newNode= new TrieNode(nextChar, isTerminal);
-      iter.add(newNode);
-      return newNode;                   
+  /**
+   * Builds the trie of the given <code>String</code>s, so that each can be
+   * decoded, <em>in reverse</em> if <code>backward</code>, with its last
+   * char decoded represented by a terminal node.  Zero-length
+   * <code>Strings</code> are ignored.
+   *
+   * @throws ClassCastException if any <code>Object</code>s in the
+   * collection are not <code>String</code>s
+   */
+  protected TrieStringMatcher(Collection patterns, boolean backward) {
+    this.backward = backward;
+    List sorted = new ArrayList(patterns.size());
+    Iterator iter = patterns.iterator();
+    while (iter.hasNext()) {
+      String s = (String)iter.next();
+      if (s.length() == 0)
+        continue;
+      sorted.add(backward ? new StringBuffer(s).reverse().toString() : s);
     }
+    String[] keys = (String[])sorted.toArray(new String[sorted.size()]);
+    Arrays.sort(keys);
 
-    /**
-     * Returns the child node of this node whose node-character is
-     * <code>nextChar</code>.  If no such node exists,
-     * <code>null</code> is returned.
-     */
-    TrieNode getChild(char nextChar) {
-      if (children == null) {
-        children= (TrieNode[]) 
-          childrenList.toArray(new TrieNode[childrenList.size()]);
-        childrenList= null;
-        Arrays.sort(children);
+    // the keys of node n are keys[lo[n]] to keys[hi[n]], excluded, which
+    // share its first depth[n] chars.  Those of its length come first.
+    int capacity = 1024;
+    char[] chars = new char[capacity];
+    int[] children = new int[capacity + 1];
+    long[] terminal = new long[(capacity >>> 6) + 1];
+    int[] lo = new int[capacity];
+    int[] hi = new int[capacity];
+    int[] depth = new int[capacity];
+    hi[0] = keys.length;
+    int nodes = 1;
+    for (int n = 0; n < nodes; n++) {
+      children[n] = nodes;
+      int d = depth[n];
+      int i = lo[n];
+      int end = hi[n];
+      if (i < end && keys[i].length() == d) {
+        terminal[n >>> 6] |= 1L << n;
+        while (i < end && keys[i].length() == d)  // duplicates
+          i++;
       }
-
-      int min= 0;
-      int max= children.length - 1;
-      int mid= 0;
-      while (min < max) {
-        mid= (min + max) / 2;
-        if (children[mid].nodeChar == nextChar) 
-          return children[mid];
-        if (children[mid].nodeChar < nextChar)
-          min= mid + 1;
-        else // if (children[mid].nodeChar > nextChar)
-          max= mid - 1;
+      while (i < end) {
+        char c = keys[i].charAt(d);
+        int first = i;
+        while (i < end && keys[i].charAt(d) == c)
+          i++;
+        if (nodes == capacity) {
+          capacity *= 2;
+          chars = grow(chars, capacity);
+          children = grow(children, capacity + 1);
+          terminal = grow(terminal, (capacity >>> 6) + 1);
+          lo = grow(lo, capacity);
+          hi = grow(hi, capacity);
+          depth = grow(depth, capacity);
+        }
+        chars[nodes] = c;
+        lo[nodes] = first;
+        hi[nodes] = i;
+        depth[nodes] = d + 1;
+        nodes++;
       }
+    }
+    children[nodes] = nodes;
+    this.chars = grow(chars, nodes);
+    this.children = grow(children, nodes + 1);
+    this.terminal = grow(terminal, (nodes >>> 6) + 1);
+  }
 
-      if (min == max) 
-        if (children[min].nodeChar == nextChar)
-          return children[min];
-
-      return null;
+  /**
+   * Maps a trie written by {@link #write(File)}.
+   *
+   * @throws IOException if the file is not a trie, or one of the other
+   * direction.
+   */
+  protected TrieStringMatcher(File file, boolean backward) throws IOException {
+    this.backward = backward;
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer buffer =
+        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < 13 || buffer.getInt() != MAGIC
+          || buffer.getInt() != VERSION)
+        throw new IOException("Not a trie: " + file);
+      if ((buffer.get() != 0) != backward)
+        throw new IOException("Trie of the other direction: " + file);
+      int nodes = buffer.getInt();
+      int terminalLength = (nodes >>> 6) + 1;
+      if (nodes < 1 || buffer.remaining()
+          != nodes * 2L + (nodes + 1) * 4L + terminalLength * 8L)
+        throw new IOException("Truncated trie: " + file);
+      chars = new char[nodes];
+      buffer.asCharBuffer().get(chars);
+      buffer.position(buffer.position() + nodes * 2);
+      children = new int[nodes + 1];
+      buffer.asIntBuffer().get(children);
+      buffer.position(buffer.position() + (nodes + 1) * 4);
+      terminal = new long[terminalLength];
+      buffer.asLongBuffer().get(terminal);
+    } finally {
+      in.close();
     }
+  }
 
-    public int compareTo(Object o) {
-      TrieNode other= (TrieNode) o;
-      if (this.nodeChar < other.nodeChar) 
-        return -1;
-      if (this.nodeChar == other.nodeChar) 
-        return 0;
-//    if (this.nodeChar > other.nodeChar) 
-      return 1;
+  /** Writes this trie to a file, to be mapped back by a subclass. */
+  public void write(File file) throws IOException {
+    DataOutputStream out = new DataOutputStream
+      (new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeBoolean(backward);
+      out.writeInt(chars.length);
+      for (int i = 0; i < chars.length; i++)
+        out.writeChar(chars[i]);
+      for (int i = 0; i < children.length; i++)
+        out.writeInt(children[i]);
+      for (int i = 0; i < terminal.length; i++)
+        out.writeLong(terminal[i]);
+    } finally {
+      out.close();
     }
   }
 
-  /**
-   * Returns the next {@link TrieNode} visited, given that you are at
-   * <code>node</code>, and the the next character in the input is 
-   * the <code>idx</code>'th character of <code>s</code>.
-   */
-  protected final TrieNode matchChar(TrieNode node, String s, int idx) {
-    return node.getChild(s.charAt(idx));
+  /** Returns the number of nodes in the trie, the root included. */
+  public int size() {
+    return chars.length;
+  }
+
+  /** Returns the number of bytes of the arrays holding the trie. */
+  public long getMemoryUsage() {
+    return chars.length * 2L + children.length * 4L + terminal.length * 8L;
   }
 
   /**
-   * Adds any necessary nodes to the trie so that the given
-   * <code>String</code> can be decoded and the last character is
-   * represented by a terminal node.  Zero-length <code>Strings</code>
-   * are ignored.
+   * Returns the child of <code>node</code> whose char is
+   * <code>nextChar</code>, or -1 if there is none.
    */
-  protected final void addPatternForward(String s) {
-    TrieNode node= root;
-    int stop= s.length() - 1;
-    int i;
-    if (s.length() > 0) {
-      for (i= 0; i < stop; i++)
-        node= node.getChildAddIfNotPresent(s.charAt(i), false);
-      node= node.getChildAddIfNotPresent(s.charAt(i), true);
+  protected final int getChild(int node, char nextChar) {
+    int min = children[node];
+    int max = children[node + 1] - 1;
+    while (max - min >= LINEAR_SEARCH) {
+      int mid = (min + max) >>> 1;
+      char c = chars[mid];
+      if (c == nextChar)
+        return mid;
+      if (c < nextChar)
+        min = mid + 1;
+      else
+        max = mid - 1;
+    }
+    for (; min <= max; min++) {
+      char c = chars[min];
+      if (c == nextChar)
+        return min;
+      if (c > nextChar)
+        break;
     }
+    return -1;
   }
 
   /**
-   * Adds any necessary nodes to the trie so that the given
-   * <code>String</code> can be decoded <em>in reverse</em> and the
-   * first character is represented by a terminal node.  Zero-length
-   * <code>Strings</code> are ignored.
+   * Returns <code>true</code> if <code>node</code> is a <em>terminal</em>
+   * node in the trie.
    */
-  protected final void addPatternBackward(String s) {
-    TrieNode node= root;
-    if (s.length() > 0) {
-      for (int i= s.length()-1; i > 0; i--) 
-        node= node.getChildAddIfNotPresent(s.charAt(i), false);
-      node= node.getChildAddIfNotPresent(s.charAt(0), true);
-    }
+  protected final boolean isTerminal(int node) {
+    return (terminal[node >>> 6] & (1L << node)) != 0;
   }
 
   /**
@@ -205,4 +259,89 @@ public abstract class TrieStringMatcher {
    */
   public abstract String longestMatch(String input);
 
+  private static char[] grow(char[] a, int length) {
+    char[] b = new char[length];
+    System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+    return b;
+  }
+
+  private static int[] grow(int[] a, int length) {
+    int[] b = new int[length];
+    System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+    return b;
+  }
+
+  private static long[] grow(long[] a, int length) {
+    long[] b = new long[length];
+    System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+    return b;
+  }
+
+  /**
+   * Measures the building, memory use, writing, mapping and lookup latency
+   * of a prefix trie of generated URLs.
+   */
+  public static void main(String[] args) throws IOException {
+    String usage = "TrieStringMatcher [-prefixes <n>] [-lookups <n>] [-file <trie file>]";
+    int count = 300000;
+    int lookups = 1000000;
+    File file = null;
+    for (int i = 0; i < args.length; i++) {
+      if ("-prefixes".equals(args[i])) {
+        count = Integer.parseInt(args[++i]);
+      } else if ("-lookups".equals(args[i])) {
+        lookups = Integer.parseInt(args[++i]);
+      } else if ("-file".equals(args[i])) {
+        file = new File(args[++i]);
+      } else {
+        System.err.println("Usage: " + usage);
+        return;
+      }
+    }
+    Random random = new Random(0);
+    List prefixes = new ArrayList(count);
+    for (int i = 0; i < count; i++) {
+      prefixes.add("http://www.site" + random.nextInt(count * 4) + ".com.cn/"
+                   + (random.nextBoolean() ? "news/" + random.nextInt(100) : ""));
+    }
+    String[] urls = new String[100000];
+    for (int i = 0; i < urls.length; i++) {
+      urls[i] = "http://www.site" + random.nextInt(count * 4) + ".com.cn/news/"
+        + random.nextInt(200) + "/index.html";
+    }
+
+    long start = System.currentTimeMillis();
+    PrefixStringMatcher matcher = new PrefixStringMatcher(prefixes);
+    long built = System.currentTimeMillis() - start;
+    System.out.println(count + " prefixes: " + matcher.size() + " nodes, "
+                       + matcher.getMemoryUsage() / 1024 + " KB, built in "
+                       + built + " ms");
+
+    if (file == null) {
+      file = File.createTempFile("trie", ".bin");
+      file.deleteOnExit();
+    }
+    start = System.currentTimeMillis();
+    matcher.write(file);
+    long written = System.currentTimeMillis() - start;
+    start = System.currentTimeMillis();
+    matcher = new PrefixStringMatcher(file);
+    long mapped = System.currentTimeMillis() - start;
+    System.out.println("written in " + written + " ms, " + file.length() / 1024
+                       + " KB mapped in " + mapped + " ms");
+
+    int hits = 0;
+    for (int i = 0; i < lookups; i++) {               // warm up
+      if (matcher.matches(urls[i % urls.length]))
+        hits++;
+    }
+    start = System.currentTimeMillis();
+    for (int i = 0; i < lookups; i++) {
+      if (matcher.matches(urls[i % urls.length]))
+        hits++;
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    System.out.println(lookups + " lookups, " + hits / 2 + " matched: "
+                       + elapsed * 1000000L / lookups + " ns each");
+  }
 }
@@ -0,0 +1,224 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ideasoft.yuqing.util.mime;
+
+// JDK imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * The magic sequences of a set of MimeTypes, compiled into one byte trie
+ * per offset.
+ *
+ * <p>Finding the type of some content walks each trie once over the bytes at
+ * its offset, instead of testing every magic of every type in turn. Among all
+ * the magics found, the longest wins; equally long ones are resolved by the
+ * order in which their types were added. The tries are stored in primitive
+ * arrays and never change once built, so one instance can be shared by any
+ * number of threads.</p>
+ */
+final class MagicMatcher {
+
+    /** The types, in the order they were added */
+    private final MimeType[] types;
+
+    /** The distinct magic offsets, in ascending order */
+    private final int[] offsets;
+
+    /** The root node of the trie of each offset */
+    private final int[] roots;
+
+    /** First child of each node in childLabels / childNodes */
+    private final int[] childStart;
+
+    /** Number of children of each node */
+    private final int[] childCount;
+
+    /** Children labels, sorted within each node */
+    private final byte[] childLabels;
+
+    /** Child node indexes, parallel to childLabels */
+    private final int[] childNodes;
+
+    /** Index in types of the magic ending on each node, or -1 */
+    private final int[] terminal;
+
+    /** Length of the magic ending on each node */
+    private final int[] depth;
+
+
+    /**
+     * Compiles the magics of the specified types.
+     * @param types are the mime-types, in order of preference.
+     */
+    MagicMatcher(MimeType[] types) {
+        this.types = types;
+
+        // Build a pointer-based trie first, then flatten it
+        List offsetList = new ArrayList();
+        List rootList = new ArrayList();
+        for (int t=0; t<types.length; t++) {
+            MimeType type = types[t];
+            for (int m=0; m<type.getMagicCount(); m++) {
+                byte[] magic = type.getMagic(m);
+                if ((magic == null) || (magic.length < 1)) { continue; }
+                Integer offset = new Integer(type.getMagicOffset(m));
+                int idx = offsetList.indexOf(offset);
+                if (idx < 0) {
+                    offsetList.add(offset);
+                    rootList.add(new Node());
+                    idx = offsetList.size() - 1;
+                }
+                Node node = (Node) rootList.get(idx);
+                for (int i=0; i<magic.length; i++) {
+                    node = node.child(magic[i]);
+                }
+                // keep the first type registered for a given magic
+                if (node.type < 0) { node.type = t; }
+            }
+        }
+
+        // Sort the offsets so that the matching is done front to back
+        Integer[] sorted = (Integer[]) offsetList.toArray(new Integer[offsetList.size()]);
+        Arrays.sort(sorted);
+        int nodes = 0;
+        for (int i=0; i<rootList.size(); i++) {
+            nodes += ((Node) rootList.get(i)).count();
+        }
+        offsets = new int[sorted.length];
+        roots = new int[sorted.length];
+        childStart = new int[nodes];
+        childCount = new int[nodes];
+        childLabels = new byte[Math.max(nodes - 1, 0)];
+        childNodes = new int[Math.max(nodes - 1, 0)];
+        terminal = new int[nodes];
+        depth = new int[nodes];
+
+        int[] next = new int[] { 0, 0 };    // next node, next child slot
+        for (int i=0; i<sorted.length; i++) {
+            offsets[i] = sorted[i].intValue();
+            Node root = (Node) rootList.get(offsetList.indexOf(sorted[i]));
+            roots[i] = flatten(root, 0, next);
+        }
+    }
+
+    /** Copies a node and its descendants into the arrays. */
+    private int flatten(Node node, int level, int[] next) {
+        int index = next[0]++;
+        terminal[index] = node.type;
+        depth[index] = level;
+        int n = node.labels.size();
+        int start = next[1];
+        next[1] += n;
+        childStart[index] = start;
+        childCount[index] = n;
+        // children are stored sorted by (signed) label for binary search
+        Integer[] order = new Integer[n];
+        for (int i=0; i<n; i++) { order[i] = new Integer(i); }
+        final List labels = node.labels;
+        Arrays.sort(order, new java.util.Comparator() {
+            public int compare(Object a, Object b) {
+                return ((Byte) labels.get(((Integer) a).intValue())).byteValue()
+                     - ((Byte) labels.get(((Integer) b).intValue())).byteValue();
+            }
+        });
+        for (int i=0; i<n; i++) {
+            int c = order[i].intValue();
+            childLabels[start + i] = ((Byte) labels.get(c)).byteValue();
+            childNodes[start + i] = flatten((Node) node.children.get(c), level + 1, next);
+        }
+        return index;
+    }
+
+    /**
+     * Find the Mime Content Type of a stream from its content.
+     * @param data are the first bytes of the content to analyze.
+     * @return the type of the longest magic found, or <code>null</code>.
+     */
+    MimeType match(byte[] data) {
+        if (data == null) { return null; }
+        int best = -1;
+        int bestLength = 0;
+        for (int o=0; o<offsets.length; o++) {
+            int pos = offsets[o];
+            if (pos >= data.length) { break; }
+            int node = roots[o];
+            while (pos < data.length) {
+                node = child(node, data[pos++]);
+                if (node < 0) { break; }
+                int type = terminal[node];
+                if (type >= 0) {
+                    int length = depth[node];
+                    if ((length > bestLength)
+                        || ((length == bestLength) && (type < best))) {
+                        best = type;
+                        bestLength = length;
+                    }
+                }
+            }
+        }
+        return (best < 0) ? null : types[best];
+    }
+
+    /** Return the child of node labelled b, or -1. */
+    private int child(int node, byte b) {
+        int lo = childStart[node];
+        int hi = lo + childCount[node] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            byte label = childLabels[mid];
+            if (label < b) {
+                lo = mid + 1;
+            } else if (label > b) {
+                hi = mid - 1;
+            } else {
+                return childNodes[mid];
+            }
+        }
+        return -1;
+    }
+
+    /** A trie node, only used while compiling. */
+    private final static class Node {
+        List labels = new ArrayList();
+        List children = new ArrayList();
+        int type = -1;
+
+        Node child(byte b) {
+            for (int i=0; i<labels.size(); i++) {
+                if (((Byte) labels.get(i)).byteValue() == b) {
+                    return (Node) children.get(i);
+                }
+            }
+            Node node = new Node();
+            labels.add(new Byte(b));
+            children.add(node);
+            return node;
+        }
+
+        int count() {
+            int count = 1;
+            for (int i=0; i<children.size(); i++) {
+                count += ((Node) children.get(i)).count();
+            }
+            return count;
+        }
+    }
+
+}
@@ -227,6 +227,21 @@ public final class MimeType {
     int getMinLength() {
         return minLength;
     }
+
+    /** Return the number of magic sequences of this mime-type. */
+    int getMagicCount() {
+        return magics.size();
+    }
+
+    /** Return the offset of the i-th magic sequence. */
+    int getMagicOffset(int i) {
+        return ((Magic) magics.get(i)).offset;
+    }
+
+    /** Return the bytes of the i-th magic sequence. */
+    byte[] getMagic(int i) {
+        return ((Magic) magics.get(i)).magic;
+    }
     
     public boolean hasMagic() {
         return (magics.size() > 0);
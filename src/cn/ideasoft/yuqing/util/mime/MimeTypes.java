@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 // Commons Logging imports
 import org.apache.commons.logging.Log;
@@ -50,9 +51,24 @@ public final class MimeTypes {
     /** MimeTypes indexed on the file extension */
     private Map extIdx = new HashMap();
 
+    /**
+     * Memo of the MimeTypes arrays returned for an extension, including the
+     * case-insensitive matches and the unknown extensions.
+     */
+    private Map extCache = new ConcurrentHashMap();
+
+    /** Marks an unknown extension in extCache */
+    private final static MimeType[] NO_TYPES = new MimeType[0];
+
+    /** Maximum number of extensions remembered in extCache */
+    private final static int EXT_CACHE_SIZE = 10000;
+
     /** List of MimeTypes containing a magic char sequence */
     private List magicsIdx = new ArrayList();
 
+    /** The magics of magicsIdx, compiled into tries */
+    private MagicMatcher magicMatcher = null;
+
     /** The minimum length of data to provide to check all MimeTypes */
     private int minLength = 0;
 
@@ -70,6 +86,7 @@ public final class MimeTypes {
     private MimeTypes(String filepath, Log logger) {
         MimeTypesReader reader = new MimeTypesReader(logger);
         add(reader.read(filepath));
+        compile();
     }
 
 
@@ -161,17 +178,25 @@ public final class MimeTypes {
      */
     public MimeType getMimeType(byte[] data) {
         // Preliminary checks
+        if ((data == null) || (data.length < 1)) {
+            return null;
+        }
+        // All the magics are searched at once, and the most qualified
+        // (the longest) magic sequence wins.
+        return magicMatcher.match(data);
+    }
+
+    /**
+     * The former implementation of {@link #getMimeType(byte[])}: scans all
+     * the magics and returns the first matching one. Only used to compare
+     * against the compiled magics.
+     */
+    private MimeType scanMagics(byte[] data) {
         if ((data == null) || (data.length < 1)) {
             return null;
         }
         Iterator iter = magicsIdx.iterator();
         MimeType type = null;
-        // TODO: This is a very naive first approach (scanning all the magic
-        //       bytes since one is matching.
-        //       A first improvement could be to use a search path on the magic
-        //       bytes.
-        // TODO: A second improvement could be to search for the most qualified
-        //       (the longuest) magic sequence (not the first that is matching).
         while (iter.hasNext()) {
             type = (MimeType) iter.next();
             if (type.matches(data)) {
@@ -199,11 +224,16 @@ public final class MimeTypes {
             // No mime-type found, so trying to analyse the content
             mimeType = getMimeType(data);
         } else if (mimeTypes.length > 1) {
-            // TODO: More than one mime-type found, so trying magic resolution
-            // on these mime types
-            //mimeType = getMimeType(data, mimeTypes);
-            // For now, just get the first one
+            // More than one mime-type found, so trying magic resolution
+            // on these mime types, or get the first one
             mimeType = mimeTypes[0];
+            MimeType magicType = getMimeType(data);
+            for (int i=0; (magicType != null) && (i<mimeTypes.length); i++) {
+                if (mimeTypes[i] == magicType) {
+                    mimeType = magicType;
+                    break;
+                }
+            }
         } else {
             mimeType = mimeTypes[0];
         }
@@ -230,6 +260,16 @@ public final class MimeTypes {
     }
     
     
+    /**
+     * Compiles the magics index and the extensions memo. Must be called once
+     * all the mime-types are added.
+     */
+    void compile() {
+        magicMatcher = new MagicMatcher(
+                (MimeType[]) magicsIdx.toArray(new MimeType[magicsIdx.size()]));
+        extCache.clear();
+    }
+
     /**
      * Add the specified mime-types in the repository.
      * @param types are the mime-types to add.
@@ -275,18 +315,78 @@ public final class MimeTypes {
      * (many MimeTypes can have the same registered extensions).
      */
     private MimeType[] getMimeTypes(String name) {
-        List mimeTypes = null;
+        MimeType[] mimeTypes = null;
         int index = name.lastIndexOf('.');
         if ((index != -1) && (index != name.length()-1)) {
             // There's an extension, so try to find
             // the corresponding mime-types
             String ext = name.substring(index + 1);
-            mimeTypes = (List) extIdx.get(ext);
+            mimeTypes = (MimeType[]) extCache.get(ext);
+            if (mimeTypes == null) {
+                List list = (List) extIdx.get(ext);
+                if (list == null) {
+                    // Then try to ignore the case of the extension
+                    list = (List) extIdx.get(ext.toLowerCase());
+                }
+                mimeTypes = (list == null)
+                          ? NO_TYPES
+                          : (MimeType[]) list.toArray(new MimeType[list.size()]);
+                if (extCache.size() >= EXT_CACHE_SIZE) {
+                    extCache.clear();
+                }
+                extCache.put(ext, mimeTypes);
+            }
         }
         
-        return (mimeTypes != null)
-                    ? (MimeType[]) mimeTypes.toArray(new MimeType[mimeTypes.size()])
+        return ((mimeTypes != null) && (mimeTypes != NO_TYPES))
+                    ? (MimeType[]) mimeTypes.clone()
                     : null;
     }
+
+    /**
+     * Benchmarks the compiled magics against a scan of all magics.
+     * Usage: MimeTypes &lt;mime-types resource&gt; &lt;iterations&gt; &lt;file&gt;...
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: MimeTypes <mime-types resource> <iterations> <file>...");
+            return;
+        }
+        MimeTypes mimeTypes = MimeTypes.get(args[0]);
+        int iterations = Integer.parseInt(args[1]);
+        byte[][] samples = new byte[args.length - 2][];
+        for (int i=0; i<samples.length; i++) {
+            java.io.InputStream in = new java.io.FileInputStream(args[i + 2]);
+            try {
+                byte[] buf = new byte[Math.max(mimeTypes.getMinLength(), 1)];
+                int len = in.read(buf);
+                samples[i] = new byte[Math.max(len, 0)];
+                System.arraycopy(buf, 0, samples[i], 0, samples[i].length);
+            } finally {
+                in.close();
+            }
+            MimeType compiled = mimeTypes.getMimeType(samples[i]);
+            MimeType scanned = mimeTypes.scanMagics(samples[i]);
+            System.out.println(args[i + 2] + ": " + compiled
+                               + ((compiled != scanned) ? " (scan: " + scanned + ")" : ""));
+        }
+        for (int round=0; round<2; round++) {
+            long start = System.currentTimeMillis();
+            for (int n=0; n<iterations; n++) {
+                for (int i=0; i<samples.length; i++) {
+                    mimeTypes.scanMagics(samples[i]);
+                }
+            }
+            long scan = System.currentTimeMillis() - start;
+            start = System.currentTimeMillis();
+            for (int n=0; n<iterations; n++) {
+                for (int i=0; i<samples.length; i++) {
+                    mimeTypes.getMimeType(samples[i]);
+                }
+            }
+            long compiled = System.currentTimeMillis() - start;
+            System.out.println("scan: " + scan + "ms, compiled: " + compiled + "ms");
+        }
+    }
     
 }